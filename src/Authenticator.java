@@ -0,0 +1,247 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.mindrot.jbcrypt.BCrypt;
+
+/**
+ * Email/password login.
+ *
+ * <p>The lookup reads only (UserID, Password) through the unique Email index. bcrypt runs
+ * on a fixed pool of hashing threads with a bounded queue, so a flood of logins queues or is
+ * turned away instead of taking every CPU. Before any database or hashing work, attempts are
+ * throttled per source (all attempts) and per account (failed attempts) in fixed windows. An
+ * attempt reserves an account failure before it hashes, handed back unless the password turns
+ * out wrong, so concurrent guesses cannot overrun the limit. Unknown emails are hashed against
+ * a dummy hash so they take as long as wrong passwords.
+ *
+ * <p>Time waiting for the hash is recorded as the HASH phase of the current
+ * {@link QueryMetrics.Call}; the lookup shows up in the usual database phases.
+ *
+ * <p>Settings: {@code yatv.auth.threads} (default: available processors),
+ * {@code yatv.auth.queue} (64), {@code yatv.auth.maxFailuresPerAccount} (5),
+ * {@code yatv.auth.maxAttemptsPerSource} (30), {@code yatv.auth.windowSeconds} (60).
+ */
+final class Authenticator {
+
+  /**
+   * Result of a login attempt
+   */
+  enum Outcome {
+    OK, BAD_CREDENTIALS, THROTTLED, BUSY
+  }
+
+  private static final Authenticator INSTANCE = new Authenticator(
+      Integer.getInteger("yatv.auth.threads", Runtime.getRuntime().availableProcessors()),
+      Integer.getInteger("yatv.auth.queue", 64),
+      Integer.getInteger("yatv.auth.maxFailuresPerAccount", 5),
+      Integer.getInteger("yatv.auth.maxAttemptsPerSource", 30),
+      Long.getLong("yatv.auth.windowSeconds", 60));
+
+  /**
+   * Same cost as registration, so unknown emails cost the same as real ones
+   */
+  private static final String DUMMY_HASH = BCrypt.hashpw("dummy", BCrypt.gensalt(9));
+
+  private final ThreadPoolExecutor hashers;
+  private final Throttle accountFailures;
+  private final Throttle sourceAttempts;
+
+  /**
+   * @param threads              hashing threads
+   * @param queue                hashes that may wait for a thread before logins are refused
+   * @param maxFailuresPerAccount failed attempts per account per window
+   * @param maxAttemptsPerSource attempts per source per window
+   * @param windowSeconds        throttling window
+   */
+  Authenticator(int threads, int queue, int maxFailuresPerAccount, int maxAttemptsPerSource,
+      long windowSeconds) {
+    hashers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queue), r -> {
+      final Thread t = new Thread(r, "bcrypt");
+      t.setDaemon(true);
+      return t;
+    });
+    accountFailures = new Throttle(maxFailuresPerAccount, windowSeconds);
+    sourceAttempts = new Throttle(maxAttemptsPerSource, windowSeconds);
+  }
+
+  /**
+   * @return the process-wide authenticator
+   */
+  static Authenticator get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Authenticates a user
+   *
+   * @param connection database connection
+   * @param email      email
+   * @param password   plaintext password
+   * @param source     where the attempt comes from (client address or id), for throttling
+   * @param userId     receives the user id on success; may be null
+   * @return outcome
+   * @throws SQLException SQL gone bad
+   */
+  Outcome authenticate(Connection connection, String email, String password, String source,
+      int[] userId) throws SQLException {
+    // Email matches case-insensitively, so every spelling of it shares the account's budget
+    final String account = email.trim().toLowerCase(Locale.ROOT);
+    if (!sourceAttempts.tryAcquire(source) || !accountFailures.tryAcquire(account)) {
+      return Outcome.THROTTLED;
+    }
+    Outcome outcome = null;
+    try {
+      outcome = verify(connection, email, password, userId);
+      return outcome;
+    } finally {
+      if (outcome == Outcome.OK) {
+        accountFailures.clear(account);
+      } else if (outcome != Outcome.BAD_CREDENTIALS) {
+        // Busy or failed before a verdict: not a wrong password
+        accountFailures.release(account);
+      }
+    }
+  }
+
+  private Outcome verify(Connection connection, String email, String password, int[] userId)
+      throws SQLException {
+    int id = 0;
+    String hash = null;
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT u.UserID, u.Password FROM User u WHERE u.Email = ?")) {
+      stmt.setString(1, email);
+      try (final ResultSet res = stmt.executeQuery()) {
+        if (res.next()) {
+          id = res.getInt(1);
+          hash = res.getString(2);
+        }
+      }
+    }
+
+    final String expected = hash == null ? DUMMY_HASH : hash;
+    final long start = System.nanoTime();
+    final boolean matches;
+    try {
+      final Future<Boolean> check = hashers.submit(() -> BCrypt.checkpw(password, expected));
+      matches = check.get();
+    } catch (RejectedExecutionException e) {
+      return Outcome.BUSY;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while verifying password", e);
+    } catch (ExecutionException e) {
+      // Malformed stored hash
+      throw new SQLException("Cannot verify password", e.getCause());
+    } finally {
+      final QueryMetrics.Call call = QueryMetrics.current();
+      if (call != null) {
+        call.add(QueryMetrics.Phase.HASH, System.nanoTime() - start);
+      }
+    }
+
+    if (hash != null && matches) {
+      if (userId != null) {
+        userId[0] = id;
+      }
+      return Outcome.OK;
+    }
+    return Outcome.BAD_CREDENTIALS;
+  }
+
+  /**
+   * Fixed-window counter per key. Once {@link #MAX_KEYS} keys have windows, the next new key
+   * sweeps out the expired ones and, if most are still live, the oldest until a tenth of the
+   * room is free, so every key keeps a window of its own. A sweep frees room for many new keys,
+   * so a flood of distinct keys costs each attempt O(1) on average.
+   */
+  static final class Throttle {
+
+    private static final int MAX_KEYS = 100_000;
+
+    private final int limit;
+    private final long windowNanos;
+    private final Map<String, long[]> windows = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    Throttle(int limit, long windowSeconds) {
+      this.limit = limit;
+      this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+    }
+
+    /**
+     * Counts one use of the key
+     *
+     * @return whether it was within the limit
+     */
+    boolean tryAcquire(String key) {
+      final long now = System.nanoTime();
+      long[] w = windows.get(key);
+      if (w == null) {
+        if (windows.size() >= MAX_KEYS && sweeping.compareAndSet(false, true)) {
+          try {
+            sweep(now);
+          } finally {
+            sweeping.set(false);
+          }
+        }
+        // {window start, count}
+        w = windows.computeIfAbsent(key, k -> new long[]{now, 0});
+      }
+      synchronized (w) {
+        if (now - w[0] >= windowNanos) {
+          w[0] = now;
+          w[1] = 0;
+        }
+        return ++w[1] <= limit;
+      }
+    }
+
+    /**
+     * Hands back a use counted by {@link #tryAcquire} that turned out not to count
+     */
+    void release(String key) {
+      final long[] w = windows.get(key);
+      if (w != null) {
+        synchronized (w) {
+          if (w[1] > 0) {
+            w[1]--;
+          }
+        }
+      }
+    }
+
+    void clear(String key) {
+      windows.remove(key);
+    }
+
+    private void sweep(long now) {
+      windows.values().removeIf(w -> start(w) - now <= -windowNanos);
+      final int excess = windows.size() - MAX_KEYS * 9 / 10;
+      if (excess > 0) {
+        // Still full of live windows: drop the oldest, the nearest to expiring anyway
+        final long[] starts = windows.values().stream().mapToLong(Throttle::start).sorted()
+            .toArray();
+        final long cutoff = starts[Math.min(excess, starts.length) - 1];
+        windows.values().removeIf(w -> start(w) - cutoff <= 0);
+      }
+    }
+
+    private static long start(long[] w) {
+      synchronized (w) {
+        return w[0];
+      }
+    }
+  }
+}
@@ -16,6 +16,13 @@ package org.mindrot.jbcrypt;
 
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
 
 /**
  * BCrypt implements OpenBSD-style Blowfish password hashing using
@@ -640,6 +647,26 @@ public class BCrypt {
 		return ret;
 	}
 
+	/**
+	 * Flight Recorder event for one bcrypt hash or verify, so
+	 * recordings can tell hashing apart from the JDBC work
+	 * around it
+	 */
+	@Name("yatv.BCrypt")
+	@Label("BCrypt")
+	@Category({"YaTV", "Security"})
+	@Description("One bcrypt password hash or verification")
+	@StackTrace(true)
+	@Threshold("0 ms")
+	static final class HashEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Cost Factor")
+		@Description("log2 of the number of rounds")
+		int cost;
+	}
+
 	/**
 	 * Hash a password using the OpenBSD bcrypt scheme
 	 * @param password	the password to hash
@@ -648,6 +675,19 @@ public class BCrypt {
 	 * @return	the hashed password
 	 */
 	public static String hashpw(String password, String salt) {
+		return hashpw(password, salt, "hash");
+	}
+
+	/**
+	 * Hash a password, recording the work as a HashEvent
+	 * @param password	the password to hash
+	 * @param salt	the salt to hash with
+	 * @param operation	"hash" or "verify", for the event
+	 * @return	the hashed password
+	 */
+	private static String hashpw(String password, String salt,
+	    String operation) {
+		HashEvent event = new HashEvent();
 		BCrypt B;
 		String real_salt;
 		byte passwordb[], saltb[], hashed[];
@@ -680,9 +720,16 @@ public class BCrypt {
 
 		saltb = decode_base64(real_salt, BCRYPT_SALT_LEN);
 
+		event.begin();
 		B = new BCrypt();
 		hashed = B.crypt_raw(passwordb, saltb, rounds,
 		    (int[])bf_crypt_ciphertext.clone());
+		event.end();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.cost = rounds;
+			event.commit();
+		}
 
 		rs.append("$2");
 		if (minor >= 'a')
@@ -761,7 +808,7 @@ public class BCrypt {
 		byte hashed_bytes[];
 		byte try_bytes[];
 		try {
-			String try_pw = hashpw(plaintext, hashed);
+			String try_pw = hashpw(plaintext, hashed, "verify");
 			hashed_bytes = hashed.getBytes("UTF-8");
 			try_bytes = try_pw.getBytes("UTF-8");
 		} catch (UnsupportedEncodingException uee) {
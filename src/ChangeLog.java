@@ -0,0 +1,513 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tails the ChangeLog table so that in-memory copies of the catalog and of Subscription
+ * follow writes made by other processes, such as an admin's UpdatePlatformVersion or another
+ * node's AddLatestVideo, without reloading.
+ *
+ * <p>{@link #install} puts row triggers on the tracked tables that append (table, key, op)
+ * to ChangeLog in the writing transaction, with an AUTO_INCREMENT Seq. On MySQL they are SQL
+ * triggers, three per table; on the embedded database, one Java source trigger per table that
+ * the database compiles at install time. The keys are the columns caches look rows up by:
+ * <ul>
+ *   <li>App (AppID), Platform (PlatformID), Shows (ShowID)</li>
+ *   <li>AppPlatform (AppID, PlatformID), Video (VideoID, AppID), Seasons (ShowID, VideoID)</li>
+ *   <li>Subscription (UserID, AppID)</li>
+ * </ul>
+ *
+ * <p>A poller thread reads entries after the last Seq it saw, in batches of {@code
+ * -Dyatv.changelog.batch} (default 1000) every {@code -Dyatv.changelog.pollMillis} (default
+ * 500), and passes each to the {@link Listener}s in Seq order, on its own connection so they
+ * can re-read the rows they need. Seqs are assigned at insert but seen at commit, so a
+ * transaction can commit a lower Seq after a higher one was read. Skipped Seqs are kept as
+ * holes and looked for again for {@code -Dyatv.changelog.holeSeconds} (default 30), longer
+ * than any write transaction; the rest were rolled back. For the same reason the poller starts,
+ * and restarts after a reset, that far back in the log rather than at its end, so a
+ * transaction open at the time is still seen when it commits.
+ *
+ * <p>Entries older than {@code -Dyatv.changelog.retainMinutes} (default 10) and already read
+ * are pruned once a minute. Each process prunes only what it has read, so a process polling
+ * within the retention and keeping up never misses an entry. One that has not polled for
+ * longer, or finds entries past its position already pruned by another process, tells its
+ * listeners to {@link Listener#reset} instead.
+ *
+ * <p>A process also reads back its own writes. Listeners re-read or drop rather than apply
+ * deltas, so seeing a change twice is harmless. A listener that fails on a change is reset,
+ * since it has missed it.
+ *
+ * <p>Usage: {@code java ChangeLog [--profile mysql|embedded] [--url JDBC_URL]
+ * [--install true] [--seconds 60]} installs the triggers if asked, then prints changes as
+ * they arrive.
+ */
+final class ChangeLog implements AutoCloseable {
+
+  static final long POLL_MILLIS = Long.getLong("yatv.changelog.pollMillis", 500);
+  static final int BATCH = Math.max(1, Integer.getInteger("yatv.changelog.batch", 1000));
+  static final long HOLE_SECONDS = Long.getLong("yatv.changelog.holeSeconds", 30);
+  static final long RETAIN_MINUTES = Long.getLong("yatv.changelog.retainMinutes", 10);
+
+  private static final long PRUNE_MILLIS = 60_000;
+
+  /**
+   * Tracked tables with the key columns logged for them
+   */
+  static final String[][] TRACKED = {{"App", "AppID", null}, {"Platform", "PlatformID", null},
+      {"AppPlatform", "AppID", "PlatformID"}, {"Shows", "ShowID", null},
+      {"Video", "VideoID", "AppID"}, {"Seasons", "ShowID", "VideoID"},
+      {"Subscription", "UserID", "AppID"}};
+
+  /**
+   * One logged row change
+   */
+  static final class Change {
+
+    final long seq;
+    final String table;
+    final int key1;
+    /**
+     * Second key column, or 0 for tables with one
+     */
+    final int key2;
+    /**
+     * I, U or D
+     */
+    final char op;
+
+    Change(long seq, String table, int key1, int key2, char op) {
+      this.seq = seq;
+      this.table = table;
+      this.key1 = key1;
+      this.key2 = key2;
+      this.op = op;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d %c %s %d%s", seq, op, table, key1, key2 == 0 ? "" : " " + key2);
+    }
+  }
+
+  /**
+   * An in-memory copy of tracked tables
+   */
+  interface Listener {
+
+    /**
+     * @param connection the poller's connection, for re-reading the changed rows
+     * @param change     the change
+     * @throws SQLException SQL gone bad
+     */
+    void changed(Connection connection, Change change) throws SQLException;
+
+    /**
+     * Changes were missed; anything derived from the tracked tables may be stale
+     */
+    void reset();
+  }
+
+  private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+  private static volatile ChangeLog shared;
+
+  private final ConnectionPool pool;
+  private final Thread poller;
+  private volatile boolean closed;
+
+  // Poller thread only
+  /**
+   * Highest Seq read
+   */
+  private long position;
+  /**
+   * Seqs below position not read yet, with when they were first missed
+   */
+  private final TreeMap<Long, Long> holes = new TreeMap<>();
+  private long lastPollMillis;
+  private long lastPruneMillis;
+
+  // Statistics
+  private volatile long polls;
+  private volatile long delivered;
+  private volatile long lateCommits;
+  private volatile long abandonedHoles;
+  private volatile long resets;
+  private volatile long pruned;
+  private volatile long lagMillis;
+
+  private ChangeLog(ConnectionPool pool) {
+    this.pool = pool;
+    this.lastPollMillis = System.currentTimeMillis();
+    this.lastPruneMillis = lastPollMillis;
+    this.poller = new Thread(this::pollLoop, "yatv-changelog");
+    this.poller.setDaemon(true);
+  }
+
+  static void subscribe(Listener listener) {
+    LISTENERS.add(listener);
+  }
+
+  static void unsubscribe(Listener listener) {
+    LISTENERS.remove(listener);
+  }
+
+  /**
+   * Installs or replaces the triggers on the tracked tables
+   *
+   * @param connection database connection
+   * @throws SQLException SQL gone bad, or not allowed to create triggers
+   */
+  static void install(Connection connection) throws SQLException {
+    final boolean mysql = connection.getMetaData().getDatabaseProductName()
+        .toLowerCase(Locale.ROOT).contains("mysql");
+    try (final Statement stmt = connection.createStatement()) {
+      for (String[] t : TRACKED) {
+        if (mysql) {
+          for (String op : new String[] {"INSERT", "UPDATE", "DELETE"}) {
+            final String name = t[0] + "_changelog_" + op.toLowerCase(Locale.ROOT);
+            final String row = op.equals("DELETE") ? "OLD." : "NEW.";
+            stmt.execute("DROP TRIGGER IF EXISTS " + name);
+            stmt.execute("CREATE TRIGGER " + name + " AFTER " + op + " ON " + t[0]
+                + " FOR EACH ROW INSERT INTO ChangeLog (TableName, Key1, Key2, Op) VALUES ('"
+                + t[0] + "', " + row + t[1] + ", " + (t[2] == null ? "NULL" : row + t[2])
+                + ", '" + op.charAt(0) + "')");
+          }
+        } else {
+          final String name = t[0] + "_changelog";
+          stmt.execute("DROP TRIGGER IF EXISTS " + name);
+          stmt.execute("CREATE TRIGGER " + name + " AFTER INSERT, UPDATE, DELETE ON " + t[0]
+              + " FOR EACH ROW AS $$" + h2Trigger(connection, t) + "$$");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return source of an H2 trigger logging a table's changes, with its key columns
+   * resolved to row positions
+   */
+  private static String h2Trigger(Connection connection, String[] table) throws SQLException {
+    final Map<String, Integer> columns = new HashMap<>();
+    try (final Statement stmt = connection.createStatement();
+        final ResultSet res = stmt.executeQuery("SELECT * FROM " + table[0] + " WHERE 1 = 0")) {
+      for (int c = 1; c <= res.getMetaData().getColumnCount(); c++) {
+        columns.put(res.getMetaData().getColumnLabel(c).toUpperCase(Locale.ROOT), c - 1);
+      }
+    }
+    final int key1 = columns.get(table[1].toUpperCase(Locale.ROOT));
+    final String key2 = table[2] == null ? "null"
+        : "row[" + columns.get(table[2].toUpperCase(Locale.ROOT)) + "]";
+    return "org.h2.api.Trigger create() { return new org.h2.api.Trigger() {"
+        + " public void fire(java.sql.Connection c, Object[] o, Object[] n)"
+        + " throws java.sql.SQLException {"
+        + " final Object[] row = n != null ? n : o;"
+        + " try (java.sql.PreparedStatement s = c.prepareStatement("
+        + "\"INSERT INTO ChangeLog (TableName, Key1, Key2, Op) VALUES ('" + table[0]
+        + "', ?, ?, ?)\")) {"
+        + " s.setObject(1, row[" + key1 + "]); s.setObject(2, " + key2 + ");"
+        + " s.setString(3, o == null ? \"I\" : n == null ? \"D\" : \"U\");"
+        + " s.executeUpdate(); } } }; }";
+  }
+
+  /**
+   * Starts the process-wide poller from the last entry logged more than
+   * {@link #HOLE_SECONDS} ago (see {@link #restart})
+   *
+   * @param pool connections for the poller
+   * @return the poller
+   * @throws SQLException SQL gone bad
+   * @throws IllegalStateException a poller is already started
+   */
+  static synchronized ChangeLog start(ConnectionPool pool) throws SQLException {
+    if (shared != null) {
+      throw new IllegalStateException("Change log poller already started");
+    }
+    final ChangeLog log = new ChangeLog(pool);
+    try (final Connection connection = pool.getConnection()) {
+      log.restart(connection, System.currentTimeMillis());
+    }
+    log.poller.start();
+    shared = log;
+    return log;
+  }
+
+  /**
+   * @return the poller started by {@link #start}, or null if none is running
+   */
+  static ChangeLog shared() {
+    return shared;
+  }
+
+  private void pollLoop() {
+    while (!closed) {
+      try {
+        if (poll() < BATCH) {
+          Thread.sleep(POLL_MILLIS);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (SQLException e) {
+        System.err.printf("Change log poll failed, will retry: %s%n", e);
+        try {
+          Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads and delivers one batch of new entries and any holes that have since committed, and
+   * prunes when due. Runs on the poller thread.
+   *
+   * @return entries read past the last position
+   * @throws SQLException SQL gone bad
+   */
+  private int poll() throws SQLException {
+    final long now = System.currentTimeMillis();
+    try (final Connection connection = pool.getConnection()) {
+      final long oldest = minSeq(connection);
+      if (now - lastPollMillis > RETAIN_MINUTES * 60_000
+          || oldest > 0 && position < oldest - 1) {
+        // Entries may have been pruned before this process read them: it has not polled
+        // within the retention, or it has but is that far behind
+        resets++;
+        restart(connection, now);
+        for (Listener listener : LISTENERS) {
+          listener.reset();
+        }
+      }
+      final List<Change> fresh = new ArrayList<>();
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          "SELECT Seq, TableName, Key1, Key2, Op, ChangedAt FROM ChangeLog"
+              + " WHERE Seq > ? ORDER BY Seq LIMIT ?")) {
+        stmt.setLong(1, position);
+        stmt.setInt(2, BATCH);
+        try (final ResultSet res = stmt.executeQuery()) {
+          long expected = position + 1;
+          while (res.next()) {
+            final Change change = change(res);
+            for (long s = expected; s < change.seq; s++) {
+              holes.put(s, now);
+            }
+            expected = change.seq + 1;
+            lagMillis = now - res.getTimestamp(6).getTime();
+            fresh.add(change);
+          }
+          position = expected - 1;
+        }
+      }
+      final List<Change> late = new ArrayList<>();
+      if (!holes.isEmpty()) {
+        final long expiry = now - HOLE_SECONDS * 1000;
+        for (Iterator<Long> it = holes.values().iterator(); it.hasNext(); ) {
+          if (it.next() < expiry) {
+            it.remove();
+            abandonedHoles++;
+          }
+        }
+        late.addAll(holes(connection));
+        for (Change change : late) {
+          holes.remove(change.seq);
+        }
+        lateCommits += late.size();
+      }
+      // A late commit happened before the fresh entries read after it
+      late.addAll(fresh);
+      for (Change change : late) {
+        deliver(connection, change);
+      }
+      delivered += late.size();
+      polls++;
+      lastPollMillis = now;
+      if (now - lastPruneMillis > PRUNE_MILLIS) {
+        prune(connection, now);
+        lastPruneMillis = now;
+      }
+      return fresh.size();
+    }
+  }
+
+  private List<Change> holes(Connection connection) throws SQLException {
+    final List<Change> found = new ArrayList<>();
+    final List<Long> seqs = new ArrayList<>(holes.keySet());
+    for (int from = 0; from < seqs.size(); from += BATCH) {
+      final List<Long> chunk = seqs.subList(from, Math.min(seqs.size(), from + BATCH));
+      final StringBuilder sql = new StringBuilder(
+          "SELECT Seq, TableName, Key1, Key2, Op FROM ChangeLog WHERE Seq IN (");
+      for (int i = 0; i < chunk.size(); i++) {
+        sql.append(i == 0 ? "?" : ", ?");
+      }
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          sql.append(") ORDER BY Seq").toString())) {
+        for (int i = 0; i < chunk.size(); i++) {
+          stmt.setLong(i + 1, chunk.get(i));
+        }
+        try (final ResultSet res = stmt.executeQuery()) {
+          while (res.next()) {
+            found.add(change(res));
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  private static Change change(ResultSet res) throws SQLException {
+    return new Change(res.getLong(1), res.getString(2), res.getInt(3), res.getInt(4),
+        res.getString(5).charAt(0));
+  }
+
+  private static void deliver(Connection connection, Change change) {
+    for (Listener listener : LISTENERS) {
+      try {
+        listener.changed(connection, change);
+      } catch (SQLException | RuntimeException e) {
+        System.err.printf("Change log listener failed on %s, resetting it: %s%n", change, e);
+        try {
+          listener.reset();
+        } catch (RuntimeException re) {
+          System.err.printf("Change log listener reset failed: %s%n", re);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return lowest Seq still logged, or 0 if none
+   */
+  private static long minSeq(Connection connection) throws SQLException {
+    try (final Statement stmt = connection.createStatement();
+        final ResultSet res = stmt.executeQuery("SELECT MIN(Seq) FROM ChangeLog")) {
+      return res.next() ? res.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * Sets the position to read the log from. Seqs of transactions still open are below MAX(Seq)
+   * but not visible yet; they are above the last entry logged more than {@link #HOLE_SECONDS}
+   * ago, so starting there the first poll finds them as holes. The entries since are delivered
+   * again. If every entry is that recent, open transactions may hold Seqs below the oldest one,
+   * above those pruned, so up to a batch of those are taken as holes.
+   */
+  private void restart(Connection connection, long now) throws SQLException {
+    holes.clear();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT MAX(Seq) FROM ChangeLog WHERE ChangedAt < ?")) {
+      stmt.setTimestamp(1, new Timestamp(now - HOLE_SECONDS * 1000));
+      try (final ResultSet res = stmt.executeQuery()) {
+        position = res.next() ? res.getLong(1) : 0;
+      }
+    }
+    if (position == 0) {
+      final long oldest = minSeq(connection);
+      for (long s = Math.max(1, oldest - BATCH); s < oldest; s++) {
+        holes.put(s, now);
+      }
+      position = Math.max(0, oldest - 1);
+    }
+  }
+
+  /**
+   * Deletes entries this process has read that are older than the retention, in chunks
+   */
+  private void prune(Connection connection, long now) throws SQLException {
+    final long below = holes.isEmpty() ? position : Math.min(position, holes.firstKey() - 1);
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "DELETE FROM ChangeLog WHERE Seq <= ? AND ChangedAt < ? LIMIT ?")) {
+      stmt.setLong(1, below);
+      stmt.setTimestamp(2, new Timestamp(now - RETAIN_MINUTES * 60_000));
+      stmt.setInt(3, BATCH);
+      int deleted;
+      do {
+        deleted = stmt.executeUpdate();
+        pruned += deleted;
+      } while (deleted == BATCH && !closed);
+    }
+  }
+
+  /**
+   * @return poll, delivery and pruning statistics
+   */
+  String report() {
+    return String.format("Change log: %d polls, %d changes delivered (%d committed late,"
+            + " %d holes given up), %d resets, %d pruned, lag %d ms%n", polls, delivered,
+        lateCommits, abandonedHoles, resets, pruned, lagMillis);
+  }
+
+  /**
+   * Stops the poller
+   */
+  @Override
+  public void close() {
+    closed = true;
+    poller.interrupt();
+    try {
+      poller.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (ChangeLog.class) {
+      if (shared == this) {
+        shared = null;
+      }
+    }
+  }
+
+  /**
+   * Installs the triggers if asked and prints changes as they arrive
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   * @throws InterruptedException interrupted while tailing
+   */
+  public static void main(String[] args) throws SQLException, InterruptedException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final long seconds = Long.parseLong(opts.getOrDefault("seconds", "60"));
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1)) {
+      if (Boolean.parseBoolean(opts.getOrDefault("install", "false"))) {
+        try (final Connection connection = pool.getConnection()) {
+          final long start = System.nanoTime();
+          install(connection);
+          System.out.printf("Installed triggers on %d tables in %.1f ms%n", TRACKED.length,
+              (System.nanoTime() - start) / 1e6);
+        }
+      }
+      final Listener print = new Listener() {
+        @Override
+        public void changed(Connection connection, Change change) {
+          System.out.println(change);
+        }
+
+        @Override
+        public void reset() {
+          System.out.println("Missed changes; caches would reload");
+        }
+      };
+      subscribe(print);
+      try (final ChangeLog log = start(pool)) {
+        Thread.sleep(seconds * 1000);
+        System.out.print(log.report());
+      } finally {
+        unsubscribe(print);
+      }
+    }
+  }
+}
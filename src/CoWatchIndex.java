@@ -0,0 +1,406 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory "viewers of this show also watched" index: for every show, the shows most often
+ * watched or listed by the same users, counted once per user.
+ *
+ * <p>A user's shows come from the live rows of UserVideoWatched (months compacted by
+ * {@link WatchHistory} no longer say who watched) and from MyListShow. Co-occurrence counts
+ * are held in primitive sparse maps per show, and each show keeps its top neighbors in a
+ * small immutable array that lookups read without locking. {@link #load} counts users in
+ * parallel chunks on the common fork-join pool and merges the counts per show, also in
+ * parallel. {@link #watched} and {@link #listed} then add single events; counts only grow, so
+ * each show's top list can be kept exact by offering it the counts that changed.
+ *
+ * <p>Shows and videos added after the load are ignored until the next load, as are deletes.
+ *
+ * <p>Usage: {@code java CoWatchIndex [--profile mysql|embedded] [--url JDBC_URL] [--top 10]}
+ * loads the index, prints the neighbors of a few shows and times lookups.
+ */
+final class CoWatchIndex {
+
+  /**
+   * Neighbors kept per show, set with {@code -Dyatv.cowatch.top}
+   */
+  static final int DEFAULT_TOP = Integer.getInteger("yatv.cowatch.top", 10);
+
+  /**
+   * Shows per user taken into account; a user with more adds quadratically many pairs for
+   * little signal, so the rest of their history is ignored
+   */
+  private static final int MAX_SHOWS_PER_USER = 500;
+
+  private static volatile CoWatchIndex shared;
+
+  /**
+   * One show's counts and top neighbors
+   */
+  private static final class Show {
+
+    final String title;
+    final IntIntMap counts = new IntIntMap();
+    /**
+     * Top neighbors by count, then ShowID; replaced, never modified
+     */
+    volatile Neighbors top = Neighbors.EMPTY;
+
+    Show(String title) {
+      this.title = title;
+    }
+  }
+
+  /**
+   * Immutable top-neighbor list
+   */
+  private static final class Neighbors {
+
+    static final Neighbors EMPTY = new Neighbors(new int[0], new int[0]);
+
+    final int[] shows;
+    final int[] counts;
+
+    Neighbors(int[] shows, int[] counts) {
+      this.shows = shows;
+      this.counts = counts;
+    }
+
+    /**
+     * @return a copy with the show's count raised to the given one, or this list if the show
+     * does not make the cut
+     */
+    Neighbors offer(int show, int count, int limit) {
+      int i = 0;
+      while (i < shows.length && shows[i] != show) {
+        i++;
+      }
+      final int[] s;
+      final int[] c;
+      if (i < shows.length) {
+        s = shows.clone();
+        c = counts.clone();
+      } else if (shows.length < limit) {
+        s = Arrays.copyOf(shows, shows.length + 1);
+        c = Arrays.copyOf(counts, counts.length + 1);
+      } else if (ranksBefore(count, show, counts[limit - 1], shows[limit - 1])) {
+        s = shows.clone();
+        c = counts.clone();
+        i = limit - 1;
+      } else {
+        return this;
+      }
+      s[i] = show;
+      c[i] = count;
+      // Counts only grow, so the entry can only move up
+      for (; i > 0 && ranksBefore(c[i], s[i], c[i - 1], s[i - 1]); i--) {
+        final int ts = s[i];
+        s[i] = s[i - 1];
+        s[i - 1] = ts;
+        final int tc = c[i];
+        c[i] = c[i - 1];
+        c[i - 1] = tc;
+      }
+      return new Neighbors(s, c);
+    }
+  }
+
+  private static boolean ranksBefore(int count, int show, int otherCount, int otherShow) {
+    return count > otherCount || (count == otherCount && show < otherShow);
+  }
+
+  private final int limit;
+  private final IntObjectMap<Show> shows;
+  private final IntIntMap videoShows;
+  /**
+   * Sorted shows of each user; guarded by this
+   */
+  private final IntObjectMap<int[]> users;
+
+  private CoWatchIndex(int limit, IntObjectMap<Show> shows, IntIntMap videoShows,
+      IntObjectMap<int[]> users) {
+    this.limit = Math.max(1, limit);
+    this.shows = shows;
+    this.videoShows = videoShows;
+    this.users = users;
+  }
+
+  /**
+   * @return the index built by {@link #loadShared}, or null if none was
+   */
+  static CoWatchIndex shared() {
+    return shared;
+  }
+
+  /**
+   * Builds the process-wide index, replacing any earlier one, and has {@link WatchEvents}
+   * feed it
+   *
+   * @param connection database connection
+   * @return the new index
+   * @throws SQLException SQL gone bad
+   */
+  static synchronized CoWatchIndex loadShared(Connection connection) throws SQLException {
+    final CoWatchIndex index = load(connection, DEFAULT_TOP);
+    if (shared == null) {
+      WatchEvents.subscribe((userId, videoId, at) -> shared.watched(userId, videoId));
+    }
+    shared = index;
+    return index;
+  }
+
+  /**
+   * Builds an index from the database
+   *
+   * @param connection database connection
+   * @param limit      neighbors kept per show
+   * @return the index
+   * @throws SQLException SQL gone bad
+   */
+  static CoWatchIndex load(Connection connection, int limit) throws SQLException {
+    final IntObjectMap<Show> shows = new IntObjectMap<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT ShowID, Title FROM Shows");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        shows.put(res.getInt(1), new Show(res.getString(2)));
+      }
+    }
+    final IntIntMap videoShows = new IntIntMap();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, ShowID FROM Video WHERE ShowID IS NOT NULL");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        videoShows.put(res.getInt(1), res.getInt(2));
+      }
+    }
+
+    // Gather each user's shows, then sort and dedupe them
+    final IntObjectMap<int[]> users = new IntObjectMap<>();
+    final String[] sources = {"SELECT UserID, VideoID FROM UserVideoWatched",
+        "SELECT UserID, ShowID FROM MyListShow"};
+    for (int s = 0; s < sources.length; s++) {
+      try (final PreparedStatement stmt = connection.prepareStatement(sources[s]);
+          final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          final int show = s == 0 ? videoShows.get(res.getInt(2)) : res.getInt(2);
+          if (shows.get(show) != null) {
+            // {size, shows...}, grown by doubling
+            int[] seen = users.computeIfAbsent(res.getInt(1), u -> new int[4]);
+            if (seen[0] + 1 == seen.length) {
+              seen = Arrays.copyOf(seen, seen.length * 2);
+              users.put(res.getInt(1), seen);
+            }
+            seen[++seen[0]] = show;
+          }
+        }
+      }
+    }
+    final int[] userIds = users.keys();
+    final int[][] sets = new int[userIds.length][];
+    IntStream.range(0, userIds.length).parallel().forEach(i -> {
+      final int[] seen = users.get(userIds[i]);
+      final int[] sorted = Arrays.copyOfRange(seen, 1, seen[0] + 1);
+      Arrays.sort(sorted);
+      int n = 0;
+      for (int j = 0; j < sorted.length && n < MAX_SHOWS_PER_USER; j++) {
+        if (n == 0 || sorted[j] != sorted[n - 1]) {
+          sorted[n++] = sorted[j];
+        }
+      }
+      sets[i] = Arrays.copyOf(sorted, n);
+    });
+    for (int i = 0; i < userIds.length; i++) {
+      users.put(userIds[i], sets[i]);
+    }
+
+    // Count pairs per chunk of users, one partial map per fork-join worker
+    final int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4,
+        userIds.length / 1_000));
+    final List<IntObjectMap<IntIntMap>> partials = IntStream.range(0, chunks).parallel()
+        .mapToObj(c -> {
+          final IntObjectMap<IntIntMap> counts = new IntObjectMap<>();
+          final int end = (int) ((long) userIds.length * (c + 1) / chunks);
+          for (int i = (int) ((long) userIds.length * c / chunks); i < end; i++) {
+            final int[] seen = sets[i];
+            for (int a = 0; a < seen.length; a++) {
+              final IntIntMap row = counts.computeIfAbsent(seen[a], k -> new IntIntMap());
+              for (int b = 0; b < seen.length; b++) {
+                if (a != b) {
+                  row.add(seen[b], 1);
+                }
+              }
+            }
+          }
+          return counts;
+        }).collect(Collectors.toList());
+
+    // Merge per show; each show is merged and ranked by one task
+    final int[] showIds = shows.keys();
+    IntStream.range(0, showIds.length).parallel().forEach(i -> {
+      final Show show = shows.get(showIds[i]);
+      for (IntObjectMap<IntIntMap> partial : partials) {
+        final IntIntMap row = partial.get(showIds[i]);
+        if (row != null) {
+          row.forEach(show.counts::add);
+        }
+      }
+      show.top = top(show.counts, limit);
+    });
+    return new CoWatchIndex(limit, shows, videoShows, users);
+  }
+
+  private static Neighbors top(IntIntMap counts, int limit) {
+    final long[] ranked = new long[counts.size()];
+    final int[] n = {0};
+    // Highest count first, then lowest ShowID
+    counts.forEach((show, count) ->
+        ranked[n[0]++] = ((long) -count << 32) | (show & 0xFFFFFFFFL));
+    Arrays.sort(ranked);
+    final int size = Math.min(limit, ranked.length);
+    final int[] shows = new int[size];
+    final int[] c = new int[size];
+    for (int i = 0; i < size; i++) {
+      shows[i] = (int) ranked[i];
+      c[i] = (int) -(ranked[i] >> 32);
+    }
+    return new Neighbors(shows, c);
+  }
+
+  /**
+   * Adds a watch event
+   *
+   * @param userId  viewer
+   * @param videoId video watched
+   * @return whether it was the user's first contact with the video's show
+   */
+  boolean watched(int userId, int videoId) {
+    return listed(userId, videoShows.get(videoId));
+  }
+
+  /**
+   * Adds a show to a user's shows, as when it is put on their My List
+   *
+   * @param userId user
+   * @param showId show
+   * @return whether it was new to the user
+   */
+  synchronized boolean listed(int userId, int showId) {
+    final Show show = shows.get(showId);
+    if (show == null) {
+      return false;
+    }
+    final int[] seen = users.get(userId);
+    if (seen == null) {
+      users.put(userId, new int[]{showId});
+      return true;
+    }
+    final int at = Arrays.binarySearch(seen, showId);
+    if (at >= 0 || seen.length >= MAX_SHOWS_PER_USER) {
+      return false;
+    }
+    for (int other : seen) {
+      final Show o = shows.get(other);
+      final int count = show.counts.add(other, 1);
+      o.counts.add(showId, 1);
+      show.top = show.top.offer(other, count, limit);
+      o.top = o.top.offer(showId, count, limit);
+    }
+    final int[] grown = new int[seen.length + 1];
+    final int insert = -at - 1;
+    System.arraycopy(seen, 0, grown, 0, insert);
+    grown[insert] = showId;
+    System.arraycopy(seen, insert, grown, insert + 1, seen.length - insert);
+    users.put(userId, grown);
+    return true;
+  }
+
+  /**
+   * @param showId show
+   * @param n      neighbors wanted, at most the index's limit
+   * @return ShowIDs most often watched by the show's viewers, most shared first
+   */
+  int[] alsoWatched(int showId, int n) {
+    final Show show = shows.get(showId);
+    if (show == null) {
+      return new int[0];
+    }
+    final int[] top = show.top.shows;
+    return Arrays.copyOf(top, Math.min(n, top.length));
+  }
+
+  /**
+   * Prints a show's neighbors
+   *
+   * @param out    output
+   * @param showId show
+   * @param n      neighbors wanted
+   */
+  void print(PrintStream out, int showId, int n) {
+    final Show show = shows.get(showId);
+    if (show == null) {
+      return;
+    }
+    final Neighbors top = show.top;
+    out.printf("Viewers of this show also watched: %n");
+    for (int i = 0; i < Math.min(n, top.shows.length); i++) {
+      out.printf("Show ID: %d, Title: %s, Shared viewers: %d %n", top.shows[i],
+          shows.get(top.shows[i]).title, top.counts[i]);
+    }
+  }
+
+  /**
+   * @return users known to the index
+   */
+  synchronized int users() {
+    return users.size();
+  }
+
+  /**
+   * Loads the index, prints neighbors of the first shows and times lookups
+   *
+   * @param args see class comment
+   * @throws SQLException cannot load
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final int limit = Integer.parseInt(opts.getOrDefault("top", Integer.toString(DEFAULT_TOP)));
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      final long start = System.nanoTime();
+      final CoWatchIndex index = load(connection, limit);
+      System.out.printf("Indexed %d shows for %d users in %.1f ms%n", index.shows.size(),
+          index.users(), (System.nanoTime() - start) / 1e6);
+
+      final int[] showIds = index.shows.keys();
+      Arrays.sort(showIds);
+      for (int i = 0; i < Math.min(3, showIds.length); i++) {
+        System.out.printf("%n== SHOW %d: %s ==%n", showIds[i],
+            index.shows.get(showIds[i]).title);
+        index.print(System.out, showIds[i], limit);
+      }
+
+      final int lookups = 1_000_000;
+      long sink = 0;
+      final long t = System.nanoTime();
+      for (int i = 0; i < lookups && showIds.length > 0; i++) {
+        sink += index.alsoWatched(showIds[i % showIds.length], limit).length;
+      }
+      System.out.printf("%nLookup: %.0f ns (%d results)%n",
+          (double) (System.nanoTime() - t) / lookups, sink);
+    }
+  }
+}
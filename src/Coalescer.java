@@ -0,0 +1,309 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares database work between concurrent requests for the same data, when {@code
+ * -Dyatv.coalesce=true}.
+ *
+ * <p>{@link #flight} runs identical read-only queries once: the first caller for a key (query
+ * type plus parameters) runs the query and the callers arriving while it runs wait for it.
+ * The output is captured and replayed to every caller. Nothing is kept after the run, so a
+ * caller arriving later runs the query again. A window start (a LocalDateTime, N days before
+ * now) differs on every call, so keys and groups hold it to the second, the precision watches
+ * are stored at; a caller sharing a run already sees data as old as the run.
+ *
+ * <p>A {@link Loader} batches lookups by ID, DataLoader style. The first lookup opens a batch
+ * and waits {@code -Dyatv.coalesce.windowMicros} (default 2000), or until {@code
+ * -Dyatv.coalesce.maxBatch} distinct IDs (default 100) have joined. It then fetches them all
+ * with one {@code IN (...)} query, and each caller takes its own ID's result. A lookup made
+ * alone waits out the window for nothing, so loaders suit lookups that arrive in bursts.
+ *
+ * <p>{@link #report()} gives calls, database calls and the calls saved, per query.
+ */
+final class Coalescer {
+
+  static final boolean ENABLED = Boolean.getBoolean("yatv.coalesce");
+  static final long WINDOW_NANOS = Long.getLong("yatv.coalesce.windowMicros", 2000) * 1000;
+  static final int MAX_BATCH = Math.max(1, Integer.getInteger("yatv.coalesce.maxBatch", 100));
+
+  /**
+   * Set while this thread runs a query for a flight, so the query's own call does not join
+   * the flight again
+   */
+  private static final ThreadLocal<Boolean> RUNNING = ThreadLocal.withInitial(() -> false);
+
+  private static final Map<List<Object>, CompletableFuture<Result>> FLIGHTS =
+      new ConcurrentHashMap<>();
+  private static final Map<String, Stats> STATS = new ConcurrentSkipListMap<>();
+
+  private Coalescer() {
+  }
+
+  /**
+   * A query writing to an output
+   */
+  interface Query<T> {
+
+    T run(PrintStream out) throws SQLException;
+  }
+
+  /**
+   * Output and return value of a shared run
+   */
+  private static final class Result {
+
+    final byte[] output;
+    final Object value;
+
+    Result(byte[] output, Object value) {
+      this.output = output;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Calls and database calls of one query
+   */
+  private static final class Stats {
+
+    final LongAdder calls = new LongAdder();
+    final LongAdder dbCalls = new LongAdder();
+  }
+
+  private static Stats stats(String name) {
+    return STATS.computeIfAbsent(name, n -> new Stats());
+  }
+
+  /**
+   * @return whether a query should go through {@link #flight}: coalescing is on and this
+   * thread is not already running a query for one
+   */
+  static boolean shares() {
+    return ENABLED && !RUNNING.get();
+  }
+
+  /**
+   * Runs a query, or waits for the identical one already running and takes its output
+   *
+   * @param out   output
+   * @param query the query, writing to the stream it is given
+   * @param key   query type then parameters; equal keys must mean equal output, window starts
+   *              to the second
+   * @return the query's return value
+   * @throws SQLException the query failed, for every caller sharing it
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T flight(PrintStream out, Query<T> query, Object... key) throws SQLException {
+    final List<Object> k = new ArrayList<>(key.length);
+    for (Object part : key) {
+      k.add(keyOf(part));
+    }
+    final Stats stats = stats(String.valueOf(key[0]));
+    stats.calls.increment();
+    final CompletableFuture<Result> mine = new CompletableFuture<>();
+    final CompletableFuture<Result> running = FLIGHTS.putIfAbsent(k, mine);
+    final Result result;
+    if (running != null) {
+      result = await(running);
+    } else {
+      stats.dbCalls.increment();
+      final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+      RUNNING.set(true);
+      Throwable failure = null;
+      try (final PrintStream capture = new PrintStream(captured)) {
+        final T value = query.run(capture);
+        capture.flush();
+        result = new Result(captured.toByteArray(), value);
+        mine.complete(result);
+      } catch (Throwable e) {
+        failure = e;
+        throw e;
+      } finally {
+        RUNNING.set(false);
+        FLIGHTS.remove(k, mine);
+        // Whatever the query threw, Errors included, the waiters must not hang
+        if (!mine.isDone()) {
+          mine.completeExceptionally(failure != null ? failure
+              : new IllegalStateException("Shared query ended without a result"));
+        }
+      }
+    }
+    out.write(result.output, 0, result.output.length);
+    return (T) result.value;
+  }
+
+  /**
+   * @return the key part, with a window start truncated to the second
+   */
+  private static Object keyOf(Object part) {
+    return part instanceof LocalDateTime
+        ? ((LocalDateTime) part).truncatedTo(ChronoUnit.SECONDS) : part;
+  }
+
+  private static <R> R await(CompletableFuture<R> future) throws SQLException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a shared query", e);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof SQLException
+          ? new SQLException(e.getCause().getMessage(), e.getCause())
+          : new SQLException("Shared query failed", e.getCause());
+    }
+  }
+
+  /**
+   * Batches lookups of values by ID
+   */
+  static final class Loader<V> {
+
+    /**
+     * Fetches many IDs in one query
+     */
+    interface Fetch<V> {
+
+      /**
+       * @param connection database connection
+       * @param group      what the IDs were looked up with besides the ID, or null
+       * @param ids        distinct IDs
+       * @return value by ID; IDs with no value may be left out
+       * @throws SQLException SQL gone bad
+       */
+      Map<Integer, V> fetch(Connection connection, Object group, int[] ids)
+          throws SQLException;
+    }
+
+    /**
+     * Stands in for a null group, as a map key
+     */
+    private static final Object NO_GROUP = new Object();
+
+    /**
+     * IDs gathered in one window
+     */
+    private static final class Batch<V> {
+
+      final List<Integer> ids = new ArrayList<>();
+      final CompletableFuture<Map<Integer, V>> values = new CompletableFuture<>();
+      boolean closed;
+    }
+
+    private final String name;
+    private final Fetch<V> fetch;
+    private final Map<Object, Batch<V>> open = new ConcurrentHashMap<>();
+
+    /**
+     * @param name  name for {@link #report()}
+     * @param fetch fetches a batch
+     */
+    Loader(String name, Fetch<V> fetch) {
+      this.name = name;
+      this.fetch = fetch;
+    }
+
+    /**
+     * Looks an ID up in the next batch for its group
+     *
+     * @param connection database connection, used if this lookup fetches the batch
+     * @param group      lookups batch together only within equal groups, window starts to the
+     *                   second; may be null
+     * @param id         ID
+     * @return the value, or null if there is none
+     * @throws SQLException the batch failed, for every lookup in it
+     */
+    V load(Connection connection, Object group, int id) throws SQLException {
+      final Stats stats = stats(name);
+      stats.calls.increment();
+      final Object g = group == null ? NO_GROUP : keyOf(group);
+      while (true) {
+        final Batch<V> batch = new Batch<>();
+        final Batch<V> current = open.putIfAbsent(g, batch);
+        if (current == null) {
+          return run(connection, g, batch, id, stats);
+        }
+        synchronized (current) {
+          if (current.closed) {
+            // Fetching already; start the next batch
+            open.remove(g, current);
+            continue;
+          }
+          if (!current.ids.contains(id)) {
+            current.ids.add(id);
+            if (current.ids.size() >= MAX_BATCH) {
+              current.closed = true;
+              current.notifyAll();
+            }
+          }
+        }
+        return await(current.values).get(id);
+      }
+    }
+
+    private V run(Connection connection, Object group, Batch<V> batch, int id, Stats stats)
+        throws SQLException {
+      final int[] ids;
+      synchronized (batch) {
+        batch.ids.add(id);
+        final long deadline = System.nanoTime() + WINDOW_NANOS;
+        long left;
+        while (!batch.closed && (left = deadline - System.nanoTime()) > 0) {
+          try {
+            batch.wait(left / 1_000_000, (int) (left % 1_000_000));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+        batch.closed = true;
+        ids = batch.ids.stream().mapToInt(Integer::intValue).toArray();
+      }
+      open.remove(group, batch);
+      stats.dbCalls.increment();
+      Throwable failure = null;
+      try {
+        final Map<Integer, V> values = fetch.fetch(connection,
+            group == NO_GROUP ? null : group, ids);
+        batch.values.complete(values);
+        return values.get(id);
+      } catch (Throwable e) {
+        failure = e;
+        throw e;
+      } finally {
+        // Whatever the fetch threw, Errors included, the batch's other lookups must not hang
+        if (!batch.values.isDone()) {
+          batch.values.completeExceptionally(failure != null ? failure
+              : new IllegalStateException("Batch ended without a result"));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return per query: calls, database calls, calls saved and, for loaders, IDs per batch
+   */
+  static String report() {
+    final StringBuilder sb = new StringBuilder(String.format("%-24s %10s %10s %10s %8s%n",
+        "COALESCED", "CALLS", "DB CALLS", "SAVED", "PER DB"));
+    for (Map.Entry<String, Stats> e : STATS.entrySet()) {
+      final long calls = e.getValue().calls.sum();
+      final long dbCalls = e.getValue().dbCalls.sum();
+      sb.append(String.format("%-24s %10d %10d %9.1f%% %8.1f%n", e.getKey(), calls, dbCalls,
+          calls == 0 ? 0 : 100.0 * (calls - dbCalls) / calls,
+          dbCalls == 0 ? 0 : (double) calls / dbCalls));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,391 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non-negative ints in the Roaring layout: values are split by their high
+ * 16 bits into chunks of 65536, and each chunk is held as a sorted array of low halves while
+ * it has at most 4096 values, or as a 65536-bit bitset when denser. Sparse and dense sets both
+ * stay small, and AND/OR/AND NOT work chunk by chunk without decompressing.
+ *
+ * <p>{@link #add} mutates; the set operations return new bitmaps and leave their inputs
+ * alone. Not thread-safe.
+ */
+final class CompressedBitmap {
+
+  /**
+   * Largest array chunk; above it a bitset (1024 longs) is smaller
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  /**
+   * One chunk of 65536 values: either {@code values[0..size)} or {@code bits}
+   */
+  private static final class Chunk {
+
+    char[] values;
+    long[] bits;
+    int size;
+
+    static Chunk array(char[] values, int size) {
+      final Chunk c = new Chunk();
+      c.values = values;
+      c.size = size;
+      return c;
+    }
+
+    static Chunk bitset(long[] bits, int size) {
+      final Chunk c = new Chunk();
+      c.bits = bits;
+      c.size = size;
+      return c;
+    }
+
+    boolean contains(char low) {
+      return bits != null ? (bits[low >>> 6] & (1L << low)) != 0
+          : Arrays.binarySearch(values, 0, size, low) >= 0;
+    }
+
+    void add(char low) {
+      if (bits != null) {
+        final long before = bits[low >>> 6];
+        bits[low >>> 6] |= 1L << low;
+        if (before != bits[low >>> 6]) {
+          size++;
+        }
+        return;
+      }
+      final int at = Arrays.binarySearch(values, 0, size, low);
+      if (at >= 0) {
+        return;
+      }
+      if (size == ARRAY_MAX) {
+        bits = toBits();
+        values = null;
+        add(low);
+        return;
+      }
+      if (size == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+      }
+      final int insert = -at - 1;
+      System.arraycopy(values, insert, values, insert + 1, size - insert);
+      values[insert] = low;
+      size++;
+    }
+
+    long[] toBits() {
+      if (bits != null) {
+        return bits.clone();
+      }
+      final long[] b = new long[1024];
+      for (int i = 0; i < size; i++) {
+        b[values[i] >>> 6] |= 1L << values[i];
+      }
+      return b;
+    }
+
+    /**
+     * @return this chunk's bitset as the smaller representation, or null if empty
+     */
+    static Chunk fromBits(long[] bits) {
+      int size = 0;
+      for (long word : bits) {
+        size += Long.bitCount(word);
+      }
+      if (size == 0) {
+        return null;
+      }
+      if (size > ARRAY_MAX) {
+        return bitset(bits, size);
+      }
+      final char[] values = new char[size];
+      int n = 0;
+      for (int w = 0; w < bits.length; w++) {
+        for (long word = bits[w]; word != 0; word &= word - 1) {
+          values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+        }
+      }
+      return array(values, size);
+    }
+
+    static Chunk and(Chunk a, Chunk b) {
+      if (a.bits != null && b.bits != null) {
+        final long[] bits = new long[1024];
+        for (int i = 0; i < bits.length; i++) {
+          bits[i] = a.bits[i] & b.bits[i];
+        }
+        return fromBits(bits);
+      }
+      // At least one array: keep the array's values found in the other chunk
+      final Chunk small = a.bits == null ? a : b;
+      final Chunk other = small == a ? b : a;
+      final char[] values = new char[small.size];
+      int n = 0;
+      for (int i = 0; i < small.size; i++) {
+        if (other.contains(small.values[i])) {
+          values[n++] = small.values[i];
+        }
+      }
+      return n == 0 ? null : array(values, n);
+    }
+
+    static Chunk or(Chunk a, Chunk b) {
+      if (a.bits == null && b.bits == null && a.size + b.size <= ARRAY_MAX) {
+        final char[] values = new char[a.size + b.size];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.size || j < b.size) {
+          if (j == b.size || (i < a.size && a.values[i] < b.values[j])) {
+            values[n++] = a.values[i++];
+          } else if (i == a.size || b.values[j] < a.values[i]) {
+            values[n++] = b.values[j++];
+          } else {
+            values[n++] = a.values[i++];
+            j++;
+          }
+        }
+        return array(values, n);
+      }
+      final long[] bits = a.toBits();
+      if (b.bits != null) {
+        for (int i = 0; i < bits.length; i++) {
+          bits[i] |= b.bits[i];
+        }
+      } else {
+        for (int i = 0; i < b.size; i++) {
+          bits[b.values[i] >>> 6] |= 1L << b.values[i];
+        }
+      }
+      return fromBits(bits);
+    }
+
+    static Chunk andNot(Chunk a, Chunk b) {
+      if (a.bits != null) {
+        final long[] bits = a.bits.clone();
+        if (b.bits != null) {
+          for (int i = 0; i < bits.length; i++) {
+            bits[i] &= ~b.bits[i];
+          }
+        } else {
+          for (int i = 0; i < b.size; i++) {
+            bits[b.values[i] >>> 6] &= ~(1L << b.values[i]);
+          }
+        }
+        return fromBits(bits);
+      }
+      final char[] values = new char[a.size];
+      int n = 0;
+      for (int i = 0; i < a.size; i++) {
+        if (!b.contains(a.values[i])) {
+          values[n++] = a.values[i];
+        }
+      }
+      return n == 0 ? null : array(values, n);
+    }
+
+    /**
+     * Passes values at or above {@code from} in order, until {@code sink} returns false
+     *
+     * @return whether the sink wants more
+     */
+    boolean forEachFrom(int high, int from, IntPredicateSink sink) {
+      if (bits != null) {
+        for (int w = from >>> 6; w < bits.length; w++) {
+          long word = bits[w];
+          if (w == from >>> 6) {
+            word &= -1L << (from & 63);
+          }
+          for (; word != 0; word &= word - 1) {
+            if (!sink.accept(high | (w * 64 + Long.numberOfTrailingZeros(word)))) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+      int i = Arrays.binarySearch(values, 0, size, (char) from);
+      for (i = i < 0 ? -i - 1 : i; i < size; i++) {
+        if (!sink.accept(high | values[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Receives values until it returns false
+   */
+  interface IntPredicateSink {
+
+    boolean accept(int value);
+  }
+
+  /**
+   * Sorted high halves, and the chunk of each
+   */
+  private char[] highs = new char[0];
+  private Chunk[] chunks = new Chunk[0];
+  private int count;
+
+  /**
+   * Adds a value
+   *
+   * @param value non-negative int
+   */
+  void add(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value " + value);
+    }
+    final char high = (char) (value >>> 16);
+    int at = Arrays.binarySearch(highs, 0, count, high);
+    if (at < 0) {
+      at = -at - 1;
+      if (count == highs.length) {
+        highs = Arrays.copyOf(highs, Math.max(4, count * 2));
+        chunks = Arrays.copyOf(chunks, highs.length);
+      }
+      System.arraycopy(highs, at, highs, at + 1, count - at);
+      System.arraycopy(chunks, at, chunks, at + 1, count - at);
+      highs[at] = high;
+      chunks[at] = Chunk.array(new char[4], 0);
+      count++;
+    }
+    chunks[at].add((char) value);
+  }
+
+  boolean contains(int value) {
+    if (value < 0) {
+      return false;
+    }
+    final int at = Arrays.binarySearch(highs, 0, count, (char) (value >>> 16));
+    return at >= 0 && chunks[at].contains((char) value);
+  }
+
+  /**
+   * @return number of values
+   */
+  long cardinality() {
+    long n = 0;
+    for (int i = 0; i < count; i++) {
+      n += chunks[i].size;
+    }
+    return n;
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * @return values in both
+   */
+  CompressedBitmap and(CompressedBitmap other) {
+    final CompressedBitmap out = new CompressedBitmap();
+    for (int i = 0, j = 0; i < count && j < other.count; ) {
+      if (highs[i] < other.highs[j]) {
+        i++;
+      } else if (highs[i] > other.highs[j]) {
+        j++;
+      } else {
+        out.append(highs[i], Chunk.and(chunks[i], other.chunks[j]));
+        i++;
+        j++;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * @return values in either
+   */
+  CompressedBitmap or(CompressedBitmap other) {
+    final CompressedBitmap out = new CompressedBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < count || j < other.count) {
+      if (j == other.count || (i < count && highs[i] < other.highs[j])) {
+        out.append(highs[i], copy(chunks[i++]));
+      } else if (i == count || other.highs[j] < highs[i]) {
+        out.append(other.highs[j], copy(other.chunks[j++]));
+      } else {
+        out.append(highs[i], Chunk.or(chunks[i++], other.chunks[j++]));
+      }
+    }
+    return out;
+  }
+
+  /**
+   * @return values in this but not the other
+   */
+  CompressedBitmap andNot(CompressedBitmap other) {
+    final CompressedBitmap out = new CompressedBitmap();
+    for (int i = 0, j = 0; i < count; i++) {
+      while (j < other.count && other.highs[j] < highs[i]) {
+        j++;
+      }
+      out.append(highs[i], j < other.count && other.highs[j] == highs[i]
+          ? Chunk.andNot(chunks[i], other.chunks[j]) : copy(chunks[i]));
+    }
+    return out;
+  }
+
+  /**
+   * Passes every value in ascending order
+   */
+  void forEach(IntConsumer action) {
+    forEachFrom(0, v -> {
+      action.accept(v);
+      return true;
+    });
+  }
+
+  /**
+   * Passes values at or above {@code from} in ascending order, until the sink returns false
+   */
+  void forEachFrom(int from, IntPredicateSink sink) {
+    final int start = Math.max(from, 0);
+    for (int i = 0; i < count; i++) {
+      if (highs[i] < start >>> 16) {
+        continue;
+      }
+      final int low = highs[i] == start >>> 16 ? start & 0xFFFF : 0;
+      if (!chunks[i].forEachFrom(highs[i] << 16, low, sink)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param weights weight of each value, indexed by value; values past its end weigh 0
+   * @return sum of the weights of the values
+   */
+  long weightedSum(int[] weights) {
+    final long[] sum = {0};
+    forEachFrom(0, v -> {
+      if (v < weights.length) {
+        sum[0] += weights[v];
+      }
+      return true;
+    });
+    return sum[0];
+  }
+
+  private void append(char high, Chunk chunk) {
+    if (chunk == null) {
+      return;
+    }
+    if (count == highs.length) {
+      highs = Arrays.copyOf(highs, Math.max(4, count * 2));
+      chunks = Arrays.copyOf(chunks, highs.length);
+    }
+    highs[count] = high;
+    chunks[count++] = chunk;
+  }
+
+  private static Chunk copy(Chunk c) {
+    return c.bits != null ? Chunk.bitset(c.bits.clone(), c.size)
+        : Chunk.array(Arrays.copyOf(c.values, c.size), c.size);
+  }
+}
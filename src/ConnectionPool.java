@@ -0,0 +1,140 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal blocking JDBC connection pool. Connections are opened lazily up to the maximum
+ * size; closing a borrowed connection returns it to the pool.
+ */
+final class ConnectionPool implements AutoCloseable {
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final long timeoutMs;
+  private final int size;
+  private final Semaphore permits;
+  private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+  private volatile boolean closed;
+
+  ConnectionPool(String url, String user, String password, int size, long timeoutMs) {
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.timeoutMs = timeoutMs;
+    this.size = size;
+    this.permits = new Semaphore(size, true);
+  }
+
+  /**
+   * @return most connections lent out at once
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Borrows a connection, waiting up to the pool timeout for one to be returned
+   *
+   * @return connection; close it to return it to the pool
+   * @throws SQLException pool exhausted, closed, or cannot connect
+   */
+  Connection getConnection() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed");
+    }
+    try {
+      if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out after " + timeoutMs + " ms waiting for a connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection", e);
+    }
+    try {
+      Connection connection = idle.pollFirst();
+      while (connection != null && connection.isClosed()) {
+        connection = idle.pollFirst();
+      }
+      if (connection == null) {
+        connection = DriverManager.getConnection(url, user, password);
+      }
+      return borrowed(connection);
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private Connection borrowed(Connection connection) {
+    return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+        new Class<?>[]{Connection.class}, new InvocationHandler() {
+          private boolean returned;
+
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            if (method.getName().equals("close")) {
+              if (!returned) {
+                returned = true;
+                release(connection);
+              }
+              return null;
+            }
+            if (method.getName().equals("isClosed") && returned) {
+              return true;
+            }
+            if (returned) {
+              throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+              return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+
+  private void release(Connection connection) {
+    try {
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      if (closed) {
+        connection.close();
+      } else {
+        idle.offerFirst(connection);
+      }
+    } catch (SQLException e) {
+      try {
+        connection.close();
+      } catch (SQLException ignored) {
+        // already broken
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    Connection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      try {
+        connection.close();
+      } catch (SQLException ignored) {
+        // closing anyway
+      }
+    }
+  }
+}
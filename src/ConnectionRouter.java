@@ -0,0 +1,205 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes each query type to the primary or to a read replica.
+ *
+ * <p>Write query types always go to the primary, and so do the displays that follow each
+ * insert, because they run on the same connection. Read-only query types go to the replica
+ * when one is configured, except:
+ * <ul>
+ *   <li>right after a write on the same thread (within the lag threshold), so a user reads
+ *   their own writes;</li>
+ *   <li>while the replica lags more than the threshold, or its lag cannot be read, in which
+ *   case reads fail back to the primary until it catches up.</li>
+ * </ul>
+ * Replica lag is sampled at most once a second.
+ */
+final class ConnectionRouter implements AutoCloseable {
+
+  /**
+   * Where a connection came from
+   */
+  enum Route {
+    PRIMARY, REPLICA, FALLBACK
+  }
+
+  private static final long LAG_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final ConnectionPool primary;
+  private final ConnectionPool replica;
+  private final long maxLagSeconds;
+  private final long maxLagNanos;
+  private final boolean checkLag;
+  private final ThreadLocal<long[]> lastWrite = ThreadLocal.withInitial(() -> new long[1]);
+  private final LongAdder[] routed = new LongAdder[Route.values().length];
+  private final AtomicLong lagCheckedAt;
+  private volatile boolean replicaFresh = true;
+
+  /**
+   * @param primary       primary pool, takes every write
+   * @param replica       replica pool, or null to send everything to the primary
+   * @param maxLagSeconds replica lag beyond which reads fail back to the primary
+   * @param checkLag      whether to read the replica's lag at all
+   */
+  ConnectionRouter(ConnectionPool primary, ConnectionPool replica, long maxLagSeconds,
+      boolean checkLag) {
+    this.primary = primary;
+    this.replica = replica;
+    this.maxLagSeconds = maxLagSeconds;
+    this.maxLagNanos = TimeUnit.SECONDS.toNanos(maxLagSeconds);
+    this.checkLag = checkLag;
+    this.lagCheckedAt = new AtomicLong(System.nanoTime() - LAG_CHECK_NANOS);
+    for (int i = 0; i < routed.length; i++) {
+      routed[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @return the primary pool
+   */
+  ConnectionPool primary() {
+    return primary;
+  }
+
+  /**
+   * @return whether a replica is configured
+   */
+  boolean hasReplica() {
+    return replica != null;
+  }
+
+  /**
+   * Borrows a connection for a query type
+   *
+   * @param queryType query about to run
+   * @return connection; close it to return it to its pool
+   * @throws SQLException pool exhausted, closed, or cannot connect
+   */
+  Connection getConnection(YatvApp.QueryTypes queryType) throws SQLException {
+    final Route route = route(queryType);
+    routed[route.ordinal()].increment();
+    if (route == Route.REPLICA) {
+      return replica.getConnection();
+    }
+    final Connection connection = primary.getConnection();
+    return queryType.readOnly ? connection : recordingWrite(connection);
+  }
+
+  /**
+   * @param queryType query about to run
+   * @return where it would be sent now
+   */
+  Route route(YatvApp.QueryTypes queryType) {
+    if (replica == null || !queryType.readOnly) {
+      return Route.PRIMARY;
+    }
+    final long written = lastWrite.get()[0];
+    if (written != 0 && System.nanoTime() - written < maxLagNanos || !replicaFresh()) {
+      return Route.FALLBACK;
+    }
+    return Route.REPLICA;
+  }
+
+  /**
+   * @param queryType query about to run
+   * @return connections that can be held at once for it; a read that may be sent to either
+   * pool gets the smaller, since it can fail back to the primary at any time
+   */
+  int poolSize(YatvApp.QueryTypes queryType) {
+    if (replica == null || !queryType.readOnly) {
+      return primary.size();
+    }
+    return Math.min(primary.size(), replica.size());
+  }
+
+  /**
+   * @param route route
+   * @return connections handed out on that route
+   */
+  long routed(Route route) {
+    return routed[route.ordinal()].sum();
+  }
+
+  private boolean replicaFresh() {
+    if (!checkLag) {
+      return true;
+    }
+    final long now = System.nanoTime();
+    final long checked = lagCheckedAt.get();
+    // One thread claims the sample; the rest use the previous answer meanwhile, not waiting
+    if (now - checked < LAG_CHECK_NANOS || !lagCheckedAt.compareAndSet(checked, now)) {
+      return replicaFresh;
+    }
+    final boolean fresh = lagSeconds() <= maxLagSeconds;
+    replicaFresh = fresh;
+    // Count the next second from the answer, so a slow sample is not taken twice
+    lagCheckedAt.set(System.nanoTime());
+    return fresh;
+  }
+
+  /**
+   * @return replica lag in seconds; Long.MAX_VALUE if replication is stopped or unreadable
+   */
+  private long lagSeconds() {
+    try (final Connection connection = replica.getConnection();
+        final Statement stmt = connection.createStatement()) {
+      ResultSet res;
+      String column = "Seconds_Behind_Source";
+      try {
+        res = stmt.executeQuery("SHOW REPLICA STATUS");
+      } catch (SQLException e) {
+        // Before MySQL 8.0.22
+        res = stmt.executeQuery("SHOW SLAVE STATUS");
+        column = "Seconds_Behind_Master";
+      }
+      try (final ResultSet status = res) {
+        if (!status.next()) {
+          // Not a replica at all (e.g. pointed at the primary)
+          return 0;
+        }
+        final long lag = status.getLong(column);
+        return status.wasNull() ? Long.MAX_VALUE : lag;
+      }
+    } catch (SQLException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private Connection recordingWrite(Connection connection) {
+    final long[] written = lastWrite.get();
+    return (Connection) Proxy.newProxyInstance(ConnectionRouter.class.getClassLoader(),
+        new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+          if (method.getName().equals("close")) {
+            // Read-your-writes is measured from when the write finished
+            written[0] = System.nanoTime();
+          }
+          try {
+            return method.invoke(connection, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+  }
+
+  @Override
+  public void close() {
+    primary.close();
+    if (replica != null) {
+      replica.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("primary %d, replica %d, fallback to primary %d",
+        routed(Route.PRIMARY), routed(Route.REPLICA), routed(Route.FALLBACK));
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Count-Min sketch of per-key counts: {@code depth} rows of {@code width} counters, each key
+ * counted in one counter per row and estimated as the smallest of them. Estimates never
+ * undercount; with probability {@code 1 - e^-depth} they overcount by at most
+ * {@code e / width} of the total. Sketches of the same shape merge by adding counters.
+ * Not thread-safe.
+ */
+final class CountMinSketch {
+
+  private final int width;
+  private final int depth;
+  private final long[] counters;
+  private long total;
+
+  /**
+   * @param width counters per row; error bound is {@code e / width} of the total
+   * @param depth rows; the bound holds with probability {@code 1 - e^-depth}
+   */
+  CountMinSketch(int width, int depth) {
+    if (width < 1 || depth < 1) {
+      throw new IllegalArgumentException("Bad shape " + width + "x" + depth);
+    }
+    this.width = width;
+    this.depth = depth;
+    this.counters = new long[width * depth];
+  }
+
+  void add(int key, long count) {
+    final long h = HyperLogLog.hash(key);
+    final int h1 = (int) h;
+    final int h2 = (int) (h >>> 32);
+    for (int row = 0; row < depth; row++) {
+      counters[row * width + Math.floorMod(h1 + row * h2, width)] += count;
+    }
+    total += count;
+  }
+
+  /**
+   * @return estimated count of the key, never below the true count
+   */
+  long estimate(int key) {
+    final long h = HyperLogLog.hash(key);
+    final int h1 = (int) h;
+    final int h2 = (int) (h >>> 32);
+    long min = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      min = Math.min(min, counters[row * width + Math.floorMod(h1 + row * h2, width)]);
+    }
+    return min;
+  }
+
+  /**
+   * @return sum of all counts added
+   */
+  long total() {
+    return total;
+  }
+
+  /**
+   * @return most an estimate can overcount by, with probability {@link #confidence}
+   */
+  long errorBound() {
+    return (long) Math.ceil(Math.E / width * total);
+  }
+
+  /**
+   * @return probability that an estimate is within {@link #errorBound}
+   */
+  double confidence() {
+    return 1 - Math.exp(-depth);
+  }
+
+  /**
+   * Adds another sketch of the same shape into this one
+   */
+  void merge(CountMinSketch other) {
+    if (other.width != width || other.depth != depth) {
+      throw new IllegalArgumentException("Shape " + other.width + "x" + other.depth + " != "
+          + width + "x" + depth);
+    }
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] += other.counters[i];
+    }
+    total += other.total;
+  }
+}
@@ -0,0 +1,163 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * "All countries" mode for the per-country reports: enumerates the countries, runs the
+ * report for each one in parallel over pooled connections (on the replica, if configured)
+ * and prints the results as one report ordered by country.
+ *
+ * <p>Parallelism defaults to the size of the pool the router serves the report from, less the
+ * connection the caller holds; set {@code yatv.report.parallelism} to change it. With
+ * {@code -Dyatv.analytics.columnar=true} the revenue reports are answered from the shared
+ * {@link RevenueEngine} snapshot instead, refreshed first.
+ */
+final class CountryReports {
+
+  /**
+   * Country value that selects every country
+   */
+  static final String ALL = "ALL";
+
+  private CountryReports() {
+  }
+
+  /**
+   * A report that answers for exactly one country
+   */
+  interface CountryReport {
+
+    void run(Connection connection, PrintStream out, String country) throws SQLException;
+  }
+
+  /**
+   * @param country country entered by the user
+   * @return whether it selects every country
+   */
+  static boolean isAll(String country) {
+    return ALL.equalsIgnoreCase(country.trim());
+  }
+
+  /**
+   * @param queryType a per-country report
+   * @return the report, or null if the query type is not per country
+   */
+  static CountryReport reportFor(YatvApp.QueryTypes queryType) {
+    switch (queryType) {
+      case AppRevenueByCountry:
+        return YatvQueries::appRevenueByCountry;
+      case HighestCustomer:
+        return YatvQueries::highestCustomer;
+      case LowestApp:
+        return YatvQueries::lowestApp;
+      case MostProfitableVideos:
+        return YatvQueries::mostProfitableVideos;
+      case MobileAppsRevenueRanked:
+        return YatvQueries::mobileAppsRevenueRanked;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Runs a per-country report for every country and prints the merged result
+   *
+   * @param router     connections (one per concurrent country)
+   * @param connection connection already held by the caller, used to list the countries
+   * @param queryType  per-country report to run
+   * @param out        output
+   * @throws SQLException a country's report failed
+   */
+  static void runAll(ConnectionRouter router, Connection connection, YatvApp.QueryTypes queryType,
+      PrintStream out) throws SQLException {
+    final int parallelism = Integer.getInteger("yatv.report.parallelism",
+        Math.max(1, router.poolSize(queryType) - 1));
+    runAll(router, connection, queryType, parallelism, out);
+  }
+
+  /**
+   * Runs a per-country report for every country and prints the merged result
+   *
+   * @param router      connections (one per concurrent country)
+   * @param connection  connection already held by the caller, used to list the countries
+   * @param queryType   per-country report to run
+   * @param parallelism countries run concurrently
+   * @param out         output
+   * @throws SQLException a country's report failed
+   */
+  static void runAll(ConnectionRouter router, Connection connection, YatvApp.QueryTypes queryType,
+      int parallelism, PrintStream out) throws SQLException {
+    final CountryReport report = reportFor(queryType);
+    if (report == null) {
+      throw new IllegalArgumentException(queryType + " is not a per-country report");
+    }
+    final List<String> countries = new ArrayList<>(
+        queryType == YatvApp.QueryTypes.MobileAppsRevenueRanked
+            ? YatvQueries.mobileCountries(connection) : YatvQueries.countries(connection));
+    Collections.sort(countries);
+
+    final long start = System.nanoTime();
+    if (Boolean.getBoolean("yatv.analytics.columnar") && RevenueEngine.supports(queryType)) {
+      final RevenueEngine engine = RevenueEngine.shared(connection);
+      engine.refresh(connection);
+      out.printf("Loaded %d subscriptions in %.1f ms%n", engine.rows(),
+          (System.nanoTime() - start) / 1e6);
+      for (String country : countries) {
+        out.printf("%n== COUNTRY: %s ==%n", country);
+        engine.run(queryType, out, country);
+      }
+      out.printf("%n%d countries in %.1f ms (columnar)%n", countries.size(),
+          (System.nanoTime() - start) / 1e6);
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      final List<Future<String>> sections = new ArrayList<>();
+      for (String country : countries) {
+        sections.add(executor.submit(() -> runOne(router, queryType, report, country)));
+      }
+      // Futures are in country order, so printing them in turn keeps the report ordered
+      for (int i = 0; i < countries.size(); i++) {
+        out.printf("%n== COUNTRY: %s ==%n", countries.get(i));
+        out.print(sections.get(i).get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while running country reports", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    out.printf("%n%d countries in %.1f ms (parallelism %d)%n", countries.size(),
+        (System.nanoTime() - start) / 1e6, parallelism);
+  }
+
+  private static String runOne(ConnectionRouter router, YatvApp.QueryTypes queryType,
+      CountryReport report, String country) throws SQLException {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final QueryMetrics.Call call = QueryMetrics.get().begin(queryType);
+    try (final Connection connection = InstrumentedJdbc.connect(call, router);
+        final PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8)) {
+      report.run(connection, out, country);
+    } catch (SQLException e) {
+      call.failed();
+      throw e;
+    } finally {
+      call.end();
+    }
+    return buffer.toString(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,620 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deterministic synthetic data generator for the YaTV schema.
+ *
+ * <p>The scale factor is the number of UserVideoWatched rows (1k to 100M); every other table
+ * is sized from it. Show popularity, tags and app choice are Zipfian, countries follow a
+ * weighted distribution and mobile platforms are carried by more apps than the rest.
+ * Work is split into fixed-size chunks, each with its own seeded random stream, so the
+ * output depends only on the seed and scale, never on the number of threads. That includes
+ * the AUTO_INCREMENT keys: they are numbered from each chunk's offset rather than in commit
+ * order.
+ *
+ * <p>Usage: {@code java DataGenerator <scale, e.g. 10k|1m|100m> <csv directory | db>
+ * [seed] [threads]}; {@code db} loads the database configured by {@link DbConfig}.
+ */
+public class DataGenerator {
+
+  /**
+   * Entities generated per chunk (the unit of parallelism)
+   */
+  private static final int CHUNK = 50_000;
+
+  /**
+   * Rows per JDBC batch and per commit
+   */
+  private static final int BATCH = 5_000;
+
+  /**
+   * Most subscriptions per user and tags per video, which number their chunks' IDs
+   */
+  private static final int MAX_SUBSCRIPTIONS = 3;
+  private static final int MAX_TAGS = 3;
+
+  private static final String[] COUNTRIES = {
+      "United States", "India", "Brazil", "United Kingdom", "Germany", "Canada", "France",
+      "Japan", "Mexico", "Australia", "Spain", "Italy", "South Korea", "Nigeria", "Philippines"};
+  private static final double[] COUNTRY_WEIGHTS = {
+      30, 15, 8, 7, 6, 5, 5, 5, 4, 3, 3, 3, 2, 2, 2};
+
+  private static final String[] PLATFORMS = {
+      "iOS", "Android", "Roku", "Web", "Fire TV", "Smart TV", "Xbox", "PlayStation"};
+  private static final boolean[] PLATFORM_MOBILE = {
+      true, true, false, false, false, false, false, false};
+
+  private static final String[] TAGS = {
+      "Drama", "Comedy", "Action", "Documentary", "Kids", "Thriller", "Romance", "Sci-Fi",
+      "Horror", "Reality", "Animation", "Crime", "Sports", "Music", "News", "Fantasy",
+      "History", "Cooking", "Travel", "Anime"};
+
+  private static final LocalDateTime WATCHES_FROM = LocalDateTime.of(2019, 1, 1, 0, 0);
+  private static final long WATCH_SPAN_SECONDS = 2 * 365 * 86_400L;
+
+  private static final Zipf TAG_POPULARITY = new Zipf(TAGS.length, 0.9);
+
+  private static final String[] FIRST_NAMES = {
+      "James", "Mary", "Wei", "Priya", "Lucas", "Sofia", "Hiroshi", "Amara", "Noah", "Emma",
+      "Mateo", "Olivia", "Arjun", "Chloe", "Kwame", "Yuna"};
+  private static final String[] LAST_NAMES = {
+      "Smith", "Garcia", "Chen", "Patel", "Silva", "Muller", "Tanaka", "Okafor", "Brown",
+      "Martin", "Kim", "Rossi", "Dubois", "Lopez", "Singh", "Nguyen"};
+
+  /**
+   * bcrypt("password") at cost 4, shared by every generated user so generation is not
+   * bound by hashing
+   */
+  private static final String PASSWORD_HASH =
+      "$2a$04$R8QtlZknI3a2PyyaknKj7ORFdLDD0uEDec9SurfpCe5HkOpcyVuU2";
+
+  private final long seed;
+  private final long watches;
+  private final int users;
+  private final int apps;
+  private final int shows;
+  private final Zipf appPopularity;
+  private final Zipf showPopularity;
+
+  // Catalog layout, computed once up front so parallel chunks agree on ids
+  private final int[] appMonthlyCost;
+  private final int[] showApp;
+  private final int[] showFirstVideo;
+  private final int[] showVideoCount;
+  private final int[] videoShow;
+  private final int[] videoApp;
+  private final int videos;
+
+  /**
+   * @param seed    random seed
+   * @param watches scale factor: number of UserVideoWatched rows
+   */
+  DataGenerator(long seed, long watches) {
+    this.seed = seed;
+    this.watches = watches;
+    this.users = (int) clamp(watches / 20, 100, 20_000_000);
+    this.apps = (int) clamp(watches / 100_000, 8, 200);
+    this.shows = (int) clamp(watches / 1_000, 10, 200_000);
+
+    this.appPopularity = new Zipf(apps, 1.0);
+    this.showPopularity = new Zipf(shows, 1.1);
+
+    final SplittableRandom rnd = random(0, 0);
+    showApp = new int[shows];
+    showFirstVideo = new int[shows];
+    showVideoCount = new int[shows];
+    int next = 0;
+    for (int s = 0; s < shows; s++) {
+      showApp[s] = appPopularity.sample(rnd) + 1;
+      showFirstVideo[s] = next;
+      showVideoCount[s] = (1 + rnd.nextInt(5)) * (6 + rnd.nextInt(7));
+      next += showVideoCount[s];
+    }
+    // About one video in ten is a standalone video that is not part of any show
+    final int standalone = Math.max(10, next / 10);
+    videos = next + standalone;
+    videoShow = new int[videos];
+    videoApp = new int[videos];
+    for (int s = 0; s < shows; s++) {
+      for (int v = 0; v < showVideoCount[s]; v++) {
+        videoShow[showFirstVideo[s] + v] = s + 1;
+        videoApp[showFirstVideo[s] + v] = showApp[s];
+      }
+    }
+    for (int v = next; v < videos; v++) {
+      videoShow[v] = 0;
+      videoApp[v] = appPopularity.sample(rnd) + 1;
+    }
+    appMonthlyCost = new int[apps];
+    for (int a = 0; a < apps; a++) {
+      appMonthlyCost[a] = 3 + rnd.nextInt(18);
+    }
+  }
+
+  /**
+   * Generates every table into the sink factory, parallelising chunks of each table
+   *
+   * @param sinks   where rows go
+   * @param threads worker threads
+   * @throws Exception generation or output failed
+   */
+  void generate(SinkFactory sinks, int threads) throws Exception {
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      // Parents first, so a database sink never sees a dangling foreign key
+      run(pool, sinks, List.of(
+          new Task(Table.APP, 0, 0, apps, this::app),
+          new Task(Table.PLATFORM, 0, 0, PLATFORMS.length, this::platform),
+          new Task(Table.SHOWS, 0, 0, shows, this::show)));
+      run(pool, sinks, concat(
+          chunks(Table.APP_PLATFORM, apps, this::appPlatform),
+          chunks(Table.USER, users, this::user),
+          chunks(Table.VIDEO, videos, this::video)));
+      run(pool, sinks, concat(
+          chunks(Table.SEASONS, shows, this::seasons),
+          chunks(Table.TAG, videos, this::tags),
+          chunks(Table.SUBSCRIPTION, users, this::subscriptions),
+          chunks(Table.MY_LIST_SHOW, users, this::myList),
+          chunks(Table.USER_VIDEO_WATCHED, watches, this::watched)));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void app(SplittableRandom rnd, long i, Sink out) throws Exception {
+    out.row(i + 1, "App " + (i + 1), appMonthlyCost[(int) i]);
+  }
+
+  private void platform(SplittableRandom rnd, long i, Sink out) throws Exception {
+    out.row(i + 1, PLATFORMS[(int) i], PLATFORM_MOBILE[(int) i] ? 1 : 0);
+  }
+
+  private void show(SplittableRandom rnd, long i, Sink out) throws Exception {
+    out.row(i + 1, "Show " + (i + 1));
+  }
+
+  private void appPlatform(SplittableRandom rnd, long i, Sink out) throws Exception {
+    for (int p = 0; p < PLATFORMS.length; p++) {
+      // Most apps ship on mobile; TV and console ports are less common
+      if (rnd.nextDouble() < (PLATFORM_MOBILE[p] ? 0.85 : 0.4)) {
+        out.row(i + 1, p + 1, 1 + rnd.nextInt(9) + rnd.nextInt(10) / 10f);
+      }
+    }
+  }
+
+  private void user(SplittableRandom rnd, long i, Sink out) throws Exception {
+    out.row(i + 1, FIRST_NAMES[rnd.nextInt(FIRST_NAMES.length)],
+        LAST_NAMES[rnd.nextInt(LAST_NAMES.length)], country(rnd),
+        "user" + (i + 1) + "@example.com", PASSWORD_HASH);
+  }
+
+  private void video(SplittableRandom rnd, long i, Sink out) throws Exception {
+    final int show = videoShow[(int) i];
+    final LocalDate release = LocalDate.of(2015, 1, 1).plusDays(rnd.nextInt(6 * 365));
+    out.row(i + 1, (show == 0 ? "Clip " : "Episode ") + (i + 1),
+        "Description of video " + (i + 1), 60 + rnd.nextInt(3600), videoApp[(int) i],
+        rnd.nextDouble() < 0.2 ? 0 : 1, release, show == 0 ? null : show);
+  }
+
+  private void seasons(SplittableRandom rnd, long i, Sink out) throws Exception {
+    final int s = (int) i;
+    final int perSeason = 6 + rnd.nextInt(7);
+    for (int e = 0; e < showVideoCount[s]; e++) {
+      final int videoId = showFirstVideo[s] + e + 1;
+      // SeasonID mirrors VideoID: every show video is in exactly one season
+      out.row(videoId, s + 1, videoId, e / perSeason + 1, e % perSeason + 1);
+    }
+  }
+
+  private void tags(SplittableRandom rnd, long i, Sink out) throws Exception {
+    final int count = 1 + rnd.nextInt(MAX_TAGS);
+    int used = 0;
+    for (int t = 0; t < count; t++) {
+      final int tag = TAG_POPULARITY.sample(rnd);
+      if ((used & (1 << tag)) == 0) {
+        used |= 1 << tag;
+        out.row(i + 1, TAGS[tag]);
+      }
+    }
+  }
+
+  private void subscriptions(SplittableRandom rnd, long i, Sink out) throws Exception {
+    final int count = rnd.nextInt(MAX_SUBSCRIPTIONS + 1);
+    for (int n = 0; n < count; n++) {
+      final int app = appPopularity.sample(rnd) + 1;
+      final int months = 1 + rnd.nextInt(12);
+      final LocalDate expires = LocalDate.of(2020, 1, 1).plusDays(rnd.nextInt(3 * 365));
+      // Monthly and yearly plans renew automatically
+      out.row(i + 1, appMonthlyCost[app - 1] * months, expires, app,
+          months == 1 || months == 12 ? 1 : 0);
+    }
+  }
+
+  private void myList(SplittableRandom rnd, long i, Sink out) throws Exception {
+    final int count = rnd.nextInt(6);
+    final int[] picked = new int[count];
+    int n = 0;
+    for (int k = 0; k < count; k++) {
+      final int show = showPopularity.sample(rnd) + 1;
+      boolean duplicate = false;
+      for (int j = 0; j < n; j++) {
+        duplicate |= picked[j] == show;
+      }
+      if (!duplicate) {
+        picked[n++] = show;
+        out.row(i + 1, show);
+      }
+    }
+  }
+
+  private void watched(SplittableRandom rnd, long i, Sink out) throws Exception {
+    final int show = showPopularity.sample(rnd);
+    final int episode = rnd.nextInt(showVideoCount[show]);
+    // Watches are spread evenly over two years by row number
+    out.row(1 + rnd.nextInt(users), showFirstVideo[show] + episode + 1,
+        Timestamp.valueOf(WATCHES_FROM.plusSeconds(i * WATCH_SPAN_SECONDS / watches)));
+  }
+
+  private static String country(SplittableRandom rnd) {
+    double total = 0;
+    for (double w : COUNTRY_WEIGHTS) {
+      total += w;
+    }
+    double r = rnd.nextDouble() * total;
+    for (int c = 0; c < COUNTRIES.length; c++) {
+      r -= COUNTRY_WEIGHTS[c];
+      if (r < 0) {
+        return COUNTRIES[c];
+      }
+    }
+    return COUNTRIES[COUNTRIES.length - 1];
+  }
+
+  private SplittableRandom random(int table, long chunk) {
+    long h = seed * 0x9E3779B97F4A7C15L + table * 0xBF58476D1CE4E5B9L + chunk;
+    h = (h ^ (h >>> 31)) * 0x94D049BB133111EBL;
+    return new SplittableRandom(h ^ (h >>> 29));
+  }
+
+  private List<Task> chunks(Table table, long entities, RowGenerator gen) {
+    final List<Task> tasks = new ArrayList<>();
+    for (long from = 0, chunk = 0; from < entities; from += CHUNK, chunk++) {
+      tasks.add(new Task(table, chunk, from, Math.min(entities, from + CHUNK), gen));
+    }
+    return tasks;
+  }
+
+  @SafeVarargs
+  private static List<Task> concat(List<Task>... lists) {
+    final List<Task> all = new ArrayList<>();
+    for (List<Task> l : lists) {
+      all.addAll(l);
+    }
+    return all;
+  }
+
+  private void run(ExecutorService pool, SinkFactory sinks, List<Task> tasks) throws Exception {
+    final List<Future<?>> futures = new ArrayList<>();
+    for (Task task : tasks) {
+      futures.add(pool.submit(() -> {
+        final SplittableRandom rnd = random(task.table.ordinal() + 1, task.chunk);
+        try (final Sink out = sinks.open(task.table, task.chunk)) {
+          final Sink rows = task.table.idsPerEntity == 0 ? out
+              : numbered(out, task.from * task.table.idsPerEntity);
+          for (long i = task.from; i < task.to; i++) {
+            task.gen.generate(rnd, i, rows);
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> f : futures) {
+      f.get();
+    }
+  }
+
+  /**
+   * @return sink putting IDs counting up from lastId + 1 in front of each row
+   */
+  private static Sink numbered(Sink out, long lastId) {
+    final long[] id = {lastId};
+    return new Sink() {
+      @Override
+      public void row(Object... values) throws Exception {
+        final Object[] row = new Object[values.length + 1];
+        row[0] = ++id[0];
+        System.arraycopy(values, 0, row, 1, values.length);
+        out.row(row);
+      }
+
+      @Override
+      public void close() {
+        // The chunk's own sink is closed by whoever opened it
+      }
+    };
+  }
+
+  private static long clamp(long v, long min, long max) {
+    return Math.max(min, Math.min(max, v));
+  }
+
+  /**
+   * Parses a scale such as 1000, 10k, 1m or 100M
+   *
+   * @param s scale text
+   * @return number of watch rows
+   */
+  static long parseScale(String s) {
+    final String t = s.trim().toLowerCase();
+    final char unit = t.charAt(t.length() - 1);
+    if (unit == 'k') {
+      return Long.parseLong(t.substring(0, t.length() - 1)) * 1_000L;
+    } else if (unit == 'm') {
+      return Long.parseLong(t.substring(0, t.length() - 1)) * 1_000_000L;
+    }
+    return Long.parseLong(t);
+  }
+
+  /**
+   * Generates data into CSV files or a database
+   *
+   * @param args scale, CSV directory or JDBC URL, optional seed and thread count
+   * @throws Exception generation failed
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.printf("Usage: java %s <scale, e.g. 10k|1m|100m> <csv directory | db>"
+          + " [seed] [threads]%n", DataGenerator.class.getCanonicalName());
+      System.exit(0);
+    }
+    final long watches = parseScale(args[0]);
+    final long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+    final int threads = args.length > 3 ? Integer.parseInt(args[3])
+        : Runtime.getRuntime().availableProcessors();
+
+    final long start = System.nanoTime();
+    final DataGenerator gen = new DataGenerator(seed, watches);
+    if (args[1].equals("db")) {
+      try (final ConnectionPool pool = DbConfig.load().openPool(threads)) {
+        gen.generate(new JdbcSinkFactory(pool), threads);
+      }
+    } else {
+      gen.generate(new CsvSinkFactory(Paths.get(args[1])), threads);
+    }
+    System.out.printf("Generated %d users, %d apps, %d shows, %d videos, %d watches in %.1fs%n",
+        gen.users, gen.apps, gen.shows, gen.videos, watches,
+        (System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * Zipf(n, s) sampler over [0, n) by inverse CDF; rank 0 is the most popular
+   */
+  static final class Zipf {
+
+    private final double[] cdf;
+
+    Zipf(int n, double s) {
+      cdf = new double[n];
+      double sum = 0;
+      for (int k = 0; k < n; k++) {
+        sum += 1.0 / Math.pow(k + 1, s);
+        cdf[k] = sum;
+      }
+      for (int k = 0; k < n; k++) {
+        cdf[k] /= sum;
+      }
+    }
+
+    int sample(SplittableRandom rnd) {
+      final int i = Arrays.binarySearch(cdf, rnd.nextDouble());
+      return Math.min(cdf.length - 1, i >= 0 ? i : -i - 1);
+    }
+  }
+
+  /**
+   * Tables and their columns, in generation order
+   */
+  enum Table {
+    APP("App", "AppID", "Name", "MonthlyCost"),
+    PLATFORM("Platform", "PlatformID", "Name", "Mobile"),
+    SHOWS("Shows", "ShowID", "Title"),
+    APP_PLATFORM("AppPlatform", "AppID", "PlatformID", "VersionNum"),
+    USER("User", "UserID", "FirstName", "LastName", "Country", "Email", "Password"),
+    VIDEO("Video", "VideoID", "Title", "Description", "Duration", "AppID", "SubNeeded",
+        "ReleaseDate", "ShowID"),
+    SEASONS("Seasons", "SeasonID", "ShowID", "VideoID", "SeasonNum", "EpisodeNum"),
+    TAG("Tag", MAX_TAGS, "TagID", "VideoID", "Tag"),
+    SUBSCRIPTION("Subscription", MAX_SUBSCRIPTIONS, "SubscriptionID", "UserID", "Cost",
+        "ExpDate", "AppID", "AutoRenew"),
+    MY_LIST_SHOW("MyListShow", "UserID", "ShowID"),
+    USER_VIDEO_WATCHED("UserVideoWatched", 1, "WatchID", "UserID", "VideoID", "WatchedAt");
+
+    final String tableName;
+    final String[] columns;
+    /**
+     * Most rows per entity, for tables whose first column is an ID the generator numbers;
+     * 0 for the rest
+     */
+    final int idsPerEntity;
+
+    Table(String tableName, String... columns) {
+      this(tableName, 0, columns);
+    }
+
+    Table(String tableName, int idsPerEntity, String... columns) {
+      this.tableName = tableName;
+      this.idsPerEntity = idsPerEntity;
+      this.columns = columns;
+    }
+  }
+
+  /**
+   * Generates the rows of one entity (a user, a show, a watch...)
+   */
+  private interface RowGenerator {
+
+    void generate(SplittableRandom rnd, long index, Sink out) throws Exception;
+  }
+
+  /**
+   * One chunk of one table
+   */
+  private static class Task {
+
+    final Table table;
+    final long chunk;
+    final long from;
+    final long to;
+    final RowGenerator gen;
+
+    Task(Table table, long chunk, long from, long to, RowGenerator gen) {
+      this.table = table;
+      this.chunk = chunk;
+      this.from = from;
+      this.to = to;
+      this.gen = gen;
+    }
+  }
+
+  /**
+   * Destination of one chunk's rows
+   */
+  interface Sink extends AutoCloseable {
+
+    void row(Object... values) throws Exception;
+
+    @Override
+    void close() throws IOException, SQLException;
+  }
+
+  /**
+   * Opens a sink per (table, chunk)
+   */
+  interface SinkFactory {
+
+    Sink open(Table table, long chunk) throws Exception;
+  }
+
+  /**
+   * Writes each chunk to its own file, {@code <Table>-<chunk>.csv}
+   */
+  static class CsvSinkFactory implements SinkFactory {
+
+    private final Path dir;
+
+    CsvSinkFactory(Path dir) throws IOException {
+      this.dir = Files.createDirectories(dir);
+    }
+
+    @Override
+    public Sink open(Table table, long chunk) throws IOException {
+      final BufferedWriter w = Files.newBufferedWriter(
+          dir.resolve(String.format("%s-%05d.csv", table.tableName, chunk)),
+          StandardCharsets.UTF_8);
+      if (chunk == 0) {
+        w.write(String.join(",", table.columns));
+        w.newLine();
+      }
+      return new Sink() {
+        @Override
+        public void row(Object... values) throws IOException {
+          for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+              w.write(',');
+            }
+            if (values[i] == null) {
+              w.write("\\N");
+            } else if (values[i] instanceof String) {
+              w.write('"');
+              w.write(((String) values[i]).replace("\"", "\"\""));
+              w.write('"');
+            } else {
+              w.write(values[i].toString());
+            }
+          }
+          w.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+          w.close();
+        }
+      };
+    }
+  }
+
+  /**
+   * Inserts each chunk over its own pooled connection in batched transactions
+   */
+  static class JdbcSinkFactory implements SinkFactory {
+
+    private final ConnectionPool pool;
+
+    JdbcSinkFactory(ConnectionPool pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public Sink open(Table table, long chunk) throws SQLException {
+      final Connection connection = pool.getConnection();
+      connection.setAutoCommit(false);
+      final char[] marks = new char[table.columns.length * 2 - 1];
+      Arrays.fill(marks, ',');
+      for (int i = 0; i < marks.length; i += 2) {
+        marks[i] = '?';
+      }
+      final PreparedStatement stmt = connection.prepareStatement(
+          "INSERT INTO " + table.tableName + " (" + String.join(", ", table.columns)
+              + ") VALUES (" + new String(marks) + ")");
+      return new Sink() {
+        private int pending;
+
+        @Override
+        public void row(Object... values) throws SQLException {
+          for (int i = 0; i < values.length; i++) {
+            stmt.setObject(i + 1, values[i]);
+          }
+          stmt.addBatch();
+          if (++pending == BATCH) {
+            flush();
+          }
+        }
+
+        private void flush() throws SQLException {
+          stmt.executeBatch();
+          connection.commit();
+          pending = 0;
+        }
+
+        @Override
+        public void close() throws SQLException {
+          try {
+            if (pending > 0) {
+              flush();
+            }
+          } finally {
+            stmt.close();
+            connection.close();
+          }
+        }
+      };
+    }
+  }
+}
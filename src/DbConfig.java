@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Database settings, resolved from (highest precedence first) system properties
+ * ({@code -Dyatv.db.url=...}), environment variables ({@code YATV_DB_URL}), a properties file
+ * ({@code yatv.properties} in the working directory, or the path in {@code yatv.config}) and
+ * the built-in profile defaults.
+ *
+ * <p>Two profiles exist. {@code mysql} (the default) is the local MySQL server the app has
+ * always used. {@code embedded} runs an in-process H2 database in MySQL compatibility mode
+ * and creates the schema from {@code schema.sql} on first use, so tests and benchmarks need
+ * no server and no network hop; the H2 jar must be on the classpath.
+ *
+ * <p>Setting {@code db.replica.url} sends read-only query types to that replica (see
+ * {@link ConnectionRouter}); its user and password default to the primary's.
+ *
+ * <p>Setting {@code db.shards} to N opens N shard databases for {@link ShardRouter}, placed by
+ * {@code db.shard.by} ({@code country} or {@code user}). Shard i's URL defaults to the
+ * primary's with the database name suffixed {@code _shard<i>}, so shards of either profile
+ * run as local databases; its user and password default to the primary's.
+ *
+ * <p>Keys: {@code db.profile, db.url, db.user, db.password, db.driver, db.pool.size,
+ * db.pool.timeoutMs, db.schema.create, db.replica.url, db.replica.user, db.replica.password,
+ * db.replica.pool.size, db.replica.maxLagSeconds, db.replica.checkLag, db.shards, db.shard.by,
+ * db.shard.<i>.url, db.shard.<i>.user, db.shard.<i>.password, db.shard.countries.<i>}.
+ */
+final class DbConfig {
+
+  private static final String MYSQL_URL = "jdbc:mysql://localhost/Project?useUnicode=true"
+      + "&useJDBCCompliantTimezoneShift=true&useLegacyDatetimeCode=false&serverTimezone=EST"
+      + "&rewriteBatchedStatements=true";
+
+  private static final String EMBEDDED_URL = "jdbc:h2:mem:Project;MODE=MySQL"
+      + ";DATABASE_TO_LOWER=TRUE;CASE_INSENSITIVE_IDENTIFIERS=TRUE;NON_KEYWORDS=USER,VALUE"
+      + ";DB_CLOSE_DELAY=-1";
+
+  final String profile;
+  final String url;
+  final String user;
+  final String password;
+  final String driver;
+  final int poolSize;
+  final long poolTimeoutMs;
+  final boolean createSchema;
+  final String replicaUrl;
+  final String replicaUser;
+  final String replicaPassword;
+  final int replicaPoolSize;
+  final long replicaMaxLagSeconds;
+  final boolean replicaCheckLag;
+  final int shards;
+  final String shardBy;
+  private final Properties shardSettings = new Properties();
+
+  private DbConfig(Properties p) {
+    profile = p.getProperty("db.profile", "mysql");
+    final boolean embedded = profile.equals("embedded");
+    url = p.getProperty("db.url", embedded ? EMBEDDED_URL : MYSQL_URL);
+    user = p.getProperty("db.user", embedded ? "sa" : "root");
+    password = p.getProperty("db.password", "");
+    driver = p.getProperty("db.driver", embedded ? "org.h2.Driver" : "com.mysql.cj.jdbc.Driver");
+    poolSize = Integer.parseInt(p.getProperty("db.pool.size", "8"));
+    poolTimeoutMs = Long.parseLong(p.getProperty("db.pool.timeoutMs", "30000"));
+    createSchema = Boolean.parseBoolean(p.getProperty("db.schema.create",
+        Boolean.toString(embedded)));
+    replicaUrl = p.getProperty("db.replica.url");
+    replicaUser = p.getProperty("db.replica.user", user);
+    replicaPassword = p.getProperty("db.replica.password", password);
+    replicaPoolSize = Integer.parseInt(p.getProperty("db.replica.pool.size",
+        Integer.toString(poolSize)));
+    replicaMaxLagSeconds = Long.parseLong(p.getProperty("db.replica.maxLagSeconds", "5"));
+    replicaCheckLag = Boolean.parseBoolean(p.getProperty("db.replica.checkLag", "true"));
+    shards = Integer.parseInt(p.getProperty("db.shards", "0"));
+    shardBy = p.getProperty("db.shard.by", "country");
+    for (String key : p.stringPropertyNames()) {
+      if (key.startsWith("db.shard.")) {
+        shardSettings.setProperty(key, p.getProperty(key));
+      }
+    }
+  }
+
+  /**
+   * Resolves the configuration from file, environment and system properties
+   *
+   * @return configuration
+   */
+  static DbConfig load() {
+    return load(new Properties());
+  }
+
+  /**
+   * Resolves the configuration, with explicit overrides (e.g. from command-line options)
+   * taking precedence over everything else
+   *
+   * @param overrides highest-precedence settings, keyed like the properties file
+   * @return configuration
+   */
+  static DbConfig load(Properties overrides) {
+    final Properties p = new Properties();
+    final Path file = Paths.get(System.getProperty("yatv.config", "yatv.properties"));
+    if (Files.isReadable(file)) {
+      try (final Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        p.load(r);
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot read " + file, e);
+      }
+    }
+    // db.pool.size <- YATV_DB_POOL_SIZE
+    for (Map.Entry<String, String> e : System.getenv().entrySet()) {
+      if (e.getKey().startsWith("YATV_DB_")) {
+        p.setProperty(e.getKey().substring("YATV_".length()).toLowerCase(Locale.ROOT)
+            .replace('_', '.').replace("timeoutms", "timeoutMs"), e.getValue());
+      }
+    }
+    for (String key : System.getProperties().stringPropertyNames()) {
+      if (key.startsWith("yatv.db.")) {
+        p.setProperty(key.substring("yatv.".length()), System.getProperty(key));
+      }
+    }
+    p.putAll(overrides);
+    return new DbConfig(p);
+  }
+
+  /**
+   * Opens a connection pool, creating the schema first if configured to
+   *
+   * @return connection pool
+   * @throws SQLException cannot connect or create the schema
+   */
+  ConnectionPool openPool() throws SQLException {
+    return openPool(poolSize);
+  }
+
+  /**
+   * Opens a connection pool of a specific size
+   *
+   * @param size maximum connections
+   * @return connection pool
+   * @throws SQLException cannot connect or create the schema
+   */
+  ConnectionPool openPool(int size) throws SQLException {
+    try {
+      Class.forName(driver);
+    } catch (ClassNotFoundException e) {
+      throw new SQLException("JDBC driver " + driver + " is not on the classpath", e);
+    }
+    final ConnectionPool pool = new ConnectionPool(url, user, password, size, poolTimeoutMs);
+    if (createSchema) {
+      try (final Connection connection = pool.getConnection()) {
+        createSchema(connection);
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Opens the primary pool and, if configured, the replica pool
+   *
+   * @return router over the pools
+   * @throws SQLException cannot connect or create the schema
+   */
+  ConnectionRouter openRouter() throws SQLException {
+    return openRouter(poolSize, replicaPoolSize);
+  }
+
+  /**
+   * Opens the primary pool and, if configured, the replica pool
+   *
+   * @param size        maximum primary connections
+   * @param replicaSize maximum replica connections
+   * @return router over the pools
+   * @throws SQLException cannot connect or create the schema
+   */
+  ConnectionRouter openRouter(int size, int replicaSize) throws SQLException {
+    final ConnectionPool primary = openPool(size);
+    final ConnectionPool replica = replicaUrl == null ? null
+        : new ConnectionPool(replicaUrl, replicaUser, replicaPassword, replicaSize,
+            poolTimeoutMs);
+    return new ConnectionRouter(primary, replica, replicaMaxLagSeconds, replicaCheckLag);
+  }
+
+  /**
+   * Opens a pool per shard, creating the schema on each and making each hand out its own
+   * UserIDs (see {@link ShardRouter#interleave})
+   *
+   * @return router over the shards
+   * @throws SQLException sharding not configured, or cannot connect or create the schema
+   */
+  ShardRouter openShards() throws SQLException {
+    if (shards < 1) {
+      throw new SQLException("Sharding is not configured: set db.shards");
+    }
+    try {
+      Class.forName(driver);
+    } catch (ClassNotFoundException e) {
+      throw new SQLException("JDBC driver " + driver + " is not on the classpath", e);
+    }
+    final ShardRouter.Placement placement;
+    try {
+      placement = ShardRouter.Placement.valueOf(shardBy.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new SQLException("db.shard.by must be country or user, not " + shardBy, e);
+    }
+    final ConnectionPool[] pools = new ConnectionPool[shards];
+    final Map<String, Integer> pinned = new HashMap<>();
+    try {
+      for (int i = 0; i < shards; i++) {
+        final String shardUrl = shardUrl(i);
+        pools[i] = new ConnectionPool(shardUrl,
+            shardSettings.getProperty("db.shard." + i + ".user", user),
+            shardSettings.getProperty("db.shard." + i + ".password", password), poolSize,
+            poolTimeoutMs);
+        try (final Connection connection = pools[i].getConnection()) {
+          createSchema(connection);
+          ShardRouter.interleave(connection, i, shards, shardUrl.startsWith("jdbc:mysql:"));
+        }
+        for (String country : shardSettings.getProperty("db.shard.countries." + i, "")
+            .split(",")) {
+          if (!country.trim().isEmpty()) {
+            pinned.put(country.trim(), i);
+          }
+        }
+      }
+    } catch (SQLException | RuntimeException e) {
+      for (ConnectionPool pool : pools) {
+        if (pool != null) {
+          pool.close();
+        }
+      }
+      throw e;
+    }
+    return new ShardRouter(pools, placement, pinned, url.startsWith("jdbc:mysql:"));
+  }
+
+  /**
+   * @param shard shard index
+   * @return the shard's URL
+   */
+  private String shardUrl(int shard) {
+    String shardUrl = shardSettings.getProperty("db.shard." + shard + ".url");
+    if (shardUrl == null) {
+      shardUrl = url.replaceFirst("^(jdbc:h2:mem:|jdbc:mysql://[^/]*/)([^;?]+)",
+          "$1$2_shard" + shard);
+      if (shardUrl.equals(url)) {
+        throw new IllegalStateException("Cannot derive a shard URL from " + url
+            + "; set db.shard." + shard + ".url");
+      }
+      if (shardUrl.startsWith("jdbc:mysql:")) {
+        shardUrl += (shardUrl.contains("?") ? "&" : "?") + "createDatabaseIfNotExist=true";
+      }
+    }
+    return shardUrl;
+  }
+
+  /**
+   * Runs every statement of schema.sql (all idempotent)
+   *
+   * @param connection database connection
+   * @throws SQLException SQL gone bad
+   */
+  static void createSchema(Connection connection) throws SQLException {
+    try (final Statement stmt = connection.createStatement()) {
+      for (String sql : stripComments(readSchema()).split(";")) {
+        final String trimmed = sql.trim();
+        if (!trimmed.isEmpty()) {
+          stmt.execute(trimmed);
+        }
+      }
+    }
+  }
+
+  private static String readSchema() {
+    try (final InputStream in = DbConfig.class.getResourceAsStream("/schema.sql")) {
+      if (in != null) {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      }
+      return new String(Files.readAllBytes(Paths.get("src", "schema.sql")),
+          StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read schema.sql", e);
+    }
+  }
+
+  private static String stripComments(String sql) {
+    final StringBuilder sb = new StringBuilder();
+    for (String line : sql.split("\n")) {
+      if (!line.trim().startsWith("--")) {
+        sb.append(line).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s profile: %s as %s (pool %d)", profile, url, user, poolSize)
+        + (replicaUrl == null ? ""
+        : String.format(", replica %s (pool %d)", replicaUrl, replicaPoolSize))
+        + (shards < 1 ? "" : String.format(", %d shards by %s", shards, shardBy));
+  }
+}
@@ -0,0 +1,502 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * In-memory answer to "may this user play this video on this platform", without the join of
+ * AppPlatform, App, Video and Subscription it takes in SQL.
+ *
+ * <p>A video plays on a platform if its app is on the platform (AppPlatform) and either it is
+ * free (SubNeeded = 0) or the user has a subscription to its app with an ExpDate of today or
+ * later. The catalog side is held as a bitmap of free videos and a bitset of apps per
+ * platform, plus the app of every video, in an immutable snapshot that writers replace. Each
+ * user's subscriptions are a small immutable array of (AppID, latest ExpDate) pairs, so an
+ * expired pair simply stops matching. Checks take no locks and allocate nothing.
+ *
+ * <p>SubscribeUser, UpdatePlatformVersion, AddLatestVideo and {@link SubscriptionSweeper}
+ * renewals update the shared index as they commit. With a {@link ChangeLog} poller running,
+ * other processes' changes are re-read and applied as they are logged; a change that takes
+ * access away from a video or platform drops the index instead, to be reloaded on next use.
+ * Without one, other changes are picked up at the next load.
+ *
+ * <p>Usage: {@code java Entitlements [--profile mysql|embedded] [--url JDBC_URL]} loads the
+ * index, checks a sample of requests against SQL and times checks.
+ */
+final class Entitlements {
+
+  private static volatile Entitlements shared;
+  private static boolean following;
+
+  /**
+   * Applies logged changes to the shared index
+   */
+  private static final ChangeLog.Listener CHANGES = new ChangeLog.Listener() {
+    @Override
+    public void changed(Connection connection, ChangeLog.Change change) throws SQLException {
+      final Entitlements index = shared;
+      if (index == null) {
+        return;
+      }
+      if (change.table.equals("Subscription")) {
+        index.subscription(change.key1, change.key2,
+            latestExpiry(connection, change.key1, change.key2));
+      } else if (change.table.equals("AppPlatform")) {
+        if (change.op == 'D') {
+          invalidate();
+        } else {
+          index.available(change.key1, change.key2);
+        }
+      } else if (change.table.equals("Video")) {
+        if (change.op != 'I') {
+          invalidate();
+          return;
+        }
+        try (final PreparedStatement stmt = connection.prepareStatement(
+            "SELECT AppID, SubNeeded FROM Video WHERE VideoID = ?")) {
+          stmt.setInt(1, change.key1);
+          try (final ResultSet res = stmt.executeQuery()) {
+            if (res.next()) {
+              index.addVideo(change.key1, res.getInt(1), res.getBoolean(2));
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    public void reset() {
+      invalidate();
+    }
+  };
+
+  /**
+   * Result of a check
+   */
+  enum Access {
+    FREE(true),
+    SUBSCRIBED(true),
+    UNKNOWN_VIDEO(false),
+    NOT_ON_PLATFORM(false),
+    NO_SUBSCRIPTION(false);
+
+    final boolean allowed;
+
+    Access(boolean allowed) {
+      this.allowed = allowed;
+    }
+  }
+
+  /**
+   * Videos and platforms; never modified once published
+   */
+  private static final class Catalog {
+
+    /**
+     * AppID by VideoID, 0 for no such video
+     */
+    final int[] videoApps;
+    /**
+     * Free videos by AppID
+     */
+    final IntObjectMap<CompressedBitmap> freeByApp;
+    /**
+     * Free videos of the platform's apps, by PlatformID
+     */
+    final IntObjectMap<CompressedBitmap> free;
+    /**
+     * AppIDs on the platform, by PlatformID
+     */
+    final IntObjectMap<BitSet> apps;
+
+    Catalog(int[] videoApps, IntObjectMap<CompressedBitmap> freeByApp,
+        IntObjectMap<CompressedBitmap> free, IntObjectMap<BitSet> apps) {
+      this.videoApps = videoApps;
+      this.freeByApp = freeByApp;
+      this.free = free;
+      this.apps = apps;
+    }
+  }
+
+  private static final long[] NONE = new long[0];
+
+  private volatile Catalog catalog;
+  /**
+   * (AppID << 32 | ExpDate epoch day) pairs by UserID, one per app; arrays are replaced,
+   * never modified
+   */
+  private volatile long[][] subscriptions = new long[0][];
+
+  private volatile long today;
+  private volatile long todayEndsMillis;
+
+  private Entitlements(Catalog catalog) {
+    this.catalog = catalog;
+  }
+
+  /**
+   * @param connection database connection, used only if not loaded yet
+   * @return the process-wide index, loaded on first use
+   * @throws SQLException SQL gone bad
+   */
+  static Entitlements shared(Connection connection) throws SQLException {
+    Entitlements index = shared;
+    if (index == null) {
+      synchronized (Entitlements.class) {
+        index = shared;
+        if (index == null) {
+          index = load(connection);
+          shared = index;
+          if (!following) {
+            ChangeLog.subscribe(CHANGES);
+            following = true;
+          }
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the process-wide index, or null if it has not been loaded
+   */
+  static Entitlements sharedIfLoaded() {
+    return shared;
+  }
+
+  /**
+   * Drops the shared index, so that the next {@link #shared} call loads it again
+   */
+  static void invalidate() {
+    synchronized (Entitlements.class) {
+      shared = null;
+    }
+  }
+
+  /**
+   * Loads videos, platforms and subscriptions active today
+   *
+   * @param connection database connection
+   * @return the index
+   * @throws SQLException SQL gone bad
+   */
+  static Entitlements load(Connection connection) throws SQLException {
+    int[] videoApps = new int[1024];
+    final IntObjectMap<CompressedBitmap> freeByApp = new IntObjectMap<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, AppID, SubNeeded FROM Video ORDER BY VideoID");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        final int videoId = res.getInt(1);
+        final int appId = res.getInt(2);
+        if (videoId >= videoApps.length) {
+          videoApps = Arrays.copyOf(videoApps, Math.max(videoId + 1, videoApps.length * 2));
+        }
+        videoApps[videoId] = appId;
+        if (!res.getBoolean(3)) {
+          freeByApp.computeIfAbsent(appId, k -> new CompressedBitmap()).add(videoId);
+        }
+      }
+    }
+    final IntObjectMap<BitSet> apps = new IntObjectMap<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT PlatformID, AppID FROM AppPlatform");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        apps.computeIfAbsent(res.getInt(1), k -> new BitSet()).set(res.getInt(2));
+      }
+    }
+    final IntObjectMap<CompressedBitmap> free = new IntObjectMap<>();
+    apps.forEach((platformId, on) -> free.put(platformId, freeOf(on, freeByApp)));
+
+    final Entitlements index =
+        new Entitlements(new Catalog(videoApps, freeByApp, free, apps));
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT UserID, AppID, MAX(ExpDate) FROM Subscription WHERE ExpDate >= ?"
+            + " GROUP BY UserID, AppID")) {
+      stmt.setDate(1, Date.valueOf(LocalDate.now()));
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          index.subscribed(res.getInt(1), res.getInt(2), res.getDate(3).toLocalDate());
+        }
+      }
+    }
+    return index;
+  }
+
+  private static CompressedBitmap freeOf(BitSet apps,
+      IntObjectMap<CompressedBitmap> freeByApp) {
+    CompressedBitmap free = new CompressedBitmap();
+    for (int app = apps.nextSetBit(0); app >= 0; app = apps.nextSetBit(app + 1)) {
+      final CompressedBitmap videos = freeByApp.get(app);
+      if (videos != null) {
+        free = free.or(videos);
+      }
+    }
+    return free;
+  }
+
+  /**
+   * Checks access as of today
+   *
+   * @param userId     user
+   * @param videoId    video
+   * @param platformId platform played on
+   * @return whether and why the video may be played
+   */
+  Access check(int userId, int videoId, int platformId) {
+    return check(userId, videoId, platformId, today());
+  }
+
+  /**
+   * @param day epoch day subscriptions must not have expired before
+   */
+  Access check(int userId, int videoId, int platformId, long day) {
+    final Catalog c = catalog;
+    final int appId = videoId > 0 && videoId < c.videoApps.length ? c.videoApps[videoId] : 0;
+    if (appId == 0) {
+      return Access.UNKNOWN_VIDEO;
+    }
+    final BitSet on = c.apps.get(platformId);
+    if (on == null || !on.get(appId)) {
+      return Access.NOT_ON_PLATFORM;
+    }
+    if (c.free.get(platformId).contains(videoId)) {
+      return Access.FREE;
+    }
+    final long[][] subs = subscriptions;
+    if (userId > 0 && userId < subs.length && subs[userId] != null) {
+      for (long pair : subs[userId]) {
+        if ((int) (pair >>> 32) == appId) {
+          return (int) pair >= day ? Access.SUBSCRIBED : Access.NO_SUBSCRIPTION;
+        }
+      }
+    }
+    return Access.NO_SUBSCRIPTION;
+  }
+
+  /**
+   * Today's epoch day, recomputed once a day rather than per check
+   */
+  private long today() {
+    if (System.currentTimeMillis() >= todayEndsMillis) {
+      final LocalDate now = LocalDate.now();
+      today = now.toEpochDay();
+      todayEndsMillis = now.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant()
+          .toEpochMilli();
+    }
+    return today;
+  }
+
+  /**
+   * Records a subscription, or a later ExpDate for one
+   *
+   * @param userId  subscriber
+   * @param appId   app
+   * @param expires ExpDate; an earlier one than already known is ignored
+   */
+  synchronized void subscribed(int userId, int appId, LocalDate expires) {
+    long[][] subs = subscriptions;
+    if (userId >= subs.length) {
+      subs = Arrays.copyOf(subs, Math.max(userId + 1, subs.length * 2));
+    }
+    final long[] mine = subs[userId] == null ? NONE : subs[userId];
+    final long pair = (long) appId << 32 | expires.toEpochDay();
+    int i = 0;
+    while (i < mine.length && (int) (mine[i] >>> 32) != appId) {
+      i++;
+    }
+    if (i < mine.length && mine[i] >= pair) {
+      return;
+    }
+    final long[] updated = Arrays.copyOf(mine, Math.max(mine.length, i + 1));
+    updated[i] = pair;
+    subs[userId] = updated;
+    // Republish so readers of the old array reference see the new row
+    subscriptions = subs;
+  }
+
+  /**
+   * Sets a user's latest ExpDate for an app as re-read after a logged change, which unlike
+   * {@link #subscribed} may move it back or remove it
+   *
+   * @param userId  subscriber
+   * @param appId   app
+   * @param expires latest ExpDate, or null if the user has no subscription to the app
+   */
+  synchronized void subscription(int userId, int appId, LocalDate expires) {
+    long[][] subs = subscriptions;
+    final long[] mine = userId < subs.length && subs[userId] != null ? subs[userId] : NONE;
+    int i = 0;
+    while (i < mine.length && (int) (mine[i] >>> 32) != appId) {
+      i++;
+    }
+    final long[] updated;
+    if (expires != null) {
+      updated = Arrays.copyOf(mine, Math.max(mine.length, i + 1));
+      updated[i] = (long) appId << 32 | expires.toEpochDay();
+    } else if (i < mine.length) {
+      updated = new long[mine.length - 1];
+      System.arraycopy(mine, 0, updated, 0, i);
+      System.arraycopy(mine, i + 1, updated, i, mine.length - i - 1);
+    } else {
+      return;
+    }
+    if (userId >= subs.length) {
+      subs = Arrays.copyOf(subs, Math.max(userId + 1, subs.length * 2));
+    }
+    subs[userId] = updated;
+    subscriptions = subs;
+  }
+
+  private static LocalDate latestExpiry(Connection connection, int userId, int appId)
+      throws SQLException {
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT MAX(ExpDate) FROM Subscription WHERE UserID = ? AND AppID = ?")) {
+      stmt.setInt(1, userId);
+      stmt.setInt(2, appId);
+      try (final ResultSet res = stmt.executeQuery()) {
+        final Date expires = res.next() ? res.getDate(1) : null;
+        return expires == null ? null : expires.toLocalDate();
+      }
+    }
+  }
+
+  /**
+   * Records that an app is on a platform, as UpdatePlatformVersion implies
+   *
+   * @param appId      app
+   * @param platformId platform
+   */
+  synchronized void available(int appId, int platformId) {
+    final Catalog c = catalog;
+    final BitSet on = c.apps.get(platformId);
+    if (on != null && on.get(appId)) {
+      return;
+    }
+    final IntObjectMap<BitSet> apps = copy(c.apps);
+    final BitSet now = on == null ? new BitSet() : (BitSet) on.clone();
+    now.set(appId);
+    apps.put(platformId, now);
+    final IntObjectMap<CompressedBitmap> free = copy(c.free);
+    free.put(platformId, freeOf(now, c.freeByApp));
+    catalog = new Catalog(c.videoApps, c.freeByApp, free, apps);
+  }
+
+  /**
+   * Records a new video
+   *
+   * @param videoId   video
+   * @param appId     its app
+   * @param subNeeded whether it needs a subscription
+   */
+  synchronized void addVideo(int videoId, int appId, boolean subNeeded) {
+    final Catalog c = catalog;
+    final int[] videoApps = Arrays.copyOf(c.videoApps,
+        Math.max(c.videoApps.length, videoId + 1));
+    videoApps[videoId] = appId;
+    IntObjectMap<CompressedBitmap> freeByApp = c.freeByApp;
+    IntObjectMap<CompressedBitmap> free = c.free;
+    if (!subNeeded) {
+      final CompressedBitmap one = new CompressedBitmap();
+      one.add(videoId);
+      freeByApp = copy(freeByApp);
+      final CompressedBitmap ofApp = freeByApp.get(appId);
+      freeByApp.put(appId, ofApp == null ? one : ofApp.or(one));
+      final IntObjectMap<CompressedBitmap> updated = copy(free);
+      c.apps.forEach((platformId, on) -> {
+        if (on.get(appId)) {
+          updated.put(platformId, updated.get(platformId).or(one));
+        }
+      });
+      free = updated;
+    }
+    catalog = new Catalog(videoApps, freeByApp, free, c.apps);
+  }
+
+  private static <V> IntObjectMap<V> copy(IntObjectMap<V> map) {
+    final IntObjectMap<V> copy = new IntObjectMap<>(map.size());
+    map.forEach(copy::put);
+    return copy;
+  }
+
+  /**
+   * Loads the index, compares a sample of checks with SQL and times checks
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      long start = System.nanoTime();
+      final Entitlements index = load(connection);
+      System.out.printf("Loaded in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+      final int users = max(connection, "SELECT MAX(UserID) FROM User");
+      final int videos = max(connection, "SELECT MAX(VideoID) FROM Video");
+      final int platforms = max(connection, "SELECT MAX(PlatformID) FROM Platform");
+      final SplittableRandom rnd = new SplittableRandom(42);
+      final String sql = "SELECT EXISTS(SELECT 1 FROM Video v"
+          + " JOIN AppPlatform ap ON ap.AppID = v.AppID AND ap.PlatformID = ?"
+          + " WHERE v.VideoID = ? AND (v.SubNeeded = 0 OR EXISTS(SELECT 1 FROM Subscription s"
+          + " WHERE s.UserID = ? AND s.AppID = v.AppID AND s.ExpDate >= ?)))";
+      int mismatches = 0;
+      int allowed = 0;
+      final int sample = 2000;
+      long sqlNanos = 0;
+      try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+        for (int i = 0; i < sample; i++) {
+          final int u = 1 + rnd.nextInt(users);
+          final int v = 1 + rnd.nextInt(videos);
+          final int p = 1 + rnd.nextInt(platforms);
+          final long t = System.nanoTime();
+          stmt.setInt(1, p);
+          stmt.setInt(2, v);
+          stmt.setInt(3, u);
+          stmt.setDate(4, Date.valueOf(LocalDate.now()));
+          final boolean expected;
+          try (final ResultSet res = stmt.executeQuery()) {
+            expected = res.next() && res.getBoolean(1);
+          }
+          sqlNanos += System.nanoTime() - t;
+          final boolean actual = index.check(u, v, p).allowed;
+          allowed += actual ? 1 : 0;
+          mismatches += actual != expected ? 1 : 0;
+        }
+      }
+      System.out.printf("%d checks, %d allowed, %d differ from SQL; SQL %.1f us/check%n",
+          sample, allowed, mismatches, sqlNanos / 1e3 / sample);
+
+      final int n = 10_000_000;
+      int granted = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        granted += index.check(1 + rnd.nextInt(users), 1 + rnd.nextInt(videos),
+            1 + rnd.nextInt(platforms)).allowed ? 1 : 0;
+      }
+      System.out.printf("Index: %.0f ns/check (%d allowed)%n",
+          (double) (System.nanoTime() - start) / n, granted);
+    }
+  }
+
+  private static int max(Connection connection, String sql) throws SQLException {
+    try (final PreparedStatement stmt = connection.prepareStatement(sql);
+        final ResultSet res = stmt.executeQuery()) {
+      return res.next() ? Math.max(1, res.getInt(1)) : 1;
+    }
+  }
+}
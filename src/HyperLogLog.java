@@ -0,0 +1,94 @@
+/**
+ * HyperLogLog distinct counter: {@code 2^p} one-byte registers, each holding the longest run
+ * of leading zeros seen among the hashes routed to it. Memory and estimate time are fixed by
+ * p whatever the number of items, and two counters with the same p merge by taking register
+ * maxima, so per-day or per-country counters can be combined into any range.
+ *
+ * <p>Relative standard error is {@code 1.04 / sqrt(2^p)}: 3.25% at p = 10, 0.81% at p = 14.
+ * Not thread-safe.
+ */
+final class HyperLogLog {
+
+  private final int p;
+  private final byte[] registers;
+
+  /**
+   * @param p log2 of the register count, 4 to 18
+   */
+  HyperLogLog(int p) {
+    if (p < 4 || p > 18) {
+      throw new IllegalArgumentException("Precision out of range: " + p);
+    }
+    this.p = p;
+    this.registers = new byte[1 << p];
+  }
+
+  /**
+   * Adds an item by its 64-bit hash (see {@link #hash})
+   */
+  void add(long hash) {
+    final int index = (int) (hash >>> (64 - p));
+    final int rank = Math.min(Long.numberOfLeadingZeros(hash << p), 64 - p) + 1;
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  /**
+   * @return estimated number of distinct items added
+   */
+  long estimate() {
+    final int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte r : registers) {
+      sum += 1.0 / (1L << r);
+      if (r == 0) {
+        zeros++;
+      }
+    }
+    final double alpha = m >= 128 ? 0.7213 / (1 + 1.079 / m) : m == 64 ? 0.709 : m == 32
+        ? 0.697 : 0.673;
+    final double raw = alpha * m * m / sum;
+    // Small cardinalities: linear counting over the empty registers is more accurate
+    if (raw <= 2.5 * m && zeros > 0) {
+      return Math.round(m * Math.log((double) m / zeros));
+    }
+    return Math.round(raw);
+  }
+
+  /**
+   * @return relative standard error of {@link #estimate}
+   */
+  double relativeError() {
+    return 1.04 / Math.sqrt(registers.length);
+  }
+
+  /**
+   * Folds another counter of the same precision into this one
+   */
+  void merge(HyperLogLog other) {
+    if (other.p != p) {
+      throw new IllegalArgumentException("Precision " + other.p + " != " + p);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  int precision() {
+    return p;
+  }
+
+  /**
+   * @return well-mixed 64-bit hash of an int (the SplitMix64 finalizer)
+   */
+  static long hash(int value) {
+    long z = value * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,194 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * JDBC proxies that attribute time to the phases of a {@link QueryMetrics.Call}.
+ *
+ * <p>prepareStatement counts as PREPARE, execute* as EXECUTE, ResultSet navigation and
+ * getters as FETCH, and the time between consecutive rows (the printf loop body) as RENDER.
+ * Each statement and each batch of fetched rows is also emitted as a {@link QueryEvents} event.
+ */
+final class InstrumentedJdbc {
+
+  private InstrumentedJdbc() {
+  }
+
+  /**
+   * Borrows a connection, timing it as the CONNECT phase
+   *
+   * @param call call being measured
+   * @param pool connection pool
+   * @return instrumented connection
+   * @throws SQLException cannot connect
+   */
+  static Connection connect(QueryMetrics.Call call, ConnectionPool pool) throws SQLException {
+    final long start = System.nanoTime();
+    final Connection connection = pool.getConnection();
+    call.add(QueryMetrics.Phase.CONNECT, System.nanoTime() - start);
+    return wrap(connection, call);
+  }
+
+  /**
+   * Borrows a connection routed for the call's query type, timing it as the CONNECT phase
+   *
+   * @param call   call being measured
+   * @param router primary/replica router
+   * @return instrumented connection
+   * @throws SQLException cannot connect
+   */
+  static Connection connect(QueryMetrics.Call call, ConnectionRouter router)
+      throws SQLException {
+    final long start = System.nanoTime();
+    final Connection connection = router.getConnection(call.queryType());
+    call.add(QueryMetrics.Phase.CONNECT, System.nanoTime() - start);
+    return wrap(connection, call);
+  }
+
+  /**
+   * @param connection connection to instrument
+   * @param call       call being measured
+   * @return connection whose statements and result sets report into the call
+   */
+  static Connection wrap(Connection connection, QueryMetrics.Call call) {
+    return proxy(Connection.class, connection, (target, method, args) -> {
+      final String name = method.getName();
+      if (name.equals("prepareStatement") || name.equals("prepareCall")
+          || name.equals("createStatement")) {
+        final long start = System.nanoTime();
+        final Object stmt = invoke(method, target, args);
+        call.add(QueryMetrics.Phase.PREPARE, System.nanoTime() - start);
+        final String sql = args != null && args.length > 0 ? (String) args[0] : null;
+        return wrapStatement((Statement) stmt, sql, call);
+      }
+      return invoke(method, target, args);
+    });
+  }
+
+  private static Statement wrapStatement(Statement stmt, String prepared,
+      QueryMetrics.Call call) {
+    final Class<? extends Statement> type =
+        stmt instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+    return proxy(type, stmt, (target, method, args) -> {
+      if (method.getName().startsWith("execute")) {
+        final QueryEvents.Statement event = new QueryEvents.Statement();
+        event.begin();
+        final long start = System.nanoTime();
+        final Object result = invoke(method, target, args);
+        call.add(QueryMetrics.Phase.EXECUTE, System.nanoTime() - start);
+        final String sql = args != null && args.length > 0 ? (String) args[0] : prepared;
+        if (result instanceof ResultSet) {
+          return wrapResultSet((ResultSet) result, call, event, sql);
+        }
+        commit(event, call, sql, result instanceof Integer ? (Integer) result : 0);
+        return result;
+      }
+      if (method.getName().equals("getResultSet") || method.getName().equals("getGeneratedKeys")) {
+        final Object result = invoke(method, target, args);
+        return result == null ? null
+            : wrapResultSet((ResultSet) result, call, new QueryEvents.Statement(), prepared);
+      }
+      return invoke(method, target, args);
+    });
+  }
+
+  private static void commit(QueryEvents.Statement event, QueryMetrics.Call call, String sql,
+      long rows) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.queryType = call.queryType().name();
+      event.sql = sql;
+      event.rows = rows;
+      event.commit();
+    }
+  }
+
+  private static ResultSet wrapResultSet(ResultSet rs, QueryMetrics.Call call,
+      QueryEvents.Statement statement, String sql) {
+    return proxy(ResultSet.class, rs, new Handler() {
+      // Nanotime the last next() returned a row, or 0 if not inside a row
+      private long rowStart;
+      // FETCH time spent in getters since rowStart
+      private long rowFetch;
+      // Rows and fetch time of this result set, and of the current FetchBatch
+      private long rows;
+      private QueryEvents.FetchBatch batch;
+      private boolean closed;
+
+      @Override
+      public Object handle(Object target, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        final boolean advance = name.equals("next") || name.equals("close");
+        final long start = System.nanoTime();
+        if (advance && rowStart != 0) {
+          call.add(QueryMetrics.Phase.RENDER, start - rowStart - rowFetch);
+          rowStart = 0;
+        }
+        if (batch == null) {
+          batch = new QueryEvents.FetchBatch();
+          batch.begin();
+        }
+        final Object result = invoke(method, target, args);
+        final long end = System.nanoTime();
+        call.add(QueryMetrics.Phase.FETCH, end - start);
+        batch.fetchTime += end - start;
+        if (name.equals("next") && Boolean.TRUE.equals(result)) {
+          call.row();
+          rows++;
+          rowStart = end;
+          rowFetch = 0;
+          if (++batch.rows == QueryEvents.FetchBatch.BATCH_ROWS) {
+            commitBatch();
+          }
+        } else if (!advance && rowStart != 0) {
+          rowFetch += end - start;
+        }
+        if (name.equals("close") && !closed) {
+          closed = true;
+          commitBatch();
+          commit(statement, call, sql, rows);
+        }
+        return result;
+      }
+
+      private void commitBatch() {
+        if (batch == null) {
+          return;
+        }
+        batch.end();
+        if (batch.rows > 0 && batch.shouldCommit()) {
+          batch.queryType = call.queryType().name();
+          batch.commit();
+        }
+        batch = null;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Object target, Handler handler) {
+    return (T) Proxy.newProxyInstance(InstrumentedJdbc.class.getClassLoader(),
+        new Class<?>[]{type}, (p, method, args) -> handler.handle(target, method, args));
+  }
+
+  private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Invocation handler that receives the proxied target
+   */
+  private interface Handler {
+
+    Object handle(Object target, Method method, Object[] args) throws Throwable;
+  }
+}
@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing int to int map with linear probing, for sparse counters that would
+ * otherwise box every key and value. Absent keys read as 0. Not thread-safe.
+ */
+final class IntIntMap {
+
+  /**
+   * Marks an empty slot; cannot be used as a key
+   */
+  static final int FREE = Integer.MIN_VALUE;
+
+  /**
+   * Receives entries from {@link #forEach}
+   */
+  interface Entry {
+
+    void accept(int key, int value);
+  }
+
+  private int[] keys;
+  private int[] values;
+  private int size;
+
+  IntIntMap() {
+    this(4);
+  }
+
+  /**
+   * @param expected entries expected, to size the table
+   */
+  IntIntMap(int expected) {
+    final int capacity = tableSize(expected);
+    keys = new int[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, FREE);
+  }
+
+  /**
+   * @return the value, or 0 if absent
+   */
+  int get(int key) {
+    final int mask = keys.length - 1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      }
+      if (keys[i] == FREE) {
+        return 0;
+      }
+    }
+  }
+
+  boolean containsKey(int key) {
+    final int mask = keys.length - 1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return true;
+      }
+      if (keys[i] == FREE) {
+        return false;
+      }
+    }
+  }
+
+  void put(int key, int value) {
+    // Insert first: it may replace the arrays
+    final int i = insert(key);
+    values[i] = value;
+  }
+
+  /**
+   * Adds to the value, starting from 0 if absent
+   *
+   * @return the new value
+   */
+  int add(int key, int delta) {
+    final int i = insert(key);
+    return values[i] += delta;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void forEach(Entry entry) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) {
+        entry.accept(keys[i], values[i]);
+      }
+    }
+  }
+
+  /**
+   * @return slot of the key, claimed if it was absent
+   */
+  private int insert(int key) {
+    if (key == FREE) {
+      throw new IllegalArgumentException("Reserved key " + key);
+    }
+    int mask = keys.length - 1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return i;
+      }
+      if (keys[i] == FREE) {
+        // Keep the load factor at or below 1/2
+        if ((size + 1) * 2 > keys.length) {
+          grow();
+          mask = keys.length - 1;
+          i = slot(key, mask);
+          while (keys[i] != FREE) {
+            i = (i + 1) & mask;
+          }
+        }
+        keys[i] = key;
+        size++;
+        return i;
+      }
+    }
+  }
+
+  private void grow() {
+    final int[] oldKeys = keys;
+    final int[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new int[oldKeys.length * 2];
+    Arrays.fill(keys, FREE);
+    final int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != FREE) {
+        int i = slot(oldKeys[j], mask);
+        while (keys[i] != FREE) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  static int slot(int key, int mask) {
+    final int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  static int tableSize(int expected) {
+    return Math.max(8, Integer.highestOneBit(Math.max(expected, 1) * 2 - 1) << 1);
+  }
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Open-addressing int to object map with linear probing, so int keys are not boxed. Not
+ * thread-safe; once fully built it may be read from any number of threads.
+ *
+ * @param <V> value type
+ */
+final class IntObjectMap<V> {
+
+  /**
+   * Receives entries from {@link #forEach}
+   *
+   * @param <V> value type
+   */
+  interface Entry<V> {
+
+    void accept(int key, V value);
+  }
+
+  private int[] keys;
+  private Object[] values;
+  private int size;
+
+  IntObjectMap() {
+    this(4);
+  }
+
+  /**
+   * @param expected entries expected, to size the table
+   */
+  IntObjectMap(int expected) {
+    final int capacity = IntIntMap.tableSize(expected);
+    keys = new int[capacity];
+    values = new Object[capacity];
+    Arrays.fill(keys, IntIntMap.FREE);
+  }
+
+  /**
+   * @return the value, or null if absent
+   */
+  @SuppressWarnings("unchecked")
+  V get(int key) {
+    final int mask = keys.length - 1;
+    for (int i = IntIntMap.slot(key, mask); ; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return (V) values[i];
+      }
+      if (keys[i] == IntIntMap.FREE) {
+        return null;
+      }
+    }
+  }
+
+  void put(int key, V value) {
+    // Insert first: it may replace the arrays
+    final int i = insert(key);
+    values[i] = value;
+  }
+
+  /**
+   * @return the value, created and stored first if absent
+   */
+  @SuppressWarnings("unchecked")
+  V computeIfAbsent(int key, IntFunction<V> create) {
+    final int i = insert(key);
+    if (values[i] == null) {
+      values[i] = create.apply(key);
+    }
+    return (V) values[i];
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  void forEach(Entry<V> entry) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != IntIntMap.FREE) {
+        entry.accept(keys[i], (V) values[i]);
+      }
+    }
+  }
+
+  /**
+   * @return the keys, in no particular order
+   */
+  int[] keys() {
+    final int[] out = new int[size];
+    int n = 0;
+    for (int key : keys) {
+      if (key != IntIntMap.FREE) {
+        out[n++] = key;
+      }
+    }
+    return out;
+  }
+
+  private int insert(int key) {
+    if (key == IntIntMap.FREE) {
+      throw new IllegalArgumentException("Reserved key " + key);
+    }
+    int mask = keys.length - 1;
+    for (int i = IntIntMap.slot(key, mask); ; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return i;
+      }
+      if (keys[i] == IntIntMap.FREE) {
+        if ((size + 1) * 2 > keys.length) {
+          grow();
+          mask = keys.length - 1;
+          i = IntIntMap.slot(key, mask);
+          while (keys[i] != IntIntMap.FREE) {
+            i = (i + 1) & mask;
+          }
+        }
+        keys[i] = key;
+        size++;
+        return i;
+      }
+    }
+  }
+
+  private void grow() {
+    final int[] oldKeys = keys;
+    final Object[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new Object[oldKeys.length * 2];
+    Arrays.fill(keys, IntIntMap.FREE);
+    final int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != IntIntMap.FREE) {
+        int i = IntIntMap.slot(oldKeys[j], mask);
+        while (keys[i] != IntIntMap.FREE) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+}
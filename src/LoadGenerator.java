@@ -0,0 +1,373 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mixed-workload load driver for finding the saturation point of a deployment.
+ *
+ * <p>Runs a weighted mix of {@link YatvApp.QueryTypes} either open loop (requests arrive at
+ * a target rate whether or not earlier ones finished) or closed loop (a fixed number of
+ * clients issue requests back to back). Open-loop latency is measured from each request's
+ * intended start time, and closed-loop latency is back-filled for the expected interval, so
+ * stalls are not hidden by coordinated omission. Requests run on virtual threads when the
+ * JVM provides them.
+ *
+ * <p>Usage: {@code java LoadGenerator [--profile mysql|embedded] [--url JDBC_URL]
+ * [--mix SubscribeUser=20,LowestApp=5,...] [--mode open|closed] [--rates 50,100,200]
+ * [--concurrency 16] [--connections 16] [--duration 30] [--warmup 5]
+ * [--expected-interval-ms N] [--seed N]
+ * [--mylist-write-behind true] [--changelog true]}. With write-behind, My List changes go
+ * through a {@link MyListStore}, whose statistics follow each step's report. With the change
+ * log, a {@link ChangeLog} poller keeps the in-memory indexes in step with other writers.
+ * Run with {@code -Dyatv.coalesce=true} to share concurrent identical reads (see
+ * {@link Coalescer}); the calls saved follow each step's report. Likewise, with {@code
+ * -Dyatv.cache=true} the {@link ResultCache} hit ratio and footprint follow it.
+ */
+public class LoadGenerator {
+
+  /**
+   * Default mix: mostly writes and small lookups, with a trickle of heavy reports
+   */
+  private static final String DEFAULT_MIX = "RegisterUser=5,SubscribeUser=20,AddToMyList=25,"
+      + "UpdatePlatformVersion=2,AddLatestVideo=3,MostWatchedShowsByApp=5,"
+      + "FindFreeVideosByPlatform=10,FindLongVideosNoShow=2,AppRevenueByCountry=8,"
+      + "TopThreeWatchedTags=3,HighestCustomer=4,LowestApp=4,MostProfitableVideos=3,"
+      + "MostWatchedEpisodes=10,MobileAppsRevenueRanked=4,Authenticate=5,"
+      + "RecordWatch=20,RemoveFromMyList=5";
+
+  private final YatvApp.QueryTypes[] ops;
+  private final double[] cumulativeWeights;
+  private final ConnectionRouter connections;
+  private final QuerySampler sampler;
+  private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+  private final Map<YatvApp.QueryTypes, OpStats> stats = new EnumMap<>(YatvApp.QueryTypes.class);
+  private final long expectedIntervalNanos;
+
+  LoadGenerator(Map<YatvApp.QueryTypes, Double> mix, ConnectionRouter connections,
+      QuerySampler sampler, long expectedIntervalNanos) {
+    this.ops = mix.keySet().toArray(new YatvApp.QueryTypes[0]);
+    this.cumulativeWeights = new double[ops.length];
+    double total = 0;
+    for (int i = 0; i < ops.length; i++) {
+      total += mix.get(ops[i]);
+      cumulativeWeights[i] = total;
+    }
+    for (int i = 0; i < ops.length; i++) {
+      cumulativeWeights[i] /= total;
+    }
+    for (YatvApp.QueryTypes op : ops) {
+      stats.put(op, new OpStats());
+    }
+    this.connections = connections;
+    this.sampler = sampler;
+    this.expectedIntervalNanos = expectedIntervalNanos;
+  }
+
+  /**
+   * Open loop: issues requests at a fixed rate for the given time
+   *
+   * @param rate      requests per second
+   * @param seconds   duration
+   * @param seed      parameter randomness
+   * @param executor  runs requests
+   * @throws InterruptedException interrupted while waiting for requests to finish
+   */
+  void runOpen(double rate, long seconds, long seed, ExecutorService executor)
+      throws InterruptedException {
+    final long period = (long) (1e9 / rate);
+    final long start = System.nanoTime();
+    final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    final SplittableRandom rnd = new SplittableRandom(seed);
+    final AtomicLong inFlight = new AtomicLong();
+    for (long i = 0; ; i++) {
+      final long intended = start + i * period;
+      if (intended >= end) {
+        break;
+      }
+      long now;
+      while ((now = System.nanoTime()) < intended) {
+        LockSupport.parkNanos(intended - now);
+      }
+      final YatvApp.QueryTypes op = pick(rnd);
+      final SplittableRandom opRnd = rnd.split();
+      inFlight.incrementAndGet();
+      executor.execute(() -> {
+        try {
+          execute(op, opRnd, intended);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      });
+    }
+    while (inFlight.get() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Closed loop: a fixed number of clients issue requests back to back
+   *
+   * @param concurrency clients
+   * @param seconds     duration
+   * @param seed        parameter randomness
+   * @param executor    runs the clients
+   * @throws InterruptedException interrupted while waiting for clients to finish
+   */
+  void runClosed(int concurrency, long seconds, long seed, ExecutorService executor)
+      throws InterruptedException {
+    final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final SplittableRandom root = new SplittableRandom(seed);
+    final LongAdder done = new LongAdder();
+    for (int c = 0; c < concurrency; c++) {
+      final SplittableRandom rnd = root.split();
+      executor.execute(() -> {
+        try {
+          while (System.nanoTime() < end) {
+            execute(pick(rnd), rnd, System.nanoTime());
+          }
+        } finally {
+          done.increment();
+        }
+      });
+    }
+    while (done.sum() < concurrency) {
+      Thread.sleep(10);
+    }
+  }
+
+  private YatvApp.QueryTypes pick(SplittableRandom rnd) {
+    final double r = rnd.nextDouble();
+    for (int i = 0; i < ops.length; i++) {
+      if (r < cumulativeWeights[i]) {
+        return ops[i];
+      }
+    }
+    return ops[ops.length - 1];
+  }
+
+  /**
+   * Runs one request; latency includes waiting for a pooled connection
+   */
+  private void execute(YatvApp.QueryTypes op, SplittableRandom rnd, long intended) {
+    final OpStats s = stats.get(op);
+    final QueryMetrics.Call call = QueryMetrics.get().begin(op);
+    try (final Connection connection = InstrumentedJdbc.connect(call, connections)) {
+      sampler.run(op, connection, discard, rnd);
+      s.record(System.nanoTime() - intended, expectedIntervalNanos);
+    } catch (SQLException | RuntimeException e) {
+      // A failed request is counted, and the client goes on to its next one
+      call.failed();
+      s.errors.increment();
+    } finally {
+      call.end();
+    }
+  }
+
+  /**
+   * Prints per-operation throughput, latency percentiles and error rate, then resets
+   *
+   * @param label   step label
+   * @param seconds step duration
+   */
+  void report(String label, double seconds) {
+    System.out.printf("%n== %s ==%n", label);
+    System.out.printf("%-24s %10s %8s %10s %10s %10s %10s%n",
+        "OPERATION", "OPS/S", "ERR%", "P50(ms)", "P99(ms)", "P999(ms)", "MAX(ms)");
+    long total = 0;
+    for (Map.Entry<YatvApp.QueryTypes, OpStats> e : stats.entrySet()) {
+      final OpStats s = e.getValue();
+      final long ok = s.ok.sum();
+      final long errors = s.errors.sum();
+      total += ok + errors;
+      if (ok + errors == 0) {
+        continue;
+      }
+      System.out.printf("%-24s %10.1f %7.2f%% %10.2f %10.2f %10.2f %10.2f%n", e.getKey(),
+          ok / seconds, 100.0 * errors / (ok + errors),
+          s.latency.percentile(50) / 1e6, s.latency.percentile(99) / 1e6,
+          s.latency.percentile(99.9) / 1e6, s.latency.max() / 1e6);
+      s.reset();
+    }
+    System.out.printf("%-24s %10.1f%n", "TOTAL", total / seconds);
+    final long purchases = sampler.takePurchases();
+    if (purchases > 0) {
+      System.out.printf("Subscriptions bought: %.1f/s%n", purchases / seconds);
+    }
+  }
+
+  /**
+   * Latency and outcome counters of one operation
+   */
+  private static class OpStats {
+
+    final QueryMetrics.Histogram latency = new QueryMetrics.Histogram();
+    final LongAdder ok = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    /**
+     * Records a latency; with an expected interval, also records the requests a stalled
+     * closed-loop client would have issued meanwhile (coordinated omission correction)
+     */
+    void record(long ns, long expectedInterval) {
+      latency.record(ns);
+      ok.increment();
+      if (expectedInterval > 0) {
+        for (long missed = ns - expectedInterval; missed >= expectedInterval;
+            missed -= expectedInterval) {
+          latency.record(missed);
+        }
+      }
+    }
+
+    void reset() {
+      latency.reset();
+      ok.reset();
+      errors.reset();
+    }
+  }
+
+  /**
+   * InnoDB row lock waits and total wait time (ms), or null if the server does not report
+   * them
+   */
+  static long[] lockWaits(Connection connection) {
+    final String sql = "SHOW GLOBAL STATUS WHERE Variable_name IN"
+        + " ('Innodb_row_lock_waits', 'Innodb_row_lock_time')";
+    final long[] waits = new long[2];
+    try (final PreparedStatement stmt = connection.prepareStatement(sql);
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        waits[res.getString(1).endsWith("waits") ? 0 : 1] = res.getLong(2);
+      }
+      return waits;
+    } catch (SQLException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Runs on virtual threads where available (Java 21+), else on a cached pool
+   */
+  static ExecutorService newRequestExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "yatv-load");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  static Map<YatvApp.QueryTypes, Double> parseMix(String mix) {
+    final Map<YatvApp.QueryTypes, Double> weights = new EnumMap<>(YatvApp.QueryTypes.class);
+    for (String part : mix.split(",")) {
+      final String[] kv = part.trim().split("=");
+      weights.put(YatvApp.QueryTypes.valueOf(kv[0].trim()),
+          kv.length > 1 ? Double.parseDouble(kv[1]) : 1.0);
+    }
+    return weights;
+  }
+
+  /**
+   * Runs the load
+   *
+   * @param args see class comment
+   * @throws Exception load could not run
+   */
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final DbConfig config = DbConfig.load(QueryBenchmark.dbOverrides(opts));
+    final boolean open = opts.getOrDefault("mode", "open").equals("open");
+    final long duration = Long.parseLong(opts.getOrDefault("duration", "30"));
+    final long warmup = Long.parseLong(opts.getOrDefault("warmup", "5"));
+    final long seed = Long.parseLong(opts.getOrDefault("seed", "42"));
+    final int poolSize = Integer.parseInt(opts.getOrDefault("connections", "16"));
+    final long expected = (long) (Double.parseDouble(
+        opts.getOrDefault("expected-interval-ms", "0")) * 1e6);
+    final boolean writeBehind = Boolean.parseBoolean(
+        opts.getOrDefault("mylist-write-behind", "false"));
+    final boolean changeLog = Boolean.parseBoolean(opts.getOrDefault("changelog", "false"));
+    final List<String> steps = new ArrayList<>(List.of(open
+        ? opts.getOrDefault("rates", "100").split(",")
+        : opts.getOrDefault("concurrency", "16").split(",")));
+
+    try (final ConnectionRouter router = config.openRouter(poolSize, poolSize);
+        final ConnectionPool adminPool = config.openPool(1);
+        final Connection admin = adminPool.getConnection();
+        final ConnectionPool myListPool = writeBehind ? config.openPool(1) : null;
+        final MyListStore myList = writeBehind ? MyListStore.start(myListPool) : null;
+        final ConnectionPool changeLogPool = changeLog ? config.openPool(1) : null;
+        final ChangeLog changes = changeLog ? ChangeLog.start(changeLogPool) : null) {
+      final LoadGenerator gen = new LoadGenerator(
+          parseMix(opts.getOrDefault("mix", DEFAULT_MIX)), router, QuerySampler.load(admin),
+          open ? 0 : expected);
+      final ExecutorService executor = newRequestExecutor();
+
+      // Warm up at the first step, then discard its numbers
+      if (warmup > 0) {
+        final String first = steps.get(0);
+        if (open) {
+          gen.runOpen(Double.parseDouble(first), warmup, seed, executor);
+        } else {
+          gen.runClosed(Integer.parseInt(first), warmup, seed, executor);
+        }
+        gen.report("warm-up (discarded)", warmup);
+      }
+
+      for (String step : steps) {
+        final long[] locksBefore = lockWaits(admin);
+        final long start = System.nanoTime();
+        if (open) {
+          gen.runOpen(Double.parseDouble(step), duration, seed, executor);
+        } else {
+          gen.runClosed(Integer.parseInt(step), duration, seed, executor);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        gen.report((open ? "target rate " + step + "/s" : "concurrency " + step)
+            + String.format(", %.1fs", seconds), seconds);
+        final long[] locksAfter = lockWaits(admin);
+        if (locksBefore != null && locksAfter != null) {
+          System.out.printf("DB row lock waits: %d, total lock wait: %d ms%n",
+              locksAfter[0] - locksBefore[0], locksAfter[1] - locksBefore[1]);
+        }
+        if (router.hasReplica()) {
+          System.out.printf("Connections routed: %s%n", router);
+        }
+        if (myList != null) {
+          System.out.print(myList.report());
+        }
+        if (changes != null) {
+          System.out.print(changes.report());
+        }
+        if (Coalescer.ENABLED) {
+          System.out.print(Coalescer.report());
+        }
+        if (ResultCache.ENABLED) {
+          System.out.print(ResultCache.report());
+        }
+      }
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,594 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Users' My Lists kept in memory, with adds and removes written behind.
+ *
+ * <p>Lists are cached per user as sorted ShowID arrays, least recently used first out once
+ * more than {@code -Dyatv.mylist.cacheUsers} users (default 100000) or {@code
+ * -Dyatv.mylist.cacheShows} shows over all lists (default 1000000) are cached. A miss reads
+ * the user's rows on the caller's connection. Reads and the duplicate check on add are then
+ * served from memory, and titles come from an in-memory copy of Shows that follows the
+ * {@link ChangeLog} when a poller is running.
+ *
+ * <p>Adds and removes change the cached list at once and are queued by (user, show), so
+ * adding and removing the same show before a flush leaves a single write. A flusher thread
+ * writes the queue in one transaction of INSERT IGNORE and DELETE batches every {@code
+ * -Dyatv.mylist.flushMillis} (default 200), or sooner once {@code -Dyatv.mylist.flushBatch}
+ * changes (default 1000) are queued. Changes lost in a crash are bounded by both: writers
+ * block once {@code -Dyatv.mylist.maxPending} changes (default 10000) are queued and not
+ * yet written, and a failed flush keeps its changes queued for the next one. {@link #close}
+ * and a shutdown hook flush whatever is left.
+ *
+ * <p>A miss overlays changes that are queued or being written on the rows it reads, and
+ * does not read while a flush is committing, so it never sees a list older than the cache.
+ *
+ * <p>Usage: {@code java MyListStore [--profile mysql|embedded] [--url JDBC_URL]
+ * [--ops 100000]} runs random adds, removes and list reads through the store and prints
+ * {@link #report()}.
+ */
+final class MyListStore implements AutoCloseable {
+
+  static final long FLUSH_MILLIS = Long.getLong("yatv.mylist.flushMillis", 200);
+  static final int FLUSH_BATCH = Math.max(1, Integer.getInteger("yatv.mylist.flushBatch", 1000));
+  static final int MAX_PENDING = Math.max(FLUSH_BATCH,
+      Integer.getInteger("yatv.mylist.maxPending", 10000));
+  static final int CACHE_USERS = Math.max(1, Integer.getInteger("yatv.mylist.cacheUsers", 100000));
+  static final long CACHE_SHOWS = Math.max(1, Long.getLong("yatv.mylist.cacheShows", 1000000));
+
+  private static final int[] EMPTY = new int[0];
+
+  private static volatile MyListStore shared;
+
+  private final ConnectionPool pool;
+  private final Thread flusher;
+  private final Thread shutdownHook;
+  /**
+   * Held by misses while reading the database and by a flush while committing
+   */
+  private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+  private final Object flushing = new Object();
+
+  // Guarded by this
+  private final LinkedHashMap<Integer, int[]> lists = new LinkedHashMap<>(16, 0.75f, true);
+  private IntObjectMap<String> titles;
+  private long cachedShows;
+  /**
+   * Queued changes by user, then by show: true to add, false to remove
+   */
+  private Map<Integer, Map<Integer, Boolean>> pending = new HashMap<>();
+  private Map<Integer, Map<Integer, Boolean>> inFlight = new HashMap<>();
+  private int pendingCount;
+  /**
+   * When the oldest queued change was made
+   */
+  private long oldestPendingNanos;
+  private boolean closed;
+
+  // Statistics, guarded by this
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long changes;
+  private long coalesced;
+  private long flushes;
+  private long written;
+  private long failedFlushes;
+  private long blockedNanos;
+  private final QueryMetrics.Histogram batchSizes = new QueryMetrics.Histogram();
+  private final QueryMetrics.Histogram lag = new QueryMetrics.Histogram();
+
+  /**
+   * Follows title changes made by other processes
+   */
+  private final ChangeLog.Listener showChanges = new ChangeLog.Listener() {
+    @Override
+    public void changed(Connection connection, ChangeLog.Change change) throws SQLException {
+      if (change.table.equals("Shows") && change.op != 'D') {
+        title(connection, change.key1, true);
+      }
+    }
+
+    @Override
+    public void reset() {
+      try (final Connection connection = pool.getConnection()) {
+        final IntObjectMap<String> reloaded = loadTitles(connection);
+        synchronized (MyListStore.this) {
+          titles = reloaded;
+        }
+      } catch (SQLException e) {
+        System.err.printf("My List titles not reloaded: %s%n", e);
+      }
+    }
+  };
+
+  private MyListStore(ConnectionPool pool, IntObjectMap<String> titles) {
+    this.pool = pool;
+    this.titles = titles;
+    this.flusher = new Thread(this::flushLoop, "yatv-mylist-flush");
+    this.flusher.setDaemon(true);
+    this.shutdownHook = new Thread(this::close, "yatv-mylist-shutdown");
+  }
+
+  /**
+   * Starts the process-wide store, used by {@link YatvQueries#addToMyList} and friends from
+   * then on
+   *
+   * @param pool connections for the flusher and for loading show titles
+   * @return the store
+   * @throws SQLException SQL gone bad
+   * @throws IllegalStateException a store is already started
+   */
+  static synchronized MyListStore start(ConnectionPool pool) throws SQLException {
+    if (shared != null) {
+      throw new IllegalStateException("My List store already started");
+    }
+    final IntObjectMap<String> titles;
+    try (final Connection connection = pool.getConnection()) {
+      titles = loadTitles(connection);
+    }
+    final MyListStore store = new MyListStore(pool, titles);
+    store.flusher.start();
+    ChangeLog.subscribe(store.showChanges);
+    Runtime.getRuntime().addShutdownHook(store.shutdownHook);
+    shared = store;
+    return store;
+  }
+
+  private static IntObjectMap<String> loadTitles(Connection connection) throws SQLException {
+    final IntObjectMap<String> titles = new IntObjectMap<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT ShowID, Title FROM Shows");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        titles.put(res.getInt(1), res.getString(2));
+      }
+    }
+    return titles;
+  }
+
+  /**
+   * @return the store started by {@link #start}, or null if none is running
+   */
+  static MyListStore shared() {
+    return shared;
+  }
+
+  /**
+   * @param connection database connection, used if the show is not known yet
+   * @param showId     show
+   * @return its title, or null if there is no such show
+   * @throws SQLException SQL gone bad
+   */
+  String title(Connection connection, int showId) throws SQLException {
+    return title(connection, showId, false);
+  }
+
+  private String title(Connection connection, int showId, boolean reread) throws SQLException {
+    if (!reread) {
+      synchronized (this) {
+        final String title = titles.get(showId);
+        if (title != null) {
+          return title;
+        }
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT Title FROM Shows WHERE ShowID = ?")) {
+      stmt.setInt(1, showId);
+      try (final ResultSet res = stmt.executeQuery()) {
+        if (!res.next()) {
+          return null;
+        }
+        final String title = res.getString(1);
+        synchronized (this) {
+          titles.put(showId, title);
+        }
+        return title;
+      }
+    }
+  }
+
+  /**
+   * @param connection database connection, used on a cache miss
+   * @param userId     list owner
+   * @return the ShowIDs on the user's list, ascending; do not modify
+   * @throws SQLException SQL gone bad
+   */
+  int[] shows(Connection connection, int userId) throws SQLException {
+    synchronized (this) {
+      final int[] list = lists.get(userId);
+      if (list != null) {
+        hits++;
+        return list;
+      }
+      misses++;
+    }
+    flushLock.readLock().lock();
+    try {
+      int[] read = new int[8];
+      int n = 0;
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          "SELECT ShowID FROM MyListShow WHERE UserID = ? ORDER BY ShowID")) {
+        stmt.setInt(1, userId);
+        try (final ResultSet res = stmt.executeQuery()) {
+          while (res.next()) {
+            if (n == read.length) {
+              read = Arrays.copyOf(read, n * 2);
+            }
+            read[n++] = res.getInt(1);
+          }
+        }
+      }
+      synchronized (this) {
+        int[] list = lists.get(userId);
+        if (list != null) {
+          // Another miss for the same user got here first
+          return list;
+        }
+        list = n == 0 ? EMPTY : Arrays.copyOf(read, n);
+        list = overlay(list, inFlight.get(userId));
+        list = overlay(list, pending.get(userId));
+        cache(userId, list);
+        return list;
+      }
+    } finally {
+      flushLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Adds a show to a user's list
+   *
+   * @param connection database connection, used on a cache miss
+   * @param userId     list owner
+   * @param showId     show
+   * @return false if the show was on the list already
+   * @throws SQLException SQL gone bad
+   */
+  boolean add(Connection connection, int userId, int showId) throws SQLException {
+    return change(connection, userId, showId, true);
+  }
+
+  /**
+   * Removes a show from a user's list
+   *
+   * @param connection database connection, used on a cache miss
+   * @param userId     list owner
+   * @param showId     show
+   * @return false if the show was not on the list
+   * @throws SQLException SQL gone bad
+   */
+  boolean remove(Connection connection, int userId, int showId) throws SQLException {
+    return change(connection, userId, showId, false);
+  }
+
+  private boolean change(Connection connection, int userId, int showId, boolean add)
+      throws SQLException {
+    while (true) {
+      shows(connection, userId);
+      synchronized (this) {
+        final int[] list = lists.get(userId);
+        if (list == null) {
+          // Evicted since it was loaded; load it again
+          continue;
+        }
+        if (closed) {
+          throw new SQLException("My List store is closed");
+        }
+        final int at = Arrays.binarySearch(list, showId);
+        if (add == at >= 0) {
+          return false;
+        }
+        if (pendingCount >= MAX_PENDING) {
+          blockedNanos -= System.nanoTime();
+          notifyAll();
+          while (pendingCount >= MAX_PENDING && !closed) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new SQLException("Interrupted waiting for My List writes", e);
+            }
+          }
+          blockedNanos += System.nanoTime();
+          // The list may have changed while waiting
+          continue;
+        }
+        cache(userId, add ? insert(list, -at - 1, showId) : delete(list, at));
+        if (pendingCount == 0) {
+          oldestPendingNanos = System.nanoTime();
+        }
+        changes++;
+        if (pending.computeIfAbsent(userId, u -> new HashMap<>()).put(showId, add) != null) {
+          coalesced++;
+        } else if (++pendingCount >= FLUSH_BATCH) {
+          notifyAll();
+        }
+        return true;
+      }
+    }
+  }
+
+  private static int[] overlay(int[] list, Map<Integer, Boolean> changes) {
+    if (changes == null) {
+      return list;
+    }
+    for (Map.Entry<Integer, Boolean> e : changes.entrySet()) {
+      final int at = Arrays.binarySearch(list, e.getKey());
+      if (e.getValue() && at < 0) {
+        list = insert(list, -at - 1, e.getKey());
+      } else if (!e.getValue() && at >= 0) {
+        list = delete(list, at);
+      }
+    }
+    return list;
+  }
+
+  private static int[] insert(int[] list, int at, int showId) {
+    final int[] longer = new int[list.length + 1];
+    System.arraycopy(list, 0, longer, 0, at);
+    longer[at] = showId;
+    System.arraycopy(list, at, longer, at + 1, list.length - at);
+    return longer;
+  }
+
+  private static int[] delete(int[] list, int at) {
+    if (list.length == 1) {
+      return EMPTY;
+    }
+    final int[] shorter = new int[list.length - 1];
+    System.arraycopy(list, 0, shorter, 0, at);
+    System.arraycopy(list, at + 1, shorter, at, list.length - at - 1);
+    return shorter;
+  }
+
+  /**
+   * Caches a list, evicting least recently used lists over the bounds. Must hold this.
+   */
+  private void cache(int userId, int[] list) {
+    final int[] old = lists.put(userId, list);
+    cachedShows += list.length - (old == null ? 0 : old.length);
+    final Iterator<Map.Entry<Integer, int[]>> eldest = lists.entrySet().iterator();
+    while ((lists.size() > CACHE_USERS || cachedShows > CACHE_SHOWS) && eldest.hasNext()) {
+      final Map.Entry<Integer, int[]> e = eldest.next();
+      if (e.getKey() == userId) {
+        continue;
+      }
+      cachedShows -= e.getValue().length;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      synchronized (this) {
+        final long deadline = System.nanoTime() + FLUSH_MILLIS * 1_000_000;
+        long left;
+        while (!closed && pendingCount < FLUSH_BATCH
+            && (left = deadline - System.nanoTime()) > 0) {
+          try {
+            wait(Math.max(1, left / 1_000_000));
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+      }
+      flush();
+    }
+  }
+
+  /**
+   * Writes the queued changes in one transaction. On failure they stay queued, behind any
+   * change made to the same show since.
+   *
+   * @return whether the queue was written (or empty)
+   */
+  boolean flush() {
+    synchronized (flushing) {
+      final Map<Integer, Map<Integer, Boolean>> batch;
+      final int size;
+      final long oldest;
+      synchronized (this) {
+        if (pendingCount == 0) {
+          return true;
+        }
+        batch = pending;
+        size = pendingCount;
+        oldest = oldestPendingNanos;
+        inFlight = batch;
+        pending = new HashMap<>();
+        pendingCount = 0;
+        notifyAll();
+      }
+      boolean ok = false;
+      flushLock.writeLock().lock();
+      try {
+        write(batch);
+        ok = true;
+      } catch (SQLException e) {
+        System.err.printf("My List flush of %d changes failed, will retry: %s%n", size, e);
+      } finally {
+        synchronized (this) {
+          inFlight = new HashMap<>();
+          if (ok) {
+            flushes++;
+            written += size;
+            batchSizes.record(size);
+            lag.record(System.nanoTime() - oldest);
+          } else {
+            failedFlushes++;
+            requeue(batch, oldest);
+          }
+        }
+        flushLock.writeLock().unlock();
+      }
+      return ok;
+    }
+  }
+
+  private void write(Map<Integer, Map<Integer, Boolean>> batch) throws SQLException {
+    try (final Connection connection = pool.getConnection()) {
+      final boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try (final PreparedStatement insert = connection.prepareStatement(
+          "INSERT IGNORE INTO MyListShow (UserID, ShowID) VALUES (?, ?)");
+          final PreparedStatement delete = connection.prepareStatement(
+              "DELETE FROM MyListShow WHERE UserID = ? AND ShowID = ?")) {
+        boolean inserts = false;
+        boolean deletes = false;
+        for (Map.Entry<Integer, Map<Integer, Boolean>> user : batch.entrySet()) {
+          for (Map.Entry<Integer, Boolean> show : user.getValue().entrySet()) {
+            final PreparedStatement stmt = show.getValue() ? insert : delete;
+            stmt.setInt(1, user.getKey());
+            stmt.setInt(2, show.getKey());
+            stmt.addBatch();
+            inserts |= show.getValue();
+            deletes |= !show.getValue();
+          }
+        }
+        if (inserts) {
+          insert.executeBatch();
+        }
+        if (deletes) {
+          delete.executeBatch();
+        }
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    }
+  }
+
+  /**
+   * Puts a failed batch back in the queue. Must hold this.
+   */
+  private void requeue(Map<Integer, Map<Integer, Boolean>> batch, long oldest) {
+    for (Map.Entry<Integer, Map<Integer, Boolean>> user : batch.entrySet()) {
+      final Map<Integer, Boolean> now = pending.computeIfAbsent(user.getKey(),
+          u -> new HashMap<>());
+      for (Map.Entry<Integer, Boolean> show : user.getValue().entrySet()) {
+        if (now.putIfAbsent(show.getKey(), show.getValue()) == null) {
+          pendingCount++;
+        }
+      }
+    }
+    oldestPendingNanos = oldest;
+  }
+
+  /**
+   * @return queued changes not yet written
+   */
+  synchronized int pending() {
+    return pendingCount;
+  }
+
+  /**
+   * @return cache, coalescing and flush statistics
+   */
+  synchronized String report() {
+    final long reads = hits + misses;
+    return String.format("My List: %d users / %d shows cached, hit rate %.1f%%, %d evicted%n"
+            + "  %d changes, %d coalesced, %d pending, %.1f ms blocked on the pending bound%n"
+            + "  %d flushes (%d failed), %d rows written, batch p50 %d max %d,"
+            + " lag p50 %.1f ms p99 %.1f ms max %.1f ms%n",
+        lists.size(), cachedShows, reads == 0 ? 0 : 100.0 * hits / reads, evictions,
+        changes, coalesced, pendingCount, blockedNanos / 1e6,
+        flushes, failedFlushes, written, batchSizes.percentile(50), batchSizes.max(),
+        lag.percentile(50) / 1e6, lag.percentile(99) / 1e6, lag.max() / 1e6);
+  }
+
+  /**
+   * Stops the flusher and writes what is left. Changes that still cannot be written are
+   * reported and dropped.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!flush()) {
+      System.err.printf("My List: %d changes could not be written at shutdown%n", pending());
+    }
+    ChangeLog.unsubscribe(showChanges);
+    synchronized (MyListStore.class) {
+      if (shared == this) {
+        shared = null;
+      }
+    }
+    if (Thread.currentThread() != shutdownHook) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // Already shutting down
+      }
+    }
+  }
+
+  /**
+   * Runs random changes and reads through the store and prints the statistics
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final Properties overrides = QueryBenchmark.dbOverrides(opts);
+    final long ops = Long.parseLong(opts.getOrDefault("ops", "100000"));
+    try (final ConnectionPool pool = DbConfig.load(overrides).openPool(2);
+        final Connection connection = pool.getConnection()) {
+      final QuerySampler sampler = QuerySampler.load(connection);
+      final SplittableRandom rnd = new SplittableRandom(42);
+      final long start;
+      try (final MyListStore store = start(pool)) {
+        start = System.nanoTime();
+        for (long i = 0; i < ops; i++) {
+          final int userId = sampler.userId(rnd);
+          final double r = rnd.nextDouble();
+          if (r < 0.4) {
+            store.add(connection, userId, sampler.showId(rnd));
+          } else if (r < 0.6) {
+            final int[] list = store.shows(connection, userId);
+            if (list.length > 0) {
+              store.remove(connection, userId, list[rnd.nextInt(list.length)]);
+            }
+          } else {
+            store.shows(connection, userId);
+          }
+        }
+        System.out.printf("%d operations in %.1f ms%n", ops, (System.nanoTime() - start) / 1e6);
+        System.out.print(store.report());
+      }
+      System.out.printf("Closed with everything written%n");
+    }
+  }
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+/**
+ * End-to-end benchmark of all 15 query types at one or more data scale factors.
+ *
+ * <p>For each scale the database is (optionally) reloaded with {@link DataGenerator}, then
+ * every query runs a fixed number of warm-up and measured iterations with parameters sampled
+ * by {@link QuerySampler}. Throughput and latency percentiles are printed and written as CSV
+ * so that runs on different commits can be compared with {@code --compare}.
+ *
+ * <p>The database comes from {@link DbConfig}; {@code --profile embedded} benchmarks an
+ * in-process database and {@code --url} overrides the configured URL.
+ *
+ * <p>Usage: {@code java QueryBenchmark [--profile mysql|embedded] [--url JDBC_URL]
+ * [--scales 10k,100k,1m] [--load] [--warmup N] [--iterations N] [--queries 6,9,14]
+ * [--seed N] [--label NAME] [--out results.csv] [--compare baseline.csv]}
+ */
+public class QueryBenchmark {
+
+  private static final String HEADER =
+      "label,scale,query,iterations,errors,ops_per_sec,mean_us,p50_us,p90_us,p99_us,p999_us,max_us";
+
+  /**
+   * Runs the benchmark
+   *
+   * @param args see class comment
+   * @throws Exception benchmark could not run
+   */
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> opts = options(args);
+    final DbConfig config = DbConfig.load(dbOverrides(opts));
+    final String[] scales = opts.getOrDefault("scales", "10k").split(",");
+    final int warmup = Integer.parseInt(opts.getOrDefault("warmup", "20"));
+    final int iterations = Integer.parseInt(opts.getOrDefault("iterations", "200"));
+    final long seed = Long.parseLong(opts.getOrDefault("seed", "42"));
+    final String label = opts.getOrDefault("label", "run");
+    final Path outFile = Paths.get(opts.getOrDefault("out", "bench-results.csv"));
+    final List<YatvApp.QueryTypes> queries = queries(opts.get("queries"));
+
+    final List<String> results = new ArrayList<>();
+    results.add(HEADER);
+    final int threads = Runtime.getRuntime().availableProcessors();
+    // One connection for the benchmark itself, one per loader thread
+    try (final ConnectionPool pool = config.openPool(threads + 1);
+        final Connection connection = pool.getConnection()) {
+      for (String scale : scales) {
+        if (opts.containsKey("load")) {
+          load(connection, pool, DataGenerator.parseScale(scale), seed, threads);
+        }
+        final QuerySampler sampler = QuerySampler.load(connection);
+        for (YatvApp.QueryTypes qt : queries) {
+          final String row = label + "," + scale + "," + qt + ","
+              + measure(connection, sampler, qt, warmup, iterations, seed);
+          results.add(row);
+          System.out.println(row);
+        }
+      }
+    }
+    Files.write(outFile, results, StandardCharsets.UTF_8);
+    System.out.printf("%nWrote %s%n%n", outFile);
+    System.out.print(QueryMetrics.get().getReport());
+
+    if (opts.containsKey("compare")) {
+      compare(Paths.get(opts.get("compare")), results);
+    }
+  }
+
+  /**
+   * Runs warm-up then measured iterations of one query type
+   *
+   * @return CSV fields from iterations onwards
+   */
+  private static String measure(Connection connection, QuerySampler sampler,
+      YatvApp.QueryTypes qt, int warmup, int iterations, long seed) {
+    final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    final SplittableRandom rnd = new SplittableRandom(seed ^ qt.ordinal());
+    for (int i = 0; i < warmup; i++) {
+      runOnce(connection, sampler, qt, discard, rnd, null);
+    }
+    // Only measured iterations feed the JMX/JFR-visible metrics
+    final QueryMetrics.Histogram latency = new QueryMetrics.Histogram();
+    int errors = 0;
+    long sum = 0;
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      final long ns = runOnce(connection, sampler, qt, discard, rnd, QueryMetrics.get());
+      if (ns < 0) {
+        errors++;
+      } else {
+        latency.record(ns);
+        sum += ns;
+      }
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    final long ok = Math.max(1, iterations - errors);
+    return String.format(Locale.ROOT, "%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f",
+        iterations, errors, iterations / seconds, sum / (double) ok / 1e3,
+        latency.percentile(50) / 1e3, latency.percentile(90) / 1e3,
+        latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+  }
+
+  /**
+   * @return latency in nanoseconds, or -1 if the query failed
+   */
+  private static long runOnce(Connection connection, QuerySampler sampler,
+      YatvApp.QueryTypes qt, PrintStream out, SplittableRandom rnd, QueryMetrics metrics) {
+    final QueryMetrics.Call call = metrics == null ? null : metrics.begin(qt);
+    final long start = System.nanoTime();
+    try {
+      sampler.run(qt, call == null ? connection : InstrumentedJdbc.wrap(connection, call), out,
+          rnd);
+      return System.nanoTime() - start;
+    } catch (SQLException | RuntimeException e) {
+      // Recorded as a failed iteration; the run goes on
+      if (call != null) {
+        call.failed();
+      }
+      return -1;
+    } finally {
+      if (call != null) {
+        call.end();
+      }
+    }
+  }
+
+  /**
+   * Empties every table and generates a fresh data set at the given scale
+   */
+  private static void load(Connection connection, ConnectionPool pool, long watches, long seed,
+      int threads) throws Exception {
+    final DataGenerator.Table[] tables = DataGenerator.Table.values();
+    try (final Statement stmt = connection.createStatement()) {
+      for (int i = tables.length - 1; i >= 0; i--) {
+        stmt.executeUpdate("DELETE FROM " + tables[i].tableName);
+      }
+      // Derived tables the generator does not write
+      for (String derived : new String[]{"VideoWatchDaily", "WatchCompaction",
+          "SubscriptionArchive"}) {
+        stmt.executeUpdate("DELETE FROM " + derived);
+      }
+    }
+    final long start = System.nanoTime();
+    new DataGenerator(seed, watches).generate(new DataGenerator.JdbcSinkFactory(pool), threads);
+    System.out.printf("Loaded %d watches in %.1fs%n", watches, (System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * Prints the change in throughput and p50/p99 latency against a previous results file
+   */
+  private static void compare(Path baseline, List<String> results) throws IOException {
+    final Map<String, String[]> before = new HashMap<>();
+    for (String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+      if (!line.equals(HEADER)) {
+        final String[] f = line.split(",");
+        before.put(f[1] + "," + f[2], f);
+      }
+    }
+    final PrintWriter out = new PrintWriter(System.out, true);
+    out.printf("%n%-8s %-24s %12s %12s %12s%n", "SCALE", "QUERY", "OPS/S", "P50", "P99");
+    for (String line : results) {
+      if (line.equals(HEADER)) {
+        continue;
+      }
+      final String[] f = line.split(",");
+      final String[] b = before.get(f[1] + "," + f[2]);
+      if (b == null) {
+        continue;
+      }
+      out.printf("%-8s %-24s %+11.1f%% %+11.1f%% %+11.1f%%%n", f[1], f[2],
+          change(b[5], f[5]), change(b[7], f[7]), change(b[9], f[9]));
+    }
+  }
+
+  private static double change(String before, String after) {
+    final double b = Double.parseDouble(before);
+    return b == 0 ? 0 : (Double.parseDouble(after) - b) / b * 100;
+  }
+
+  /**
+   * --profile and --url as DbConfig overrides
+   */
+  static Properties dbOverrides(Map<String, String> opts) {
+    final Properties overrides = new Properties();
+    if (opts.containsKey("profile")) {
+      overrides.setProperty("db.profile", opts.get("profile"));
+    }
+    if (opts.containsKey("url")) {
+      overrides.setProperty("db.url", opts.get("url"));
+    }
+    return overrides;
+  }
+
+  private static List<YatvApp.QueryTypes> queries(String numbers) {
+    final List<YatvApp.QueryTypes> queries = new ArrayList<>();
+    final YatvApp.QueryTypes[] all = YatvApp.QueryTypes.values();
+    if (numbers == null) {
+      queries.addAll(List.of(all));
+    } else {
+      for (String n : numbers.split(",")) {
+        queries.add(all[Integer.parseInt(n.trim()) - 1]);
+      }
+    }
+    return queries;
+  }
+
+  private static Map<String, String> options(String[] args) {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+      final String key = args[i].substring(2);
+      if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+        opts.put(key, args[++i]);
+      } else {
+        opts.put(key, "true");
+      }
+    }
+    return opts;
+  }
+}
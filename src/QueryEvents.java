@@ -0,0 +1,105 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom Java Flight Recorder events for query execution.
+ *
+ * <p>All events are enabled by default with the thresholds below; override them in a
+ * recording's settings (e.g. {@code yatv.Statement#threshold=20 ms}) to keep production
+ * recordings small. When JFR is not recording, creating and committing an event is a no-op.
+ */
+final class QueryEvents {
+
+  private QueryEvents() {
+  }
+
+  /**
+   * One full {@link YatvApp.QueryTypes} execution, from connecting to the last rendered row.
+   * The event duration includes time spent waiting on interactive input; dbTime does not.
+   * Under a load test there is one per request, so only those of 10 ms or more are kept.
+   */
+  @Name("yatv.Query")
+  @Label("YaTV Query")
+  @Category({"YaTV", "Database"})
+  @Description("Execution of one YaTV query type")
+  @StackTrace(false)
+  @Threshold("10 ms")
+  static final class Query extends Event {
+
+    @Label("Query Type")
+    String queryType;
+
+    @Label("Parameter Shape")
+    String parameterShape;
+
+    @Label("Database Time")
+    @Description("Connect, prepare, execute, fetch and render time combined")
+    @Timespan(Timespan.NANOSECONDS)
+    long dbTime;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  /**
+   * One SQL statement, from execute until its result set is closed
+   */
+  @Name("yatv.Statement")
+  @Label("YaTV Statement")
+  @Category({"YaTV", "Database"})
+  @Description("Execution of one SQL statement, including fetching its results")
+  @StackTrace(true)
+  @Threshold("1 ms")
+  static final class Statement extends Event {
+
+    @Label("Query Type")
+    String queryType;
+
+    @Label("SQL")
+    String sql;
+
+    @Label("Rows")
+    long rows;
+  }
+
+  /**
+   * A batch of consecutive rows fetched from one result set
+   */
+  @Name("yatv.FetchBatch")
+  @Label("YaTV Fetch Batch")
+  @Category({"YaTV", "Database"})
+  @Description("Rows fetched from a ResultSet; fetchTime excludes rendering between rows")
+  @StackTrace(false)
+  @Threshold("0 ms")
+  static final class FetchBatch extends Event {
+
+    /**
+     * Rows per batch event
+     */
+    static final int BATCH_ROWS = 256;
+
+    @Label("Query Type")
+    String queryType;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Fetch Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long fetchTime;
+  }
+}
@@ -0,0 +1,362 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Per-query latency, row-count and allocation instrumentation for {@link YatvApp}.
+ *
+ * <p>Every execution of a {@link YatvApp.QueryTypes} is split into phases that are recorded
+ * into lock-free log-linear histograms. Results are exposed over JMX and, when the
+ * {@code yatv.metrics.dumpSeconds} system property is set, dumped periodically to stderr.
+ */
+final class QueryMetrics implements QueryMetricsMBean {
+
+  /**
+   * Phases of a single query execution; HASH is time waiting for password hashing
+   */
+  enum Phase {
+    CONNECT, PREPARE, EXECUTE, FETCH, RENDER, HASH, TOTAL
+  }
+
+  private static final ThreadLocal<Call> CURRENT = new ThreadLocal<>();
+
+  private static final QueryMetrics INSTANCE = new QueryMetrics();
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+          ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+  private final Map<YatvApp.QueryTypes, QueryStats> stats =
+      new EnumMap<>(YatvApp.QueryTypes.class);
+
+  private QueryMetrics() {
+    for (YatvApp.QueryTypes qt : YatvApp.QueryTypes.values()) {
+      stats.put(qt, new QueryStats());
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(this, new ObjectName("yatv:type=QueryMetrics"));
+    } catch (Exception e) {
+      // JMX is best effort; metrics are still available through report()
+    }
+
+    final long dumpSeconds = Long.getLong("yatv.metrics.dumpSeconds", 0);
+    if (dumpSeconds > 0) {
+      startDump(dumpSeconds, System.err);
+    }
+  }
+
+  /**
+   * @return the process-wide metrics registry
+   */
+  static QueryMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts timing one execution of a query type
+   *
+   * @param queryType query being executed
+   * @return call handle, to be ended exactly once
+   */
+  Call begin(YatvApp.QueryTypes queryType) {
+    final Call call = new Call(queryType, stats.get(queryType));
+    CURRENT.set(call);
+    return call;
+  }
+
+  /**
+   * @return the call most recently begun and not yet ended on this thread, or null
+   */
+  static Call current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Dumps {@link #getReport()} on a daemon thread every period
+   *
+   * @param periodSeconds seconds between dumps
+   * @param out           destination
+   */
+  void startDump(long periodSeconds, PrintStream out) {
+    final ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "yatv-metrics-dump");
+      t.setDaemon(true);
+      return t;
+    });
+    dumper.scheduleAtFixedRate(() -> out.print(getReport()),
+        periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public String getReport() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-24s %-8s %8s %10s %10s %10s %10s%n",
+        "QUERY", "PHASE", "COUNT", "P50(us)", "P99(us)", "P999(us)", "MAX(us)"));
+    for (Map.Entry<YatvApp.QueryTypes, QueryStats> e : stats.entrySet()) {
+      final QueryStats qs = e.getValue();
+      final long calls = qs.calls.sum();
+      if (calls == 0) {
+        continue;
+      }
+      for (Phase phase : Phase.values()) {
+        final Histogram h = qs.phases.get(phase);
+        if (h.count() == 0) {
+          continue;
+        }
+        sb.append(String.format("%-24s %-8s %8d %10.1f %10.1f %10.1f %10.1f%n",
+            e.getKey(), phase, h.count(),
+            h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3,
+            h.max() / 1e3));
+      }
+      sb.append(String.format("%-24s calls: %d, errors: %d, rows/call: %.1f, bytes/call: %.0f%n",
+          e.getKey(), calls, qs.errors.sum(),
+          qs.rows.sum() / (double) calls, qs.allocated.sum() / (double) calls));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public long getTotalCalls() {
+    long total = 0;
+    for (QueryStats qs : stats.values()) {
+      total += qs.calls.sum();
+    }
+    return total;
+  }
+
+  @Override
+  public long getTotalErrors() {
+    long total = 0;
+    for (QueryStats qs : stats.values()) {
+      total += qs.errors.sum();
+    }
+    return total;
+  }
+
+  @Override
+  public double percentileMicros(String queryType, String phase, double percentile) {
+    final Histogram h = stats.get(YatvApp.QueryTypes.valueOf(queryType)).phases
+        .get(Phase.valueOf(phase));
+    return h.percentile(percentile) / 1e3;
+  }
+
+  @Override
+  public void reset() {
+    for (QueryStats qs : stats.values()) {
+      qs.reset();
+    }
+  }
+
+  /**
+   * Counters and histograms of one query type
+   */
+  private static class QueryStats {
+
+    final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+    final LongAdder calls = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder allocated = new LongAdder();
+
+    QueryStats() {
+      for (Phase phase : Phase.values()) {
+        phases.put(phase, new Histogram());
+      }
+    }
+
+    void reset() {
+      for (Histogram h : phases.values()) {
+        h.reset();
+      }
+      calls.reset();
+      errors.reset();
+      rows.reset();
+      allocated.reset();
+    }
+  }
+
+  /**
+   * One in-progress query execution. Not thread-safe: a call is confined to the thread that
+   * runs the query, and only publishes into the shared histograms when it ends.
+   */
+  static final class Call {
+
+    private final YatvApp.QueryTypes queryType;
+    private final QueryStats owner;
+    private final QueryEvents.Query event = new QueryEvents.Query();
+    private final long[] nanos = new long[Phase.values().length];
+    private final long startBytes;
+    private long rows;
+    private boolean failed;
+
+    private Call(YatvApp.QueryTypes queryType, QueryStats owner) {
+      this.queryType = queryType;
+      this.owner = owner;
+      this.startBytes = allocatedBytes();
+      event.begin();
+    }
+
+    /**
+     * @return query type being measured
+     */
+    YatvApp.QueryTypes queryType() {
+      return queryType;
+    }
+
+    /**
+     * Adds elapsed time to a phase
+     *
+     * @param phase phase the time was spent in
+     * @param ns    nanoseconds
+     */
+    void add(Phase phase, long ns) {
+      nanos[phase.ordinal()] += ns;
+    }
+
+    /**
+     * Counts one row fetched from a result set
+     */
+    void row() {
+      rows++;
+    }
+
+    /**
+     * Marks this execution as failed
+     */
+    void failed() {
+      failed = true;
+    }
+
+    /**
+     * Publishes this execution into the histograms
+     */
+    void end() {
+      if (CURRENT.get() == this) {
+        CURRENT.remove();
+      }
+      long total = 0;
+      for (Phase phase : Phase.values()) {
+        if (phase != Phase.TOTAL) {
+          final long ns = nanos[phase.ordinal()];
+          total += ns;
+          if (ns > 0) {
+            owner.phases.get(phase).record(ns);
+          }
+        }
+      }
+      owner.phases.get(Phase.TOTAL).record(total);
+      owner.calls.increment();
+      owner.rows.add(rows);
+      if (failed) {
+        owner.errors.increment();
+      }
+      final long endBytes = allocatedBytes();
+      final long allocated = startBytes >= 0 && endBytes >= 0 ? endBytes - startBytes : 0;
+      owner.allocated.add(allocated);
+
+      event.end();
+      if (event.shouldCommit()) {
+        event.queryType = queryType.name();
+        event.parameterShape = queryType.parameterShape;
+        event.dbTime = total - nanos[Phase.HASH.ordinal()];
+        event.rows = rows;
+        event.allocated = allocated;
+        event.failed = failed;
+        event.commit();
+      }
+    }
+
+    private static long allocatedBytes() {
+      return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+  }
+
+  /**
+   * Lock-free log-linear histogram of nanosecond values: 16 sub-buckets per power of two,
+   * so every percentile is within about 6% of the true value.
+   */
+  static final class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value non-negative value to record
+     */
+    void record(long value) {
+      final long v = Math.max(0, value);
+      counts.incrementAndGet(index(v));
+      total.increment();
+      max.accumulate(v);
+    }
+
+    long count() {
+      return total.sum();
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    /**
+     * @param percentile percentile in [0, 100]
+     * @return value at that percentile (bucket midpoint), or 0 if empty
+     */
+    long percentile(double percentile) {
+      final long n = count();
+      if (n == 0) {
+        return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+          return Math.min(midpoint(i), max());
+        }
+      }
+      return max();
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts.set(i, 0);
+      }
+      total.reset();
+      max.reset();
+    }
+
+    private static int index(long v) {
+      if (v < SUB_COUNT) {
+        return (int) v;
+      }
+      final int exp = 63 - Long.numberOfLeadingZeros(v);
+      final int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+      return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long midpoint(int index) {
+      if (index < SUB_COUNT) {
+        return index;
+      }
+      final int exp = index / SUB_COUNT + SUB_BITS - 1;
+      final int sub = index % SUB_COUNT;
+      final long lower = (long) (SUB_COUNT + sub) << (exp - SUB_BITS);
+      return lower + ((1L << (exp - SUB_BITS)) >> 1);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * JMX view of {@link QueryMetrics}, registered as {@code yatv:type=QueryMetrics}.
+ */
+public interface QueryMetricsMBean {
+
+  /**
+   * @return text dump of every query type with recorded calls
+   */
+  String getReport();
+
+  /**
+   * @return total query executions recorded since start (or last reset)
+   */
+  long getTotalCalls();
+
+  /**
+   * @return total query executions that ended in an exception
+   */
+  long getTotalErrors();
+
+  /**
+   * Latency percentile of one phase of one query type
+   *
+   * @param queryType  QueryTypes name (e.g. AppRevenueByCountry)
+   * @param phase      phase name (CONNECT, PREPARE, EXECUTE, FETCH, RENDER or TOTAL)
+   * @param percentile percentile in [0, 100]
+   * @return latency in microseconds, or 0 if nothing was recorded
+   */
+  double percentileMicros(String queryType, String phase, double percentile);
+
+  /**
+   * Clears every histogram and counter
+   */
+  void reset();
+}
@@ -0,0 +1,233 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs any {@link YatvApp.QueryTypes} with parameters sampled from the data actually in the
+ * database (random countries, users, apps, shows and platforms), for benchmarks and load
+ * generation.
+ */
+final class QuerySampler {
+
+  private static final AtomicLong UNIQUE = new AtomicLong(System.nanoTime());
+
+  private final String[] countries;
+  private final int[] userIds;
+  private final int[] appIds;
+  private final int[] showIds;
+  private final int[] platformIds;
+  private final int[] videoIds;
+  private final String[] tags;
+  private final LongAdder purchases = new LongAdder();
+
+  private QuerySampler(String[] countries, int[] userIds, int[] appIds, int[] showIds,
+      int[] platformIds, int[] videoIds, String[] tags) {
+    this.countries = countries;
+    this.userIds = userIds;
+    this.appIds = appIds;
+    this.showIds = showIds;
+    this.platformIds = platformIds;
+    this.videoIds = videoIds;
+    this.tags = tags;
+  }
+
+  /**
+   * Reads the candidate parameter values
+   *
+   * @param connection database connection
+   * @return sampler over the current data
+   * @throws SQLException SQL gone bad, or a table is empty
+   */
+  static QuerySampler load(Connection connection) throws SQLException {
+    final List<String> countries = strings(connection, "SELECT DISTINCT Country FROM User");
+    // Users and videos can number in the millions, so sample up to 10k of each
+    return new QuerySampler(countries.toArray(new String[0]),
+        ids(connection, "SELECT UserID FROM User ORDER BY UserID LIMIT 10000"),
+        ids(connection, "SELECT AppID FROM App"),
+        ids(connection, "SELECT ShowID FROM Shows"),
+        ids(connection, "SELECT PlatformID FROM Platform"),
+        ids(connection, "SELECT VideoID FROM Video ORDER BY VideoID LIMIT 10000"),
+        strings(connection, "SELECT DISTINCT Tag FROM Tag").toArray(new String[0]));
+  }
+
+  private static List<String> strings(Connection connection, String sql)
+      throws SQLException {
+    final List<String> values = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(sql);
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        values.add(res.getString(1));
+      }
+    }
+    return values;
+  }
+
+  private static int[] ids(Connection connection, String sql) throws SQLException {
+    final List<Integer> ids = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(sql);
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        ids.add(res.getInt(1));
+      }
+    }
+    if (ids.isEmpty()) {
+      throw new SQLException("No rows for parameter sampling: " + sql);
+    }
+    return ids.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  String country(SplittableRandom rnd) {
+    return countries[rnd.nextInt(countries.length)];
+  }
+
+  int userId(SplittableRandom rnd) {
+    return userIds[rnd.nextInt(userIds.length)];
+  }
+
+  int appId(SplittableRandom rnd) {
+    return appIds[rnd.nextInt(appIds.length)];
+  }
+
+  int showId(SplittableRandom rnd) {
+    return showIds[rnd.nextInt(showIds.length)];
+  }
+
+  int platformId(SplittableRandom rnd) {
+    return platformIds[rnd.nextInt(platformIds.length)];
+  }
+
+  int videoId(SplittableRandom rnd) {
+    return videoIds[rnd.nextInt(videoIds.length)];
+  }
+
+  /**
+   * @return subscriptions bought by SubscribeUser since the last call
+   */
+  long takePurchases() {
+    return purchases.sumThenReset();
+  }
+
+  /**
+   * @return all countries with at least one user
+   */
+  String[] countries() {
+    return countries.clone();
+  }
+
+  /**
+   * Executes one query with sampled parameters. Write queries really write: registrations use
+   * unique emails and new videos unique titles so repeated runs do not collide.
+   *
+   * @param queryType  query to run
+   * @param connection database connection
+   * @param out        output
+   * @param rnd        parameter randomness
+   * @throws SQLException SQL gone bad
+   */
+  void run(YatvApp.QueryTypes queryType, Connection connection, PrintStream out,
+      SplittableRandom rnd) throws SQLException {
+    switch (queryType) {
+      case RegisterUser:
+        YatvQueries.registerUser(connection, out, "Load", "Test", country(rnd),
+            "load" + UNIQUE.incrementAndGet() + "@example.com", "password");
+        break;
+      case Authenticate:
+        // Generated users all have the password "password"; the source varies so the
+        // per-source throttle does not cap the load
+        YatvQueries.authenticate(connection, out, "user" + userId(rnd) + "@example.com",
+            "password", "load-" + rnd.nextInt(1024));
+        break;
+      case BrowseByTags:
+        if (tags.length > 0) {
+          final String a = tags[rnd.nextInt(tags.length)];
+          final String b = tags[rnd.nextInt(tags.length)];
+          YatvQueries.browseByTags(connection, out, rnd.nextBoolean()
+              ? "\"" + a + "\" AND NOT \"" + b + "\"" : "\"" + a + "\" OR \"" + b + "\"", 0,
+              YatvQueries.PAGE_SIZE);
+        }
+        break;
+      case Search:
+        // Generated titles are "Episode N", "Clip N" and "Show N"; search by a partial id
+        YatvQueries.search(connection, out, "episode " + (1 + rnd.nextInt(999)), 10);
+        break;
+      case RecordWatch:
+        YatvQueries.recordWatch(connection, out, userId(rnd), videoId(rnd));
+        break;
+      case TrendingShows:
+        YatvQueries.trendingShows(connection, out, Duration.ofHours(1 + rnd.nextInt(168)),
+            rnd.nextBoolean() ? null : Duration.ofHours(6));
+        break;
+      case CanWatch:
+        YatvQueries.canWatch(connection, out, userId(rnd), videoId(rnd), platformId(rnd));
+        break;
+      case ViewerStats:
+        YatvQueries.viewerStats(connection, out, showId(rnd));
+        break;
+      case SubscribeUser: {
+        // One to three apps per purchase, like a bundle checkout
+        final int[] apps = rnd.ints(1 + rnd.nextInt(3), 0, appIds.length).distinct()
+            .map(i -> appIds[i]).toArray();
+        final int[] months = rnd.ints(apps.length, 1, 13).toArray();
+        purchases.add(YatvQueries.purchaseSubscriptions(connection, userId(rnd), apps, months)
+            .size());
+        break;
+      }
+      case AddToMyList:
+        YatvQueries.addToMyList(connection, out, userId(rnd), showId(rnd));
+        break;
+      case RemoveFromMyList:
+        YatvQueries.removeFromMyList(connection, out, userId(rnd), showId(rnd));
+        break;
+      case UpdatePlatformVersion:
+        YatvQueries.updatePlatformVersion(connection, out, appId(rnd), platformId(rnd),
+            1 + rnd.nextInt(90) / 10f);
+        break;
+      case AddLatestVideo:
+        YatvQueries.addLatestVideo(connection, out, showId(rnd),
+            "Load video " + UNIQUE.incrementAndGet(), "Generated by the load driver",
+            60 + rnd.nextInt(3600), rnd.nextBoolean(), "2020-06-01");
+        break;
+      case MostWatchedShowsByApp:
+        YatvQueries.mostWatchedShowsByApp(connection, out);
+        break;
+      case FindFreeVideosByPlatform:
+        YatvQueries.findFreeVideosByPlatform(connection, out,
+            Integer.toString(platformId(rnd)));
+        break;
+      case FindLongVideosNoShow:
+        YatvQueries.findLongVideosNoShow(connection, out);
+        break;
+      case AppRevenueByCountry:
+        YatvQueries.appRevenueByCountry(connection, out, country(rnd));
+        break;
+      case TopThreeWatchedTags:
+        YatvQueries.topThreeWatchedTags(connection, out);
+        break;
+      case HighestCustomer:
+        YatvQueries.highestCustomer(connection, out, country(rnd));
+        break;
+      case LowestApp:
+        YatvQueries.lowestApp(connection, out, country(rnd));
+        break;
+      case MostProfitableVideos:
+        YatvQueries.mostProfitableVideos(connection, out, country(rnd));
+        break;
+      case MostWatchedEpisodes:
+        YatvQueries.mostWatchedEpisodes(connection, out, showId(rnd));
+        break;
+      case MobileAppsRevenueRanked:
+        YatvQueries.mobileAppsRevenueRanked(connection, out, country(rnd));
+        break;
+      default:
+        throw new IllegalArgumentException("No sampler for " + queryType);
+    }
+  }
+}
@@ -0,0 +1,474 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches report results by query type and parameters, when {@code -Dyatv.cache=true}.
+ *
+ * <p>A result is kept as {@link Rows}: one array per column, {@code int[]} or {@code long[]}
+ * for integer columns and {@code String[]} for the rest, so a cached report costs about its
+ * printed size. Entries are evicted least recently used once their estimated weight passes
+ * {@code -Dyatv.cache.maxBytes} (default 32 MB), and expire after {@code
+ * -Dyatv.cache.ttlSeconds} (default 30), or {@code -Dyatv.cache.ttl.<QueryType>} for one
+ * report.
+ *
+ * <p>Writes drop the reports that read the tables they change: {@link #invalidate} is called
+ * after SubscribeUser, AddLatestVideo and the subscription sweep commit, and for every
+ * {@link ChangeLog} entry when the change log is followed, which covers other processes.
+ * Watches are not invalidated: at the rate they arrive no watch-count report would ever be
+ * hit, so those reports lag by up to their TTL instead. For the same reason a window start,
+ * which moves with the clock, is keyed by the TTL-long step it falls in: windows starting
+ * within one TTL of each other share an entry. A result read while its report is invalidated
+ * is not stored.
+ *
+ * <p>{@link #report()} gives hits, misses and the bytes held, per report.
+ */
+final class ResultCache {
+
+  static final boolean ENABLED = Boolean.getBoolean("yatv.cache");
+  static final long MAX_BYTES = Long.getLong("yatv.cache.maxBytes", 32L << 20);
+  static final long TTL_SECONDS = Long.getLong("yatv.cache.ttlSeconds", 30);
+
+  /**
+   * Stands for the watch count tables in {@link #reads}
+   */
+  private static final String WATCHES = "watches";
+
+  private static final YatvApp.QueryTypes[] TYPES = YatvApp.QueryTypes.values();
+
+  /**
+   * Binds a report's parameters
+   */
+  interface Binder {
+
+    void bind(PreparedStatement stmt) throws SQLException;
+  }
+
+  /**
+   * A cached result
+   */
+  private static final class Entry {
+
+    final YatvApp.QueryTypes type;
+    final Rows rows;
+    final long expiresNanos;
+
+    Entry(YatvApp.QueryTypes type, Rows rows, long expiresNanos) {
+      this.type = type;
+      this.rows = rows;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+
+  // All guarded by LOCK
+  private static final Object LOCK = new Object();
+  private static final LinkedHashMap<List<Object>, Entry> ENTRIES =
+      new LinkedHashMap<>(256, 0.75f, true);
+  private static long bytes;
+  /**
+   * Per query type, bumped by each invalidation so results read across one are not stored
+   */
+  private static final long[] GENERATIONS = new long[TYPES.length];
+
+  // Statistics, guarded by LOCK
+  private static final long[] HITS = new long[TYPES.length];
+  private static final long[] MISSES = new long[TYPES.length];
+  private static long evictions;
+  private static long expirations;
+  private static long invalidations;
+
+  static {
+    if (ENABLED) {
+      ChangeLog.subscribe(new ChangeLog.Listener() {
+        @Override
+        public void changed(Connection connection, ChangeLog.Change change) {
+          invalidate(change.table);
+        }
+
+        @Override
+        public void reset() {
+          invalidateAll();
+        }
+      });
+    }
+  }
+
+  private ResultCache() {
+  }
+
+  /**
+   * @param type a report
+   * @return the tables it reads, or null if it is not cached
+   */
+  private static String[] reads(YatvApp.QueryTypes type) {
+    switch (type) {
+      case MostWatchedShowsByApp:
+        return new String[] {"App", "Video", "Seasons", "Shows", WATCHES};
+      case FindFreeVideosByPlatform:
+        return new String[] {"AppPlatform", "Platform", "App", "Video"};
+      case FindLongVideosNoShow:
+        return new String[] {"Video", "Seasons"};
+      case AppRevenueByCountry:
+      case LowestApp:
+        return new String[] {"Subscription", "User", "App"};
+      case TopThreeWatchedTags:
+        return new String[] {"Tag", "Video", WATCHES};
+      case HighestCustomer:
+        return new String[] {"Subscription", "User"};
+      case MostProfitableVideos:
+        return new String[] {"Subscription", "User", "App", "Video", WATCHES};
+      case MostWatchedEpisodes:
+        return new String[] {"Seasons", "Shows", "Video", WATCHES};
+      case MobileAppsRevenueRanked:
+        return new String[] {"Subscription", "User", "App", "AppPlatform", "Platform"};
+      default:
+        return null;
+    }
+  }
+
+  private static long ttlNanos(YatvApp.QueryTypes type) {
+    return TimeUnit.SECONDS.toNanos(Long.getLong("yatv.cache.ttl." + type.name(), TTL_SECONDS));
+  }
+
+  /**
+   * Runs a report's query, or returns its cached result
+   *
+   * @param connection database connection
+   * @param sql        the query
+   * @param binder     binds its parameters; not called on a hit
+   * @param type       the report
+   * @param params     the report's parameters; equal parameters must mean equal rows, except
+   *                   that window starts (LocalDateTime) match to within the TTL
+   * @return the rows
+   * @throws SQLException SQL gone bad
+   */
+  static Rows rows(Connection connection, String sql, Binder binder, YatvApp.QueryTypes type,
+      Object... params) throws SQLException {
+    if (!ENABLED || reads(type) == null) {
+      return query(connection, sql, binder);
+    }
+    final long ttl = ttlNanos(type);
+    final List<Object> key = new ArrayList<>(params.length + 1);
+    key.add(type);
+    for (Object param : params) {
+      key.add(param instanceof LocalDateTime && ttl > 0
+          ? step((LocalDateTime) param, ttl) : param);
+    }
+    final long generation;
+    synchronized (LOCK) {
+      final Entry entry = ENTRIES.get(key);
+      if (entry != null) {
+        if (entry.expiresNanos - System.nanoTime() > 0) {
+          HITS[type.ordinal()]++;
+          return entry.rows;
+        }
+        remove(key, entry);
+        expirations++;
+      }
+      MISSES[type.ordinal()]++;
+      generation = GENERATIONS[type.ordinal()];
+    }
+    final Rows rows = query(connection, sql, binder);
+    if (ttl <= 0 || rows.weight > MAX_BYTES) {
+      return rows;
+    }
+    synchronized (LOCK) {
+      if (GENERATIONS[type.ordinal()] == generation) {
+        final Entry old = ENTRIES.put(key, new Entry(type, rows, System.nanoTime() + ttl));
+        if (old != null) {
+          bytes -= old.rows.weight;
+        }
+        bytes += rows.weight;
+        final Iterator<Entry> eldest = ENTRIES.values().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+          bytes -= eldest.next().rows.weight;
+          eldest.remove();
+          evictions++;
+        }
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @return which TTL-long step of the clock a window start falls in
+   */
+  private static long step(LocalDateTime since, long ttlNanos) {
+    final long nanos = TimeUnit.SECONDS.toNanos(since.toEpochSecond(ZoneOffset.UTC))
+        + since.getNano();
+    return Math.floorDiv(nanos, ttlNanos);
+  }
+
+  private static Rows query(Connection connection, String sql, Binder binder)
+      throws SQLException {
+    try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+      binder.bind(stmt);
+      try (final ResultSet res = stmt.executeQuery()) {
+        return Rows.read(res);
+      }
+    }
+  }
+
+  private static void remove(List<Object> key, Entry entry) {
+    ENTRIES.remove(key);
+    bytes -= entry.rows.weight;
+  }
+
+  /**
+   * Drops the cached reports that read a table
+   *
+   * @param table table written, as named in the schema
+   */
+  static void invalidate(String table) {
+    if (!ENABLED) {
+      return;
+    }
+    synchronized (LOCK) {
+      final boolean[] dropped = new boolean[TYPES.length];
+      for (YatvApp.QueryTypes type : TYPES) {
+        final String[] tables = reads(type);
+        if (tables != null && Arrays.asList(tables).contains(table)) {
+          GENERATIONS[type.ordinal()]++;
+          dropped[type.ordinal()] = true;
+        }
+      }
+      dropWhere(dropped);
+    }
+  }
+
+  /**
+   * Drops every cached report
+   */
+  static void invalidateAll() {
+    if (!ENABLED) {
+      return;
+    }
+    synchronized (LOCK) {
+      final boolean[] dropped = new boolean[TYPES.length];
+      Arrays.fill(dropped, true);
+      for (int i = 0; i < GENERATIONS.length; i++) {
+        GENERATIONS[i]++;
+      }
+      dropWhere(dropped);
+    }
+  }
+
+  private static void dropWhere(boolean[] types) {
+    final Iterator<Entry> it = ENTRIES.values().iterator();
+    while (it.hasNext()) {
+      final Entry entry = it.next();
+      if (types[entry.type.ordinal()]) {
+        bytes -= entry.rows.weight;
+        it.remove();
+        invalidations++;
+      }
+    }
+  }
+
+  /**
+   * @return hits, misses, entries and bytes per report, then totals
+   */
+  static String report() {
+    synchronized (LOCK) {
+      final int[] entries = new int[TYPES.length];
+      final long[] held = new long[TYPES.length];
+      for (Entry e : ENTRIES.values()) {
+        entries[e.type.ordinal()]++;
+        held[e.type.ordinal()] += e.rows.weight;
+      }
+      final StringBuilder sb = new StringBuilder(String.format("%-24s %10s %10s %7s %8s %10s%n",
+          "CACHED", "HITS", "MISSES", "HIT", "ENTRIES", "BYTES"));
+      long hits = 0;
+      long misses = 0;
+      for (YatvApp.QueryTypes type : TYPES) {
+        final int i = type.ordinal();
+        if (HITS[i] + MISSES[i] == 0) {
+          continue;
+        }
+        sb.append(String.format("%-24s %10d %10d %6.1f%% %8d %10d%n", type, HITS[i],
+            MISSES[i], 100.0 * HITS[i] / (HITS[i] + MISSES[i]), entries[i], held[i]));
+        hits += HITS[i];
+        misses += MISSES[i];
+      }
+      sb.append(String.format("Result cache: %.1f%% hits, %d entries, %d of %d bytes,"
+              + " %d evicted, %d expired, %d invalidated%n",
+          hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses), ENTRIES.size(), bytes,
+          MAX_BYTES, evictions, expirations, invalidations));
+      return sb.toString();
+    }
+  }
+
+  /**
+   * A query result held column by column. Values read back as {@link ResultSet} would give
+   * them: getString of an integer column is its decimal form, a NULL reads as null or 0.
+   */
+  static final class Rows {
+
+    private final String[] labels;
+    /**
+     * int[], long[] or String[] per column
+     */
+    private final Object[] columns;
+    /**
+     * Rows holding NULL per column, or null if none do
+     */
+    private final BitSet[] nulls;
+    private final int size;
+    /**
+     * Estimated bytes held
+     */
+    final long weight;
+
+    private Rows(String[] labels, Object[] columns, BitSet[] nulls, int size) {
+      this.labels = labels;
+      this.columns = columns;
+      this.nulls = nulls;
+      this.size = size;
+      long w = 64 + 48L * labels.length;
+      for (Object column : columns) {
+        if (column instanceof int[]) {
+          w += 4L * ((int[]) column).length;
+        } else if (column instanceof long[]) {
+          w += 8L * ((long[]) column).length;
+        } else {
+          for (String s : (String[]) column) {
+            w += s == null ? 4 : 44 + s.length();
+          }
+        }
+      }
+      this.weight = w;
+    }
+
+    /**
+     * Reads the rest of a result set
+     *
+     * @param res result set
+     * @return its rows
+     * @throws SQLException SQL gone bad
+     */
+    static Rows read(ResultSet res) throws SQLException {
+      final ResultSetMetaData meta = res.getMetaData();
+      final int count = meta.getColumnCount();
+      final String[] labels = new String[count];
+      final int[] types = new int[count];
+      for (int c = 0; c < count; c++) {
+        labels[c] = meta.getColumnLabel(c + 1).toLowerCase(Locale.ROOT);
+        types[c] = meta.getColumnType(c + 1);
+      }
+      final Object[] columns = new Object[count];
+      for (int c = 0; c < count; c++) {
+        columns[c] = isInt(types[c]) ? new int[8]
+            : types[c] == Types.BIGINT ? new long[8] : new String[8];
+      }
+      final BitSet[] nulls = new BitSet[count];
+      int size = 0;
+      while (res.next()) {
+        for (int c = 0; c < count; c++) {
+          final Object column = columns[c];
+          if (column instanceof int[]) {
+            int[] values = (int[]) column;
+            if (size == values.length) {
+              columns[c] = values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = res.getInt(c + 1);
+          } else if (column instanceof long[]) {
+            long[] values = (long[]) column;
+            if (size == values.length) {
+              columns[c] = values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = res.getLong(c + 1);
+          } else {
+            String[] values = (String[]) column;
+            if (size == values.length) {
+              columns[c] = values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = res.getString(c + 1);
+          }
+          if (res.wasNull()) {
+            if (nulls[c] == null) {
+              nulls[c] = new BitSet();
+            }
+            nulls[c].set(size);
+          }
+        }
+        size++;
+      }
+      for (int c = 0; c < count; c++) {
+        final Object column = columns[c];
+        columns[c] = column instanceof int[] ? Arrays.copyOf((int[]) column, size)
+            : column instanceof long[] ? Arrays.copyOf((long[]) column, size)
+                : Arrays.copyOf((String[]) column, size);
+      }
+      return new Rows(labels, columns, nulls, size);
+    }
+
+    private static boolean isInt(int type) {
+      return type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT;
+    }
+
+    int size() {
+      return size;
+    }
+
+    private int column(String label) {
+      final String l = label.toLowerCase(Locale.ROOT);
+      for (int c = 0; c < labels.length; c++) {
+        if (labels[c].equals(l)) {
+          return c;
+        }
+      }
+      throw new IllegalArgumentException("No column " + label);
+    }
+
+    private boolean isNull(int c, int row) {
+      return nulls[c] != null && nulls[c].get(row);
+    }
+
+    /**
+     * @param row   row index
+     * @param label column label, any case
+     * @return the value as a string, or null
+     */
+    String getString(int row, String label) {
+      final int c = column(label);
+      if (isNull(c, row)) {
+        return null;
+      }
+      final Object column = columns[c];
+      return column instanceof int[] ? Integer.toString(((int[]) column)[row])
+          : column instanceof long[] ? Long.toString(((long[]) column)[row])
+              : ((String[]) column)[row];
+    }
+
+    /**
+     * @param row   row index
+     * @param label column label, any case
+     * @return the value as an int, 0 for null; decimals are truncated
+     */
+    int getInt(int row, String label) {
+      final int c = column(label);
+      if (isNull(c, row)) {
+        return 0;
+      }
+      final Object column = columns[c];
+      return column instanceof int[] ? ((int[]) column)[row]
+          : column instanceof long[] ? (int) ((long[]) column)[row]
+              : new BigDecimal(((String[]) column)[row].trim()).intValue();
+    }
+  }
+}
@@ -0,0 +1,852 @@
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * In-process, column-oriented snapshot of Subscription, User, App and the mobile flag of
+ * Platform, for revenue reports that do not touch the OLTP database once loaded.
+ *
+ * <p>Subscriptions are held as primitive columns (user, app, country code, cost in cents);
+ * country and app names are dictionary encoded. Reports scan the columns in parallel chunks
+ * on the common fork-join pool. {@link #refresh} appends subscriptions and users added since
+ * the last load, so the snapshot can be kept current cheaply. Subscriptions are inserted in
+ * transactions, so IDs can commit out of order: each refresh reads again from {@code
+ * -Dyatv.revenue.trailingIds} (default 10000) IDs below the highest it has, and rows it
+ * already holds are skipped. The {@link #shared} engine also follows {@link ChangeLog}: a
+ * changed Subscription row re-reads that user's subscriptions to that app, which picks up
+ * renewals, archiving and late inserts from any process, and a reset reloads it on the next
+ * refresh. {@link SubscriptionSweeper} marks it stale the same way after its own changes.
+ *
+ * <p>The reports answer what the SQL versions are meant to: HighestCustomer and LowestApp
+ * compare customers and apps within the country (the SQL groups before filtering and picks
+ * an arbitrary row per group on MySQL), and mobile revenue counts each subscription once
+ * however many mobile platforms its app has (the SQL join counts it once per platform).
+ *
+ * <p>Usage: {@code java RevenueEngine [--profile mysql|embedded] [--url JDBC_URL]} prints
+ * revenue by country.
+ */
+final class RevenueEngine {
+
+  static final int TRAILING_IDS = Integer.getInteger("yatv.revenue.trailingIds", 10_000);
+
+  private static volatile RevenueEngine shared;
+  private static boolean following;
+
+  /**
+   * Re-reads subscriptions other processes change; a reset reloads the shared engine
+   */
+  private static final ChangeLog.Listener CHANGES = new ChangeLog.Listener() {
+    @Override
+    public void changed(Connection connection, ChangeLog.Change change) throws SQLException {
+      final RevenueEngine engine = shared;
+      if (engine != null && change.table.equals("Subscription")) {
+        engine.subscriptionChanged(connection, change.key1, change.key2);
+      }
+    }
+
+    @Override
+    public void reset() {
+      final RevenueEngine engine = shared;
+      if (engine != null) {
+        engine.markStale();
+      }
+    }
+  };
+
+  /**
+   * @param queryType query type
+   * @return whether the engine can answer it
+   */
+  static boolean supports(YatvApp.QueryTypes queryType) {
+    switch (queryType) {
+      case AppRevenueByCountry:
+      case HighestCustomer:
+      case LowestApp:
+      case MobileAppsRevenueRanked:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Dense int codes for repeated strings
+   */
+  static final class Dictionary {
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    int encode(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        codes.put(value, code);
+        values.add(value);
+      }
+      return code;
+    }
+
+    /**
+     * @return code, or -1 if the value has never been seen
+     */
+    int code(String value) {
+      return codes.getOrDefault(value, -1);
+    }
+
+    String decode(int code) {
+      return values.get(code);
+    }
+
+    int size() {
+      return values.size();
+    }
+  }
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Dictionary countries = new Dictionary();
+  private final Dictionary appNames = new Dictionary();
+
+  // Users, indexed by UserID
+  private int[] userCountry = new int[0];
+  private String[] userFirstName = new String[0];
+  private String[] userLastName = new String[0];
+  private int maxUserId;
+
+  // Apps, indexed by AppID
+  private int[] appName = new int[0];
+  private boolean[] appMobile = new boolean[0];
+
+  // Subscriptions, one entry per row; a row whose subscription is gone has country -1
+  private int[] subId = new int[0];
+  private int[] subUser = new int[0];
+  private int[] subApp = new int[0];
+  private int[] subCountry = new int[0];
+  private long[] subCents = new long[0];
+  private int rows;
+  private int dropped;
+  private int lastSubscriptionId;
+  /**
+   * Row plus one by SubscriptionID; 0 for subscriptions not held
+   */
+  private IntIntMap rowOf = new IntIntMap();
+  /**
+   * Rows by UserID
+   */
+  private IntObjectMap<int[]> userRows = new IntObjectMap<>();
+  /**
+   * Set when rows changed without the change being applied; the next refresh reloads
+   */
+  private volatile boolean stale;
+
+  private RevenueEngine() {
+  }
+
+  /**
+   * @param connection database connection, used only if the engine is not loaded yet
+   * @return the process-wide engine, loaded and subscribed to {@link ChangeLog} on first use
+   * @throws SQLException SQL gone bad
+   */
+  static RevenueEngine shared(Connection connection) throws SQLException {
+    RevenueEngine engine = shared;
+    if (engine == null) {
+      synchronized (RevenueEngine.class) {
+        engine = shared;
+        if (engine == null) {
+          engine = load(connection);
+          shared = engine;
+          if (!following) {
+            ChangeLog.subscribe(CHANGES);
+            following = true;
+          }
+        }
+      }
+    }
+    return engine;
+  }
+
+  /**
+   * @return the process-wide engine, or null if it has not been loaded
+   */
+  static RevenueEngine sharedIfLoaded() {
+    return shared;
+  }
+
+  /**
+   * Makes the next {@link #refresh} reload every row, for changes not applied one by one
+   */
+  void markStale() {
+    stale = true;
+  }
+
+  /**
+   * Loads a snapshot
+   *
+   * @param connection database connection
+   * @return engine over the current data
+   * @throws SQLException SQL gone bad
+   */
+  static RevenueEngine load(Connection connection) throws SQLException {
+    final RevenueEngine engine = new RevenueEngine();
+    engine.refresh(connection);
+    return engine;
+  }
+
+  /**
+   * Appends the subscriptions and users added since the last load or refresh, and rereads the
+   * (small) App and Platform tables; reloads every row if the engine was marked stale.
+   * Reports keep running while rows are read; they wait only for the final append.
+   *
+   * @param connection database connection
+   * @return subscriptions added
+   * @throws SQLException SQL gone bad
+   */
+  synchronized int refresh(Connection connection) throws SQLException {
+    final boolean reload = stale;
+    stale = false;
+    final int afterSubscription;
+    final int afterUser;
+    lock.readLock().lock();
+    try {
+      // Below the highest ID held, rows may still commit late
+      afterSubscription = reload ? 0 : Math.max(0, lastSubscriptionId - TRAILING_IDS);
+      afterUser = maxUserId;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    // Subscriptions first: users are never deleted, so every user they refer to is read next
+    int n = 0;
+    int[] ids = new int[1024];
+    int[] users = new int[1024];
+    int[] apps = new int[1024];
+    long[] cents = new long[1024];
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT SubscriptionID, UserID, AppID, Cost FROM Subscription"
+            + " WHERE SubscriptionID > ? ORDER BY SubscriptionID")) {
+      stmt.setInt(1, afterSubscription);
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          if (n == ids.length) {
+            ids = Arrays.copyOf(ids, n * 2);
+            users = Arrays.copyOf(users, n * 2);
+            apps = Arrays.copyOf(apps, n * 2);
+            cents = Arrays.copyOf(cents, n * 2);
+          }
+          ids[n] = res.getInt(1);
+          users[n] = res.getInt(2);
+          apps[n] = res.getInt(3);
+          cents[n] = res.getBigDecimal(4).movePointRight(2).longValueExact();
+          n++;
+        }
+      }
+    }
+
+    final List<Object[]> newUsers = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT UserID, FirstName, LastName, Country FROM User"
+            + " WHERE UserID > ? ORDER BY UserID")) {
+      stmt.setInt(1, afterUser);
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          newUsers.add(new Object[]{res.getInt(1), res.getString(2), res.getString(3),
+              res.getString(4)});
+        }
+      }
+    }
+    // Users that committed below the highest UserID, if any subscription is theirs
+    final IntIntMap seen = new IntIntMap(newUsers.size());
+    for (Object[] u : newUsers) {
+      seen.put((Integer) u[0], 1);
+    }
+    lock.readLock().lock();
+    try {
+      for (int i = 0; i < n; i++) {
+        if (!seen.containsKey(users[i]) && country(users[i]) < 0) {
+          seen.put(users[i], 1);
+          newUsers.addAll(readUser(connection, users[i]));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    final Map<Integer, String> names = new HashMap<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT AppID, Name FROM App");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        names.put(res.getInt(1), res.getString(2));
+      }
+    }
+    final List<Integer> mobile = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT DISTINCT ap.AppID FROM AppPlatform ap"
+            + " JOIN Platform p ON p.PlatformID = ap.PlatformID WHERE p.Mobile = 1");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        mobile.add(res.getInt(1));
+      }
+    }
+
+    int added = 0;
+    lock.writeLock().lock();
+    try {
+      if (reload) {
+        rows = 0;
+        dropped = 0;
+        lastSubscriptionId = 0;
+        rowOf = new IntIntMap();
+        userRows = new IntObjectMap<>();
+      }
+      addUsers(newUsers);
+      for (Map.Entry<Integer, String> e : names.entrySet()) {
+        ensureApps(e.getKey());
+        appName[e.getKey()] = appNames.encode(e.getValue());
+      }
+      Arrays.fill(appMobile, false);
+      for (int app : mobile) {
+        ensureApps(app);
+        appMobile[app] = true;
+      }
+      ensureRows(rows + n);
+      for (int i = 0; i < n; i++) {
+        final int row = rowOf.get(ids[i]) - 1;
+        if (row >= 0) {
+          subCents[row] = cents[i];
+        } else {
+          append(ids[i], users[i], apps[i], cents[i]);
+          added++;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return added;
+  }
+
+  /**
+   * Re-reads one user's subscriptions to one app, after {@link ChangeLog} saw one change:
+   * costs are updated, new rows appended and rows no longer there dropped
+   */
+  private synchronized void subscriptionChanged(Connection connection, int user, int app)
+      throws SQLException {
+    final IntIntMap ids = new IntIntMap();
+    final List<long[]> current = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT SubscriptionID, Cost FROM Subscription WHERE UserID = ? AND AppID = ?")) {
+      stmt.setInt(1, user);
+      stmt.setInt(2, app);
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          current.add(new long[]{res.getInt(1),
+              res.getBigDecimal(2).movePointRight(2).longValueExact()});
+          ids.put(res.getInt(1), 1);
+        }
+      }
+    }
+    final boolean known;
+    lock.readLock().lock();
+    try {
+      known = country(user) >= 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+    final List<Object[]> newUser = known ? new ArrayList<>() : readUser(connection, user);
+
+    lock.writeLock().lock();
+    try {
+      addUsers(newUser);
+      final int[] held = userRows.get(user);
+      for (int i = 0; held != null && i < held.length; i++) {
+        final int row = held[i];
+        if (subApp[row] == app && rowOf.get(subId[row]) == row + 1
+            && !ids.containsKey(subId[row])) {
+          rowOf.put(subId[row], 0);
+          dropped++;
+          subCountry[row] = -1;
+          subCents[row] = 0;
+        }
+      }
+      for (long[] c : current) {
+        final int row = rowOf.get((int) c[0]) - 1;
+        if (row >= 0) {
+          subCents[row] = c[1];
+        } else {
+          ensureRows(rows + 1);
+          append((int) c[0], user, app, c[1]);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the user's name and country row, or nothing if there is no such user
+   */
+  private static List<Object[]> readUser(Connection connection, int id) throws SQLException {
+    final List<Object[]> user = new ArrayList<>(1);
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT UserID, FirstName, LastName, Country FROM User WHERE UserID = ?")) {
+      stmt.setInt(1, id);
+      try (final ResultSet res = stmt.executeQuery()) {
+        if (res.next()) {
+          user.add(new Object[]{res.getInt(1), res.getString(2), res.getString(3),
+              res.getString(4)});
+        }
+      }
+    }
+    return user;
+  }
+
+  /**
+   * @return the user's country code, or -1 if the user is not held. Callers hold the lock.
+   */
+  private int country(int user) {
+    return user >= 0 && user < userCountry.length ? userCountry[user] : -1;
+  }
+
+  /**
+   * Callers hold the write lock
+   */
+  private void addUsers(List<Object[]> users) {
+    for (Object[] u : users) {
+      final int id = (Integer) u[0];
+      ensureUsers(id);
+      userFirstName[id] = (String) u[1];
+      userLastName[id] = (String) u[2];
+      userCountry[id] = countries.encode((String) u[3]);
+      maxUserId = Math.max(maxUserId, id);
+    }
+  }
+
+  /**
+   * Appends a subscription; callers hold the write lock and have made room
+   */
+  private void append(int id, int user, int app, long cents) {
+    ensureApps(app);
+    subId[rows] = id;
+    subUser[rows] = user;
+    subApp[rows] = app;
+    subCountry[rows] = country(user);
+    subCents[rows] = cents;
+    rowOf.put(id, rows + 1);
+    final int[] held = userRows.get(user);
+    final int[] more = held == null ? new int[1] : Arrays.copyOf(held, held.length + 1);
+    more[more.length - 1] = rows;
+    userRows.put(user, more);
+    rows++;
+    lastSubscriptionId = Math.max(lastSubscriptionId, id);
+  }
+
+  private void ensureUsers(int id) {
+    if (id >= userCountry.length) {
+      final int size = Math.max(id + 1, userCountry.length + (userCountry.length >> 1));
+      final int old = userCountry.length;
+      userCountry = Arrays.copyOf(userCountry, size);
+      Arrays.fill(userCountry, old, size, -1);
+      userFirstName = Arrays.copyOf(userFirstName, size);
+      userLastName = Arrays.copyOf(userLastName, size);
+    }
+  }
+
+  private void ensureApps(int id) {
+    if (id >= appName.length) {
+      final int old = appName.length;
+      appName = Arrays.copyOf(appName, id + 1);
+      Arrays.fill(appName, old, id + 1, -1);
+      appMobile = Arrays.copyOf(appMobile, id + 1);
+    }
+  }
+
+  private void ensureRows(int size) {
+    if (size > subUser.length) {
+      final int capacity = Math.max(size, subUser.length + (subUser.length >> 1));
+      subId = Arrays.copyOf(subId, capacity);
+      subUser = Arrays.copyOf(subUser, capacity);
+      subApp = Arrays.copyOf(subApp, capacity);
+      subCountry = Arrays.copyOf(subCountry, capacity);
+      subCents = Arrays.copyOf(subCents, capacity);
+    }
+  }
+
+  /**
+   * @return subscriptions in the snapshot
+   */
+  int rows() {
+    lock.readLock().lock();
+    try {
+      return rows - dropped;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------
+  // Reports, printed exactly like their YatvQueries counterparts
+  // ---------------------------------------------------------------------------------------
+
+  /**
+   * Runs a supported report
+   *
+   * @param queryType report (see {@link #supports})
+   * @param out       output
+   * @param country   country
+   */
+  void run(YatvApp.QueryTypes queryType, PrintStream out, String country) {
+    switch (queryType) {
+      case AppRevenueByCountry:
+        appRevenueByCountry(out, country);
+        break;
+      case HighestCustomer:
+        highestCustomer(out, country);
+        break;
+      case LowestApp:
+        lowestApp(out, country);
+        break;
+      case MobileAppsRevenueRanked:
+        mobileAppsRevenueRanked(out, country);
+        break;
+      default:
+        throw new IllegalArgumentException(queryType + " is not a revenue report");
+    }
+  }
+
+  /**
+   * QUERY 9- Ranked list of revenue generated by apps in a country
+   */
+  void appRevenueByCountry(PrintStream out, String country) {
+    lock.readLock().lock();
+    try {
+      final int code = countries.code(country);
+      if (code < 0) {
+        return;
+      }
+      final int[] apps = subApp;
+      final int[] byCountry = subCountry;
+      final Totals totals = sum(appName.length, i -> byCountry[i] == code, i -> apps[i]);
+      for (int app : totals.ranked(false)) {
+        out.printf("COUNTRY: %s, APP: %s, REVENUE: %s %n", country,
+            appNames.decode(appName[app]), money(totals.cents[app]));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * REPORT QUERY 1 (QUERY 11)- Customer with the highest revenue in a country
+   */
+  void highestCustomer(PrintStream out, String country) {
+    lock.readLock().lock();
+    try {
+      final int code = countries.code(country);
+      if (code < 0) {
+        return;
+      }
+      final int[] users = subUser;
+      final int[] byCountry = subCountry;
+      final SparseTotals totals = sparseSum(i -> byCountry[i] == code, i -> users[i]);
+      final int top = totals.top();
+      if (top >= 0) {
+        final int user = totals.keys[top];
+        out.printf("UserID: %d %nFirstName: %s %nLastName: %s %nRevenue: %s%n",
+            user, userFirstName[user], userLastName[user], money(totals.cents[top]));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * REPORT QUERY 2 (QUERY 12)- App with the lowest revenue in a country
+   */
+  void lowestApp(PrintStream out, String country) {
+    lock.readLock().lock();
+    try {
+      final int code = countries.code(country);
+      if (code < 0) {
+        return;
+      }
+      final int[] apps = subApp;
+      final int[] byCountry = subCountry;
+      final Totals totals = sum(appName.length, i -> byCountry[i] == code, i -> apps[i]);
+      final int app = totals.top(true);
+      if (app >= 0) {
+        out.printf("App ID: %s %nApp Name: %s %nRevenue: %s ",
+            app, appNames.decode(appName[app]), money(totals.cents[app]));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * REPORT QUERY 5 (QUERY 15)- Ranked revenue by app for apps on a mobile platform, in a
+   * country
+   */
+  void mobileAppsRevenueRanked(PrintStream out, String country) {
+    lock.readLock().lock();
+    try {
+      final int code = countries.code(country);
+      if (code < 0) {
+        return;
+      }
+      final int[] apps = subApp;
+      final int[] byCountry = subCountry;
+      final boolean[] mobile = appMobile;
+      final Totals totals = sum(appName.length,
+          i -> byCountry[i] == code && mobile[apps[i]], i -> apps[i]);
+      final Integer[] ranked = Arrays.stream(totals.ranked(false)).boxed()
+          .toArray(Integer[]::new);
+      // ROUND(SUM(Cost), 0), then by revenue and name like the SQL
+      final long[] whole = new long[totals.cents.length];
+      for (int app : ranked) {
+        whole[app] = BigDecimal.valueOf(totals.cents[app], 2)
+            .setScale(0, RoundingMode.HALF_UP).longValueExact();
+      }
+      Arrays.sort(ranked, (a, b) -> whole[a] != whole[b] ? Long.compare(whole[b], whole[a])
+          : appNames.decode(appName[a]).compareTo(appNames.decode(appName[b])));
+      for (int app : ranked) {
+        out.printf("APP: %s, REVENUE: %d %n", appNames.decode(appName[app]), whole[app]);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------
+  // Ad-hoc slicing
+  // ---------------------------------------------------------------------------------------
+
+  /**
+   * @return revenue per country, by country name
+   */
+  Map<String, BigDecimal> revenueByCountry() {
+    return revenueByCountry(null);
+  }
+
+  /**
+   * @param app app name, or null for every app
+   * @return revenue per country from that app, by country name
+   */
+  Map<String, BigDecimal> revenueByCountry(String app) {
+    lock.readLock().lock();
+    try {
+      final int code = app == null ? -1 : appNames.code(app);
+      final int[] apps = subApp;
+      final int[] names = appName;
+      final int[] byCountry = subCountry;
+      final Totals totals = sum(countries.size(),
+          i -> byCountry[i] >= 0 && (app == null || names[apps[i]] == code),
+          i -> byCountry[i]);
+      final Map<String, BigDecimal> revenue = new TreeMap<>();
+      for (int c : totals.ranked(false)) {
+        revenue.put(countries.decode(c), BigDecimal.valueOf(totals.cents[c], 2));
+      }
+      return revenue;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Per-key cents and row counts of the subscriptions that pass a filter
+   */
+  private static final class Totals {
+
+    final long[] cents;
+    final int[] counts;
+
+    Totals(int keys) {
+      cents = new long[keys];
+      counts = new int[keys];
+    }
+
+    void add(Totals other) {
+      for (int k = 0; k < cents.length; k++) {
+        cents[k] += other.cents[k];
+        counts[k] += other.counts[k];
+      }
+    }
+
+    /**
+     * @param ascending lowest revenue, else highest
+     * @return the first key {@link #ranked} would give, or -1 if no key has a row
+     */
+    int top(boolean ascending) {
+      int top = -1;
+      for (int k = 0; k < cents.length; k++) {
+        if (counts[k] > 0 && (top < 0
+            || (ascending ? cents[k] < cents[top] : cents[k] > cents[top]))) {
+          top = k;
+        }
+      }
+      return top;
+    }
+
+    /**
+     * @param ascending lowest revenue first, else highest first
+     * @return keys with at least one row, by revenue and then key
+     */
+    int[] ranked(boolean ascending) {
+      return IntStream.range(0, cents.length).filter(k -> counts[k] > 0).boxed()
+          .sorted((a, b) -> cents[a] != cents[b]
+              ? (ascending ? Long.compare(cents[a], cents[b]) : Long.compare(cents[b], cents[a]))
+              : Integer.compare(a, b))
+          .mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  /**
+   * Sums cost by key over the subscription columns, one chunk per fork-join worker so each
+   * worker owns its accumulator. Callers hold the read lock.
+   */
+  private Totals sum(int keys, IntPredicate filter, IntUnaryOperator key) {
+    final int n = rows;
+    final long[] cost = subCents;
+    final int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(),
+        n / 10_000));
+    return IntStream.range(0, chunks).parallel().mapToObj(c -> {
+      final Totals t = new Totals(keys);
+      final int end = (int) ((long) n * (c + 1) / chunks);
+      for (int i = (int) ((long) n * c / chunks); i < end; i++) {
+        if (filter.test(i)) {
+          final int k = key.applyAsInt(i);
+          t.cents[k] += cost[i];
+          t.counts[k]++;
+        }
+      }
+      return t;
+    }).reduce((a, b) -> {
+      a.add(b);
+      return a;
+    }).orElseGet(() -> new Totals(keys));
+  }
+
+  /**
+   * Cents per key for keys with at least one row, held only for those keys, for key spaces
+   * too large for a dense {@link Totals} per worker (users)
+   */
+  private static final class SparseTotals {
+
+    /**
+     * Key to its slot plus one
+     */
+    private final IntIntMap slots = new IntIntMap();
+    int[] keys = new int[16];
+    long[] cents = new long[16];
+    int size;
+
+    void add(int key, long amount) {
+      int slot = slots.get(key) - 1;
+      if (slot < 0) {
+        slot = size++;
+        slots.put(key, size);
+        if (slot == keys.length) {
+          keys = Arrays.copyOf(keys, slot * 2);
+          cents = Arrays.copyOf(cents, slot * 2);
+        }
+        keys[slot] = key;
+      }
+      cents[slot] += amount;
+    }
+
+    void add(SparseTotals other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.keys[i], other.cents[i]);
+      }
+    }
+
+    /**
+     * @return slot of the highest revenue, lowest key on ties, or -1 if empty
+     */
+    int top() {
+      int top = -1;
+      for (int i = 0; i < size; i++) {
+        if (top < 0 || cents[i] > cents[top]
+            || (cents[i] == cents[top] && keys[i] < keys[top])) {
+          top = i;
+        }
+      }
+      return top;
+    }
+  }
+
+  /**
+   * Like {@link #sum}, but each worker holds only the keys its rows touch, so memory follows
+   * the rows that pass the filter rather than the key space. Callers hold the read lock.
+   */
+  private SparseTotals sparseSum(IntPredicate filter, IntUnaryOperator key) {
+    final int n = rows;
+    final long[] cost = subCents;
+    final int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(),
+        n / 10_000));
+    return IntStream.range(0, chunks).parallel().mapToObj(c -> {
+      final SparseTotals t = new SparseTotals();
+      final int end = (int) ((long) n * (c + 1) / chunks);
+      for (int i = (int) ((long) n * c / chunks); i < end; i++) {
+        if (filter.test(i)) {
+          t.add(key.applyAsInt(i), cost[i]);
+        }
+      }
+      return t;
+    }).reduce((a, b) -> {
+      if (a.size < b.size) {
+        b.add(a);
+        return b;
+      }
+      a.add(b);
+      return a;
+    }).orElseGet(SparseTotals::new);
+  }
+
+  private static String money(long cents) {
+    return BigDecimal.valueOf(cents, 2).toPlainString();
+  }
+
+  /**
+   * Loads a snapshot and prints revenue by country
+   *
+   * @param args see class comment
+   * @throws SQLException cannot load
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final Properties overrides = QueryBenchmark.dbOverrides(opts);
+    try (final ConnectionPool pool = DbConfig.load(overrides).openPool(1);
+        final Connection connection = pool.getConnection()) {
+      long start = System.nanoTime();
+      final RevenueEngine engine = load(connection);
+      System.out.printf("Loaded %d subscriptions in %.1f ms%n", engine.rows(),
+          (System.nanoTime() - start) / 1e6);
+      start = System.nanoTime();
+      final Map<String, BigDecimal> revenue = engine.revenueByCountry();
+      final double ms = (System.nanoTime() - start) / 1e6;
+      for (Map.Entry<String, BigDecimal> e : revenue.entrySet()) {
+        System.out.printf("COUNTRY: %s, REVENUE: %s %n", e.getKey(), e.getValue());
+      }
+      System.out.printf("Revenue by country in %.1f ms%n", ms);
+    }
+  }
+}
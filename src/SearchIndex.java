@@ -0,0 +1,756 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-process full-text search over video titles and descriptions and show titles.
+ *
+ * <p>Text is split into lower-cased runs of letters and digits. Each term maps to a posting
+ * list of (document, weighted frequency), with title occurrences counting three times.
+ * Every query term matches itself and, at half weight, up to {@link #MAX_EXPANSIONS} of the
+ * most common longer terms it starts, so partial words find results as they are typed.
+ * Documents are ranked by BM25 over the matched terms; terms found in more than half the
+ * documents are skipped when the query also has a rarer one.
+ *
+ * <p>{@link #build} tokenizes in parallel chunks and concatenates the chunk postings, which
+ * keeps every list sorted by document. {@link #addVideo} and {@link #addShow} index new rows
+ * one at a time. {@link #save} writes the whole index as one segment file, with a hash of
+ * each document's text, and {@link #open} reads it back and indexes only the rows it lacks,
+ * so a restart skips the full reindex. A row edited or deleted while the segment was on
+ * disk no longer matches its hash, and the index is rebuilt instead. Rows other processes
+ * insert are indexed as the {@link ChangeLog} reports
+ * them; an edit or delete it reports drops the shared index, to be rebuilt on next use.
+ *
+ * <p>Search latency is kept in a histogram, see {@link #printLatency}.
+ *
+ * <p>Usage: {@code java SearchIndex [--profile mysql|embedded] [--url JDBC_URL]
+ * [--segment search.seg] [--query "episode 12"]}
+ */
+final class SearchIndex {
+
+  /**
+   * Longer terms a query term may expand to
+   */
+  static final int MAX_EXPANSIONS = 32;
+
+  /**
+   * Longer terms looked at when expanding, in term order; short prefixes of ids can match
+   * millions
+   */
+  static final int MAX_EXPANSION_SCAN = 4096;
+
+  private static final int TITLE_WEIGHT = 3;
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+  private static final int SEGMENT_MAGIC = 0x59534547;
+  private static final int SEGMENT_VERSION = 2;
+
+  /**
+   * Document kinds
+   */
+  enum Kind {
+    VIDEO, SHOW
+  }
+
+  /**
+   * One ranked result
+   */
+  static final class Hit {
+
+    final Kind kind;
+    final int id;
+    final String title;
+    final double score;
+
+    Hit(Kind kind, int id, String title, double score) {
+      this.kind = kind;
+      this.id = id;
+      this.title = title;
+      this.score = score;
+    }
+  }
+
+  /**
+   * Growable (document, frequency) list, sorted by document
+   */
+  private static final class Postings {
+
+    int[] docs = new int[4];
+    int[] freqs = new int[4];
+    int size;
+
+    void add(int doc, int freq) {
+      if (size > 0 && docs[size - 1] == doc) {
+        freqs[size - 1] += freq;
+        return;
+      }
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+        freqs = Arrays.copyOf(freqs, size * 2);
+      }
+      docs[size] = doc;
+      freqs[size++] = freq;
+    }
+
+    void addAll(Postings other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.docs[i], other.freqs[i]);
+      }
+    }
+  }
+
+  private static volatile SearchIndex shared;
+  private static boolean following;
+
+  /**
+   * Indexes videos and shows other processes insert; an update, delete or reset drops the
+   * shared index, since documents cannot be taken out
+   */
+  private static final ChangeLog.Listener CHANGES = new ChangeLog.Listener() {
+    @Override
+    public void changed(Connection connection, ChangeLog.Change change) throws SQLException {
+      final SearchIndex index = shared;
+      final boolean video = change.table.equals("Video");
+      if (index == null || !video && !change.table.equals("Shows")) {
+        return;
+      }
+      if (change.op != 'I') {
+        invalidate();
+        return;
+      }
+      try (final PreparedStatement stmt = connection.prepareStatement(video
+          ? "SELECT Title, Description FROM Video WHERE VideoID = ?"
+          : "SELECT Title FROM Shows WHERE ShowID = ?")) {
+        stmt.setInt(1, change.key1);
+        try (final ResultSet res = stmt.executeQuery()) {
+          if (!res.next()) {
+            return;
+          }
+          if (video) {
+            index.addVideo(change.key1, res.getString(1), res.getString(2));
+          } else {
+            index.addShow(change.key1, res.getString(1));
+          }
+        }
+      }
+    }
+
+    @Override
+    public void reset() {
+      invalidate();
+    }
+  };
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final TreeMap<String, Postings> terms = new TreeMap<>();
+  /**
+   * Per document: kind, row id, title, weighted length and {@link #textHash}
+   */
+  private byte[] kinds = new byte[1024];
+  private int[] ids = new int[1024];
+  private String[] titles = new String[1024];
+  private int[] lengths = new int[1024];
+  private int[] hashes = new int[1024];
+  private int docs;
+  private long totalLength;
+  /**
+   * IDs indexed, so a row seen again (such as this process's own insert coming back from the
+   * {@link ChangeLog}) is not indexed twice
+   */
+  private final CompressedBitmap videoIds = new CompressedBitmap();
+  private final CompressedBitmap showIds = new CompressedBitmap();
+  private final QueryMetrics.Histogram latency = new QueryMetrics.Histogram();
+
+  private SearchIndex() {
+  }
+
+  /**
+   * Returns the process-wide index, creating it on first use: from the segment file named by
+   * {@code -Dyatv.search.segment} if it exists (then brought up to date), else by a full
+   * build, which is then saved to that file if one is named
+   *
+   * @param connection database connection, used only on first use
+   * @return the index
+   * @throws SQLException SQL gone bad, or the segment cannot be read or written
+   */
+  static SearchIndex shared(Connection connection) throws SQLException {
+    SearchIndex index = shared;
+    if (index == null) {
+      synchronized (SearchIndex.class) {
+        index = shared;
+        if (index == null) {
+          final String segment = System.getProperty("yatv.search.segment");
+          index = segment == null ? build(connection) : open(connection, Paths.get(segment));
+          shared = index;
+          if (!following) {
+            ChangeLog.subscribe(CHANGES);
+            following = true;
+          }
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the process-wide index, or null if it has not been created
+   */
+  static SearchIndex sharedIfLoaded() {
+    return shared;
+  }
+
+  /**
+   * Drops the shared index, so that the next {@link #shared} call creates it again
+   */
+  static void invalidate() {
+    synchronized (SearchIndex.class) {
+      shared = null;
+    }
+  }
+
+  /**
+   * Indexes every video and show, tokenizing in parallel
+   *
+   * @param connection database connection
+   * @return the index
+   * @throws SQLException SQL gone bad
+   */
+  static SearchIndex build(Connection connection) throws SQLException {
+    final SearchIndex index = new SearchIndex();
+    final List<Object[]> rows = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, Title, Description FROM Video ORDER BY VideoID");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        rows.add(new Object[]{Kind.VIDEO, res.getInt(1), res.getString(2), res.getString(3)});
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT ShowID, Title FROM Shows ORDER BY ShowID");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        rows.add(new Object[]{Kind.SHOW, res.getInt(1), res.getString(2), null});
+      }
+    }
+
+    // Documents are numbered in row order, so chunk postings concatenate in order
+    final int n = rows.size();
+    final int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4,
+        n / 1_000));
+    final int[] lengths = new int[n];
+    final List<Map<String, Postings>> partials = IntStream.range(0, chunks).parallel()
+        .mapToObj(c -> {
+          final Map<String, Postings> local = new HashMap<>();
+          final int end = (int) ((long) n * (c + 1) / chunks);
+          for (int i = (int) ((long) n * c / chunks); i < end; i++) {
+            final int doc = i;
+            final Object[] row = rows.get(doc);
+            lengths[doc] = tokenize((String) row[2], (String) row[3], (term, freq) ->
+                local.computeIfAbsent(term, t -> new Postings()).add(doc, freq));
+          }
+          return local;
+        }).collect(Collectors.toList());
+
+    for (int doc = 0; doc < n; doc++) {
+      final Object[] row = rows.get(doc);
+      index.addDocument((Kind) row[0], (Integer) row[1], (String) row[2], lengths[doc],
+          textHash((String) row[2], (String) row[3]));
+    }
+    for (Map<String, Postings> partial : partials) {
+      for (Map.Entry<String, Postings> e : partial.entrySet()) {
+        index.terms.computeIfAbsent(e.getKey(), t -> new Postings()).addAll(e.getValue());
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Receives the terms of a document
+   */
+  private interface TermSink {
+
+    void accept(String term, int freq);
+  }
+
+  /**
+   * Splits a title and description into terms and passes each distinct term once with its
+   * weighted frequency
+   *
+   * @return weighted length
+   */
+  private static int tokenize(String title, String description, TermSink sink) {
+    final Map<String, Integer> freqs = new HashMap<>();
+    final int length = tokens(title, TITLE_WEIGHT, freqs) + tokens(description, 1, freqs);
+    for (Map.Entry<String, Integer> e : freqs.entrySet()) {
+      sink.accept(e.getKey(), e.getValue());
+    }
+    return length;
+  }
+
+  private static int tokens(String text, int weight, Map<String, Integer> freqs) {
+    int length = 0;
+    for (String term : terms(text)) {
+      freqs.merge(term, weight, Integer::sum);
+      length += weight;
+    }
+    return length;
+  }
+
+  /**
+   * @return lower-cased runs of letters and digits
+   */
+  static List<String> terms(String text) {
+    final List<String> out = new ArrayList<>();
+    if (text == null) {
+      return out;
+    }
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      final boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (word && start < 0) {
+        start = i;
+      } else if (!word && start >= 0) {
+        out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * @return hash of a document's text, to tell on {@link #open} whether the row changed
+   */
+  private static int textHash(String title, String description) {
+    return 31 * Objects.hashCode(title) + Objects.hashCode(description);
+  }
+
+  private void addDocument(Kind kind, int id, String title, int length, int hash) {
+    if (docs == ids.length) {
+      kinds = Arrays.copyOf(kinds, docs * 2);
+      ids = Arrays.copyOf(ids, docs * 2);
+      titles = Arrays.copyOf(titles, docs * 2);
+      lengths = Arrays.copyOf(lengths, docs * 2);
+      hashes = Arrays.copyOf(hashes, docs * 2);
+    }
+    kinds[docs] = (byte) kind.ordinal();
+    ids[docs] = id;
+    titles[docs] = title;
+    lengths[docs] = length;
+    hashes[docs] = hash;
+    docs++;
+    totalLength += length;
+    (kind == Kind.VIDEO ? videoIds : showIds).add(id);
+  }
+
+  private void index(Kind kind, int id, String title, String description) {
+    lock.writeLock().lock();
+    try {
+      if ((kind == Kind.VIDEO ? videoIds : showIds).contains(id)) {
+        return;
+      }
+      final int doc = docs;
+      final int length = tokenize(title, description, (term, freq) ->
+          terms.computeIfAbsent(term, t -> new Postings()).add(doc, freq));
+      addDocument(kind, id, title, length, textHash(title, description));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes a new video
+   */
+  void addVideo(int videoId, String title, String description) {
+    index(Kind.VIDEO, videoId, title, description);
+  }
+
+  /**
+   * Indexes a new show
+   */
+  void addShow(int showId, String title) {
+    index(Kind.SHOW, showId, title, null);
+  }
+
+  /**
+   * Ranked search
+   *
+   * @param query words; each also matches longer words it starts
+   * @param limit results wanted
+   * @return best results first
+   */
+  List<Hit> search(String query, int limit) {
+    final long start = System.nanoTime();
+    final List<Hit> hits = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      final int n = docs;
+      final double avgLength = n == 0 ? 1 : (double) totalLength / n;
+      // Score accumulators by document
+      final IntIntMap slots = new IntIntMap();
+      double[] scores = new double[64];
+      final Map<String, Double> matches = new HashMap<>();
+      for (String word : terms(query)) {
+        expand(word).forEach((term, weight) -> matches.merge(term, weight, Math::max));
+      }
+      // Terms in most documents add almost nothing to BM25 but cost a pass over most
+      // documents; skip them when the query has a rarer term
+      final boolean rare = matches.keySet().stream().anyMatch(t -> terms.get(t).size <= n / 2);
+      for (Map.Entry<String, Double> match : matches.entrySet()) {
+        final Postings p = terms.get(match.getKey());
+        if (rare && p.size > n / 2) {
+          continue;
+        }
+        final double idf = Math.log(1 + (n - p.size + 0.5) / (p.size + 0.5));
+        for (int i = 0; i < p.size; i++) {
+          final int doc = p.docs[i];
+          final double tf = p.freqs[i];
+          final double s = match.getValue() * idf * tf * (K1 + 1)
+              / (tf + K1 * (1 - B + B * lengths[doc] / avgLength));
+          int slot = slots.get(doc + 1) - 1;
+          if (slot < 0) {
+            slot = slots.size();
+            slots.put(doc + 1, slot + 1);
+            if (slot == scores.length) {
+              scores = Arrays.copyOf(scores, slot * 2);
+            }
+          }
+          scores[slot] += s;
+        }
+      }
+
+      // Keep the best `limit` in a min-heap
+      final double[] finalScores = scores;
+      final PriorityQueue<int[]> best = new PriorityQueue<>(Math.max(1, limit),
+          (a, b) -> Double.compare(finalScores[a[1]], finalScores[b[1]]));
+      slots.forEach((key, value) -> {
+        best.add(new int[]{key - 1, value - 1});
+        if (best.size() > limit) {
+          best.poll();
+        }
+      });
+      while (!best.isEmpty()) {
+        final int[] e = best.poll();
+        hits.add(new Hit(Kind.values()[kinds[e[0]]], ids[e[0]], titles[e[0]], scores[e[1]]));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Collections.reverse(hits);
+    latency.record(System.nanoTime() - start);
+    return hits;
+  }
+
+  /**
+   * @return the word itself at full weight if indexed, and the most common longer terms it
+   * starts (among the first {@link #MAX_EXPANSION_SCAN}) at half weight
+   */
+  private Map<String, Double> expand(String word) {
+    final Map<String, Double> out = new HashMap<>();
+    if (terms.containsKey(word)) {
+      out.put(word, 1.0);
+    }
+    // Min-heap on posting size of the best expansions so far
+    final PriorityQueue<Map.Entry<String, Postings>> best = new PriorityQueue<>(
+        MAX_EXPANSIONS + 1, (a, b) -> Integer.compare(a.getValue().size, b.getValue().size));
+    int scanned = 0;
+    for (Map.Entry<String, Postings> e : terms.subMap(word, false,
+        word + Character.MAX_VALUE, false).entrySet()) {
+      if (++scanned > MAX_EXPANSION_SCAN) {
+        break;
+      }
+      best.add(e);
+      if (best.size() > MAX_EXPANSIONS) {
+        best.poll();
+      }
+    }
+    for (Map.Entry<String, Postings> e : best) {
+      out.put(e.getKey(), 0.5);
+    }
+    return out;
+  }
+
+  /**
+   * Prints search results
+   *
+   * @param out   output
+   * @param query words
+   * @param limit results wanted
+   */
+  void print(PrintStream out, String query, int limit) {
+    for (Hit hit : search(query, limit)) {
+      out.printf("%s ID: %d, TITLE: %s, SCORE: %.2f %n", hit.kind, hit.id, hit.title,
+          hit.score);
+    }
+  }
+
+  /**
+   * Prints search latency percentiles since the index was created
+   */
+  void printLatency(PrintStream out) {
+    out.printf("Searches: %d, P50 %.1f us, P99 %.1f us, MAX %.1f us%n", latency.count(),
+        latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.max() / 1e3);
+  }
+
+  /**
+   * Writes the index to a segment file, replacing it atomically
+   *
+   * @param file segment file
+   * @throws IOException cannot write
+   */
+  void save(Path file) throws IOException {
+    final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    lock.readLock().lock();
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      out.writeInt(SEGMENT_MAGIC);
+      out.writeInt(SEGMENT_VERSION);
+      out.writeInt(docs);
+      for (int d = 0; d < docs; d++) {
+        out.writeByte(kinds[d]);
+        out.writeInt(ids[d]);
+        out.writeUTF(titles[d] == null ? "" : titles[d]);
+        out.writeInt(lengths[d]);
+        out.writeInt(hashes[d]);
+      }
+      out.writeInt(terms.size());
+      for (Map.Entry<String, Postings> e : terms.entrySet()) {
+        final Postings p = e.getValue();
+        out.writeUTF(e.getKey());
+        writeVarInt(out, p.size);
+        // Documents as gaps, which are small and so take one or two bytes each
+        for (int i = 0, prev = 0; i < p.size; prev = p.docs[i++]) {
+          writeVarInt(out, p.docs[i] - prev);
+          writeVarInt(out, p.freqs[i]);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a segment file
+   *
+   * @param file segment file
+   * @return the index as it was saved
+   * @throws IOException cannot read, or not a segment of this version
+   */
+  static SearchIndex read(Path file) throws IOException {
+    final SearchIndex index = new SearchIndex();
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+      if (in.readInt() != SEGMENT_MAGIC || in.readInt() != SEGMENT_VERSION) {
+        throw new IOException("Not a search segment of version " + SEGMENT_VERSION + ": "
+            + file);
+      }
+      final int docs = in.readInt();
+      for (int d = 0; d < docs; d++) {
+        final Kind kind = Kind.values()[in.readByte()];
+        index.addDocument(kind, in.readInt(), in.readUTF(), in.readInt(), in.readInt());
+      }
+      final int terms = in.readInt();
+      for (int t = 0; t < terms; t++) {
+        final String term = in.readUTF();
+        final Postings p = new Postings();
+        final int size = readVarInt(in);
+        p.docs = new int[Math.max(4, size)];
+        p.freqs = new int[Math.max(4, size)];
+        for (int i = 0, doc = 0; i < size; i++) {
+          doc += readVarInt(in);
+          p.docs[i] = doc;
+          p.freqs[i] = readVarInt(in);
+        }
+        p.size = size;
+        index.terms.put(term, p);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Opens the index from a segment file and indexes the rows added since it was written;
+   * builds and saves a new segment if the file is missing or unreadable, or rows in it were
+   * edited or deleted since
+   *
+   * @param connection database connection
+   * @param file       segment file
+   * @return the index
+   * @throws SQLException SQL gone bad, or the segment cannot be written
+   */
+  static SearchIndex open(Connection connection, Path file) throws SQLException {
+    SearchIndex index = null;
+    if (Files.exists(file)) {
+      try {
+        index = read(file);
+      } catch (IOException e) {
+        System.err.printf("Rebuilding search index: %s%n", e);
+      }
+    }
+    if (index != null && index.catchUp(connection) < 0) {
+      System.err.printf("Rebuilding search index: rows changed since %s was written%n", file);
+      index = null;
+    }
+    if (index == null) {
+      index = build(connection);
+    }
+    try {
+      index.save(file);
+    } catch (IOException e) {
+      throw new SQLException("Cannot write search segment " + file, e);
+    }
+    return index;
+  }
+
+  /**
+   * Compares an index read from a segment with the current rows. Rows it lacks are indexed,
+   * whatever their ID, so rows that committed out of ID order are not missed. Rows it holds
+   * must still be there with the same text; documents cannot be taken out, so if any is
+   * not, nothing is added and the caller rebuilds.
+   *
+   * @return rows indexed, or -1 if an indexed row was edited or deleted
+   */
+  int catchUp(Connection connection) throws SQLException {
+    final IntIntMap videoDocs = new IntIntMap(docs);
+    final IntIntMap showDocs = new IntIntMap(docs);
+    final int[] hashes;
+    lock.readLock().lock();
+    try {
+      hashes = this.hashes;
+      for (int d = 0; d < docs; d++) {
+        (kinds[d] == Kind.VIDEO.ordinal() ? videoDocs : showDocs).put(ids[d], d + 1);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    final List<Object[]> missing = new ArrayList<>();
+    int matched = 0;
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, Title, Description FROM Video ORDER BY VideoID");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        final int doc = videoDocs.get(res.getInt(1)) - 1;
+        if (doc < 0) {
+          missing.add(new Object[]{Kind.VIDEO, res.getInt(1), res.getString(2),
+              res.getString(3)});
+        } else if (hashes[doc] != textHash(res.getString(2), res.getString(3))) {
+          return -1;
+        } else {
+          matched++;
+        }
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT ShowID, Title FROM Shows ORDER BY ShowID");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        final int doc = showDocs.get(res.getInt(1)) - 1;
+        if (doc < 0) {
+          missing.add(new Object[]{Kind.SHOW, res.getInt(1), res.getString(2), null});
+        } else if (hashes[doc] != textHash(res.getString(2), null)) {
+          return -1;
+        } else {
+          matched++;
+        }
+      }
+    }
+    // Fewer matches than documents: some indexed row was deleted
+    if (matched < videoDocs.size() + showDocs.size()) {
+      return -1;
+    }
+    for (Object[] row : missing) {
+      index((Kind) row[0], (Integer) row[1], (String) row[2], (String) row[3]);
+    }
+    return missing.size();
+  }
+
+  /**
+   * @return documents indexed
+   */
+  int documents() {
+    lock.readLock().lock();
+    try {
+      return docs;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      final int b = in.read();
+      if (b < 0) {
+        throw new IOException("Truncated search segment");
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Builds or opens the index, runs a query and prints its latency
+   *
+   * @param args see class comment
+   * @throws Exception cannot load
+   */
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      final long start = System.nanoTime();
+      final SearchIndex index = opts.containsKey("segment")
+          ? open(connection, Paths.get(opts.get("segment"))) : build(connection);
+      System.out.printf("Indexed %d documents, %d terms in %.1f ms%n", index.documents(),
+          index.terms.size(), (System.nanoTime() - start) / 1e6);
+
+      final String query = opts.getOrDefault("query", "episode 12");
+      index.print(System.out, query, 10);
+      for (int i = 0; i < 1_000; i++) {
+        index.search(query, 10);
+      }
+      index.printLatency(System.out);
+    }
+  }
+}
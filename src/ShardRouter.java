@@ -0,0 +1,423 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Routes users' rows across N shard databases, each holding the full schema.
+ *
+ * <p>User, Subscription, SubscriptionArchive, MyListShow and UserVideoWatched rows live on
+ * their user's shard. The catalog tables (App, Platform, AppPlatform, Shows, Video, Seasons,
+ * Tag) and WatchCompaction are copied to every shard and written to all of them (see
+ * {@link #broadcast}), so per-shard joins need no remote data. VideoWatchDaily holds watches
+ * that no longer say who watched, so it lives on shard 0 only and is counted once.
+ *
+ * <p>Each shard hands out UserIDs interleaved with the others: shard i assigns only IDs
+ * with {@code (UserID - 1) % N == i}. A UserID therefore names its shard, and single-user
+ * operations need no directory lookup. What differs between placements is where a new user
+ * goes:
+ * <ul>
+ *   <li>{@code country} (the default): a country hashes to one shard, or is pinned with
+ *   {@code db.shard.countries.<i>=US,CA}. A country's reports then run on that one shard.</li>
+ *   <li>{@code user}: users are spread by a hash of their email, which also finds the shard
+ *   at login. Every per-country report has to scatter.</li>
+ * </ul>
+ *
+ * <p>{@link #scatter} runs a task on every shard in parallel, each on its own pooled
+ * connection, and returns the results in shard order for the caller to merge (see
+ * {@link ShardedQueries}).
+ *
+ * <p>Usage: {@code java ShardRouter [--profile mysql|embedded] [--url JDBC_URL] [--shards 4]
+ * [--shard-by country|user]} splits the configured database into the shards and compares
+ * sharded report answers and timings with the unsharded ones.
+ */
+final class ShardRouter implements AutoCloseable {
+
+  /**
+   * How new users are placed
+   */
+  enum Placement {
+    COUNTRY, USER
+  }
+
+  /**
+   * Work on one shard
+   */
+  interface ShardTask<T> {
+
+    T run(Connection connection, int shard) throws SQLException;
+  }
+
+  private final ConnectionPool[] shards;
+  private final Placement placement;
+  private final Map<String, Integer> pinned;
+  private final boolean mysql;
+  private final ExecutorService executor;
+  /**
+   * Striped by email, see {@link #registrationLock}
+   */
+  private final Object[] registrationLocks = new Object[64];
+
+  /**
+   * @param shards    one pool per shard, in shard order
+   * @param placement how new users are placed
+   * @param pinned    shard by country, for countries not placed by hash
+   * @param mysql     whether the shards are MySQL
+   */
+  ShardRouter(ConnectionPool[] shards, Placement placement, Map<String, Integer> pinned,
+      boolean mysql) {
+    if (shards.length == 0) {
+      throw new IllegalArgumentException("No shards");
+    }
+    this.shards = shards.clone();
+    this.placement = placement;
+    this.pinned = new HashMap<>(pinned);
+    this.mysql = mysql;
+    this.executor = Executors.newFixedThreadPool(shards.length, r -> {
+      final Thread t = new Thread(r, "shard-scatter");
+      t.setDaemon(true);
+      return t;
+    });
+    for (int i = 0; i < registrationLocks.length; i++) {
+      registrationLocks[i] = new Object();
+    }
+  }
+
+  int size() {
+    return shards.length;
+  }
+
+  Placement placement() {
+    return placement;
+  }
+
+  boolean isMySql() {
+    return mysql;
+  }
+
+  /**
+   * @param userId user
+   * @return the shard holding the user's rows
+   */
+  int shardOfUser(int userId) {
+    return Math.floorMod(userId - 1, shards.length);
+  }
+
+  /**
+   * @param country country, as stored in User.Country
+   * @return the shard a new user from the country goes to under country placement
+   */
+  int shardOfCountry(String country) {
+    final Integer shard = pinned.get(country);
+    return shard != null ? shard : Math.floorMod(country.hashCode(), shards.length);
+  }
+
+  /**
+   * @param email email, as stored in User.Email
+   * @return the shard a user with that email goes to under user placement
+   */
+  int shardOfEmail(String email) {
+    return Math.floorMod(email.toLowerCase(Locale.ROOT).hashCode(), shards.length);
+  }
+
+  /**
+   * @param email new user's email
+   * @return lock held while checking the shards for the email and inserting it, so two
+   * registrations of one email in this process cannot both pass the check
+   */
+  Object registrationLock(String email) {
+    return registrationLocks[Math.floorMod(email.toLowerCase(Locale.ROOT).hashCode(),
+        registrationLocks.length)];
+  }
+
+  /**
+   * @param country new user's country
+   * @param email   new user's email
+   * @return the shard to register the user on
+   */
+  int shardForNewUser(String country, String email) {
+    return placement == Placement.COUNTRY ? shardOfCountry(country) : shardOfEmail(email);
+  }
+
+  /**
+   * @param country country
+   * @return the shards holding the country's users: one under country placement, all under
+   * user placement
+   */
+  int[] shardsOfCountry(String country) {
+    return placement == Placement.COUNTRY ? new int[] {shardOfCountry(country)} : allShards();
+  }
+
+  /**
+   * Borrows a connection to one shard
+   *
+   * @param shard shard index
+   * @return connection; close it to return it to its pool
+   * @throws SQLException pool exhausted, closed, or cannot connect
+   */
+  Connection getConnection(int shard) throws SQLException {
+    return shards[shard].getConnection();
+  }
+
+  /**
+   * Borrows a connection to a user's shard
+   *
+   * @param userId user
+   * @return connection; close it to return it to its pool
+   * @throws SQLException pool exhausted, closed, or cannot connect
+   */
+  Connection forUser(int userId) throws SQLException {
+    return getConnection(shardOfUser(userId));
+  }
+
+  /**
+   * Runs an insert into User on a shard so that the UserID it is given is the shard's own.
+   * H2 keeps the step on the column; MySQL only has it per session, where it would also
+   * apply to catalog inserts, so it is set around the task and reset after.
+   *
+   * @param shard shard to register on
+   * @param task  the insert
+   * @return the task's result
+   * @throws SQLException SQL gone bad
+   */
+  <T> T registering(int shard, ShardTask<T> task) throws SQLException {
+    try (final Connection connection = getConnection(shard)) {
+      if (!mysql) {
+        return task.run(connection, shard);
+      }
+      try (final Statement stmt = connection.createStatement()) {
+        stmt.execute("SET SESSION auto_increment_increment = " + shards.length
+            + ", auto_increment_offset = " + (shard + 1));
+        try {
+          return task.run(connection, shard);
+        } finally {
+          stmt.execute("SET SESSION auto_increment_increment = 1, auto_increment_offset = 1");
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs a task on every shard in parallel
+   *
+   * @param task work for one shard
+   * @return results in shard order
+   * @throws SQLException a shard's task failed; the others are still waited for
+   */
+  <T> List<T> scatter(ShardTask<T> task) throws SQLException {
+    return scatter(allShards(), task);
+  }
+
+  /**
+   * Runs a task on some shards in parallel
+   *
+   * @param on   shard indexes
+   * @param task work for one shard
+   * @return results in the order of {@code on}
+   * @throws SQLException a shard's task failed; the others are still waited for
+   */
+  <T> List<T> scatter(int[] on, ShardTask<T> task) throws SQLException {
+    if (on.length == 1) {
+      try (final Connection connection = getConnection(on[0])) {
+        return Collections.singletonList(task.run(connection, on[0]));
+      }
+    }
+    final List<Future<T>> futures = new ArrayList<>();
+    for (int shard : on) {
+      futures.add(executor.submit(() -> {
+        try (final Connection connection = getConnection(shard)) {
+          return task.run(connection, shard);
+        }
+      }));
+    }
+    final List<T> results = new ArrayList<>();
+    SQLException failure = null;
+    for (Future<T> f : futures) {
+      try {
+        results.add(f.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for shards", e);
+      } catch (ExecutionException e) {
+        final SQLException cause = e.getCause() instanceof SQLException
+            ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        if (failure == null) {
+          failure = cause;
+        } else {
+          failure.setNextException(cause);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+
+  /**
+   * Applies a catalog write to every shard, one after another in shard order, so that
+   * AUTO_INCREMENT keys come out the same everywhere. The write runs in one transaction per
+   * shard, and the transactions are committed only once every shard's write has succeeded;
+   * if any fails, all are rolled back, so the shards never keep the row on some and not
+   * others. (Without two-phase commit a commit itself failing part way can still split
+   * them.)
+   *
+   * @param task the write, run once per shard; it must not commit
+   * @return results in shard order
+   * @throws SQLException a shard's write failed; no shard keeps it
+   */
+  <T> List<T> broadcast(ShardTask<T> task) throws SQLException {
+    final List<T> results = new ArrayList<>();
+    final Connection[] connections = new Connection[shards.length];
+    try {
+      for (int shard = 0; shard < shards.length; shard++) {
+        connections[shard] = getConnection(shard);
+        connections[shard].setAutoCommit(false);
+        results.add(task.run(connections[shard], shard));
+      }
+      for (Connection connection : connections) {
+        connection.commit();
+      }
+      return results;
+    } catch (SQLException | RuntimeException e) {
+      for (Connection connection : connections) {
+        if (connection != null) {
+          try {
+            connection.rollback();
+          } catch (SQLException rollback) {
+            e.addSuppressed(rollback);
+          }
+        }
+      }
+      throw e;
+    } finally {
+      // The pool rolls back anything left open and restores autocommit
+      for (Connection connection : connections) {
+        if (connection != null) {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  private int[] allShards() {
+    final int[] all = new int[shards.length];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return all;
+  }
+
+  /**
+   * Makes a shard hand out only its own UserIDs from the next one past its current rows. On
+   * MySQL the step only applies to inserts made through {@link #registering}.
+   *
+   * @param connection connection to the shard
+   * @param shard      shard index
+   * @param count      number of shards
+   * @param mysql      whether the shard is MySQL
+   * @throws SQLException SQL gone bad
+   */
+  static void interleave(Connection connection, int shard, int count, boolean mysql)
+      throws SQLException {
+    long max = 0;
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT MAX(UserID) FROM User");
+        final ResultSet res = stmt.executeQuery()) {
+      if (res.next()) {
+        max = res.getLong(1);
+      }
+    }
+    // Smallest ID after max with (ID - 1) % count == shard
+    long next = max + 1;
+    next += Math.floorMod(shard - (next - 1), count);
+    try (final Statement stmt = connection.createStatement()) {
+      stmt.execute(mysql ? "ALTER TABLE User AUTO_INCREMENT = " + next
+          : "ALTER TABLE User ALTER COLUMN UserID RESTART WITH " + next
+              + " SET INCREMENT BY " + count);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    for (ConnectionPool pool : shards) {
+      pool.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d shards by %s", shards.length,
+        placement.name().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Splits the configured database into shards and compares reports
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final java.util.Properties overrides = QueryBenchmark.dbOverrides(opts);
+    overrides.setProperty("db.shards", opts.getOrDefault("shards", "4"));
+    if (opts.containsKey("shard-by")) {
+      overrides.setProperty("db.shard.by", opts.get("shard-by"));
+    }
+    final DbConfig config = DbConfig.load(overrides);
+    try (final ConnectionPool pool = config.openPool(1);
+        final Connection source = pool.getConnection();
+        final ShardRouter router = config.openShards()) {
+      long start = System.nanoTime();
+      final long[] users = ShardedQueries.split(source, router);
+      System.out.printf("Split into %s in %.1f ms, users per shard: %s%n", router,
+          (System.nanoTime() - start) / 1e6, java.util.Arrays.toString(users));
+
+      final PrintStream discard = new PrintStream(java.io.OutputStream.nullOutputStream());
+      final List<String> countries = YatvQueries.countries(source);
+      final String country = countries.isEmpty() ? "" : countries.get(0);
+      for (int round = 0; round < 2; round++) {
+        final boolean print = round == 1;
+        final PrintStream out = print ? System.out : discard;
+        start = System.nanoTime();
+        if (print) {
+          System.out.printf("%nMostWatchedShowsByApp, one database:%n");
+        }
+        YatvQueries.mostWatchedShowsByApp(source, out);
+        final long single = System.nanoTime() - start;
+        if (print) {
+          System.out.printf("MostWatchedShowsByApp, scattered:%n");
+        }
+        start = System.nanoTime();
+        ShardedQueries.mostWatchedShowsByApp(router, out, null);
+        final long sharded = System.nanoTime() - start;
+        if (print) {
+          System.out.printf("One database %.1f ms, %d shards %.1f ms%n", single / 1e6,
+              router.size(), sharded / 1e6);
+          System.out.printf("%nAppRevenueByCountry for %s, one database:%n", country);
+        }
+        YatvQueries.appRevenueByCountry(source, out, country);
+        if (print) {
+          System.out.printf("AppRevenueByCountry for %s, sharded:%n", country);
+        }
+        ShardedQueries.appRevenueByCountry(router, out, country);
+      }
+    }
+  }
+}
@@ -0,0 +1,545 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The YaTV queries over a {@link ShardRouter}.
+ *
+ * <p>Single-user operations run the unsharded query on the user's shard. Catalog writes are
+ * broadcast to every shard. Reports scatter a partial aggregate to the shards holding the
+ * rows and merge it: each shard returns per-key sums with no LIMIT, because a key that is
+ * 11th on every shard can still be first overall. The sums are then added up by key and
+ * ranked. Per-country reports touch one shard under country placement and every shard under
+ * user placement.
+ */
+final class ShardedQueries {
+
+  private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+  /**
+   * Rows per INSERT batch when splitting
+   */
+  private static final int BATCH = 1000;
+
+  /**
+   * Tables every shard holds a full copy of, with their AUTO_INCREMENT key if any
+   */
+  private static final String[][] CATALOG = {{"App", "AppID"}, {"Platform", "PlatformID"},
+      {"AppPlatform", null}, {"Shows", "ShowID"}, {"Video", "VideoID"},
+      {"Seasons", "SeasonID"}, {"Tag", "TagID"}, {"WatchCompaction", null}};
+
+  private ShardedQueries() {
+  }
+
+  /**
+   * Binds a partial query's parameters on one shard
+   */
+  private interface Binder {
+
+    void bind(Connection connection, PreparedStatement stmt) throws SQLException;
+  }
+
+  /**
+   * A key's labels and its sum over the shards
+   */
+  private static final class Partial {
+
+    final int key;
+    final String[] labels;
+    BigDecimal sum;
+
+    Partial(int key, String[] labels, BigDecimal sum) {
+      this.key = key;
+      this.labels = labels;
+      this.sum = sum;
+    }
+  }
+
+  /**
+   * Runs a partial aggregate on some shards and adds the sums up by key
+   *
+   * @param sql query returning the key, any label columns, and the sum last
+   * @return partials by key
+   */
+  private static Map<Integer, Partial> gather(ShardRouter router, int[] on, String sql,
+      Binder binder) throws SQLException {
+    final Map<Integer, Partial> merged = new HashMap<>();
+    for (List<Partial> rows : router.scatter(on, (connection, shard) -> {
+      final List<Partial> partials = new ArrayList<>();
+      try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+        binder.bind(connection, stmt);
+        try (final ResultSet res = stmt.executeQuery()) {
+          final int columns = res.getMetaData().getColumnCount();
+          while (res.next()) {
+            final String[] labels = new String[columns - 2];
+            for (int c = 0; c < labels.length; c++) {
+              labels[c] = res.getString(c + 2);
+            }
+            final BigDecimal sum = res.getBigDecimal(columns);
+            partials.add(new Partial(res.getInt(1), labels,
+                sum == null ? BigDecimal.ZERO : sum));
+          }
+        }
+      }
+      return partials;
+    })) {
+      for (Partial p : rows) {
+        final Partial m = merged.putIfAbsent(p.key, p);
+        if (m != null) {
+          m.sum = m.sum.add(p.sum);
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return partials by descending sum, then ascending key
+   */
+  private static List<Partial> ranked(Map<Integer, Partial> partials) {
+    final List<Partial> ranked = new ArrayList<>(partials.values());
+    ranked.sort(Comparator.comparing((Partial p) -> p.sum).reversed()
+        .thenComparingInt(p -> p.key));
+    return ranked;
+  }
+
+  /**
+   * QUERY 1- Registers a user on the shard their country or email places them on. Under
+   * user placement the email names the shard, whose unique Email index rejects a repeat.
+   * Under country placement the same email could land on another shard, so every shard is
+   * asked first; registrations of one email in this process take turns for that.
+   *
+   * @throws SQLIntegrityConstraintViolationException the email is registered on some shard
+   * @see YatvQueries#registerUser
+   */
+  static void registerUser(ShardRouter router, PrintStream out, String fname, String lname,
+      String country, String email, String password) throws SQLException {
+    final ShardRouter.ShardTask<Void> register = (connection, shard) -> {
+      YatvQueries.registerUser(connection, out, fname, lname, country, email, password);
+      return null;
+    };
+    if (router.placement() != ShardRouter.Placement.COUNTRY) {
+      router.registering(router.shardForNewUser(country, email), register);
+      return;
+    }
+    synchronized (router.registrationLock(email)) {
+      if (shardHolding(router, email) >= 0) {
+        throw new SQLIntegrityConstraintViolationException(
+            "Duplicate entry '" + email + "' for key 'UserEmail'", "23000");
+      }
+      router.registering(router.shardForNewUser(country, email), register);
+    }
+  }
+
+  /**
+   * @return the first shard with a user of that email, or -1
+   */
+  private static int shardHolding(ShardRouter router, String email) throws SQLException {
+    return router.scatter((connection, s) -> {
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          "SELECT 1 FROM User WHERE Email = ?")) {
+        stmt.setString(1, email);
+        try (final ResultSet res = stmt.executeQuery()) {
+          return res.next();
+        }
+      }
+    }).indexOf(true);
+  }
+
+  /**
+   * QUERY 16- Logs in on the shard holding the email. Under country placement the email
+   * does not name a shard, so the shards are asked first; an unknown email still goes
+   * through the hashing path on its hash shard, taking as long as a known one.
+   *
+   * @see YatvQueries#authenticate
+   */
+  static Authenticator.Outcome authenticate(ShardRouter router, PrintStream out, String email,
+      String password, String source) throws SQLException {
+    int shard = router.shardOfEmail(email);
+    if (router.placement() == ShardRouter.Placement.COUNTRY) {
+      final int holding = shardHolding(router, email);
+      if (holding >= 0) {
+        shard = holding;
+      }
+    }
+    try (final Connection connection = router.getConnection(shard)) {
+      return YatvQueries.authenticate(connection, out, email, password, source);
+    }
+  }
+
+  /**
+   * QUERY 2- Subscribes a user to apps, on the user's shard
+   *
+   * @see YatvQueries#subscribeUser
+   */
+  static Integer subscribeUser(ShardRouter router, PrintStream out, int userId, int[] appIds,
+      int[] months) throws SQLException {
+    try (final Connection connection = router.forUser(userId)) {
+      return YatvQueries.subscribeUser(connection, out, userId, appIds, months);
+    }
+  }
+
+  /**
+   * QUERY 3- Adds a show to a user's list, on the user's shard
+   *
+   * @see YatvQueries#addToMyList
+   */
+  static Integer addToMyList(ShardRouter router, PrintStream out, int userId, int showId)
+      throws SQLException {
+    try (final Connection connection = router.forUser(userId)) {
+      return YatvQueries.addToMyList(connection, out, userId, showId);
+    }
+  }
+
+  /**
+   * QUERY 4- Updates an app's version on every shard, printing the result once
+   *
+   * @see YatvQueries#updatePlatformVersion
+   */
+  static void updatePlatformVersion(ShardRouter router, PrintStream out, int appId,
+      int platId, float verNum) throws SQLException {
+    router.broadcast((connection, shard) -> {
+      YatvQueries.updatePlatformVersion(connection, shard == 0 ? out : DISCARD, appId,
+          platId, verNum);
+      return null;
+    });
+  }
+
+  /**
+   * QUERY 19- Records a watch on the viewer's shard
+   *
+   * @see YatvQueries#recordWatch
+   */
+  static void recordWatch(ShardRouter router, PrintStream out, int userId, int videoId)
+      throws SQLException {
+    try (final Connection connection = router.forUser(userId)) {
+      YatvQueries.recordWatch(connection, out, userId, videoId);
+    }
+  }
+
+  /**
+   * QUERY 6- Top 10 most watched shows: watch counts per show from every shard, summed
+   *
+   * @param router shards
+   * @param out    output
+   * @param since  start of the window, or null for all history
+   * @throws SQLException SQL gone bad
+   * @see YatvQueries#mostWatchedShowsByApp
+   */
+  static void mostWatchedShowsByApp(ShardRouter router, PrintStream out, LocalDateTime since)
+      throws SQLException {
+    final String sql = "SELECT sh.ShowID, sh.Title, MIN(a.Name), SUM(uw.Watches)"
+        + " FROM " + WatchHistory.WATCH_COUNTS + " uw JOIN Video v ON v.VideoID = uw.VideoID"
+        + " JOIN Seasons se ON se.VideoID = v.VideoID"
+        + " JOIN Shows sh ON sh.ShowID = se.ShowID"
+        + " JOIN App a ON a.AppID = v.AppID"
+        + " GROUP BY sh.ShowID, sh.Title";
+    final List<Partial> ranked = ranked(gather(router, allShards(router), sql,
+        (connection, stmt) -> WatchHistory.bindWindow(stmt, 1, since)));
+    for (Partial p : ranked.subList(0, Math.min(10, ranked.size()))) {
+      out.printf("WATCH COUNT: %s SHOW: %s APP: %s %n", p.sum.toPlainString(), p.labels[0],
+          p.labels[1]);
+    }
+  }
+
+  /**
+   * Revenue per app from a country's users, summed over the shards holding them
+   */
+  private static Map<Integer, Partial> revenueByApp(ShardRouter router, String country)
+      throws SQLException {
+    return gather(router, router.shardsOfCountry(country),
+        "SELECT a.AppID, a.Name, SUM(s.Cost)"
+            + " FROM Subscription s JOIN User u ON s.UserID = u.UserID"
+            + " JOIN App a ON a.AppID = s.AppID"
+            + " WHERE u.Country = ?"
+            + " GROUP BY a.AppID, a.Name", (connection, stmt) -> stmt.setString(1, country));
+  }
+
+  /**
+   * QUERY 9- Ranked revenue by app in a country
+   *
+   * @see YatvQueries#appRevenueByCountry
+   */
+  static void appRevenueByCountry(ShardRouter router, PrintStream out, String country)
+      throws SQLException {
+    for (Partial p : ranked(revenueByApp(router, country))) {
+      out.printf("COUNTRY: %s, APP: %s, REVENUE: %s %n", country, p.labels[0],
+          p.sum.toPlainString());
+    }
+  }
+
+  /**
+   * REPORT QUERY 1 (QUERY 11)- The customer with the highest revenue in a country. A user's
+   * subscriptions are all on one shard, so each shard's best customer is exact and the
+   * overall best is the best of those.
+   *
+   * @see YatvQueries#highestCustomer
+   */
+  static void highestCustomer(ShardRouter router, PrintStream out, String country)
+      throws SQLException {
+    final List<Partial> ranked = ranked(gather(router, router.shardsOfCountry(country),
+        "SELECT u.UserID, u.FirstName, u.LastName, SUM(s.Cost)"
+            + " FROM User u JOIN Subscription s ON u.UserID = s.UserID"
+            + " WHERE u.Country = ?"
+            + " GROUP BY u.UserID, u.FirstName, u.LastName"
+            + " ORDER BY 4 DESC, 1 LIMIT 1", (connection, stmt) -> stmt.setString(1, country)));
+    if (!ranked.isEmpty()) {
+      final Partial p = ranked.get(0);
+      out.printf("UserID: %d %nFirstName: %s %nLastName: %s %nRevenue: %s%n", p.key,
+          p.labels[0], p.labels[1], p.sum.setScale(2, RoundingMode.HALF_UP).toPlainString());
+    }
+  }
+
+  /**
+   * REPORT QUERY 2 (QUERY 12)- The app with the lowest revenue in a country
+   *
+   * @see YatvQueries#lowestApp
+   */
+  static void lowestApp(ShardRouter router, PrintStream out, String country)
+      throws SQLException {
+    final List<Partial> ranked = ranked(revenueByApp(router, country));
+    if (!ranked.isEmpty()) {
+      final Partial p = ranked.get(ranked.size() - 1);
+      out.printf("App ID: %s %nApp Name: %s %nRevenue: %s ", p.key, p.labels[0],
+          p.sum.setScale(2, RoundingMode.HALF_UP).toPlainString());
+    }
+  }
+
+  /**
+   * REPORT QUERY 3 (QUERY 13)- Top 3 most watched videos of a country's most profitable app.
+   * The app comes from the country's shards; its videos' watches are counted on every shard,
+   * as the unsharded query counts every user's watches.
+   *
+   * @see YatvQueries#mostProfitableVideos
+   */
+  static void mostProfitableVideos(ShardRouter router, PrintStream out, String country,
+      LocalDateTime since) throws SQLException {
+    final List<Partial> apps = ranked(revenueByApp(router, country));
+    if (apps.isEmpty()) {
+      return;
+    }
+    final Partial app = apps.get(0);
+    final List<Partial> videos = new ArrayList<>(gather(router, allShards(router),
+        "SELECT v.VideoID, v.Title, SUM(uw.Watches)"
+            + " FROM Video v JOIN " + WatchHistory.WATCH_COUNTS + " uw"
+            + " ON v.VideoID = uw.VideoID"
+            + " WHERE v.AppID = ?"
+            + " GROUP BY v.VideoID, v.Title", (connection, stmt) -> {
+          stmt.setInt(WatchHistory.bindWindow(stmt, 1, since), app.key);
+        }).values());
+    videos.sort(Comparator.comparing((Partial p) -> p.sum).reversed()
+        .thenComparing(p -> p.labels[0]));
+    for (Partial p : videos.subList(0, Math.min(3, videos.size()))) {
+      out.printf("APP: %s, VIDEO: %s, WATCH COUNT: %d %n", app.labels[0], p.labels[0],
+          p.sum.intValue());
+    }
+  }
+
+  /**
+   * REPORT QUERY 5 (QUERY 15)- Ranked revenue by app on mobile platforms in a country
+   *
+   * @see YatvQueries#mobileAppsRevenueRanked
+   */
+  static void mobileAppsRevenueRanked(ShardRouter router, PrintStream out, String country)
+      throws SQLException {
+    final List<Partial> apps = new ArrayList<>(gather(router, router.shardsOfCountry(country),
+        "SELECT a.AppID, a.Name, SUM(s.Cost)"
+            + " FROM Platform p JOIN AppPlatform ap ON p.PlatformID = ap.PlatformID"
+            + " JOIN App a ON a.AppID = ap.AppID"
+            + " JOIN Subscription s ON s.AppID = a.AppID JOIN User u ON s.UserID = u.UserID"
+            + " WHERE u.Country = ? AND p.Mobile = 1"
+            + " GROUP BY a.AppID, a.Name", (connection, stmt) -> stmt.setString(1, country))
+        .values());
+    for (Partial p : apps) {
+      p.sum = p.sum.setScale(0, RoundingMode.HALF_UP);
+    }
+    apps.sort(Comparator.comparing((Partial p) -> p.sum).reversed()
+        .thenComparing(p -> p.labels[0]));
+    for (Partial p : apps) {
+      out.printf("APP: %s, REVENUE: %d %n", p.labels[0], p.sum.intValue());
+    }
+  }
+
+  private static int[] allShards(ShardRouter router) {
+    final int[] all = new int[router.size()];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return all;
+  }
+
+  /**
+   * Copies an unsharded database into empty shards: catalog tables to every shard,
+   * VideoWatchDaily to shard 0, and users with their rows to the shard their placement picks.
+   * Users get new UserIDs that name their shard; SubscriptionIDs and WatchIDs are assigned
+   * by the shards.
+   *
+   * @param source unsharded database
+   * @param router empty shards
+   * @return users copied to each shard
+   * @throws SQLException SQL gone bad, or a shard already has users
+   */
+  static long[] split(Connection source, ShardRouter router) throws SQLException {
+    final int n = router.size();
+    final Connection[] shards = new Connection[n];
+    try {
+      for (int i = 0; i < n; i++) {
+        shards[i] = router.getConnection(i);
+        try (final Statement stmt = shards[i].createStatement();
+            final ResultSet res = stmt.executeQuery("SELECT COUNT(*) FROM User")) {
+          if (res.next() && res.getLong(1) > 0) {
+            throw new SQLException("Shard " + i + " already has users");
+          }
+        }
+      }
+      for (String[] table : CATALOG) {
+        copy(source, table[0], null, shards, (columns, row) -> -1);
+      }
+      copy(source, "VideoWatchDaily", null, shards, (columns, row) -> 0);
+
+      final long[] users = new long[n];
+      final IntIntMap userIds = new IntIntMap();
+      copy(source, "User", null, shards, (columns, row) -> {
+        final int shard = router.shardForNewUser(String.valueOf(row[columns.get("COUNTRY")]),
+            String.valueOf(row[columns.get("EMAIL")]));
+        final int id = (int) (users[shard]++ * n + shard + 1);
+        userIds.put(((Number) row[columns.get("USERID")]).intValue(), id);
+        row[columns.get("USERID")] = id;
+        return shard;
+      });
+      final RowRoute byUser = (columns, row) -> {
+        final int old = ((Number) row[columns.get("USERID")]).intValue();
+        if (!userIds.containsKey(old)) {
+          return -2;
+        }
+        final int id = userIds.get(old);
+        row[columns.get("USERID")] = id;
+        return router.shardOfUser(id);
+      };
+      copy(source, "Subscription", "SubscriptionID", shards, byUser);
+      copy(source, "SubscriptionArchive", null, shards, byUser);
+      copy(source, "MyListShow", null, shards, byUser);
+      copy(source, "UserVideoWatched", "WatchID", shards, byUser);
+
+      for (int i = 0; i < n; i++) {
+        ShardRouter.interleave(shards[i], i, n, router.isMySql());
+        if (!router.isMySql()) {
+          // H2 does not move an identity past explicitly inserted keys
+          for (String[] table : CATALOG) {
+            if (table[1] != null) {
+              restartIdentity(shards[i], table[0], table[1]);
+            }
+          }
+        }
+      }
+      return users;
+    } finally {
+      for (Connection c : shards) {
+        if (c != null) {
+          c.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Picks the shard a copied row goes to, possibly rewriting it
+   */
+  private interface RowRoute {
+
+    /**
+     * @param columns column index by upper-case name
+     * @param row     values, rewritable
+     * @return shard index, -1 for every shard, -2 to drop the row
+     */
+    int route(Map<String, Integer> columns, Object[] row);
+  }
+
+  private static void copy(Connection source, String table, String omit, Connection[] shards,
+      RowRoute route) throws SQLException {
+    try (final Statement select = source.createStatement();
+        final ResultSet res = select.executeQuery("SELECT * FROM " + table)) {
+      final ResultSetMetaData meta = res.getMetaData();
+      final Map<String, Integer> columns = new HashMap<>();
+      final List<Integer> copied = new ArrayList<>();
+      final List<String> names = new ArrayList<>();
+      for (int c = 1; c <= meta.getColumnCount(); c++) {
+        final String name = meta.getColumnLabel(c);
+        columns.put(name.toUpperCase(Locale.ROOT), c - 1);
+        if (!name.equalsIgnoreCase(omit)) {
+          copied.add(c - 1);
+          names.add(name);
+        }
+      }
+      final String insert = "INSERT INTO " + table + " (" + String.join(", ", names)
+          + ") VALUES (" + String.join(", ", Collections.nCopies(names.size(), "?")) + ")";
+      final PreparedStatement[] inserts = new PreparedStatement[shards.length];
+      final int[] pending = new int[shards.length];
+      try {
+        for (int i = 0; i < shards.length; i++) {
+          inserts[i] = shards[i].prepareStatement(insert);
+        }
+        final Object[] row = new Object[meta.getColumnCount()];
+        while (res.next()) {
+          for (int c = 0; c < row.length; c++) {
+            row[c] = res.getObject(c + 1);
+          }
+          final int to = route.route(columns, row);
+          for (int i = 0; i < shards.length; i++) {
+            if (to == i || to == -1) {
+              for (int c = 0; c < copied.size(); c++) {
+                inserts[i].setObject(c + 1, row[copied.get(c)]);
+              }
+              inserts[i].addBatch();
+              if (++pending[i] == BATCH) {
+                inserts[i].executeBatch();
+                pending[i] = 0;
+              }
+            }
+          }
+        }
+        for (int i = 0; i < shards.length; i++) {
+          if (pending[i] > 0) {
+            inserts[i].executeBatch();
+          }
+        }
+      } finally {
+        for (PreparedStatement stmt : inserts) {
+          if (stmt != null) {
+            stmt.close();
+          }
+        }
+      }
+    }
+  }
+
+  private static void restartIdentity(Connection connection, String table, String column)
+      throws SQLException {
+    try (final Statement stmt = connection.createStatement()) {
+      long next;
+      try (final ResultSet res = stmt.executeQuery(
+          "SELECT COALESCE(MAX(" + column + "), 0) + 1 FROM " + table)) {
+        res.next();
+        next = res.getLong(1);
+      }
+      stmt.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH "
+          + next);
+    }
+  }
+}
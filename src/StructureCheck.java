@@ -0,0 +1,350 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Self-check of the in-memory structures the indexes are built on: {@link CompressedBitmap}
+ * against {@link BitSet}, {@link IntIntMap} and {@link IntObjectMap} against {@link HashMap},
+ * {@link HyperLogLog} against exact distinct counts and {@link CountMinSketch} against exact
+ * per-key counts, all over random inputs.
+ *
+ * <p>The inputs are aimed at the edges: bitmap values either side of each 65536 chunk
+ * boundary, chunks filled past 4096 values (array to bitset) and emptied back below it
+ * (bitset to array), map keys crowded into long probe runs, and HyperLogLog cardinalities
+ * either side of the switch from linear counting to the raw estimate.
+ *
+ * <p>Prints one line per structure and exits with status 1 if any check failed.
+ *
+ * <p>Usage: {@code java StructureCheck [--seed N] [--rounds 20]}
+ */
+public class StructureCheck {
+
+  private final SplittableRandom rnd;
+  private final List<String> failures = new ArrayList<>();
+  private long checks;
+  private long failed;
+
+  private StructureCheck(long seed) {
+    this.rnd = new SplittableRandom(seed);
+  }
+
+  private void check(boolean ok, String format, Object... args) {
+    checks++;
+    if (!ok && failed++ < 20) {
+      failures.add(String.format(format, args));
+    }
+  }
+
+  /**
+   * Values spread over four chunks, bunched around the chunk boundaries, with {@code dense}
+   * of them packed into one chunk so it goes past the array limit
+   */
+  private int[] bitmapValues(int spread, int dense) {
+    final int[] values = new int[spread + dense];
+    int n = 0;
+    for (int i = 0; i < spread; i++) {
+      final int boundary = 65536 * (1 + rnd.nextInt(3));
+      values[n++] = rnd.nextBoolean() ? rnd.nextInt(4 * 65536)
+          : boundary - 64 + rnd.nextInt(128);
+    }
+    final int chunk = 65536 * rnd.nextInt(4);
+    for (int i = 0; i < dense; i++) {
+      values[n++] = chunk + rnd.nextInt(65536);
+    }
+    return values;
+  }
+
+  private static CompressedBitmap bitmap(int[] values, BitSet expected) {
+    final CompressedBitmap bitmap = new CompressedBitmap();
+    for (int v : values) {
+      bitmap.add(v);
+      expected.set(v);
+    }
+    return bitmap;
+  }
+
+  private void sameSet(String what, CompressedBitmap actual, BitSet expected) {
+    check(actual.cardinality() == expected.cardinality(), "%s: cardinality %d, expected %d",
+        what, actual.cardinality(), expected.cardinality());
+    check(actual.isEmpty() == expected.isEmpty(), "%s: isEmpty %b", what, actual.isEmpty());
+    // forEach must give exactly the set bits, ascending
+    final int[] next = {expected.nextSetBit(0)};
+    actual.forEach(v -> {
+      check(v == next[0], "%s: forEach gave %d, expected %d", what, v, next[0]);
+      next[0] = expected.nextSetBit(v + 1);
+    });
+    check(next[0] == -1, "%s: forEach stopped before %d", what, next[0]);
+    int wrong = -1;
+    for (int v = 0; v < 4 * 65536 && wrong < 0; v++) {
+      if (actual.contains(v) != expected.get(v)) {
+        wrong = v;
+      }
+    }
+    check(wrong < 0, "%s: contains(%d) is wrong", what, wrong);
+  }
+
+  private void compressedBitmap(int rounds) {
+    for (int round = 0; round < rounds; round++) {
+      // Every other round packs one chunk past 4096 values, so it turns into a bitset
+      final BitSet a = new BitSet();
+      final BitSet b = new BitSet();
+      final CompressedBitmap x = bitmap(bitmapValues(3000, round % 2 == 0 ? 6000 : 500), a);
+      final CompressedBitmap y = bitmap(bitmapValues(3000, round % 3 == 0 ? 20000 : 200), b);
+      sameSet("add", x, a);
+
+      final BitSet and = (BitSet) a.clone();
+      and.and(b);
+      sameSet("and", x.and(y), and);
+      final BitSet or = (BitSet) a.clone();
+      or.or(b);
+      sameSet("or", x.or(y), or);
+      final BitSet andNot = (BitSet) a.clone();
+      andNot.andNot(b);
+      final CompressedBitmap difference = x.andNot(y);
+      sameSet("andNot", difference, andNot);
+      // The operations must leave their inputs alone
+      sameSet("inputs after operations", x, a);
+
+      // Results keep accepting adds, whichever form their chunks came out in
+      for (int v : bitmapValues(2000, 5000)) {
+        difference.add(v);
+        andNot.set(v);
+      }
+      sameSet("add after andNot", difference, andNot);
+
+      final int from = rnd.nextInt(4 * 65536);
+      final int[] next = {a.nextSetBit(from)};
+      final int[] taken = {0};
+      x.forEachFrom(from, v -> {
+        check(v == next[0], "forEachFrom(%d) gave %d, expected %d", from, v, next[0]);
+        next[0] = a.nextSetBit(v + 1);
+        return ++taken[0] < 100;
+      });
+      check(taken[0] == Math.min(100, a.get(from, 4 * 65536).cardinality()),
+          "forEachFrom(%d) passed %d values", from, taken[0]);
+
+      final int[] weights = new int[3 * 65536];
+      long weighted = 0;
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = rnd.nextInt(100);
+        weighted += a.get(i) ? weights[i] : 0;
+      }
+      check(x.weightedSum(weights) == weighted, "weightedSum %d, expected %d",
+          x.weightedSum(weights), weighted);
+    }
+
+    // A chunk at exactly the array limit, one past it, and back down to it
+    final CompressedBitmap edge = new CompressedBitmap();
+    final BitSet expected = new BitSet();
+    for (int i = 0; i < 4096; i++) {
+      edge.add(65536 + 2 * i);
+      expected.set(65536 + 2 * i);
+    }
+    sameSet("4096 values in a chunk", edge, expected);
+    edge.add(65535);
+    edge.add(65537);
+    expected.set(65535);
+    expected.set(65537);
+    sameSet("4097 values in a chunk", edge, expected);
+    final CompressedBitmap one = new CompressedBitmap();
+    one.add(65537);
+    final BitSet oneBit = new BitSet();
+    oneBit.set(65537);
+    expected.andNot(oneBit);
+    sameSet("back to 4096 values", edge.andNot(one), expected);
+
+    check(!edge.contains(-1), "contains(-1)");
+    boolean rejected = false;
+    try {
+      edge.add(-1);
+    } catch (IllegalArgumentException e) {
+      rejected = true;
+    }
+    check(rejected, "add(-1) accepted");
+  }
+
+  private void intMaps(int rounds) {
+    for (int round = 0; round < rounds; round++) {
+      final IntIntMap counts = new IntIntMap(rnd.nextInt(64));
+      final IntObjectMap<String> names = new IntObjectMap<>();
+      final Map<Integer, Integer> expectedCounts = new HashMap<>();
+      final Map<Integer, String> expectedNames = new HashMap<>();
+      // A narrow key range makes for long probe runs and many repeated keys
+      final int range = round % 2 == 0 ? 1000 : 1 << 20;
+      for (int i = 0; i < 20_000; i++) {
+        final int key = rnd.nextInt(10) == 0
+            ? (rnd.nextBoolean() ? Integer.MAX_VALUE : Integer.MIN_VALUE + 1)
+            : rnd.nextInt(range) - range / 2;
+        final int value = rnd.nextInt();
+        switch (rnd.nextInt(4)) {
+          case 0:
+            counts.put(key, value);
+            expectedCounts.put(key, value);
+            names.put(key, "v" + value);
+            expectedNames.put(key, "v" + value);
+            break;
+          case 1:
+            final int sum = expectedCounts.merge(key, value, Integer::sum);
+            check(counts.add(key, value) == sum, "IntIntMap.add(%d)", key);
+            final String name = expectedNames.computeIfAbsent(key, k -> "new " + k);
+            check(name.equals(names.computeIfAbsent(key, k -> "new " + k)),
+                "IntObjectMap.computeIfAbsent(%d)", key);
+            break;
+          default:
+            check(counts.get(key) == expectedCounts.getOrDefault(key, 0),
+                "IntIntMap.get(%d)", key);
+            check(counts.containsKey(key) == expectedCounts.containsKey(key),
+                "IntIntMap.containsKey(%d)", key);
+            check(Objects.equals(names.get(key), expectedNames.get(key)),
+                "IntObjectMap.get(%d)", key);
+        }
+      }
+      check(counts.size() == expectedCounts.size(), "IntIntMap.size %d, expected %d",
+          counts.size(), expectedCounts.size());
+      check(names.size() == expectedNames.size(), "IntObjectMap.size %d, expected %d",
+          names.size(), expectedNames.size());
+      final Map<Integer, Integer> seenCounts = new HashMap<>();
+      counts.forEach(seenCounts::put);
+      check(seenCounts.equals(expectedCounts), "IntIntMap.forEach entries differ");
+      final Map<Integer, String> seenNames = new HashMap<>();
+      names.forEach(seenNames::put);
+      check(seenNames.equals(expectedNames), "IntObjectMap.forEach entries differ");
+      final Set<Integer> keys = new HashSet<>();
+      for (int key : names.keys()) {
+        keys.add(key);
+      }
+      check(keys.equals(expectedNames.keySet()), "IntObjectMap.keys differ");
+    }
+    boolean rejected = false;
+    try {
+      new IntIntMap().put(IntIntMap.FREE, 1);
+    } catch (IllegalArgumentException e) {
+      rejected = true;
+    }
+    check(rejected, "IntIntMap accepted the reserved key");
+  }
+
+  private void hyperLogLog() {
+    for (int p : new int[]{4, 10, 14}) {
+      final int m = 1 << p;
+      // Either side of the switch from linear counting (2.5 m) and well past it
+      final int[] sizes = {0, 1, 2, 10, m / 2, 2 * m, 5 * m / 2 - 1, 5 * m / 2 + 1, 3 * m,
+          10 * m, 100_000};
+      for (int size : sizes) {
+        final HyperLogLog counter = new HyperLogLog(p);
+        final Set<Integer> distinct = new HashSet<>();
+        while (distinct.size() < size) {
+          final int value = rnd.nextInt();
+          distinct.add(value);
+          counter.add(HyperLogLog.hash(value));
+          // Repeats must not count
+          counter.add(HyperLogLog.hash(value));
+        }
+        final long estimate = counter.estimate();
+        // Five standard errors, plus one for rounding at tiny sizes
+        final double allowed = 5 * counter.relativeError() * size + 1;
+        check(Math.abs(estimate - size) <= allowed,
+            "HyperLogLog p=%d: %d distinct estimated as %d (allowed +-%.0f)", p, size, estimate,
+            allowed);
+
+        // Merging the halves must give the registers of the whole
+        final HyperLogLog left = new HyperLogLog(p);
+        final HyperLogLog right = new HyperLogLog(p);
+        int i = 0;
+        for (int value : distinct) {
+          (i++ % 2 == 0 ? left : right).add(HyperLogLog.hash(value));
+        }
+        left.merge(right);
+        check(left.estimate() == estimate, "HyperLogLog p=%d: merged %d, whole %d", p,
+            left.estimate(), estimate);
+      }
+    }
+    boolean rejected = false;
+    try {
+      new HyperLogLog(10).merge(new HyperLogLog(11));
+    } catch (IllegalArgumentException e) {
+      rejected = true;
+    }
+    check(rejected, "HyperLogLog merged different precisions");
+  }
+
+  private void countMinSketch(int rounds) {
+    for (int round = 0; round < rounds; round++) {
+      final CountMinSketch sketch = new CountMinSketch(256, 4);
+      final CountMinSketch half = new CountMinSketch(256, 4);
+      final CountMinSketch otherHalf = new CountMinSketch(256, 4);
+      final Map<Integer, Long> exact = new HashMap<>();
+      long total = 0;
+      for (int i = 0; i < 50_000; i++) {
+        // Skewed: a few heavy keys among many light ones
+        final int key = rnd.nextInt(4) == 0 ? rnd.nextInt(20) : rnd.nextInt(5000);
+        final long count = 1 + rnd.nextInt(3);
+        sketch.add(key, count);
+        (i % 2 == 0 ? half : otherHalf).add(key, count);
+        exact.merge(key, count, Long::sum);
+        total += count;
+      }
+      half.merge(otherHalf);
+      check(sketch.total() == total, "CountMinSketch.total %d, expected %d", sketch.total(),
+          total);
+      int over = 0;
+      for (Map.Entry<Integer, Long> e : exact.entrySet()) {
+        final long estimate = sketch.estimate(e.getKey());
+        check(estimate >= e.getValue(), "CountMinSketch undercounts %d: %d < %d", e.getKey(),
+            estimate, e.getValue());
+        check(half.estimate(e.getKey()) == estimate, "CountMinSketch merge differs at %d",
+            e.getKey());
+        if (estimate - e.getValue() > sketch.errorBound()) {
+          over++;
+        }
+      }
+      // The bound may fail for 1 - confidence of the keys; allow twice that
+      final double overRate = (double) over / exact.size();
+      check(overRate <= 2 * (1 - sketch.confidence()),
+          "CountMinSketch: %.2f%% of keys past the error bound %d", 100 * overRate,
+          sketch.errorBound());
+    }
+  }
+
+  private void run(String structures, Runnable checks) {
+    final long checksBefore = this.checks;
+    final long failedBefore = failed;
+    checks.run();
+    System.out.printf("%-24s %10d checks, %s%n", structures, this.checks - checksBefore,
+        failed == failedBefore ? "OK" : (failed - failedBefore) + " FAILED");
+  }
+
+  /**
+   * Runs every check
+   *
+   * @param args see class comment
+   */
+  public static void main(String[] args) {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final long seed = Long.parseLong(opts.getOrDefault("seed", "1"));
+    final int rounds = Integer.parseInt(opts.getOrDefault("rounds", "20"));
+    final StructureCheck check = new StructureCheck(seed);
+
+    check.run("CompressedBitmap", () -> check.compressedBitmap(rounds));
+    check.run("IntIntMap, IntObjectMap", () -> check.intMaps(rounds));
+    check.run("HyperLogLog", check::hyperLogLog);
+    check.run("CountMinSketch", () -> check.countMinSketch(rounds));
+
+    // The first few failures, enough to start from
+    for (String failure : check.failures) {
+      System.out.println("  " + failure);
+    }
+    if (check.failed > 0) {
+      System.exit(1);
+    }
+  }
+}
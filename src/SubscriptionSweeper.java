@@ -0,0 +1,289 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews and archives subscriptions around their ExpDate.
+ *
+ * <p>A sweep walks Subscription in (ExpDate, SubscriptionID) order on the ExpDate index, one
+ * bounded chunk at a time. In each chunk, AutoRenew subscriptions expiring within the
+ * renew-ahead window are extended by a month and charged that month. Other subscriptions
+ * that expired more than the grace period ago are moved to SubscriptionArchive. Each chunk
+ * is its own short transaction, and the DML re-checks the ExpDate it read, so rows changed
+ * concurrently are left for the next sweep rather than locked while the sweep runs. A
+ * renewal can move a row further along the cursor while still inside the window (with a
+ * renew-ahead of 28 days or more), so rows already renewed are skipped for the rest of the
+ * sweep: each subscription is renewed at most once per sweep.
+ *
+ * <p>Each sweep reports rows/s, the time spent in DML (which includes any lock waits) and
+ * the InnoDB row lock waits over the sweep.
+ *
+ * <p>Usage: {@code java SubscriptionSweeper [--profile mysql|embedded] [--url JDBC_URL]
+ * [--chunk 1000] [--renew-ahead-days 3] [--grace-days 0] [--pause-ms 0]
+ * [--every-seconds 0]} (0 sweeps once and exits)
+ */
+public class SubscriptionSweeper {
+
+  private final int chunk;
+  private final int renewAheadDays;
+  private final int graceDays;
+  private final long pauseMs;
+
+  /**
+   * @param chunk          rows per chunk and transaction
+   * @param renewAheadDays renew AutoRenew subscriptions this many days before they expire
+   * @param graceDays      archive other subscriptions this many days after they expire
+   * @param pauseMs        pause between chunks, to leave room for the OLTP load
+   */
+  SubscriptionSweeper(int chunk, int renewAheadDays, int graceDays, long pauseMs) {
+    this.chunk = chunk;
+    this.renewAheadDays = renewAheadDays;
+    this.graceDays = graceDays;
+    this.pauseMs = pauseMs;
+  }
+
+  /**
+   * Outcome of one sweep
+   */
+  static final class Result {
+
+    long scanned;
+    long renewed;
+    long archived;
+    long chunks;
+    long dmlNanos;
+    long elapsedNanos;
+    long[] lockWaits;
+
+    @Override
+    public String toString() {
+      final double seconds = Math.max(elapsedNanos, 1) / 1e9;
+      return String.format("scanned %d, renewed %d, archived %d in %d chunks, %.1f s"
+              + " (%.0f rows/s), DML %.1f ms%s", scanned, renewed, archived, chunks, seconds,
+          (renewed + archived) / seconds, dmlNanos / 1e6,
+          lockWaits == null ? ""
+              : String.format(", row lock waits %d (%d ms)", lockWaits[0], lockWaits[1]));
+    }
+  }
+
+  /**
+   * Sweeps every subscription due for renewal or archiving as of today
+   *
+   * @param connection database connection (autocommit is restored afterwards)
+   * @return counts and timings
+   * @throws SQLException SQL gone bad
+   */
+  Result sweep(Connection connection) throws SQLException {
+    return sweep(connection, LocalDate.now());
+  }
+
+  /**
+   * Sweeps every subscription due for renewal or archiving as of a given day
+   *
+   * @param connection database connection (autocommit is restored afterwards)
+   * @param today      day to sweep as of
+   * @return counts and timings
+   * @throws SQLException SQL gone bad
+   */
+  Result sweep(Connection connection, LocalDate today) throws SQLException {
+    final LocalDate renewBy = today.plusDays(renewAheadDays);
+    final LocalDate archiveBefore = today.minusDays(graceDays);
+    final String next = "SELECT SubscriptionID, ExpDate, AutoRenew, UserID, AppID"
+        + " FROM Subscription"
+        + " WHERE ExpDate <= ? AND (ExpDate > ? OR (ExpDate = ? AND SubscriptionID > ?))"
+        + " ORDER BY ExpDate, SubscriptionID LIMIT ?";
+    final String renew = "UPDATE Subscription SET ExpDate = ?,"
+        + " Cost = Cost + (SELECT a.MonthlyCost FROM App a WHERE a.AppID = Subscription.AppID)"
+        + " WHERE SubscriptionID = ? AND ExpDate = ?";
+
+    final Result result = new Result();
+    final long[] locksBefore = LoadGenerator.lockWaits(connection);
+    final long start = System.nanoTime();
+    final boolean autoCommit = connection.getAutoCommit();
+    // Keyset cursor over (ExpDate, SubscriptionID)
+    LocalDate afterDate = LocalDate.of(1, 1, 1);
+    int afterId = 0;
+    final CompressedBitmap renewedIds = new CompressedBitmap();
+    try (final PreparedStatement select = connection.prepareStatement(next);
+        final PreparedStatement update = connection.prepareStatement(renew)) {
+      connection.setAutoCommit(false);
+      while (true) {
+        final int[] archive = new int[chunk];
+        // UserID, AppID and new ExpDate of each renewal, in batch order
+        final int[][] renewals = new int[chunk][];
+        int toArchive = 0;
+        int toRenew = 0;
+        int read = 0;
+        select.setDate(1, Date.valueOf(renewBy));
+        select.setDate(2, Date.valueOf(afterDate));
+        select.setDate(3, Date.valueOf(afterDate));
+        select.setInt(4, afterId);
+        select.setInt(5, chunk);
+        try (final ResultSet res = select.executeQuery()) {
+          while (res.next()) {
+            read++;
+            final int id = res.getInt("SubscriptionID");
+            final LocalDate expires = res.getDate("ExpDate").toLocalDate();
+            afterDate = expires;
+            afterId = id;
+            if (res.getBoolean("AutoRenew")) {
+              if (renewedIds.contains(id)) {
+                continue;
+              }
+              renewedIds.add(id);
+              final LocalDate from = expires.isAfter(today) ? expires : today;
+              update.setDate(1, Date.valueOf(from.plusMonths(1)));
+              update.setInt(2, id);
+              update.setDate(3, Date.valueOf(expires));
+              update.addBatch();
+              renewals[toRenew++] = new int[] {res.getInt("UserID"), res.getInt("AppID"),
+                  (int) from.plusMonths(1).toEpochDay()};
+            } else if (expires.isBefore(archiveBefore)) {
+              archive[toArchive++] = id;
+            }
+          }
+        }
+        connection.commit();
+        result.scanned += read;
+        if (read == 0) {
+          break;
+        }
+
+        final long dml = System.nanoTime();
+        int[] renewed = new int[0];
+        if (toRenew > 0) {
+          renewed = update.executeBatch();
+          for (int n : renewed) {
+            result.renewed += Math.max(n, 0);
+          }
+        }
+        if (toArchive > 0) {
+          result.archived += archive(connection, Arrays.copyOf(archive, toArchive),
+              archiveBefore, today);
+        }
+        connection.commit();
+        if (toRenew > 0 || toArchive > 0) {
+          ResultCache.invalidate("Subscription");
+          final RevenueEngine revenue = RevenueEngine.sharedIfLoaded();
+          if (revenue != null) {
+            revenue.markStale();
+          }
+        }
+        final Entitlements entitlements = Entitlements.sharedIfLoaded();
+        for (int i = 0; entitlements != null && i < renewed.length; i++) {
+          // SUCCESS_NO_INFO (-2) means the driver did not say, so assume it was renewed
+          if (renewed[i] != 0) {
+            entitlements.subscribed(renewals[i][0], renewals[i][1],
+                LocalDate.ofEpochDay(renewals[i][2]));
+          }
+        }
+        result.dmlNanos += System.nanoTime() - dml;
+        result.chunks++;
+
+        if (read < chunk) {
+          break;
+        }
+        if (pauseMs > 0) {
+          try {
+            Thread.sleep(pauseMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    } catch (SQLException e) {
+      try {
+        connection.rollback();
+      } catch (SQLException rollback) {
+        e.addSuppressed(rollback);
+      }
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    final long[] locksAfter = LoadGenerator.lockWaits(connection);
+    if (locksBefore != null && locksAfter != null) {
+      result.lockWaits = new long[]{locksAfter[0] - locksBefore[0],
+          locksAfter[1] - locksBefore[1]};
+    }
+    return result;
+  }
+
+  /**
+   * Copies lapsed subscriptions to SubscriptionArchive and deletes them, skipping any that
+   * were renewed since they were read
+   *
+   * @return rows archived
+   */
+  private static int archive(Connection connection, int[] ids, LocalDate archiveBefore,
+      LocalDate today) throws SQLException {
+    final String in = String.join(",", Collections.nCopies(ids.length, "?"));
+    final String lapsed = " WHERE SubscriptionID IN (" + in + ")"
+        + " AND ExpDate < ? AND AutoRenew = FALSE";
+    try (final PreparedStatement copy = connection.prepareStatement(
+        "INSERT INTO SubscriptionArchive (SubscriptionID, UserID, Cost, ExpDate, AppID,"
+            + " ArchivedOn) SELECT SubscriptionID, UserID, Cost, ExpDate, AppID, ?"
+            + " FROM Subscription" + lapsed);
+        final PreparedStatement delete = connection.prepareStatement(
+            "DELETE FROM Subscription" + lapsed)) {
+      copy.setDate(1, Date.valueOf(today));
+      for (int i = 0; i < ids.length; i++) {
+        copy.setInt(i + 2, ids[i]);
+        delete.setInt(i + 1, ids[i]);
+      }
+      copy.setDate(ids.length + 2, Date.valueOf(archiveBefore));
+      delete.setDate(ids.length + 1, Date.valueOf(archiveBefore));
+      copy.executeUpdate();
+      return delete.executeUpdate();
+    }
+  }
+
+  /**
+   * Sweeps once, or on a schedule
+   *
+   * @param args see class comment
+   * @throws Exception sweep could not run
+   */
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    final SubscriptionSweeper sweeper = new SubscriptionSweeper(
+        Integer.parseInt(opts.getOrDefault("chunk", "1000")),
+        Integer.parseInt(opts.getOrDefault("renew-ahead-days", "3")),
+        Integer.parseInt(opts.getOrDefault("grace-days", "0")),
+        Long.parseLong(opts.getOrDefault("pause-ms", "0")));
+    final long every = Long.parseLong(opts.getOrDefault("every-seconds", "0"));
+
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1)) {
+      final Runnable sweep = () -> {
+        try (final Connection connection = pool.getConnection()) {
+          System.out.printf("%s sweep: %s%n", LocalDate.now(), sweeper.sweep(connection));
+        } catch (SQLException e) {
+          System.out.println(e);
+        }
+      };
+      if (every <= 0) {
+        sweep.run();
+        return;
+      }
+      final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      scheduler.scheduleWithFixedDelay(sweep, 0, every, TimeUnit.SECONDS);
+      scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+  }
+}
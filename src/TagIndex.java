@@ -0,0 +1,458 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory inverted index from tag to the {@link CompressedBitmap} of VideoIDs carrying it,
+ * with per-video watch counts, for tag ranking and tag-filtered browsing without touching
+ * the database.
+ *
+ * <p>Tags match case-insensitively, like the default MySQL collation the SQL report groups
+ * by. Each tag's watch total is the bitmap-weighted sum of its videos' watch counts. It is
+ * computed at load and kept current by {@link #watched}, so ranking sorts only a handful of
+ * totals. Browse queries combine tags with AND, OR, NOT and parentheses (NOT binds tightest,
+ * then AND, then OR); quote tags that contain spaces or keywords.
+ *
+ * <p>{@link #addVideo}, {@link #tag} and {@link #watched} keep the index current as rows are
+ * added; reads and updates share a read-write lock, as in {@link RevenueEngine}. Videos other
+ * processes add arrive through the {@link ChangeLog}.
+ *
+ * <p>Usage: {@code java TagIndex [--profile mysql|embedded] [--url JDBC_URL]
+ * [--query "Drama AND NOT Kids"]} loads the index, prints the top tags and times a query.
+ */
+final class TagIndex {
+
+  private static volatile TagIndex shared;
+  private static boolean following;
+
+  /**
+   * Adds videos other processes insert; a video deleted or reset drops the shared index
+   */
+  private static final ChangeLog.Listener CHANGES = new ChangeLog.Listener() {
+    @Override
+    public void changed(Connection connection, ChangeLog.Change change) {
+      final TagIndex index = shared;
+      if (index == null || !change.table.equals("Video")) {
+        return;
+      }
+      if (change.op == 'I') {
+        index.addVideo(change.key1);
+      } else if (change.op == 'D') {
+        invalidate();
+      }
+    }
+
+    @Override
+    public void reset() {
+      invalidate();
+    }
+  };
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  /**
+   * Tag code by lower-cased tag
+   */
+  private final Map<String, Integer> codes = new HashMap<>();
+  /**
+   * Tag as first seen, bitmap of videos and watch total, by tag code
+   */
+  private final List<String> names = new ArrayList<>();
+  private final List<CompressedBitmap> videos = new ArrayList<>();
+  private long[] totals = new long[16];
+  private final CompressedBitmap all = new CompressedBitmap();
+  /**
+   * Tag codes by VideoID, so a watch updates only its own tags' totals
+   */
+  private final IntObjectMap<int[]> tagsOf = new IntObjectMap<>();
+  /**
+   * Watches by VideoID
+   */
+  private int[] watches = new int[1024];
+  private final WatchEvents.Listener listener = (userId, videoId, at) -> watched(videoId);
+
+  private TagIndex() {
+  }
+
+  /**
+   * @param connection database connection, used only if the index is not loaded yet
+   * @return the process-wide index, loaded and subscribed to {@link WatchEvents} on first
+   * use
+   * @throws SQLException SQL gone bad
+   */
+  static TagIndex shared(Connection connection) throws SQLException {
+    TagIndex index = shared;
+    if (index == null) {
+      synchronized (TagIndex.class) {
+        index = shared;
+        if (index == null) {
+          index = load(connection);
+          WatchEvents.subscribe(index.listener);
+          shared = index;
+          if (!following) {
+            ChangeLog.subscribe(CHANGES);
+            following = true;
+          }
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the process-wide index, or null if it has not been loaded
+   */
+  static TagIndex sharedIfLoaded() {
+    return shared;
+  }
+
+  /**
+   * Drops the shared index, so that the next {@link #shared} call loads it again
+   */
+  static void invalidate() {
+    synchronized (TagIndex.class) {
+      final TagIndex index = shared;
+      if (index != null) {
+        WatchEvents.unsubscribe(index.listener);
+        shared = null;
+      }
+    }
+  }
+
+  /**
+   * Loads videos, tags and all-time watch counts
+   *
+   * @param connection database connection
+   * @return the index
+   * @throws SQLException SQL gone bad
+   */
+  static TagIndex load(Connection connection) throws SQLException {
+    final TagIndex index = new TagIndex();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID FROM Video");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        index.all.add(res.getInt(1));
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, Tag FROM Tag");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        final int code = index.code(res.getString(2));
+        if (index.addTag(res.getInt(1), code)) {
+          index.videos.get(code).add(res.getInt(1));
+        }
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT uvm.VideoID, SUM(uvm.Watches) FROM " + WatchHistory.WATCH_COUNTS + " uvm"
+            + " GROUP BY uvm.VideoID")) {
+      WatchHistory.bindWindow(stmt, 1, null);
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          final int video = res.getInt(1);
+          if (video < 0 || !index.all.contains(video)) {
+            continue;
+          }
+          index.growWatches(video);
+          index.watches[video] = res.getInt(2);
+        }
+      }
+    }
+    final int[] weights = index.watches;
+    final long[] totals = IntStream.range(0, index.videos.size()).parallel()
+        .mapToLong(t -> index.videos.get(t).weightedSum(weights)).toArray();
+    index.totals = Arrays.copyOf(totals, Math.max(16, totals.length));
+    return index;
+  }
+
+  /**
+   * @return code of the tag, assigned if new; callers hold the write lock or own the index
+   */
+  private int code(String tag) {
+    final String key = tag.toLowerCase(Locale.ROOT);
+    Integer code = codes.get(key);
+    if (code == null) {
+      code = names.size();
+      codes.put(key, code);
+      names.add(tag);
+      videos.add(new CompressedBitmap());
+      if (code == totals.length) {
+        totals = Arrays.copyOf(totals, code * 2);
+      }
+    }
+    return code;
+  }
+
+  /**
+   * @return whether the video did not carry the tag yet; callers hold the write lock or own
+   * the index
+   */
+  private boolean addTag(int video, int code) {
+    final int[] tags = tagsOf.get(video);
+    if (tags == null) {
+      tagsOf.put(video, new int[]{code});
+      return true;
+    }
+    for (int t : tags) {
+      if (t == code) {
+        return false;
+      }
+    }
+    final int[] grown = Arrays.copyOf(tags, tags.length + 1);
+    grown[tags.length] = code;
+    tagsOf.put(video, grown);
+    return true;
+  }
+
+  private void growWatches(int video) {
+    if (video >= watches.length) {
+      watches = Arrays.copyOf(watches, Math.max(video + 1, watches.length * 2));
+    }
+  }
+
+  /**
+   * Adds a new video, untagged and unwatched
+   */
+  void addVideo(int videoId) {
+    lock.writeLock().lock();
+    try {
+      all.add(videoId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Tags a video
+   */
+  void tag(int videoId, String tag) {
+    lock.writeLock().lock();
+    try {
+      final int code = code(tag);
+      if (addTag(videoId, code)) {
+        videos.get(code).add(videoId);
+        all.add(videoId);
+        totals[code] += videoId < watches.length ? watches[videoId] : 0;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Counts a watch of a video; watches of videos the index does not hold are ignored, so an
+   * arbitrary VideoID cannot size the watch array
+   */
+  void watched(int videoId) {
+    lock.writeLock().lock();
+    try {
+      if (videoId < 0 || !all.contains(videoId)) {
+        return;
+      }
+      growWatches(videoId);
+      watches[videoId]++;
+      final int[] tags = tagsOf.get(videoId);
+      if (tags != null) {
+        for (int t : tags) {
+          totals[t]++;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Prints the most watched tags, like {@link YatvQueries#topThreeWatchedTags}
+   *
+   * @param out output
+   * @param n   tags to print
+   */
+  void printTop(PrintStream out, int n) {
+    lock.readLock().lock();
+    try {
+      IntStream.range(0, names.size()).filter(t -> totals[t] > 0).boxed()
+          .sorted((a, b) -> totals[a] != totals[b] ? Long.compare(totals[b], totals[a])
+              : names.get(a).compareTo(names.get(b)))
+          .limit(n)
+          .forEach(t -> out.printf("VIEW COUNT: %d, TAG NAME: %s %n", totals[t], names.get(t)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Evaluates a tag query
+   *
+   * @param query tags combined with AND, OR, NOT and parentheses
+   * @return matching VideoIDs; unknown tags match nothing
+   * @throws IllegalArgumentException malformed query
+   */
+  CompressedBitmap query(String query) {
+    final Parser parser = new Parser(query);
+    lock.readLock().lock();
+    try {
+      final CompressedBitmap result = parser.or();
+      if (parser.peek() != null) {
+        throw new IllegalArgumentException("Unexpected " + parser.peek() + " in " + query);
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param matches videos, as returned by {@link #query}
+   * @return their total watches
+   */
+  long watches(CompressedBitmap matches) {
+    lock.readLock().lock();
+    try {
+      return matches.weightedSum(watches);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Recursive-descent parser over the index's bitmaps; runs under the read lock
+   */
+  private final class Parser {
+
+    private final List<String> tokens = new ArrayList<>();
+    private int pos;
+
+    Parser(String query) {
+      int i = 0;
+      while (i < query.length()) {
+        final char c = query.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (c == '(' || c == ')') {
+          tokens.add(String.valueOf(c));
+          i++;
+        } else if (c == '"') {
+          final int end = query.indexOf('"', i + 1);
+          if (end < 0) {
+            throw new IllegalArgumentException("Unclosed quote in " + query);
+          }
+          // Keep the opening quote so a quoted keyword stays a tag
+          tokens.add(query.substring(i, end));
+          i = end + 1;
+        } else {
+          int end = i;
+          while (end < query.length() && !Character.isWhitespace(query.charAt(end))
+              && "()\"".indexOf(query.charAt(end)) < 0) {
+            end++;
+          }
+          tokens.add(query.substring(i, end));
+          i = end;
+        }
+      }
+    }
+
+    String peek() {
+      return pos < tokens.size() ? tokens.get(pos) : null;
+    }
+
+    private boolean keyword(String word) {
+      if (word.equalsIgnoreCase(peek())) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    CompressedBitmap or() {
+      CompressedBitmap result = and();
+      while (keyword("OR")) {
+        result = result.or(and());
+      }
+      return result;
+    }
+
+    CompressedBitmap and() {
+      CompressedBitmap result = not();
+      while (keyword("AND")) {
+        result = result.and(not());
+      }
+      return result;
+    }
+
+    CompressedBitmap not() {
+      if (keyword("NOT")) {
+        return all.andNot(not());
+      }
+      if (keyword("(")) {
+        final CompressedBitmap inner = or();
+        if (!keyword(")")) {
+          throw new IllegalArgumentException("Missing ) at token " + pos);
+        }
+        return inner;
+      }
+      final String token = peek();
+      if (token == null || token.equals(")")) {
+        throw new IllegalArgumentException("Missing tag at token " + pos);
+      }
+      pos++;
+      final String tag = token.startsWith("\"") ? token.substring(1) : token;
+      final Integer code = codes.get(tag.toLowerCase(Locale.ROOT));
+      // Copy, so callers never hold the index's own bitmap
+      return code == null ? new CompressedBitmap()
+          : videos.get(code).or(new CompressedBitmap());
+    }
+  }
+
+  /**
+   * Loads the index, prints the top tags and times a tag query
+   *
+   * @param args see class comment
+   * @throws SQLException cannot load
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      long start = System.nanoTime();
+      final TagIndex index = load(connection);
+      System.out.printf("Indexed %d tags over %d videos in %.1f ms%n", index.names.size(),
+          index.all.cardinality(), (System.nanoTime() - start) / 1e6);
+
+      final int runs = 10_000;
+      final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+      start = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        index.printTop(discard, 3);
+      }
+      final double topNanos = (double) (System.nanoTime() - start) / runs;
+      index.printTop(System.out, 3);
+      System.out.printf("Top tags: %.0f ns%n", topNanos);
+
+      final String query = opts.getOrDefault("query", "Drama AND NOT Kids");
+      CompressedBitmap matches = null;
+      start = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        matches = index.query(query);
+      }
+      System.out.printf("%s: %d videos, %d watches, %.0f ns%n", query, matches.cardinality(),
+          index.watches(matches), (double) (System.nanoTime() - start) / runs);
+    }
+  }
+}
@@ -0,0 +1,362 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trending shows: watch counts per show over the recent past, so a show that was big years
+ * ago does not hold the top spots the way it does in {@link YatvQueries#mostWatchedShowsByApp}.
+ *
+ * <p>Each show keeps a ring of watch counts, one per time bucket ({@code
+ * -Dyatv.trending.bucketMinutes}, default 5) over a fixed span ({@code
+ * -Dyatv.trending.buckets}, default 2016, so seven days). Memory per show is fixed by the
+ * ring, whatever the watch volume. Moving into a new bucket clears the slots it reuses. Top
+ * shows for any window ending now, up to the span, sum that many slots per show, optionally
+ * weighting each bucket by a half-life so the newest watches count most.
+ *
+ * <p>{@link #load} fills the rings from the live rows of UserVideoWatched inside the span,
+ * then the shared instance follows {@link WatchEvents}. Videos map to shows through Seasons,
+ * as in query 6; episodes added by other processes are mapped as the {@link ChangeLog}
+ * reports them.
+ *
+ * <p>Usage: {@code java TrendingShows [--profile mysql|embedded] [--url JDBC_URL]} loads the
+ * rings and times top 10 over an hour, a day and the whole span.
+ */
+final class TrendingShows {
+
+  static final Duration BUCKET = Duration.ofMinutes(
+      Integer.getInteger("yatv.trending.bucketMinutes", 5));
+  static final int BUCKETS = Math.max(1, Integer.getInteger("yatv.trending.buckets", 2016));
+
+  private static volatile TrendingShows shared;
+
+  /**
+   * One show's ring of watch counts
+   */
+  private static final class Show {
+
+    final int id;
+    final String title;
+    final String app;
+    /**
+     * Watches in bucket b, at b modulo {@link #BUCKETS}
+     */
+    final int[] ring = new int[BUCKETS];
+
+    Show(int id, String title, String app) {
+      this.id = id;
+      this.title = title;
+      this.app = app;
+    }
+  }
+
+  /**
+   * A ranked show
+   */
+  static final class Trend {
+
+    final int showId;
+    final String title;
+    final String app;
+    final long watches;
+    final double score;
+
+    Trend(int showId, String title, String app, long watches, double score) {
+      this.showId = showId;
+      this.title = title;
+      this.app = app;
+      this.watches = watches;
+      this.score = score;
+    }
+  }
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final long bucketMillis = BUCKET.toMillis();
+  private final List<Show> shows = new ArrayList<>();
+  private final IntObjectMap<Show> byId = new IntObjectMap<>();
+  /**
+   * Shows of each video; usually one
+   */
+  private final IntObjectMap<Show[]> videoShows = new IntObjectMap<>();
+  /**
+   * Newest bucket written; slots of buckets after it hold stale counts
+   */
+  private long head = Long.MIN_VALUE;
+
+  private TrendingShows() {
+  }
+
+  /**
+   * @param connection database connection, used only if not loaded yet
+   * @return the process-wide rings, loaded and subscribed to {@link WatchEvents} on first use
+   * @throws SQLException SQL gone bad
+   */
+  static TrendingShows shared(Connection connection) throws SQLException {
+    TrendingShows trending = shared;
+    if (trending == null) {
+      synchronized (TrendingShows.class) {
+        trending = shared;
+        if (trending == null) {
+          trending = load(connection);
+          final TrendingShows loaded = trending;
+          WatchEvents.subscribe((userId, videoId, at) -> loaded.watched(videoId, at));
+          ChangeLog.subscribe(new ChangeLog.Listener() {
+            @Override
+            public void changed(Connection connection, ChangeLog.Change change) {
+              if (change.table.equals("Seasons") && change.op != 'D') {
+                loaded.addVideo(change.key2, change.key1);
+              }
+            }
+
+            @Override
+            public void reset() {
+              // Missed episodes are only uncounted until the next load
+            }
+          });
+          shared = trending;
+        }
+      }
+    }
+    return trending;
+  }
+
+  /**
+   * @return the process-wide rings, or null if they have not been loaded
+   */
+  static TrendingShows sharedIfLoaded() {
+    return shared;
+  }
+
+  /**
+   * Loads shows and the watches inside the span
+   *
+   * @param connection database connection
+   * @return the rings
+   * @throws SQLException SQL gone bad
+   */
+  static TrendingShows load(Connection connection) throws SQLException {
+    final TrendingShows t = new TrendingShows();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT se.VideoID, sh.ShowID, sh.Title, a.Name FROM Seasons se"
+            + " JOIN Shows sh ON sh.ShowID = se.ShowID"
+            + " JOIN Video v ON v.VideoID = se.VideoID"
+            + " JOIN App a ON a.AppID = v.AppID");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        final int showId = res.getInt(2);
+        Show show = t.byId.get(showId);
+        if (show == null) {
+          show = new Show(showId, res.getString(3), res.getString(4));
+          t.byId.put(showId, show);
+          t.shows.add(show);
+        }
+        t.map(res.getInt(1), show);
+      }
+    }
+    final long now = System.currentTimeMillis();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, WatchedAt FROM UserVideoWatched WHERE WatchedAt >= ?")) {
+      stmt.setTimestamp(1, new Timestamp(now - t.bucketMillis * BUCKETS));
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          t.add(res.getInt(1), res.getTimestamp(2).getTime());
+        }
+      }
+    }
+    return t;
+  }
+
+  private void map(int videoId, Show show) {
+    final Show[] current = videoShows.get(videoId);
+    if (current == null) {
+      videoShows.put(videoId, new Show[] {show});
+    } else if (!Arrays.asList(current).contains(show)) {
+      final Show[] more = Arrays.copyOf(current, current.length + 1);
+      more[current.length] = show;
+      videoShows.put(videoId, more);
+    }
+  }
+
+  /**
+   * Maps a new video to its show, if the show is known
+   *
+   * @param videoId video
+   * @param showId  its show
+   */
+  void addVideo(int videoId, int showId) {
+    lock.writeLock().lock();
+    try {
+      final Show show = byId.get(showId);
+      if (show != null) {
+        map(videoId, show);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Counts a watch; watches older than the span are ignored
+   *
+   * @param videoId video
+   * @param at      when it was watched
+   */
+  void watched(int videoId, LocalDateTime at) {
+    final long millis = at.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    lock.writeLock().lock();
+    try {
+      add(videoId, millis);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void add(int videoId, long millis) {
+    final long bucket = Math.floorDiv(millis, bucketMillis);
+    if (bucket > head) {
+      // Clear the slots of the buckets skipped over, each holding counts from a span ago
+      if (head != Long.MIN_VALUE) {
+        final long clear = Math.min(bucket - head, BUCKETS);
+        for (Show show : shows) {
+          for (long b = bucket - clear + 1; b <= bucket; b++) {
+            show.ring[slot(b)] = 0;
+          }
+        }
+      }
+      head = bucket;
+    } else if (bucket <= head - BUCKETS) {
+      return;
+    }
+    final Show[] of = videoShows.get(videoId);
+    if (of != null) {
+      for (Show show : of) {
+        show.ring[slot(bucket)]++;
+      }
+    }
+  }
+
+  private static int slot(long bucket) {
+    return (int) Math.floorMod(bucket, (long) BUCKETS);
+  }
+
+  /**
+   * Top shows for a window ending now
+   *
+   * @param k        shows wanted
+   * @param window   window length, capped at the span
+   * @param halfLife weight halves every half-life back from now, or null to count each watch
+   *                 once
+   * @return shows by score then ShowID, best first; shows with no watches are left out
+   */
+  List<Trend> top(int k, Duration window, Duration halfLife) {
+    return top(k, window, halfLife, System.currentTimeMillis());
+  }
+
+  List<Trend> top(int k, Duration window, Duration halfLife, long nowMillis) {
+    final long now = Math.floorDiv(nowMillis, bucketMillis);
+    final int n = (int) Math.max(1, Math.min(BUCKETS,
+        (window.toMillis() + bucketMillis - 1) / bucketMillis));
+    final double[] weights = new double[n];
+    for (int age = 0; age < n; age++) {
+      weights[age] = halfLife == null ? 1
+          : Math.pow(0.5, (double) age * bucketMillis / halfLife.toMillis());
+    }
+    final PriorityQueue<Trend> best = new PriorityQueue<>(Math.max(1, k),
+        (a, b) -> a.score != b.score ? Double.compare(a.score, b.score)
+            : Integer.compare(b.showId, a.showId));
+    lock.readLock().lock();
+    try {
+      // Buckets after head were never written, and those a span before head are overwritten
+      final long last = Math.min(now, head);
+      final long first = Math.max(now - n + 1, head - BUCKETS + 1);
+      for (Show show : shows) {
+        long watches = 0;
+        double score = 0;
+        for (long b = first; b <= last; b++) {
+          final int c = show.ring[slot(b)];
+          watches += c;
+          score += c * weights[(int) (now - b)];
+        }
+        if (watches == 0) {
+          continue;
+        }
+        if (best.size() < k) {
+          best.add(new Trend(show.id, show.title, show.app, watches, score));
+        } else if (k > 0 && (score > best.peek().score
+            || score == best.peek().score && show.id < best.peek().showId)) {
+          best.poll();
+          best.add(new Trend(show.id, show.title, show.app, watches, score));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    final List<Trend> ranked = new ArrayList<>(best);
+    ranked.sort(Collections.reverseOrder(best.comparator()));
+    return ranked;
+  }
+
+  /**
+   * Prints top shows, like {@link YatvQueries#mostWatchedShowsByApp}
+   *
+   * @param out      output
+   * @param k        shows wanted
+   * @param window   window length, capped at the span
+   * @param halfLife half-life for decayed scores, or null for plain counts
+   */
+  void print(PrintStream out, int k, Duration window, Duration halfLife) {
+    for (Trend t : top(k, window, halfLife)) {
+      if (halfLife == null) {
+        out.printf("WATCH COUNT: %d SHOW: %s APP: %s %n", t.watches, t.title, t.app);
+      } else {
+        out.printf("SCORE: %.1f WATCH COUNT: %d SHOW: %s APP: %s %n", t.score, t.watches,
+            t.title, t.app);
+      }
+    }
+  }
+
+  /**
+   * Loads the rings and times top 10 over a few windows
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      long start = System.nanoTime();
+      final TrendingShows trending = load(connection);
+      System.out.printf("Loaded %d shows in %.1f ms, %d KB of rings%n", trending.shows.size(),
+          (System.nanoTime() - start) / 1e6, (long) trending.shows.size() * BUCKETS * 4 / 1024);
+      for (Duration window : new Duration[] {Duration.ofHours(1), Duration.ofDays(1),
+          BUCKET.multipliedBy(BUCKETS)}) {
+        start = System.nanoTime();
+        final List<Trend> top = trending.top(10, window, window.dividedBy(4));
+        System.out.printf("%nTop shows over %s, decayed (%.0f us):%n", window,
+            (System.nanoTime() - start) / 1e3);
+        for (Trend t : top) {
+          System.out.printf("SCORE: %.1f WATCH COUNT: %d SHOW: %s%n", t.score, t.watches,
+              t.title);
+        }
+      }
+    }
+  }
+}
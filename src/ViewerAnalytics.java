@@ -0,0 +1,629 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate viewer analytics from fixed-size sketches, so dashboard answers cost the same
+ * memory and time however long the watch history grows.
+ *
+ * <ul>
+ * <li>Unique viewers per show and per app: one {@link HyperLogLog} each.</li>
+ * <li>Per country and day: a HyperLogLog of viewers and a {@link CountMinSketch} of watches
+ * per video. Any set of countries and days merges into one answer, bounded by the number of
+ * buckets rather than rows. Days older than the retained window are folded into one bucket
+ * per country, so a range reaching back past the window counts all of that earlier
+ * history.</li>
+ * <li>Heavy hitters: an all-time Count-Min sketch, eight times the width of the bucket ones,
+ * plus a bounded candidate list of the most watched.</li>
+ * </ul>
+ *
+ * <p>Every answer is an {@link Estimate} carrying its error bound. The sketches are filled
+ * from UserVideoWatched at {@link #load} and then from {@link WatchEvents} as watches are
+ * recorded. Videos other processes add are mapped to their show and app as the
+ * {@link ChangeLog} reports them. Months compacted by {@link WatchHistory} only count
+ * watches, not viewers, so they feed the watch sketches but not the viewer counts.
+ *
+ * <p>Sizes are set with {@code -Dyatv.sketch.precision} (HyperLogLog p for shows and apps,
+ * default 12), {@code -Dyatv.sketch.bucketPrecision} (for country-day buckets, default 10),
+ * {@code -Dyatv.sketch.width} and {@code -Dyatv.sketch.depth} (Count-Min, default 272 x 4,
+ * about 1% of the watches at 98% confidence) and {@code -Dyatv.sketch.days} (days kept apart,
+ * default 90).
+ *
+ * <p>Usage: {@code java ViewerAnalytics [--profile mysql|embedded] [--url JDBC_URL]}
+ * prints a dashboard with exact counts alongside for comparison.
+ */
+final class ViewerAnalytics {
+
+  private static final int PRECISION = Integer.getInteger("yatv.sketch.precision", 12);
+  private static final int BUCKET_PRECISION =
+      Integer.getInteger("yatv.sketch.bucketPrecision", 10);
+  private static final int WIDTH = Integer.getInteger("yatv.sketch.width", 272);
+  private static final int DEPTH = Integer.getInteger("yatv.sketch.depth", 4);
+  private static final int RETAINED_DAYS = Math.max(1, Integer.getInteger("yatv.sketch.days",
+      90));
+  private static final int HEAVY_HITTER_CANDIDATES = 256;
+
+  private static volatile ViewerAnalytics shared;
+  private static boolean following;
+
+  /**
+   * Maps videos other processes insert or move to their show and app; a reset drops the
+   * shared sketches
+   */
+  private static final ChangeLog.Listener CHANGES = new ChangeLog.Listener() {
+    @Override
+    public void changed(Connection connection, ChangeLog.Change change) throws SQLException {
+      final ViewerAnalytics analytics = shared;
+      if (analytics == null || !change.table.equals("Video") || change.op == 'D') {
+        return;
+      }
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          "SELECT ShowID, AppID FROM Video WHERE VideoID = ?")) {
+        stmt.setInt(1, change.key1);
+        try (final ResultSet res = stmt.executeQuery()) {
+          if (res.next()) {
+            final int show = res.getInt(1);
+            analytics.addVideo(change.key1, res.wasNull() ? 0 : show, res.getInt(2));
+          }
+        }
+      }
+    }
+
+    @Override
+    public void reset() {
+      invalidate();
+    }
+  };
+
+  /**
+   * An approximate answer: the estimate and how far the truth may be from it
+   */
+  static final class Estimate {
+
+    final long value;
+    final long low;
+    final long high;
+    final String bound;
+
+    Estimate(long value, long low, long high, String bound) {
+      this.value = value;
+      this.low = low;
+      this.high = high;
+      this.bound = bound;
+    }
+
+    /**
+     * Distinct count with a band of two standard errors (about 95%)
+     */
+    static Estimate distinct(HyperLogLog hll) {
+      final long value = hll.estimate();
+      final long delta = Math.round(2 * hll.relativeError() * value);
+      return new Estimate(value, Math.max(0, value - delta), value + delta, "95%");
+    }
+
+    /**
+     * Count-Min count: never low, at most the sketch's bound high
+     */
+    static Estimate count(long value, CountMinSketch cms) {
+      return new Estimate(value, Math.max(0, value - cms.errorBound()), value,
+          String.format("%.0f%%", 100 * cms.confidence()));
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d [%d, %d] (%s)", value, low, high, bound);
+    }
+  }
+
+  /**
+   * Sketches of one country on one day
+   */
+  private static final class Bucket {
+
+    final HyperLogLog viewers = new HyperLogLog(BUCKET_PRECISION);
+    final CountMinSketch watches = new CountMinSketch(WIDTH, DEPTH);
+
+    void merge(Bucket other) {
+      viewers.merge(other.viewers);
+      watches.merge(other.watches);
+    }
+  }
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final IntIntMap videoShows = new IntIntMap();
+  private final IntIntMap videoApps = new IntIntMap();
+  private final IntIntMap userCountries = new IntIntMap();
+  private final RevenueEngine.Dictionary countries = new RevenueEngine.Dictionary();
+  private final IntObjectMap<HyperLogLog> showViewers = new IntObjectMap<>();
+  private final IntObjectMap<HyperLogLog> appViewers = new IntObjectMap<>();
+  /**
+   * By {@link #bucketKey}
+   */
+  private final Map<Long, Bucket> buckets = new HashMap<>();
+  /**
+   * Days before the retained window, by country code
+   */
+  private final Map<Integer, Bucket> earlier = new HashMap<>();
+  private long latestDay = Long.MIN_VALUE;
+  /**
+   * A single sketch, so it can afford to be wider than the per-bucket ones
+   */
+  private final CountMinSketch allWatches = new CountMinSketch(WIDTH * 8, DEPTH);
+  /**
+   * Candidate heavy hitters: VideoID to estimated watches, at most
+   * {@link #HEAVY_HITTER_CANDIDATES}
+   */
+  private final Map<Integer, Long> candidates = new HashMap<>();
+  /**
+   * At most the weakest candidate's estimate, or -1 if not known. Estimates only grow, so
+   * this stays a lower bound, and videos not above it are turned away without a scan.
+   */
+  private long weakest = -1;
+  private final WatchEvents.Listener listener = (userId, videoId, at) ->
+      watched(userId, videoId, at.toLocalDate());
+
+  private ViewerAnalytics() {
+  }
+
+  /**
+   * @param connection database connection, used only if not loaded yet
+   * @return the process-wide sketches, loaded and subscribed to {@link WatchEvents} on first
+   * use
+   * @throws SQLException SQL gone bad
+   */
+  static ViewerAnalytics shared(Connection connection) throws SQLException {
+    ViewerAnalytics analytics = shared;
+    if (analytics == null) {
+      synchronized (ViewerAnalytics.class) {
+        analytics = shared;
+        if (analytics == null) {
+          analytics = load(connection);
+          WatchEvents.subscribe(analytics.listener);
+          shared = analytics;
+          if (!following) {
+            ChangeLog.subscribe(CHANGES);
+            following = true;
+          }
+        }
+      }
+    }
+    return analytics;
+  }
+
+  /**
+   * @return the process-wide sketches, or null if they have not been loaded
+   */
+  static ViewerAnalytics sharedIfLoaded() {
+    return shared;
+  }
+
+  /**
+   * Drops the shared sketches, so that the next {@link #shared} call loads them again
+   */
+  static void invalidate() {
+    synchronized (ViewerAnalytics.class) {
+      final ViewerAnalytics analytics = shared;
+      if (analytics != null) {
+        WatchEvents.unsubscribe(analytics.listener);
+        shared = null;
+      }
+    }
+  }
+
+  /**
+   * Fills sketches from the watch history
+   *
+   * @param connection database connection
+   * @return the sketches
+   * @throws SQLException SQL gone bad
+   */
+  static ViewerAnalytics load(Connection connection) throws SQLException {
+    final ViewerAnalytics a = new ViewerAnalytics();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, ShowID, AppID FROM Video");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        final int show = res.getInt(2);
+        if (!res.wasNull()) {
+          a.videoShows.put(res.getInt(1), show);
+        }
+        a.videoApps.put(res.getInt(1), res.getInt(3));
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT UserID, Country FROM User");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        a.userCountries.put(res.getInt(1), a.countries.encode(res.getString(2)));
+      }
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT UserID, VideoID, WatchedAt FROM UserVideoWatched");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        a.add(res.getInt(1), res.getInt(2), res.getTimestamp(3).toLocalDateTime()
+            .toLocalDate(), 1);
+      }
+    }
+    // Compacted months: watches without viewers, under no country
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT VideoID, WatchDate, Watches FROM VideoWatchDaily");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        a.add(0, res.getInt(1), res.getDate(2).toLocalDate(), res.getInt(3));
+      }
+    }
+    return a;
+  }
+
+  /**
+   * Counts a watch
+   *
+   * @param userId  viewer
+   * @param videoId video
+   * @param day     day watched
+   */
+  void watched(int userId, int videoId, LocalDate day) {
+    lock.writeLock().lock();
+    try {
+      add(userId, videoId, day, 1);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Maps a video to its show and app, so its watches count toward their viewers
+   *
+   * @param videoId video
+   * @param showId  show, or 0 for none
+   * @param appId   app
+   */
+  void addVideo(int videoId, int showId, int appId) {
+    lock.writeLock().lock();
+    try {
+      if (showId != 0) {
+        videoShows.put(videoId, showId);
+      }
+      videoApps.put(videoId, appId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Notes a new user's country, so their watches are counted under it
+   *
+   * @param userId  user
+   * @param country country, as stored in User.Country
+   */
+  void registered(int userId, String country) {
+    lock.writeLock().lock();
+    try {
+      userCountries.put(userId, countries.encode(country));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param userId 0 when the viewer is unknown
+   */
+  private void add(int userId, int videoId, LocalDate day, int count) {
+    final int country = userId == 0 || !userCountries.containsKey(userId) ? -1
+        : userCountries.get(userId);
+    final Bucket bucket = bucket(country, day.toEpochDay());
+    bucket.watches.add(videoId, count);
+    allWatches.add(videoId, count);
+    if (userId != 0) {
+      final long user = HyperLogLog.hash(userId);
+      bucket.viewers.add(user);
+      if (videoShows.containsKey(videoId)) {
+        showViewers.computeIfAbsent(videoShows.get(videoId), k -> new HyperLogLog(PRECISION))
+            .add(user);
+      }
+      if (videoApps.containsKey(videoId)) {
+        appViewers.computeIfAbsent(videoApps.get(videoId), k -> new HyperLogLog(PRECISION))
+            .add(user);
+      }
+    }
+    offer(videoId);
+  }
+
+  /**
+   * Keeps the video among the heavy-hitter candidates if its estimate beats the weakest
+   */
+  private void offer(int videoId) {
+    final long estimate = allWatches.estimate(videoId);
+    if (candidates.containsKey(videoId) || candidates.size() < HEAVY_HITTER_CANDIDATES) {
+      candidates.put(videoId, estimate);
+      return;
+    }
+    if (estimate <= weakest) {
+      return;
+    }
+    // Find the weakest and the next weakest, which is the weakest after a replacement
+    Map.Entry<Integer, Long> min = null;
+    long next = Long.MAX_VALUE;
+    for (Map.Entry<Integer, Long> e : candidates.entrySet()) {
+      if (min == null || e.getValue() < min.getValue()) {
+        if (min != null) {
+          next = min.getValue();
+        }
+        min = e;
+      } else if (e.getValue() < next) {
+        next = e.getValue();
+      }
+    }
+    if (estimate > min.getValue()) {
+      candidates.remove(min.getKey());
+      candidates.put(videoId, estimate);
+      weakest = Math.min(next, estimate);
+    } else {
+      weakest = min.getValue();
+    }
+  }
+
+  /**
+   * Bucket of a country and day, moving the retained window forward if the day is new
+   */
+  private Bucket bucket(int country, long day) {
+    if (day > latestDay) {
+      latestDay = day;
+      for (Iterator<Map.Entry<Long, Bucket>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+        final Map.Entry<Long, Bucket> e = it.next();
+        if (!retained(e.getKey() >> 20)) {
+          earlier.computeIfAbsent((int) (e.getKey() & 0xFFFFF) - 1, k -> new Bucket())
+              .merge(e.getValue());
+          it.remove();
+        }
+      }
+    }
+    return retained(day) ? buckets.computeIfAbsent(bucketKey(country, day), k -> new Bucket())
+        : earlier.computeIfAbsent(country, k -> new Bucket());
+  }
+
+  private boolean retained(long day) {
+    return day > latestDay - RETAINED_DAYS;
+  }
+
+  /**
+   * @param country country code, -1 for unknown
+   */
+  private static long bucketKey(int country, long day) {
+    return (day << 20) | (country + 1);
+  }
+
+  /**
+   * @return distinct viewers of a show's videos
+   */
+  Estimate showViewers(int showId) {
+    lock.readLock().lock();
+    try {
+      return distinct(showViewers.get(showId));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return distinct viewers of an app's videos
+   */
+  Estimate appViewers(int appId) {
+    lock.readLock().lock();
+    try {
+      return distinct(appViewers.get(appId));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Callers hold the read lock
+   */
+  private static Estimate distinct(HyperLogLog hll) {
+    return hll == null ? new Estimate(0, 0, 0, "exact") : Estimate.distinct(hll);
+  }
+
+  /**
+   * @param countries countries, or null for all (including watches with no known viewer)
+   * @param from      first day
+   * @param to        last day
+   * @return distinct viewers in those countries over those days
+   */
+  Estimate viewers(Collection<String> countries, LocalDate from, LocalDate to) {
+    lock.readLock().lock();
+    try {
+      final HyperLogLog merged = new HyperLogLog(BUCKET_PRECISION);
+      for (Bucket b : select(countries, from, to)) {
+        merged.merge(b.viewers);
+      }
+      return Estimate.distinct(merged);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param videoId   video
+   * @param countries countries, or null for all
+   * @param from      first day
+   * @param to        last day
+   * @return watches of the video in those countries over those days
+   */
+  Estimate watches(int videoId, Collection<String> countries, LocalDate from, LocalDate to) {
+    lock.readLock().lock();
+    try {
+      final CountMinSketch merged = new CountMinSketch(WIDTH, DEPTH);
+      for (Bucket b : select(countries, from, to)) {
+        merged.merge(b.watches);
+      }
+      return Estimate.count(merged.estimate(videoId), merged);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Buckets of the given countries and days; callers hold the read lock
+   */
+  private List<Bucket> select(Collection<String> countries, LocalDate from, LocalDate to) {
+    final List<Integer> codes = new ArrayList<>();
+    if (countries == null) {
+      codes.add(-1);
+      for (int c = 0; c < this.countries.size(); c++) {
+        codes.add(c);
+      }
+    } else {
+      for (String country : countries) {
+        final int code = this.countries.code(country);
+        if (code >= 0) {
+          codes.add(code);
+        }
+      }
+    }
+    final List<Bucket> out = new ArrayList<>();
+    long day = from.toEpochDay();
+    if (!retained(day)) {
+      for (int code : codes) {
+        final Bucket b = earlier.get(code);
+        if (b != null) {
+          out.add(b);
+        }
+      }
+      day = latestDay - RETAINED_DAYS + 1;
+    }
+    for (; day <= Math.min(to.toEpochDay(), latestDay); day++) {
+      for (int code : codes) {
+        final Bucket b = buckets.get(bucketKey(code, day));
+        if (b != null) {
+          out.add(b);
+        }
+      }
+    }
+    return out;
+  }
+
+  /**
+   * @param k videos wanted
+   * @return the most watched VideoIDs of all time with their estimates, most watched first
+   */
+  Map<Integer, Estimate> topVideos(int k) {
+    lock.readLock().lock();
+    try {
+      final Map<Integer, Estimate> top = new LinkedHashMap<>();
+      candidates.entrySet().stream()
+          .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+          .limit(k)
+          .forEach(e -> top.put(e.getKey(),
+              Estimate.count(allWatches.estimate(e.getKey()), allWatches)));
+      return top;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the latest day a watch was counted on
+   */
+  LocalDate latestDay() {
+    lock.readLock().lock();
+    try {
+      return latestDay == Long.MIN_VALUE ? LocalDate.now() : LocalDate.ofEpochDay(latestDay);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return bytes held by the sketches
+   */
+  long sketchBytes() {
+    lock.readLock().lock();
+    try {
+      final long cms = (long) WIDTH * DEPTH * 8;
+      return (long) (showViewers.size() + appViewers.size()) * (1 << PRECISION)
+          + (buckets.size() + earlier.size()) * ((1L << BUCKET_PRECISION) + cms) + 8 * cms;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Prints a dashboard, with exact SQL counts for comparison
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      long start = System.nanoTime();
+      final ViewerAnalytics a = load(connection);
+      System.out.printf("Sketched history in %.1f ms, %d KB of sketches%n",
+          (System.nanoTime() - start) / 1e6, a.sketchBytes() / 1024);
+
+      start = System.nanoTime();
+      final Map<Integer, Estimate> top = a.topVideos(5);
+      System.out.printf("%nTop videos (%.0f us):%n", (System.nanoTime() - start) / 1e3);
+      for (Map.Entry<Integer, Estimate> e : top.entrySet()) {
+        System.out.printf("VIDEO ID: %d, WATCHES: %s, EXACT: %d%n", e.getKey(), e.getValue(),
+            exact(connection, "SELECT COUNT(*) FROM UserVideoWatched WHERE VideoID = ?",
+                e.getKey()));
+      }
+
+      start = System.nanoTime();
+      final Estimate show = a.showViewers(1);
+      System.out.printf("%nShow 1 unique viewers (%.0f us): %s, EXACT: %d%n",
+          (System.nanoTime() - start) / 1e3, show, exact(connection,
+              "SELECT COUNT(DISTINCT w.UserID) FROM UserVideoWatched w"
+                  + " JOIN Video v ON v.VideoID = w.VideoID WHERE v.ShowID = ?", 1));
+
+      final LocalDate to = a.latestDay();
+      final LocalDate from = to.minusDays(29);
+      start = System.nanoTime();
+      final Estimate month = a.viewers(null, from, to);
+      System.out.printf("Unique viewers in the 30 days to %s (%.0f us): %s, EXACT: %d%n", to,
+          (System.nanoTime() - start) / 1e3, month, exactInRange(connection, from, to));
+    }
+  }
+
+  private static long exact(Connection connection, String sql, int id) throws SQLException {
+    try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+      stmt.setInt(1, id);
+      try (final ResultSet res = stmt.executeQuery()) {
+        return res.next() ? res.getLong(1) : 0;
+      }
+    }
+  }
+
+  private static long exactInRange(Connection connection, LocalDate from, LocalDate to)
+      throws SQLException {
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT COUNT(DISTINCT UserID) FROM UserVideoWatched"
+            + " WHERE WatchedAt >= ? AND WatchedAt < ?")) {
+      stmt.setTimestamp(1, Timestamp.valueOf(from.atStartOfDay()));
+      stmt.setTimestamp(2, Timestamp.valueOf(to.plusDays(1).atStartOfDay()));
+      try (final ResultSet res = stmt.executeQuery()) {
+        return res.next() ? res.getLong(1) : 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans recorded watches out to the in-memory indexes that follow them, so each stays current
+ * without polling UserVideoWatched. Indexes subscribe when they become the shared instance.
+ */
+final class WatchEvents {
+
+  /**
+   * Receives watches after they are stored
+   */
+  interface Listener {
+
+    void watched(int userId, int videoId, LocalDateTime at);
+  }
+
+  private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+  private WatchEvents() {
+  }
+
+  static void subscribe(Listener listener) {
+    LISTENERS.add(listener);
+  }
+
+  static void unsubscribe(Listener listener) {
+    LISTENERS.remove(listener);
+  }
+
+  /**
+   * Passes a stored watch to every listener; a failing listener does not stop the others
+   */
+  static void publish(int userId, int videoId, LocalDateTime at) {
+    for (Listener listener : LISTENERS) {
+      try {
+        listener.watched(userId, videoId, at);
+      } catch (RuntimeException e) {
+        System.err.printf("Watch listener failed: %s%n", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,283 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Month-partitioned watch history with daily rollups.
+ *
+ * <p>UserVideoWatched holds the live watch rows; on MySQL, {@link #partition} splits it into
+ * one RANGE partition per month of WatchedAt. {@link #compact} rolls whole months into
+ * per-video daily counts in VideoWatchDaily and advances the compaction boundary in the same
+ * transaction, then drops the month's partition (or deletes its rows in chunks when the
+ * table is not partitioned). The watch-count reports combine rollups before the boundary
+ * with live rows from it onwards (see {@link #bindWindow}), so they stay correct at every
+ * step, and a time window bounds how much of either they read.
+ *
+ * <p>Usage: {@code java WatchHistory [--profile mysql|embedded] [--url JDBC_URL]
+ * [--partition-through 2021-12] [--compact-before 2020-06]}
+ */
+public class WatchHistory {
+
+  /**
+   * Earliest date MySQL accepts, used when nothing has been compacted yet
+   */
+  private static final LocalDate EPOCH = LocalDate.of(1000, 1, 1);
+
+  /**
+   * Rows per DELETE when removing a compacted month from an unpartitioned table
+   */
+  private static final int DELETE_CHUNK = 10_000;
+
+  private WatchHistory() {
+  }
+
+  /**
+   * First day not yet compacted, read inside the report's own statement so that it sees the
+   * same boundary as the rows it counts. A compaction committing between two statements would
+   * otherwise leave its month in neither the rollups nor the live rows.
+   */
+  private static final String BOUNDARY = "(SELECT COALESCE(MAX(CompactedBefore), DATE '"
+      + EPOCH + "') FROM WatchCompaction)";
+
+  /**
+   * Derived table of (VideoID, Watches) for a window: live rows from the later of the window
+   * start and the compaction boundary, plus rollups from the window start up to the
+   * boundary. A video can appear twice, so sum Watches when grouping. Bind its parameters
+   * with {@link #bindWindow}.
+   */
+  static final String WATCH_COUNTS = "(SELECT VideoID, COUNT(*) AS Watches"
+      + " FROM UserVideoWatched WHERE WatchedAt >= ? AND WatchedAt >= " + BOUNDARY
+      + " GROUP BY VideoID"
+      + " UNION ALL SELECT VideoID, SUM(Watches) AS Watches"
+      + " FROM VideoWatchDaily WHERE WatchDate >= ? AND WatchDate < " + BOUNDARY
+      + " GROUP BY VideoID)";
+
+  /**
+   * Binds the parameters of {@link #WATCH_COUNTS}
+   *
+   * @param stmt  statement containing WATCH_COUNTS
+   * @param index index of its first parameter
+   * @param since start of the window, or null for all history; rollups count whole days, so
+   *              a window starting mid-day includes that whole day's rollup
+   * @return index of the next parameter
+   * @throws SQLException SQL gone bad
+   */
+  static int bindWindow(PreparedStatement stmt, int index, LocalDateTime since)
+      throws SQLException {
+    final LocalDateTime from = since == null ? EPOCH.atStartOfDay() : since;
+    stmt.setTimestamp(index, Timestamp.valueOf(from));
+    stmt.setDate(index + 1, Date.valueOf(from.toLocalDate()));
+    return index + 2;
+  }
+
+  /**
+   * @param connection database connection
+   * @return first day not yet compacted into VideoWatchDaily
+   * @throws SQLException SQL gone bad
+   */
+  static LocalDate compactedBefore(Connection connection) throws SQLException {
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT MAX(CompactedBefore) FROM WatchCompaction");
+        final ResultSet res = stmt.executeQuery()) {
+      final Date date = res.next() ? res.getDate(1) : null;
+      return date == null ? EPOCH : date.toLocalDate();
+    }
+  }
+
+  /**
+   * Rolls every month before the given one into VideoWatchDaily, oldest first, and removes
+   * their live rows
+   *
+   * @param connection database connection (autocommit is restored afterwards)
+   * @param before     first month to keep live
+   * @return months compacted
+   * @throws SQLException SQL gone bad
+   */
+  static int compact(Connection connection, YearMonth before) throws SQLException {
+    final LocalDate boundary = compactedBefore(connection);
+    YearMonth month;
+    if (boundary.equals(EPOCH)) {
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          "SELECT MIN(WatchedAt) FROM UserVideoWatched");
+          final ResultSet res = stmt.executeQuery()) {
+        final Timestamp first = res.next() ? res.getTimestamp(1) : null;
+        if (first == null) {
+          return 0;
+        }
+        month = YearMonth.from(first.toLocalDateTime());
+      }
+    } else {
+      month = YearMonth.from(boundary);
+    }
+
+    int compacted = 0;
+    for (; month.isBefore(before); month = month.plusMonths(1)) {
+      rollUp(connection, month);
+      removeLive(connection, month);
+      compacted++;
+    }
+    return compacted;
+  }
+
+  private static void rollUp(Connection connection, YearMonth month) throws SQLException {
+    final boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try (final PreparedStatement rollup = connection.prepareStatement(
+        "INSERT INTO VideoWatchDaily (VideoID, WatchDate, Watches)"
+            + " SELECT VideoID, CAST(WatchedAt AS DATE), COUNT(*) FROM UserVideoWatched"
+            + " WHERE WatchedAt >= ? AND WatchedAt < ?"
+            + " GROUP BY VideoID, CAST(WatchedAt AS DATE)");
+        final PreparedStatement advance = connection.prepareStatement(
+            "INSERT INTO WatchCompaction (CompactedBefore) VALUES (?)")) {
+      rollup.setTimestamp(1, Timestamp.valueOf(month.atDay(1).atStartOfDay()));
+      rollup.setTimestamp(2, Timestamp.valueOf(month.plusMonths(1).atDay(1).atStartOfDay()));
+      rollup.executeUpdate();
+      advance.setDate(1, Date.valueOf(month.plusMonths(1).atDay(1)));
+      advance.executeUpdate();
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Removes a compacted month's live rows; reports already ignore them, so this can run in
+   * small steps
+   */
+  private static void removeLive(Connection connection, YearMonth month) throws SQLException {
+    final String partition = partitionName(month);
+    if (partitions(connection).contains(partition)) {
+      try (final Statement stmt = connection.createStatement()) {
+        stmt.executeUpdate("ALTER TABLE UserVideoWatched DROP PARTITION " + partition);
+      }
+      return;
+    }
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "DELETE FROM UserVideoWatched WHERE WatchedAt >= ? AND WatchedAt < ? LIMIT "
+            + DELETE_CHUNK)) {
+      stmt.setTimestamp(1, Timestamp.valueOf(month.atDay(1).atStartOfDay()));
+      stmt.setTimestamp(2, Timestamp.valueOf(month.plusMonths(1).atDay(1).atStartOfDay()));
+      while (stmt.executeUpdate() == DELETE_CHUNK) {
+        // next chunk
+      }
+    }
+  }
+
+  /**
+   * Partitions UserVideoWatched by month of WatchedAt (MySQL only), from the oldest live row
+   * through the given month, with a catch-all partition after it. Run again to add months:
+   * the catch-all is split.
+   *
+   * @param connection database connection
+   * @param through    last month to give its own partition
+   * @throws SQLException SQL gone bad, or the server does not support partitioning
+   */
+  static void partition(Connection connection, YearMonth through) throws SQLException {
+    final List<String> existing = partitions(connection);
+    try (final Statement stmt = connection.createStatement()) {
+      if (existing.isEmpty()) {
+        YearMonth month = YearMonth.from(compactedBefore(connection));
+        try (final ResultSet res = stmt.executeQuery(
+            "SELECT MIN(WatchedAt) FROM UserVideoWatched")) {
+          final Timestamp first = res.next() ? res.getTimestamp(1) : null;
+          if (first != null && YearMonth.from(first.toLocalDateTime()).isAfter(month)) {
+            month = YearMonth.from(first.toLocalDateTime());
+          }
+        }
+        // Every unique key must include the partitioning column
+        stmt.executeUpdate("ALTER TABLE UserVideoWatched DROP PRIMARY KEY,"
+            + " ADD PRIMARY KEY (WatchID, WatchedAt)");
+        stmt.executeUpdate("ALTER TABLE UserVideoWatched"
+            + " PARTITION BY RANGE COLUMNS (WatchedAt) (" + ranges(month, through)
+            + "PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+        return;
+      }
+      YearMonth last = null;
+      for (String name : existing) {
+        if (!name.equals("pmax")) {
+          final YearMonth month = YearMonth.of(Integer.parseInt(name.substring(1, 5)),
+              Integer.parseInt(name.substring(5)));
+          last = last == null || month.isAfter(last) ? month : last;
+        }
+      }
+      if (last != null && last.isBefore(through)) {
+        stmt.executeUpdate("ALTER TABLE UserVideoWatched REORGANIZE PARTITION pmax INTO ("
+            + ranges(last.plusMonths(1), through)
+            + "PARTITION pmax VALUES LESS THAN (MAXVALUE))");
+      }
+    }
+  }
+
+  private static String ranges(YearMonth from, YearMonth through) {
+    final StringBuilder sb = new StringBuilder();
+    for (YearMonth m = from; !m.isAfter(through); m = m.plusMonths(1)) {
+      sb.append("PARTITION ").append(partitionName(m)).append(" VALUES LESS THAN ('")
+          .append(m.plusMonths(1).atDay(1)).append("'), ");
+    }
+    return sb.toString();
+  }
+
+  private static String partitionName(YearMonth month) {
+    return String.format("p%04d%02d", month.getYear(), month.getMonthValue());
+  }
+
+  /**
+   * @return partition names of UserVideoWatched; empty if unpartitioned or not MySQL
+   */
+  private static List<String> partitions(Connection connection) {
+    final List<String> names = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT PARTITION_NAME FROM information_schema.PARTITIONS"
+            + " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'UserVideoWatched'"
+            + " AND PARTITION_NAME IS NOT NULL");
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        names.add(res.getString(1));
+      }
+    } catch (SQLException e) {
+      // No information_schema.PARTITIONS: not partitioned
+    }
+    return names;
+  }
+
+  /**
+   * Partitions and/or compacts
+   *
+   * @param args see class comment
+   * @throws SQLException SQL gone bad
+   */
+  public static void main(String[] args) throws SQLException {
+    final Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+    }
+    try (final ConnectionPool pool = DbConfig.load(QueryBenchmark.dbOverrides(opts))
+        .openPool(1);
+        final Connection connection = pool.getConnection()) {
+      if (opts.containsKey("partition-through")) {
+        partition(connection, YearMonth.parse(opts.get("partition-through")));
+        System.out.printf("Partitions: %s%n", partitions(connection));
+      }
+      if (opts.containsKey("compact-before")) {
+        final long start = System.nanoTime();
+        final int months = compact(connection, YearMonth.parse(opts.get("compact-before")));
+        System.out.printf("Compacted %d months in %.1f s; live history starts %s%n", months,
+            (System.nanoTime() - start) / 1e9, compactedBefore(connection));
+      }
+    }
+  }
+}
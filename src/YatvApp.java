@@ -1,12 +1,9 @@
 import java.sql.Connection;
-import java.sql.Date;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.LocalDate;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Scanner;
-import org.mindrot.jbcrypt.BCrypt;
 
 /**
  * Command-line application for querying the YaTV Database in MySQL.
@@ -16,13 +13,44 @@ import org.mindrot.jbcrypt.BCrypt;
 public class YatvApp {
 
   /**
-   * Allowed query types
+   * Allowed query types, each with whether it is read-only and the shape of its parameters
    */
-  private static enum QueryTypes {
-    RegisterUser, SubscribeUser, AddToMyList, UpdatePlatformVersion, AddLatestVideo,
-    MostWatchedShowsByApp, FindFreeVideosByPlatform, FindLongVideosNoShow,
-    AppRevenueByCountry, TopThreeWatchedTags, HighestCustomer, LowestApp, MostProfitableVideos,
-    MostWatchedEpisodes, MobileAppsRevenueRanked
+  static enum QueryTypes {
+    RegisterUser(false, "fname:String,lname:String,country:String,email:String,password:String"),
+    SubscribeUser(false, "userId:int,appIds:int[],months:int[]"),
+    AddToMyList(false, "userId:int,showId:int"),
+    UpdatePlatformVersion(false, "appId:int,platformId:int,version:float"),
+    AddLatestVideo(false, "showId:int,title:String,description:String,duration:int,"
+        + "subNeeded:boolean,releaseDate:String"),
+    MostWatchedShowsByApp(true, ""),
+    FindFreeVideosByPlatform(true, "platformId:String"),
+    FindLongVideosNoShow(true, ""),
+    AppRevenueByCountry(true, "country:String"),
+    TopThreeWatchedTags(true, ""),
+    HighestCustomer(true, "country:String"),
+    LowestApp(true, "country:String"),
+    MostProfitableVideos(true, "country:String"),
+    MostWatchedEpisodes(true, "showId:int"),
+    MobileAppsRevenueRanked(true, "country:String"),
+    Authenticate(true, "email:String,password:String"),
+    BrowseByTags(true, "query:String"),
+    Search(true, "query:String"),
+    RecordWatch(false, "userId:int,videoId:int"),
+    ViewerStats(true, "showId:int"),
+    TrendingShows(true, "hours:int"),
+    CanWatch(true, "userId:int,videoId:int,platformId:int"),
+    RemoveFromMyList(false, "userId:int,showId:int");
+
+    /**
+     * Whether the query only reads, and so may run on a replica
+     */
+    final boolean readOnly;
+    final String parameterShape;
+
+    QueryTypes(boolean readOnly, String parameterShape) {
+      this.readOnly = readOnly;
+      this.parameterShape = parameterShape;
+    }
   }
 
   /**
@@ -51,7 +79,8 @@ public class YatvApp {
     System.out.printf("Usage: java %s <path to database> <query #> [parameter values]%n%n",
         YatvApp.class.getCanonicalName());
     System.out.printf("1) Register a new user [parameter values] %n");
-    System.out.printf("2) Subscribe a user [parameter value] to an app [parameter value] %n");
+    System.out.printf("2) Subscribe a user [parameter value] to one or more apps"
+        + " [parameter values] %n");
     System.out.printf("3) Add a show to a user’s [parameter value] “My List” ? %n");
     System.out.printf("4) Update an app’s [parameter value] version on a platform %n");
     System.out.printf("5) Add a new video [parameter value] (with all associated meta data),"
@@ -75,6 +104,16 @@ public class YatvApp {
     System.out
         .printf("REPORT 5- Produce an ordered list of apps revenue (rounded to the nearest tenth)"
             + " by country for mobile users %n");
+    System.out.printf("16) Log in with an email and password [parameter values] %n");
+    System.out.printf("17) Browse videos by tags, e.g. Drama AND NOT Kids [parameter value] %n");
+    System.out.printf("18) Search video and show titles and descriptions [parameter value] %n");
+    System.out.printf("19) Record a user watching a video [parameter values] %n");
+    System.out.printf("20) Approximate unique viewers and most watched videos"
+        + " [parameter value] %n");
+    System.out.printf("21) Top 10 trending shows over the last hours [parameter value] %n");
+    System.out.printf("22) Check whether a user may play a video on a platform"
+        + " [parameter values] %n");
+    System.out.printf("23) Remove a show from a user's list [parameter values] %n");
 
     System.exit(0);
     return null;
@@ -127,6 +166,22 @@ public class YatvApp {
         return new QueryData((QueryTypes.MostWatchedEpisodes));
       } else if (queryNum == 15) {
         return new QueryData((QueryTypes.MobileAppsRevenueRanked));
+      } else if (queryNum == 16) {
+        return new QueryData(QueryTypes.Authenticate);
+      } else if (queryNum == 17) {
+        return new QueryData(QueryTypes.BrowseByTags);
+      } else if (queryNum == 18) {
+        return new QueryData(QueryTypes.Search);
+      } else if (queryNum == 19) {
+        return new QueryData(QueryTypes.RecordWatch);
+      } else if (queryNum == 20) {
+        return new QueryData(QueryTypes.ViewerStats);
+      } else if (queryNum == 21) {
+        return new QueryData(QueryTypes.TrendingShows);
+      } else if (queryNum == 22) {
+        return new QueryData(QueryTypes.CanWatch);
+      } else if (queryNum == 23) {
+        return new QueryData(QueryTypes.RemoveFromMyList);
       } else {
         return _usage();
       }
@@ -136,6 +191,97 @@ public class YatvApp {
     }
   }
 
+  /**
+   * Prints "viewers also watched" for a show when {@code -Dyatv.recommend=true}, building the
+   * co-watch index on first use
+   *
+   * @param connection database connection
+   * @param showId     show
+   * @throws SQLException SQL gone bad
+   */
+  private static void alsoWatched(Connection connection, int showId) throws SQLException {
+    if (!Boolean.getBoolean("yatv.recommend")) {
+      return;
+    }
+    CoWatchIndex index = CoWatchIndex.shared();
+    if (index == null) {
+      index = CoWatchIndex.loadShared(connection);
+    }
+    index.print(System.out, showId, CoWatchIndex.DEFAULT_TOP);
+  }
+
+  /**
+   * Start of the watch-count window set with {@code -Dyatv.window.days=N}
+   *
+   * @return N days ago, or null (all history) if not set
+   */
+  private static LocalDateTime watchWindow() {
+    final Integer days = Integer.getInteger("yatv.window.days");
+    return days == null ? null : LocalDateTime.now().minusDays(days);
+  }
+
+  /**
+   * Answer that asks for the next page of a listing
+   */
+  private static final String MORE = "+";
+
+  /**
+   * One page of a keyset-paginated listing
+   */
+  private interface Page<K> {
+
+    /**
+     * @param after key returned by the previous page
+     * @return key for the next page, or null if this was the last
+     */
+    K show(K after) throws SQLException;
+  }
+
+  /**
+   * Shows the first page of a listing and prompts for a choice; answering "+" shows the next
+   * page and prompts again
+   *
+   * @param input     user input
+   * @param prompt    prompt, without the trailing colon
+   * @param first     key of the first page
+   * @param page      listing
+   * @param wholeLine read the answer as a whole line rather than a single token
+   * @return the answer
+   * @throws SQLException SQL gone bad
+   */
+  private static <K> String pick(Scanner input, String prompt, K first, Page<K> page,
+      boolean wholeLine) throws SQLException {
+    K next = page.show(first);
+    while (true) {
+      System.out.printf(next == null ? "%s: " : "%s (" + MORE + " for more): ", prompt);
+      final String answer = wholeLine ? input.nextLine() : input.next();
+      if (!answer.trim().equals(MORE)) {
+        return answer;
+      }
+      if (next != null) {
+        next = page.show(next);
+      }
+    }
+  }
+
+  /**
+   * Offers the remaining pages of a display, one page per "+"
+   *
+   * @param input user input
+   * @param next  key of the next page, or null if there is none
+   * @param page  listing
+   * @throws SQLException SQL gone bad
+   */
+  private static <K> void more(Scanner input, K next, Page<K> page) throws SQLException {
+    while (next != null) {
+      System.out.printf("Enter " + MORE + " for more, anything else to finish: ");
+      if (!input.next().equals(MORE)) {
+        return;
+      }
+      next = page.show(next);
+    }
+  }
+
   /**
    * Command-line Chinook utility
    *
@@ -148,9 +294,13 @@ public class YatvApp {
     // Validates the inputs, exits if bad
     final QueryData qd = validateInputs(args);
 
-    // Makes a connection to the database
-    try (final Connection connection =
-        DriverManager.getConnection("jdbc:mysql://localhost/Project?useUnicode=true&useJDBCCompliantTimezoneShift=true&useLegacyDatetimeCode=false&serverTimezone=EST", "root", "");
+    // Times every phase of this query (see QueryMetrics)
+    final QueryMetrics.Call call = QueryMetrics.get().begin(qd.queryType);
+
+    // Makes a connection to the database (see DbConfig for the settings); read-only queries
+    // go to the replica if one is configured
+    try (final ConnectionRouter router = DbConfig.load().openRouter();
+        final Connection connection = InstrumentedJdbc.connect(call, router);
         final Scanner input = new Scanner(System.in)) {
 
       // QUERY 1- User Registration
@@ -167,37 +317,7 @@ public class YatvApp {
         System.out.printf("Enter Your Password: ");
         final String password = input.nextLine();
 
-        final String sql =
-            "INSERT INTO User (UserId, FirstName, LastName, Country, Email, Password) "
-                + "VALUES (DEFAULT, ?, ?, ?, ?, ?)";
-        final String sql2 = "SELECT * FROM User u WHERE u.Email=?";
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          final PreparedStatement stmt2 = connection.prepareStatement(sql2);
-
-          //Hashing User's Password (Salt: 9)
-          String hashedPass = BCrypt.hashpw(password, BCrypt.gensalt(9));
-
-          // Executing the INSERT
-          stmt.setString(1, fname);
-          stmt.setString(2, lname);
-          stmt.setString(3, country);
-          stmt.setString(4, email);
-          stmt.setString(5, hashedPass);
-          stmt.executeUpdate();
-
-          // Displaying the results of the INSERT statement
-          stmt2.setString(1, email);
-          try (final ResultSet res = stmt2.executeQuery()) {
-            while (res.next()) {
-              System.out
-                  .printf("REGISTERED! %n"
-                          + "USER ID: %d, FIRST NAME: %s, LAST NAME: %s, COUNTRY: %s, EMAIL: %s",
-                      res.getInt("UserID"), res.getString("FirstName"),
-                      res.getString("LastName"), res.getString("Country"),
-                      res.getString("Email"));
-            }
-          }
-        }
+        YatvQueries.registerUser(connection, System.out, fname, lname, country, email, password);
       }
 
       // QUERY 2- Subscribing a User to an App
@@ -207,62 +327,19 @@ public class YatvApp {
         final Integer userId = input.nextInt();
 
         System.out.printf("Available Apps: %n");
-        final String options = "SELECT a.AppID AS AppID, a.Name AS Name FROM App a";
-        try (final PreparedStatement apps = connection.prepareStatement(options)) {
-          try (final ResultSet res4 = apps.executeQuery()) {
-            while (res4.next()) {
-              System.out.printf("ID: %d Name: %s %n",
-                  res4.getInt("AppID"), res4.getString("Name"));
-            }
-          }
-        }
-        System.out.printf("Enter the AppID that you would like to subscribe to: ");
-        final Integer appId = input.nextInt();
-        System.out.printf("How many months would you like to uphold this subscription? ");
-        final Integer months = input.nextInt();
-
-        //Get current date and add # of months into the future
-        LocalDate expDates = LocalDate.now().plusMonths(months);
-
-        final String findCost = "SELECT a.MonthlyCost AS monthlyCost FROM App a WHERE a.AppID= ?";
-        final String ins = "INSERT INTO Subscription(UserID, Cost, ExpDate, AppID)"
-            + " VALUES (?, ?, ?, ?)";
-        final String display =
-            "SELECT u.UserID AS UserID, a.Name AS Name, s.Cost AS Cost, s.ExpDate AS ExpDate"
-                + " FROM Subscription s JOIN User u ON u.UserID = s.UserID"
-                + " JOIN App a ON s.AppID = a.AppID"
-                + " WHERE s.UserID = ?";
-        try (final PreparedStatement stmt = connection.prepareStatement(findCost)) {
-          final PreparedStatement stmt2 = connection.prepareStatement(ins);
-          final PreparedStatement stmt3 = connection.prepareStatement(display);
-
-          // Finding the Cost
-          stmt.setInt(1, appId);
-          try (final ResultSet res = stmt.executeQuery()) {
-            int cost = 0;
-            while (res.next()) {
-              cost = res.getInt("monthlyCost") * months;
-            }
-
-            // Executing the INSERT
-            stmt2.setInt(1, userId);
-            stmt2.setDouble(2, cost);
-            stmt2.setDate(3, Date.valueOf(expDates));
-            stmt2.setInt(4, appId);
-            stmt2.executeUpdate();
-
-            System.out.printf("Success! Current Subscriptions: %n");
-            // Displaying the Results
-            stmt3.setInt(1, userId);
-            try (final ResultSet res3 = stmt3.executeQuery()) {
-              while (res3.next()) {
-                System.out.printf("User ID: %d, App: %s, Cost: %d. ExpDate: %tF %n",
-                    res3.getInt("UserID"), res3.getString("Name"),
-                    res3.getInt("Cost"), res3.getDate("ExpDate"));
-              }
-            }
-          }
-        }
+        final String apps = pick(input,
+            "Enter the AppID(s) that you would like to subscribe to, separated by commas", 0,
+            after -> YatvQueries.listApps(connection, System.out, after, YatvQueries.PAGE_SIZE),
+            false);
+        final int[] appIds = Arrays.stream(apps.split(",")).map(String::trim)
+            .mapToInt(Integer::parseInt).toArray();
+        System.out.printf("How many months would you like to uphold these subscriptions? ");
+        final int[] months = new int[appIds.length];
+        Arrays.fill(months, input.nextInt());
+
+        more(input, YatvQueries.subscribeUser(connection, System.out, userId, appIds, months),
+            before -> YatvQueries.listSubscriptions(connection, System.out, userId, before,
+                YatvQueries.PAGE_SIZE));
       }
 
       // QUERY 3- Add a Show to User's List
@@ -272,136 +349,46 @@ public class YatvApp {
         final Integer userId = input.nextInt();
 
         System.out.printf("Available Shows: %n");
-        final String options = ("SELECT ShowID, Title FROM Shows");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("ID: %d Name: %s %n", res6.getInt("ShowID"),
-                  res6.getString("Title"));
-            }
-          }
-        }
-        System.out.printf("Enter the ShowID that you would like to add to your list: ");
-        final Integer showId = input.nextInt();
-
-        final String sql = "INSERT INTO MyListShow (UserId, ShowID)"
-            + " VALUES(?, ?)";
-        final String sql1 = "SELECT *"
-            + " FROM MyListShow m JOIN Shows s ON m.ShowID=s.ShowID"
-            + " WHERE m.UserID = ?";
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          final PreparedStatement stmt2 = connection.prepareStatement(sql1);
-
-          // Executing the INSERT
-          stmt.setInt(1, userId);
-          stmt.setInt(2, showId);
-          stmt.executeUpdate();
-
-          // Displaying the Results
-          System.out.printf("Success! Current Show(s) on Your List: %n");
-          stmt2.setInt(1, userId);
-          try (final ResultSet res2 = stmt2.executeQuery()) {
-            while (res2.next()) {
-              //Displaying current shows for this user's Mylist
-              System.out.printf(
-                  "USER ID: %d SHOW: %s %n",
-                  res2.getInt("UserID"),
-                  res2.getString("Title"));
-
-            }
-          }
-        }
+        final Integer showId = Integer.valueOf(pick(input,
+            "Enter the ShowID that you would like to add to your list", 0,
+            after -> YatvQueries.listShows(connection, System.out, after, YatvQueries.PAGE_SIZE),
+            false));
+
+        more(input, YatvQueries.addToMyList(connection, System.out, userId, showId),
+            after -> YatvQueries.listMyList(connection, System.out, userId, after,
+                YatvQueries.PAGE_SIZE));
+        alsoWatched(connection, showId);
       }
 
       // QUERY 4- Update an App's Version Number on a Platform
       else if (qd.queryType == QueryTypes.UpdatePlatformVersion) {
 
         System.out.printf("Available Apps: %n");
-        final String options = "SELECT a.AppID AS AppID, a.Name AS Name FROM App a";
-        try (final PreparedStatement apps = connection.prepareStatement(options)) {
-          try (final ResultSet res4 = apps.executeQuery()) {
-            while (res4.next()) {
-              System.out.printf("ID: %d Name: %s %n",
-                  res4.getInt("AppID"), res4.getString("Name"));
-            }
-          }
-        }
-        System.out.printf("Enter the AppID of the App that you are Updating: ");
-        final Integer appId = input.nextInt();
-
-        final String appPlatform = "SELECT p.Name AS platName, p.PlatformID AS platID"
-            + " FROM AppPlatform ap JOIN App a ON ap.AppID=a.AppID"
-            + " JOIN Platform p ON ap.PlatformID=p.PlatformID"
-            + " WHERE ap.AppID=?";
-        System.out.printf("This App is available on Platform(s): %n");
+        final Integer appId = Integer.valueOf(pick(input,
+            "Enter the AppID of the App that you are Updating", 0,
+            after -> YatvQueries.listApps(connection, System.out, after, YatvQueries.PAGE_SIZE),
+            false));
 
         // Displaying the available Platforms for the selected App
-        try (final PreparedStatement stmt2 = connection.prepareStatement(appPlatform)) {
-          stmt2.setInt(1, appId);
-          try (final ResultSet res = stmt2.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("PlatformID: %d, Platform: %s %n",
-                  res.getInt("platID"), res.getString("platName"));
-            }
-          }
-        }
-        System.out.printf(
-            "Enter the PlatformID of the Platform on which you want to perform the update: ");
-        final Integer platId = input.nextInt();
+        System.out.printf("This App is available on Platform(s): %n");
+        final Integer platId = Integer.valueOf(pick(input,
+            "Enter the PlatformID of the Platform on which you want to perform the update", 0,
+            after -> YatvQueries.listAppPlatforms(connection, System.out, appId, after,
+                YatvQueries.PAGE_SIZE), false));
 
         System.out.printf("Enter the updated Version Number: ");
         final Float verNum = input.nextFloat();
 
-        final String insert = "UPDATE AppPlatform"
-            + " SET VersionNum = ?"
-            + " WHERE AppID = ? AND PlatformID = ?";
-        final String display =
-            "SELECT a.Name AS appName, p.Name as platName, ap.VersionNum AS verNum"
-                + " FROM AppPlatform ap JOIN App a ON ap.AppID=a.AppID"
-                + " JOIN Platform p ON ap.PlatformID=p.PlatformID"
-                + " WHERE ap.AppID = ? AND ap.PlatformID = ?";
-
-        try (final PreparedStatement stmt = connection.prepareStatement(insert)) {
-          final PreparedStatement stmt1 = connection.prepareStatement(display);
-
-          // Executing the INSERT
-          stmt.setFloat(1, verNum);
-          stmt.setInt(2, appId);
-          stmt.setInt(3, platId);
-          stmt.executeUpdate();
-
-          // Displaying the Results
-          stmt1.setInt(1, appId);
-          stmt1.setInt(2, platId);
-          try (final ResultSet res1 = stmt1.executeQuery()) {
-            while (res1.next()) {
-              System.out.printf(
-                  "Success! Current Version of this App on this Platform: %n" +
-                      "APP: %s, PLATFORM: %s, Version Number: %.2f %n",
-                  res1.getString("appName"), res1.getString("platName"),
-                  res1.getFloat("verNum"));
-
-
-            }
-          }
-        }
+        YatvQueries.updatePlatformVersion(connection, System.out, appId, platId, verNum);
       }
 
       // QUERY 5- Add the Latest Video in a Show's Current Season
       else if (qd.queryType == QueryTypes.AddLatestVideo) {
 
         System.out.printf("Available Shows: %n");
-        final String options = ("SELECT ShowID, Title FROM Shows");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("ID: %d Name: %s %n", res6.getInt("ShowID"),
-                  res6.getString("Title"));
-            }
-          }
-        }
-        System.out.printf("Enter the ShowID: ");
-        final Integer showId = input.nextInt();
+        final Integer showId = Integer.valueOf(pick(input, "Enter the ShowID", 0,
+            after -> YatvQueries.listShows(connection, System.out, after, YatvQueries.PAGE_SIZE),
+            false));
         input.nextLine();
         System.out.printf("Enter the Title of the Video: ");
         final String title = input.nextLine();
@@ -417,236 +404,52 @@ public class YatvApp {
         System.out.printf("Enter the Release Date as YYYY-MM-DD: ");
         final String releaseDate = input.nextLine();
 
-        final String getApp = "SELECT a.AppID AS appID"
-            + " FROM Video v JOIN App a ON a.AppID = v.AppID"
-            + " WHERE v.VideoID IN ("
-            + " SELECT s.VideoID FROM Seasons s WHERE s.ShowID = ? GROUP BY s.ShowID)"
-            + " GROUP BY a.AppID";
-        final String video =
-            "INSERT INTO Video (VideoID, Title, Description, Duration, AppID, SubNeeded, ReleaseDate, ShowID) VALUES"
-                + " (DEFAULT, ?, ?, ?, ?, ?, ?, ?) ";
-        final String getVidId = "SELECT v.VideoId AS vidId FROM Video v WHERE v.Title = ?";
-        final String currSeason =
-            "SELECT MAX(s.SeasonNum) AS currSeason, MAX(s.EpisodeNum) AS maxEp"
-                + " FROM Seasons s"
-                + " WHERE s.ShowID = ?";
-        final String season =
-            "INSERT INTO Seasons (SeasonID, ShowID, VideoID, SeasonNum, EpisodeNum) VALUES"
-                + " (DEFAULT, ?, ?, ?, ?) ";
-        final String display = "SELECT sh.Title as showName, v.Title as vidName,"
-            + " s.SeasonNum as seasonNum, s.EpisodeNum as epNum"
-            + " FROM Seasons s JOIN Shows sh ON s.ShowID=sh.ShowID"
-            + " JOIN Video v ON v.VideoID=s.VideoID"
-            + " WHERE sh.ShowID=?";
-
-        try (final PreparedStatement stmt = connection.prepareStatement(video)) {
-          final PreparedStatement stmt2 = connection.prepareStatement(getVidId);
-          final PreparedStatement stmt3 = connection.prepareStatement(season);
-          final PreparedStatement stmt4 = connection.prepareStatement(currSeason);
-          final PreparedStatement stmt5 = connection.prepareStatement(display);
-          final PreparedStatement stmt6 = connection.prepareStatement(getApp);
-
-          // Finding the Shows AppID
-          stmt6.setInt(1, showId);
-          int appId = 0;
-          try (final ResultSet res = stmt6.executeQuery()) {
-            while (res.next()) {
-              appId = res.getInt("appID");
-            }
-
-            // Executing the INSERT into Video
-            stmt.setString(1, title);
-            stmt.setString(2, desc);
-            stmt.setInt(3, duration);
-            stmt.setInt(4, appId);
-            stmt.setBoolean(5, sub);
-            stmt.setString(6, releaseDate);
-            stmt.setInt(7, showId);
-            stmt.executeUpdate();
-
-            // Getting the VideoID
-            int vidId = 0;
-            stmt2.setString(1, title);
-            try (final ResultSet res2 = stmt2.executeQuery()) {
-              while (res2.next()) {
-                vidId = res2.getInt("vidId");
-              }
-
-              // Getting the Current Season
-              int curSea = 0;
-              int maxEpisode = 0;
-              stmt4.setInt(1, showId);
-              try (final ResultSet res3 = stmt4.executeQuery()) {
-                while (res3.next()) {
-                  curSea = res3.getInt("currSeason");
-                  maxEpisode = res3.getInt("maxEp") + 1;
-                }
-
-                // Executing the INSERT into Seasons
-                stmt3.setInt(1, showId);
-                stmt3.setInt(2, vidId);
-                stmt3.setInt(3, curSea);
-                stmt3.setInt(4, maxEpisode);
-                stmt3.executeUpdate();
-              }
-
-              System.out.printf("Success! Episodes in the Current Season: %n");
-              // Displaying the Results
-              stmt5.setInt(1, showId);
-              try (final ResultSet res4 = stmt5.executeQuery()) {
-                while (res4.next()) {
-                  System.out.printf("SHOW: %s, VIDEO: %s, SEASON: %d, EPISODE: %d %n",
-                      res4.getString("showName"), res4.getString("vidName"),
-                      res4.getInt("seasonNum"), res4.getInt("epNum"));
-                }
-              }
-            }
-          }
-        }
+        more(input, YatvQueries.addLatestVideo(connection, System.out, showId, title, desc,
+            duration, sub, releaseDate),
+            before -> YatvQueries.listEpisodes(connection, System.out, showId, before,
+                YatvQueries.PAGE_SIZE));
       }
 
       // QUERY 6- Produce a Ranked List of the Top 10 Most Watched Shows (each with its corresponding app).
       else if (qd.queryType == QueryTypes.MostWatchedShowsByApp) {
-        final String sql =
-            "SELECT q1.countWatch AS watchCount, q1.ShowName AS showName, a.Name AS appName"
-                + " FROM App a"
-                + " JOIN (SELECT COUNT(sh.ShowID) AS countWatch, sh.Title AS showName, v.AppID AS AppID"
-                + " FROM UserVideoWatched uw JOIN Video v ON v.VideoID = uw.VideoID"
-                + " JOIN Seasons se ON se.VideoID = v.VideoID"
-                + " JOIN Shows sh ON sh.ShowID = se.ShowID"
-                + " GROUP BY sh.ShowID) q1 ON a.AppID = q1.AppID"
-                + " ORDER BY q1.countWatch DESC LIMIT 10";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("WATCH COUNT: %s SHOW: %s APP: %s %n",
-                  res.getString("watchCount"),
-                  res.getString("showName"),
-                  res.getString("appName"));
-            }
-          }
-        }
+        YatvQueries.mostWatchedShowsByApp(connection, System.out, watchWindow());
       }
 
       // QUERY 7- Find All Free Videos on a Particular Platform
       else if (qd.queryType == QueryTypes.FindFreeVideosByPlatform) {
 
         System.out.printf("Available Platforms: %n");
-        final String options = "SELECT p.PlatformID AS platID, p.Name AS Name FROM Platform p";
-        try (final PreparedStatement plats = connection.prepareStatement(options)) {
-          try (final ResultSet res4 = plats.executeQuery()) {
-            while (res4.next()) {
-              System.out.printf("ID: %d Name: %s %n",
-                  res4.getInt("platID"), res4.getString("Name"));
-            }
-          }
-        }
-        System.out.printf("Enter the PlatformID: ");
-        final String platformId = input.nextLine();
-
-        final String sql = " SELECT p.Name as PlatformName, v.Title AS VideoTitle"
-            + " FROM AppPlatform ap JOIN Platform p ON p.PlatformID = ap.PlatformID "
-            + " JOIN App a ON a.AppID = ap.AppID "
-            + " JOIN Video v ON v.AppID = a.AppID "
-            + " WHERE v.SubNeeded = 0 AND p.PlatformID = ?";
-
-        // Executing the query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to PlatformID
-          stmt.setString(1, platformId);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("PLATFORM: %s, VIDEO NAME: %s %n",
-                  res.getString("PlatformName"),
-                  res.getString("VideoTitle"));
-            }
-          }
-        }
+        final String platformId = pick(input, "Enter the PlatformID", 0,
+            after -> YatvQueries.listPlatforms(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), false);
+
+        YatvQueries.findFreeVideosByPlatform(connection, System.out, platformId);
       }
 
       // QUERY 8- Find All Long Videos Released This Year That Are Not Part of Any Show
       // Long Videos are Videos with a duration of over 1000
       else if (qd.queryType == QueryTypes.FindLongVideosNoShow) {
-        final String sql =
-            "SELECT v.VideoID AS videoID, v.Title AS videoTitle, v.Duration AS duration"
-                + " FROM Video v"
-                + " WHERE (v.VideoID NOT IN (SELECT s.VideoID FROM Seasons s))"
-                + " AND (v.ReleaseDate LIKE '%2020%') "
-                + " AND (v.Duration > 1000)";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("VIDEO ID: %s, TITLE: %s, DURATION: %d %n",
-                  res.getString("videoID"),
-                  res.getString("videoTitle"),
-                  res.getInt("duration"));
-
-            }
-          }
-        }
+        YatvQueries.findLongVideosNoShow(connection, System.out);
       }
 
       // QUERY 9- Produce a Ranked List of Revenue Generated by Apps in a Country
       else if (qd.queryType == QueryTypes.AppRevenueByCountry) {
 
         System.out.printf("Available Countries: %n");
-        final String options = ("SELECT DISTINCT Country FROM User");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("COUNTRY: %s %n", res6.getString("Country"));
-            }
-          }
-        }
-        System.out.printf("Enter the Country: ");
-        final String country = input.nextLine();
-
-        final String sql =
-            "SELECT u.Country AS Country, SUM(s.Cost) AS Revenue, a.Name AS AppName"
-                + " FROM Subscription s JOIN User u ON s.UserID = u.UserID"
-                + " JOIN App a ON a.AppID = s.AppID"
-                + " WHERE u.Country = ?"
-                + " GROUP BY a.AppID"
-                + " ORDER BY Revenue DESC";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to Country
-          stmt.setString(1, country);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("COUNTRY: %s, APP: %s, REVENUE: %s %n",
-                  res.getString("Country"),
-                  res.getString("AppName"),
-                  res.getString("Revenue"));
-            }
-          }
+        final String country = pick(input, "Enter the Country (or ALL for every country)", "",
+            after -> YatvQueries.listCountries(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), true);
+
+        if (CountryReports.isAll(country)) {
+          CountryReports.runAll(router, connection, qd.queryType, System.out);
+        } else {
+          YatvQueries.appRevenueByCountry(connection, System.out, country);
         }
       }
 
       // QUERY 10- Produce a Ranked List of Watch Count from the Top 3 Video Tags
       else if (qd.queryType == QueryTypes.TopThreeWatchedTags) {
-        final String sql = "SELECT (COUNT(uvm.VideoID)) AS viewCount,"
-            + " t.Tag AS tagName FROM Tag t"
-            + " INNER JOIN Video v ON v.VideoID = t.VideoID"
-            + " JOIN UserVideoWatched uvm ON v.VideoID = uvm.VideoID"
-            + " GROUP BY tagName"
-            + " ORDER by viewCount DESC LIMIT 3";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("VIEW COUNT: %s, TAG NAME: %s %n",
-                  res.getString("viewCount"),
-                  res.getString("tagName"));
-            }
-          }
-        }
+        YatvQueries.topThreeWatchedTags(connection, System.out, watchWindow());
       }
 
       // REPORT QUERY 1 (QUERY 11)
@@ -654,7 +457,7 @@ public class YatvApp {
       // There is:
       // - 2 aggregate function SUM, MAX
       // - Strong Motivation/Justification: Finding the customer with the highest sales revenue can help with
-      //   customer service and such
+      //   customer service and such
       // - 1 non-aggregate function ROUND
       // - 1 Grouping
       // - 1 Subquery
@@ -663,36 +466,14 @@ public class YatvApp {
       else if (qd.queryType == QueryTypes.HighestCustomer) {
 
         System.out.printf("Available Countries: %n");
-        final String options = ("SELECT DISTINCT Country FROM User");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("COUNTRY: %s %n", res6.getString("Country"));
-            }
-          }
-        }
-        System.out.printf("Enter the Country: ");
-        final String country = input.nextLine();
-
-        final String sql = "SELECT q1.ID AS UserID, q1.FirstName AS firstName,"
-            + " q1.LastName AS lastName, MAX(q1.Revenue) as Revenue"
-            + " FROM (SELECT u.UserID AS ID, u.FirstName as FirstName, u.LastName as LastName,"
-            + " ROUND(SUM(s.Cost), 2) as Revenue, u.Country as Country"
-            + " FROM User u JOIN Subscription s ON u.UserID =s.UserID"
-            + " GROUP BY u.UserID) q1"
-            + " WHERE q1.Country = ? ";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to Country
-          stmt.setString(1, country);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("UserID: %d %nFirstName: %s %nLastName: %s %nRevenue: %s%n",
-                  res.getInt("UserID"), res.getString("firstName"),
-                  res.getString("lastName"), res.getString("Revenue"));
-            }
-          }
+        final String country = pick(input, "Enter the Country (or ALL for every country)", "",
+            after -> YatvQueries.listCountries(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), true);
+
+        if (CountryReports.isAll(country)) {
+          CountryReports.runAll(router, connection, qd.queryType, System.out);
+        } else {
+          YatvQueries.highestCustomer(connection, System.out, country);
         }
       }
 
@@ -709,37 +490,14 @@ public class YatvApp {
       else if (qd.queryType == QueryTypes.LowestApp) {
 
         System.out.printf("Available Countries: %n");
-        final String options = ("SELECT DISTINCT Country FROM User");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("COUNTRY: %s %n", res6.getString("Country"));
-            }
-          }
-        }
-        System.out.printf("Enter the Country: ");
-        final String country = input.nextLine();
-
-        final String sql =
-            "SELECT q1.Revenue as Revenue, q1.AppID as AppID, q1.AppName as AppName, q1.Country as Country "
-                + " FROM (SELECT ROUND(SUM(s.Cost), 2) as Revenue, a.AppID as AppID, a.Name as AppName, u.Country as Country "
-                + " FROM Subscription s JOIN App a ON a.AppID = s.AppID"
-                + " JOIN User u ON s.UserID = u.UserID "
-                + " GROUP BY s.AppID) q1 "
-                + " WHERE q1.Country = ? "
-                + " ORDER BY Revenue LIMIT 1";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to Country
-          stmt.setString(1, country);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("App ID: %s %nApp Name: %s %nRevenue: %s ",
-                  res.getInt("AppID"), res.getString("AppName"),
-                  res.getString("Revenue"));
-            }
-          }
+        final String country = pick(input, "Enter the Country (or ALL for every country)", "",
+            after -> YatvQueries.listCountries(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), true);
+
+        if (CountryReports.isAll(country)) {
+          CountryReports.runAll(router, connection, qd.queryType, System.out);
+        } else {
+          YatvQueries.lowestApp(connection, System.out, country);
         }
       }
 
@@ -756,41 +514,14 @@ public class YatvApp {
       else if (qd.queryType == QueryTypes.MostProfitableVideos) {
 
         System.out.printf("Available Countries: %n");
-        final String options = ("SELECT DISTINCT Country FROM User");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("COUNTRY: %s %n", res6.getString("Country"));
-            }
-          }
-        }
-        System.out.printf("Enter the Country: ");
-        final String country = input.nextLine();
-
-        final String sql =
-            "SELECT COUNT(uw.VideoID) as WatchCount, v.Title as VideoName, a.Name as AppName"
-                + " FROM (SELECT SUM(s.Cost) as Revenue, s.AppID as AppID"
-                + " FROM Subscription s JOIN User u ON u.UserID = s.UserID "
-                + " WHERE u.Country = ?"
-                + " GROUP BY s.AppID "
-                + " ORDER BY Revenue DESC LIMIT 1) q1"
-                + " JOIN Video v ON v.AppID = q1.AppID"
-                + " JOIN App a ON a.AppID = q1.AppID"
-                + " JOIN UserVideoWatched uw ON v.VideoID = uw.VideoID"
-                + " GROUP BY uw.VideoID "
-                + " ORDER BY WatchCount DESC, VideoName LIMIT 3";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to Country
-          stmt.setString(1, country);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("APP: %s, VIDEO: %s, WATCH COUNT: %d %n",
-                  res.getString("AppName"), res.getString("VideoName"),
-                  res.getInt("WatchCount"));
-            }
-          }
+        final String country = pick(input, "Enter the Country (or ALL for every country)", "",
+            after -> YatvQueries.listCountries(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), true);
+
+        if (CountryReports.isAll(country)) {
+          CountryReports.runAll(router, connection, qd.queryType, System.out);
+        } else {
+          YatvQueries.mostProfitableVideos(connection, System.out, country, watchWindow());
         }
       }
 
@@ -807,43 +538,12 @@ public class YatvApp {
       else if (qd.queryType == QueryTypes.MostWatchedEpisodes) {
 
         System.out.printf("Available Shows: %n");
-        final String options = ("SELECT ShowID, Title FROM Shows");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("ID: %d Name: %s %n", res6.getInt("ShowID"),
-                  res6.getString("Title"));
-            }
-          }
-        }
-        System.out.printf("Enter the ShowID: ");
-        final Integer showId = input.nextInt();
-
-        final String sql = "SELECT q1.showName as showName, v.Title as videoName,"
-            + " q1.watchCount as watchCount"
-            + " FROM ("
-            + " SELECT sh.ShowID as ShowID, sh.Title AS showName, s.VideoID as VideoID,"
-            + " COUNT(uw.VideoID) as watchCount"
-            + " FROM UserVideoWatched uw JOIN Seasons s ON s.VideoID=uw.VideoID "
-            + " JOIN Shows sh ON sh.ShowID = s.ShowID"
-            + " GROUP BY uw.VideoID) q1 "
-            + " JOIN Shows sh on sh.ShowID = q1.ShowID"
-            + " JOIN Video v ON v.VideoID = q1.VideoID"
-            + " WHERE sh.ShowID = ? "
-            + " ORDER BY watchCount DESC, showName LIMIT 3 ";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to ShowID
-          stmt.setInt(1, showId);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("SHOW: %s, EPISODE: %s, VIEW COUNT: %d %n",
-                  res.getString("showName"), res.getString("videoName"),
-                  res.getInt("watchCount"));
-            }
-          }
-        }
+        final Integer showId = Integer.valueOf(pick(input, "Enter the ShowID", 0,
+            after -> YatvQueries.listShows(connection, System.out, after, YatvQueries.PAGE_SIZE),
+            false));
+
+        YatvQueries.mostWatchedEpisodes(connection, System.out, showId, watchWindow());
+        alsoWatched(connection, showId);
       }
 
       // REPORT QUERY 5 (QUERY 15)
@@ -859,42 +559,123 @@ public class YatvApp {
       else if (qd.queryType == QueryTypes.MobileAppsRevenueRanked) {
 
         System.out.printf("Available Countries with Apps that Have Mobile Platforms: %n");
-        final String options = ("SELECT DISTINCT u.Country AS Country"
-            + " FROM User u JOIN Subscription s ON s.UserID = u.UserID"
-            + " JOIN AppPlatform ap ON ap.AppID = s.AppID JOIN Platform p ON p.PlatformID = ap.PlatformID"
-            + " WHERE P.Mobile = 1");
-        try (final PreparedStatement stmt6 = connection.prepareStatement(options)) {
-          try (final ResultSet res6 = stmt6.executeQuery()) {
-            while (res6.next()) {
-              System.out.printf("COUNTRY: %s %n", res6.getString("Country"));
-            }
-          }
-        }
-        System.out.printf("Enter the Country: ");
-        final String country = input.nextLine();
-        final String sql =
-            "SELECT a.Name as AppName,  a.AppID as AppID, ROUND(SUM(S.Cost), 0) as Revenue"
-                + " FROM Platform p JOIN AppPlatform ap ON p.PlatformID = ap.PlatformID JOIN App a ON a.AppID = ap.AppID "
-                + " JOIN Subscription s ON s.AppID = a.AppID JOIN User u ON s.UserID = u.UserID"
-                + " WHERE u.Country = ? AND p.Mobile=1"
-                + " GROUP BY ap.AppID"
-                + " ORDER BY Revenue DESC, AppName ";
-
-        // Executing the Query
-        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
-          // Setting the param to Country
-          stmt.setString(1, country);
-          try (final ResultSet res = stmt.executeQuery()) {
-            while (res.next()) {
-              System.out.printf("APP: %s, REVENUE: %d %n",
-                  res.getString("AppName"), res.getInt("Revenue"));
-            }
-          }
+        final String country = pick(input, "Enter the Country (or ALL for every country)", "",
+            after -> YatvQueries.listMobileCountries(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), true);
+
+        if (CountryReports.isAll(country)) {
+          CountryReports.runAll(router, connection, qd.queryType, System.out);
+        } else {
+          YatvQueries.mobileAppsRevenueRanked(connection, System.out, country);
         }
       }
+
+      // QUERY 16- Logging In
+      else if (qd.queryType == QueryTypes.Authenticate) {
+
+        System.out.printf("Enter Your Email: ");
+        final String email = input.nextLine();
+        System.out.printf("Enter Your Password: ");
+        final String password = input.nextLine();
+
+        YatvQueries.authenticate(connection, System.out, email, password, "console");
+      }
+
+      // QUERY 17- Browsing Videos by Tags
+      else if (qd.queryType == QueryTypes.BrowseByTags) {
+
+        System.out.printf("Enter the Tags, combined with AND, OR, NOT and parentheses: ");
+        final String query = input.nextLine();
+
+        more(input, YatvQueries.browseByTags(connection, System.out, query, 0,
+            YatvQueries.PAGE_SIZE),
+            after -> YatvQueries.browseByTags(connection, System.out, query, after,
+                YatvQueries.PAGE_SIZE));
+      }
+
+      // QUERY 18- Searching Titles and Descriptions
+      else if (qd.queryType == QueryTypes.Search) {
+
+        System.out.printf("Enter the Words to Search for: ");
+        final String query = input.nextLine();
+
+        YatvQueries.search(connection, System.out, query, YatvQueries.PAGE_SIZE);
+      }
+
+      // QUERY 19- Record that a User Watched a Video
+      else if (qd.queryType == QueryTypes.RecordWatch) {
+
+        System.out.printf("Enter Your UserID: ");
+        final Integer userId = input.nextInt();
+        System.out.printf("Enter the VideoID you watched: ");
+        final Integer videoId = input.nextInt();
+
+        YatvQueries.recordWatch(connection, System.out, userId, videoId);
+      }
+
+      // QUERY 20- Approximate Viewers and Most Watched Videos
+      else if (qd.queryType == QueryTypes.ViewerStats) {
+
+        System.out.printf("Available Shows: %n");
+        final Integer showId = Integer.valueOf(pick(input, "Enter the ShowID", 0,
+            after -> YatvQueries.listShows(connection, System.out, after, YatvQueries.PAGE_SIZE),
+            false));
+
+        YatvQueries.viewerStats(connection, System.out, showId);
+      }
+
+      // QUERY 21- Top 10 Trending Shows, decayed with -Dyatv.trending.halfLifeMinutes=N
+      else if (qd.queryType == QueryTypes.TrendingShows) {
+
+        System.out.printf("Enter the window in hours (up to %d): ",
+            TrendingShows.BUCKET.multipliedBy(TrendingShows.BUCKETS).toHours());
+        final Integer hours = input.nextInt();
+        final Integer halfLife = Integer.getInteger("yatv.trending.halfLifeMinutes");
+
+        YatvQueries.trendingShows(connection, System.out, Duration.ofHours(hours),
+            halfLife == null ? null : Duration.ofMinutes(halfLife));
+      }
+
+      // QUERY 22- Check whether a User may Play a Video on a Platform
+      else if (qd.queryType == QueryTypes.CanWatch) {
+
+        System.out.printf("Enter the UserID: ");
+        final Integer userId = input.nextInt();
+        System.out.printf("Enter the VideoID: ");
+        final Integer videoId = input.nextInt();
+        System.out.printf("Available Platforms: %n");
+        final Integer platformId = Integer.valueOf(pick(input, "Enter the PlatformID", 0,
+            after -> YatvQueries.listPlatforms(connection, System.out, after,
+                YatvQueries.PAGE_SIZE), false));
+
+        YatvQueries.canWatch(connection, System.out, userId, videoId, platformId);
+      }
+
+      // QUERY 23- Remove a Show from User's List
+      else if (qd.queryType == QueryTypes.RemoveFromMyList) {
+
+        System.out.printf("Enter your UserID: ");
+        final Integer userId = input.nextInt();
+
+        System.out.printf("Your List: %n");
+        final Integer showId = Integer.valueOf(pick(input,
+            "Enter the ShowID that you would like to remove from your list", 0,
+            after -> YatvQueries.listMyList(connection, System.out, userId, after,
+                YatvQueries.PAGE_SIZE), false));
+
+        more(input, YatvQueries.removeFromMyList(connection, System.out, userId, showId),
+            after -> YatvQueries.listMyList(connection, System.out, userId, after,
+                YatvQueries.PAGE_SIZE));
+      }
     } catch (
         Exception e) {
+      call.failed();
       System.out.println(e);
+    } finally {
+      call.end();
+      if (Boolean.getBoolean("yatv.metrics.print")) {
+        System.err.print(QueryMetrics.get().getReport());
+      }
     }
   }
 }
@@ -0,0 +1,1456 @@
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.mindrot.jbcrypt.BCrypt;
+
+/**
+ * The YaTV queries, parameterized and free of interactive input so they can be driven by
+ * {@link YatvApp} as well as by benchmarks and load generators.
+ *
+ * <p>Every query renders its rows to the given stream; pass a discarding stream to measure
+ * the query without console output.
+ */
+final class YatvQueries {
+
+  private YatvQueries() {
+  }
+
+  // ---------------------------------------------------------------------------------------
+  // Selection lists shown before prompting for a parameter. Every listing is keyset
+  // paginated: pass the key returned by the previous page (or the first-page key) to get the
+  // next one, so a page costs the same however large the table grows.
+  // ---------------------------------------------------------------------------------------
+
+  /**
+   * Default rows per page, set with {@code -Dyatv.page.size}
+   */
+  static final int PAGE_SIZE = pageSize(Integer.getInteger("yatv.page.size", 25));
+
+  /**
+   * Upper bound on rows per page, whatever the caller asks for
+   */
+  static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * Prints one row of a page and returns its key
+   */
+  private interface PageRow<K> {
+
+    K print(ResultSet res) throws SQLException;
+  }
+
+  /**
+   * @param requested requested rows per page
+   * @return rows per page, clamped to [1, MAX_PAGE_SIZE]
+   */
+  static int pageSize(int requested) {
+    return Math.max(1, Math.min(requested, MAX_PAGE_SIZE));
+  }
+
+  /**
+   * Lists a page of apps (ID and name)
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param afterId    last AppID of the previous page, 0 for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listApps(Connection connection, PrintStream out, int afterId, int limit)
+      throws SQLException {
+    final String options = "SELECT a.AppID AS AppID, a.Name AS Name FROM App a"
+        + " WHERE a.AppID > ? ORDER BY a.AppID LIMIT ?";
+    return page(connection, options, limit, res4 -> {
+      out.printf("ID: %d Name: %s %n",
+          res4.getInt("AppID"), res4.getString("Name"));
+      return res4.getInt("AppID");
+    }, afterId);
+  }
+
+  /**
+   * Lists a page of shows (ID and title)
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param afterId    last ShowID of the previous page, 0 for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listShows(Connection connection, PrintStream out, int afterId, int limit)
+      throws SQLException {
+    if (Coalescer.shares()) {
+      return Coalescer.flight(out, o -> listShows(connection, o, afterId, limit), "ListShows",
+          afterId, limit);
+    }
+    final String options = "SELECT ShowID, Title FROM Shows"
+        + " WHERE ShowID > ? ORDER BY ShowID LIMIT ?";
+    return page(connection, options, limit, res6 -> {
+      out.printf("ID: %d Name: %s %n", res6.getInt("ShowID"),
+          res6.getString("Title"));
+      return res6.getInt("ShowID");
+    }, afterId);
+  }
+
+  /**
+   * Lists a page of platforms (ID and name)
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param afterId    last PlatformID of the previous page, 0 for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listPlatforms(Connection connection, PrintStream out, int afterId, int limit)
+      throws SQLException {
+    final String options = "SELECT p.PlatformID AS platID, p.Name AS Name FROM Platform p"
+        + " WHERE p.PlatformID > ? ORDER BY p.PlatformID LIMIT ?";
+    return page(connection, options, limit, res4 -> {
+      out.printf("ID: %d Name: %s %n",
+          res4.getInt("platID"), res4.getString("Name"));
+      return res4.getInt("platID");
+    }, afterId);
+  }
+
+  /**
+   * Lists a page of the platforms an app is available on
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param appId      app
+   * @param afterId    last PlatformID of the previous page, 0 for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listAppPlatforms(Connection connection, PrintStream out, int appId,
+      int afterId, int limit) throws SQLException {
+    final String appPlatform = "SELECT p.Name AS platName, p.PlatformID AS platID"
+        + " FROM AppPlatform ap JOIN Platform p ON ap.PlatformID=p.PlatformID"
+        + " WHERE ap.AppID=? AND ap.PlatformID > ?"
+        + " ORDER BY ap.PlatformID LIMIT ?";
+    return page(connection, appPlatform, limit, res -> {
+      out.printf("PlatformID: %d, Platform: %s %n",
+          res.getInt("platID"), res.getString("platName"));
+      return res.getInt("platID");
+    }, appId, afterId);
+  }
+
+  /**
+   * Lists a page of the countries with at least one user
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param after      last country of the previous page, "" for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static String listCountries(Connection connection, PrintStream out, String after, int limit)
+      throws SQLException {
+    final String sql = "SELECT DISTINCT Country FROM User"
+        + " WHERE Country > ? ORDER BY Country LIMIT ?";
+    return page(connection, sql, limit, res -> {
+      out.printf("COUNTRY: %s %n", res.getString("Country"));
+      return res.getString("Country");
+    }, after);
+  }
+
+  /**
+   * @param connection database connection
+   * @return every country with at least one user
+   * @throws SQLException SQL gone bad
+   */
+  static List<String> countries(Connection connection) throws SQLException {
+    return strings(connection, "SELECT DISTINCT Country FROM User");
+  }
+
+  /**
+   * Lists a page of the countries with a subscriber to an app that has a mobile platform
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param after      last country of the previous page, "" for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static String listMobileCountries(Connection connection, PrintStream out, String after,
+      int limit) throws SQLException {
+    final String sql = MOBILE_COUNTRIES + " AND u.Country > ? ORDER BY u.Country LIMIT ?";
+    return page(connection, sql, limit, res -> {
+      out.printf("COUNTRY: %s %n", res.getString("Country"));
+      return res.getString("Country");
+    }, after);
+  }
+
+  /**
+   * @param connection database connection
+   * @return every country with a subscriber to an app that has a mobile platform
+   * @throws SQLException SQL gone bad
+   */
+  static List<String> mobileCountries(Connection connection) throws SQLException {
+    return strings(connection, MOBILE_COUNTRIES);
+  }
+
+  private static final String MOBILE_COUNTRIES = "SELECT DISTINCT u.Country AS Country"
+      + " FROM User u JOIN Subscription s ON s.UserID = u.UserID"
+      + " JOIN AppPlatform ap ON ap.AppID = s.AppID JOIN Platform p ON p.PlatformID = ap.PlatformID"
+      + " WHERE P.Mobile = 1";
+
+  private static List<String> strings(Connection connection, String sql) throws SQLException {
+    final List<String> values = new ArrayList<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(sql);
+        final ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        values.add(res.getString(1));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Runs one page of a keyset query. The SQL takes the given parameters followed by the
+   * LIMIT; one extra row is fetched to learn whether another page follows.
+   *
+   * @return key of the last row printed, or null if this was the last page
+   */
+  private static <K> K page(Connection connection, String sql, int limit, PageRow<K> row,
+      Object... params) throws SQLException {
+    final int size = pageSize(limit);
+    try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+      for (int i = 0; i < params.length; i++) {
+        stmt.setObject(i + 1, params[i]);
+      }
+      stmt.setInt(params.length + 1, size + 1);
+      try (final ResultSet res = stmt.executeQuery()) {
+        K last = null;
+        int rows = 0;
+        while (rows < size && res.next()) {
+          last = row.print(res);
+          rows++;
+        }
+        return rows == size && res.next() ? last : null;
+      }
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------
+  // Queries
+  // ---------------------------------------------------------------------------------------
+
+  /**
+   * QUERY 1- User Registration
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param fname      first name
+   * @param lname      last name
+   * @param country    country
+   * @param email      email
+   * @param password   plaintext password, stored as a bcrypt hash
+   * @throws SQLException SQL gone bad
+   */
+  static void registerUser(Connection connection, PrintStream out, String fname, String lname,
+      String country, String email, String password) throws SQLException {
+    final String sql =
+        "INSERT INTO User (UserId, FirstName, LastName, Country, Email, Password) "
+            + "VALUES (DEFAULT, ?, ?, ?, ?, ?)";
+    final String sql2 = "SELECT u.UserID, u.FirstName, u.LastName, u.Country, u.Email"
+        + " FROM User u WHERE u.Email=?";
+    try (final PreparedStatement stmt = connection.prepareStatement(sql);
+        final PreparedStatement stmt2 = connection.prepareStatement(sql2)) {
+
+      //Hashing User's Password (Salt: 9)
+      String hashedPass = BCrypt.hashpw(password, BCrypt.gensalt(9));
+
+      // Executing the INSERT
+      stmt.setString(1, fname);
+      stmt.setString(2, lname);
+      stmt.setString(3, country);
+      stmt.setString(4, email);
+      stmt.setString(5, hashedPass);
+      stmt.executeUpdate();
+
+      // Displaying the results of the INSERT statement
+      stmt2.setString(1, email);
+      try (final ResultSet res = stmt2.executeQuery()) {
+        while (res.next()) {
+          out.printf("REGISTERED! %n"
+                  + "USER ID: %d, FIRST NAME: %s, LAST NAME: %s, COUNTRY: %s, EMAIL: %s",
+              res.getInt("UserID"), res.getString("FirstName"),
+              res.getString("LastName"), res.getString("Country"),
+              res.getString("Email"));
+          final ViewerAnalytics analytics = ViewerAnalytics.sharedIfLoaded();
+          if (analytics != null) {
+            analytics.registered(res.getInt("UserID"), res.getString("Country"));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * QUERY 16- Logging In. Looks the user up by email on the unique Email index and checks the
+   * password on the bounded hashing pool, see {@link Authenticator}.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param email      email
+   * @param password   plaintext password
+   * @param source     where the attempt comes from, for throttling
+   * @return outcome
+   * @throws SQLException SQL gone bad
+   */
+  static Authenticator.Outcome authenticate(Connection connection, PrintStream out,
+      String email, String password, String source) throws SQLException {
+    final int[] userId = new int[1];
+    final Authenticator.Outcome outcome = Authenticator.get()
+        .authenticate(connection, email, password, source, userId);
+    if (outcome == Authenticator.Outcome.OK) {
+      out.printf("LOGGED IN! USER ID: %d%n", userId[0]);
+    } else if (outcome == Authenticator.Outcome.BAD_CREDENTIALS) {
+      out.printf("Wrong email or password%n");
+    } else if (outcome == Authenticator.Outcome.THROTTLED) {
+      out.printf("Too many attempts, try again later%n");
+    } else {
+      out.printf("Too many logins in progress, try again later%n");
+    }
+    return outcome;
+  }
+
+  /**
+   * QUERY 2- Subscribing a User to an App
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     subscribing user
+   * @param appId      app subscribed to
+   * @param months     subscription length
+   * @return key for the page of older subscriptions (see {@link #listSubscriptions}), or
+   * null if nothing was bought
+   * @throws SQLException SQL gone bad
+   */
+  static Integer subscribeUser(Connection connection, PrintStream out, int userId, int appId,
+      int months) throws SQLException {
+    return subscribeUser(connection, out, userId, new int[]{appId}, new int[]{months});
+  }
+
+  /**
+   * QUERY 2- Subscribing a User to several Apps at once
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     subscribing user
+   * @param appIds     apps subscribed to
+   * @param months     subscription length for each app
+   * @return key for the page of older subscriptions (see {@link #listSubscriptions}), or
+   * null if nothing was bought
+   * @throws SQLException SQL gone bad
+   */
+  static Integer subscribeUser(Connection connection, PrintStream out, int userId,
+      int[] appIds, int[] months) throws SQLException {
+    final List<Purchase> bought = purchaseSubscriptions(connection, userId, appIds, months);
+    if (bought.isEmpty()) {
+      out.printf("No such app, nothing bought %n");
+      return null;
+    }
+    out.printf("Success! New Subscriptions: %n");
+    for (Purchase p : bought) {
+      out.printf("User ID: %d, App: %s, Cost: %s. ExpDate: %tF %n",
+          userId, p.app, p.cost, p.expDate);
+    }
+    return bought.get(0).subscriptionId;
+  }
+
+  /**
+   * A subscription just bought
+   */
+  static final class Purchase {
+
+    final int subscriptionId;
+    final int appId;
+    final String app;
+    final BigDecimal cost;
+    final Date expDate;
+
+    Purchase(int subscriptionId, int appId, String app, BigDecimal cost, Date expDate) {
+      this.subscriptionId = subscriptionId;
+      this.appId = appId;
+      this.app = app;
+      this.cost = cost;
+      this.expDate = expDate;
+    }
+  }
+
+  /**
+   * Buys subscriptions to several apps in one transaction. The cost is computed by the
+   * database from App.MonthlyCost, the inserts go out as a single JDBC batch (one round trip
+   * on MySQL with rewriteBatchedStatements, see {@link DbConfig}), and only the new rows are
+   * read back by their generated keys. Unknown apps are skipped.
+   *
+   * @param connection database connection (autocommit is restored afterwards)
+   * @param userId     subscribing user
+   * @param appIds     apps subscribed to
+   * @param months     subscription length for each app
+   * @return the new subscriptions, oldest first
+   * @throws SQLException SQL gone bad
+   */
+  static List<Purchase> purchaseSubscriptions(Connection connection, int userId, int[] appIds,
+      int[] months) throws SQLException {
+    if (appIds.length != months.length) {
+      throw new IllegalArgumentException("One subscription length per app");
+    }
+    final String ins = "INSERT INTO Subscription (UserID, Cost, ExpDate, AppID)"
+        + " SELECT ?, a.MonthlyCost * ?, ?, a.AppID FROM App a WHERE a.AppID = ?";
+    final LocalDate today = LocalDate.now();
+    final List<Integer> keys = new ArrayList<>(appIds.length);
+    final List<Purchase> bought = new ArrayList<>(appIds.length);
+    final boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try {
+      try (final PreparedStatement stmt = connection.prepareStatement(ins,
+          Statement.RETURN_GENERATED_KEYS)) {
+        for (int i = 0; i < appIds.length; i++) {
+          stmt.setInt(1, userId);
+          stmt.setInt(2, months[i]);
+          stmt.setDate(3, Date.valueOf(today.plusMonths(months[i])));
+          stmt.setInt(4, appIds[i]);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+        try (final ResultSet res = stmt.getGeneratedKeys()) {
+          while (res.next()) {
+            keys.add(res.getInt(1));
+          }
+        }
+      }
+
+      if (!keys.isEmpty()) {
+        final String in = String.join(",", Collections.nCopies(keys.size(), "?"));
+        try (final PreparedStatement stmt = connection.prepareStatement(
+            "SELECT s.SubscriptionID, s.AppID, a.Name, s.Cost, s.ExpDate"
+                + " FROM Subscription s JOIN App a ON s.AppID = a.AppID"
+                + " WHERE s.SubscriptionID IN (" + in + ") ORDER BY s.SubscriptionID")) {
+          for (int i = 0; i < keys.size(); i++) {
+            stmt.setInt(i + 1, keys.get(i));
+          }
+          try (final ResultSet res = stmt.executeQuery()) {
+            while (res.next()) {
+              bought.add(new Purchase(res.getInt(1), res.getInt(2), res.getString(3),
+                  res.getBigDecimal(4), res.getDate(5)));
+            }
+          }
+        }
+      }
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+    if (!bought.isEmpty()) {
+      ResultCache.invalidate("Subscription");
+    }
+    final Entitlements entitlements = Entitlements.sharedIfLoaded();
+    if (entitlements != null) {
+      for (Purchase p : bought) {
+        entitlements.subscribed(userId, p.appId, p.expDate.toLocalDate());
+      }
+    }
+    return bought;
+  }
+
+  /**
+   * Lists a page of a user's subscriptions, newest first
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     subscriber
+   * @param beforeId   last SubscriptionID of the previous page, Integer.MAX_VALUE for the
+   *                   first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listSubscriptions(Connection connection, PrintStream out, int userId,
+      int beforeId, int limit) throws SQLException {
+    final String display =
+        "SELECT s.SubscriptionID AS SubscriptionID, a.Name AS Name, s.Cost AS Cost,"
+            + " s.ExpDate AS ExpDate"
+            + " FROM Subscription s JOIN App a ON s.AppID = a.AppID"
+            + " WHERE s.UserID = ? AND s.SubscriptionID < ?"
+            + " ORDER BY s.SubscriptionID DESC LIMIT ?";
+    return page(connection, display, limit, res3 -> {
+      out.printf("User ID: %d, App: %s, Cost: %d. ExpDate: %tF %n",
+          userId, res3.getString("Name"),
+          res3.getInt("Cost"), res3.getDate("ExpDate"));
+      return res3.getInt("SubscriptionID");
+    }, userId, beforeId);
+  }
+
+  /**
+   * QUERY 3- Add a Show to User's List. With a {@link MyListStore} started the list is
+   * changed in memory and the INSERT is written behind.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     list owner
+   * @param showId     show to add
+   * @return key for the next page of the list (see {@link #listMyList}), or null
+   * @throws SQLException SQL gone bad
+   */
+  static Integer addToMyList(Connection connection, PrintStream out, int userId, int showId)
+      throws SQLException {
+    final MyListStore store = MyListStore.shared();
+    if (store != null) {
+      if (store.title(connection, showId) == null) {
+        out.printf("No such show %n");
+        return null;
+      }
+      if (store.add(connection, userId, showId)) {
+        final CoWatchIndex coWatch = CoWatchIndex.shared();
+        if (coWatch != null) {
+          coWatch.listed(userId, showId);
+        }
+        out.printf("Success! Current Show(s) on Your List: %n");
+      } else {
+        out.printf("Already on Your List! Current Show(s) on Your List: %n");
+      }
+      return listMyList(connection, out, userId, 0, PAGE_SIZE);
+    }
+    final String sql = "INSERT INTO MyListShow (UserId, ShowID)"
+        + " VALUES(?, ?)";
+    try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+
+      // Executing the INSERT
+      stmt.setInt(1, userId);
+      stmt.setInt(2, showId);
+      stmt.executeUpdate();
+      final CoWatchIndex coWatch = CoWatchIndex.shared();
+      if (coWatch != null) {
+        coWatch.listed(userId, showId);
+      }
+
+      // Displaying the Results
+      out.printf("Success! Current Show(s) on Your List: %n");
+      return listMyList(connection, out, userId, 0, PAGE_SIZE);
+    }
+  }
+
+  /**
+   * Lists a page of the shows on a user's list
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     list owner
+   * @param afterId    last ShowID of the previous page, 0 for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listMyList(Connection connection, PrintStream out, int userId, int afterId,
+      int limit) throws SQLException {
+    final MyListStore store = MyListStore.shared();
+    if (store != null) {
+      final int size = pageSize(limit);
+      final int[] shows = store.shows(connection, userId);
+      final int from = Arrays.binarySearch(shows, afterId);
+      int i = from >= 0 ? from + 1 : -from - 1;
+      final int end = Math.min(shows.length, i + size);
+      for (; i < end; i++) {
+        out.printf("USER ID: %d SHOW: %s %n", userId, store.title(connection, shows[i]));
+      }
+      return end < shows.length ? shows[end - 1] : null;
+    }
+    final String sql1 = "SELECT m.ShowID AS ShowID, s.Title AS Title"
+        + " FROM MyListShow m JOIN Shows s ON m.ShowID=s.ShowID"
+        + " WHERE m.UserID = ? AND m.ShowID > ?"
+        + " ORDER BY m.ShowID LIMIT ?";
+    return page(connection, sql1, limit, res2 -> {
+      //Displaying current shows for this user's Mylist
+      out.printf(
+          "USER ID: %d SHOW: %s %n",
+          userId,
+          res2.getString("Title"));
+      return res2.getInt("ShowID");
+    }, userId, afterId);
+  }
+
+  /**
+   * QUERY 23- Remove a Show from User's List
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     list owner
+   * @param showId     show to remove
+   * @return key for the next page of the list (see {@link #listMyList}), or null
+   * @throws SQLException SQL gone bad
+   */
+  static Integer removeFromMyList(Connection connection, PrintStream out, int userId,
+      int showId) throws SQLException {
+    final MyListStore store = MyListStore.shared();
+    final boolean removed;
+    if (store != null) {
+      removed = store.remove(connection, userId, showId);
+    } else {
+      try (final PreparedStatement stmt = connection.prepareStatement(
+          "DELETE FROM MyListShow WHERE UserID = ? AND ShowID = ?")) {
+        stmt.setInt(1, userId);
+        stmt.setInt(2, showId);
+        removed = stmt.executeUpdate() > 0;
+      }
+    }
+    out.printf("%s Current Show(s) on Your List: %n",
+        removed ? "Removed!" : "Not on Your List!");
+    return listMyList(connection, out, userId, 0, PAGE_SIZE);
+  }
+
+  /**
+   * QUERY 4- Update an App's Version Number on a Platform
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param appId      app being updated
+   * @param platId     platform the update applies to
+   * @param verNum     new version number
+   * @throws SQLException SQL gone bad
+   */
+  static void updatePlatformVersion(Connection connection, PrintStream out, int appId,
+      int platId, float verNum) throws SQLException {
+    final String insert = "UPDATE AppPlatform"
+        + " SET VersionNum = ?"
+        + " WHERE AppID = ? AND PlatformID = ?";
+    final String display =
+        "SELECT a.Name AS appName, p.Name as platName, ap.VersionNum AS verNum"
+            + " FROM AppPlatform ap JOIN App a ON ap.AppID=a.AppID"
+            + " JOIN Platform p ON ap.PlatformID=p.PlatformID"
+            + " WHERE ap.AppID = ? AND ap.PlatformID = ?";
+
+    try (final PreparedStatement stmt = connection.prepareStatement(insert);
+        final PreparedStatement stmt1 = connection.prepareStatement(display)) {
+
+      // Executing the INSERT
+      stmt.setFloat(1, verNum);
+      stmt.setInt(2, appId);
+      stmt.setInt(3, platId);
+      final Entitlements entitlements = Entitlements.sharedIfLoaded();
+      if (stmt.executeUpdate() > 0 && entitlements != null) {
+        entitlements.available(appId, platId);
+      }
+
+      // Displaying the Results
+      stmt1.setInt(1, appId);
+      stmt1.setInt(2, platId);
+      try (final ResultSet res1 = stmt1.executeQuery()) {
+        while (res1.next()) {
+          out.printf(
+              "Success! Current Version of this App on this Platform: %n" +
+                  "APP: %s, PLATFORM: %s, Version Number: %.2f %n",
+              res1.getString("appName"), res1.getString("platName"),
+              res1.getFloat("verNum"));
+
+
+        }
+      }
+    }
+  }
+
+  /**
+   * QUERY 5- Add the Latest Video in a Show's Current Season
+   *
+   * @param connection  database connection
+   * @param out         output
+   * @param showId      show the video belongs to
+   * @param title       video title
+   * @param desc        video description
+   * @param duration    duration in seconds
+   * @param sub         whether a subscription is required
+   * @param releaseDate release date as YYYY-MM-DD
+   * @return key for the page of older episodes (see {@link #listEpisodes}), or null
+   * @throws SQLException SQL gone bad
+   */
+  static Integer addLatestVideo(Connection connection, PrintStream out, int showId, String title,
+      String desc, int duration, boolean sub, String releaseDate) throws SQLException {
+    final String getApp = "SELECT a.AppID AS appID"
+        + " FROM Video v JOIN App a ON a.AppID = v.AppID"
+        + " WHERE v.VideoID IN ("
+        + " SELECT s.VideoID FROM Seasons s WHERE s.ShowID = ? GROUP BY s.ShowID)"
+        + " GROUP BY a.AppID";
+    final String video =
+        "INSERT INTO Video (VideoID, Title, Description, Duration, AppID, SubNeeded, ReleaseDate, ShowID) VALUES"
+            + " (DEFAULT, ?, ?, ?, ?, ?, ?, ?) ";
+    final String currSeason =
+        "SELECT MAX(s.SeasonNum) AS currSeason, MAX(s.EpisodeNum) AS maxEp"
+            + " FROM Seasons s"
+            + " WHERE s.ShowID = ?";
+    final String season =
+        "INSERT INTO Seasons (SeasonID, ShowID, VideoID, SeasonNum, EpisodeNum) VALUES"
+            + " (DEFAULT, ?, ?, ?, ?) ";
+
+    try (final PreparedStatement stmt = connection.prepareStatement(video,
+        Statement.RETURN_GENERATED_KEYS);
+        final PreparedStatement stmt3 = connection.prepareStatement(season);
+        final PreparedStatement stmt4 = connection.prepareStatement(currSeason);
+        final PreparedStatement stmt6 = connection.prepareStatement(getApp)) {
+
+      // Finding the Shows AppID
+      stmt6.setInt(1, showId);
+      int appId = 0;
+      try (final ResultSet res = stmt6.executeQuery()) {
+        while (res.next()) {
+          appId = res.getInt("appID");
+        }
+
+        // Executing the INSERT into Video
+        stmt.setString(1, title);
+        stmt.setString(2, desc);
+        stmt.setInt(3, duration);
+        stmt.setInt(4, appId);
+        stmt.setBoolean(5, sub);
+        stmt.setString(6, releaseDate);
+        stmt.setInt(7, showId);
+        stmt.executeUpdate();
+
+        // Getting the VideoID of this insert; titles need not be unique
+        int vidId = 0;
+        try (final ResultSet res2 = stmt.getGeneratedKeys()) {
+          if (res2.next()) {
+            vidId = res2.getInt(1);
+          }
+
+          // Getting the Current Season
+          int curSea = 0;
+          int maxEpisode = 0;
+          stmt4.setInt(1, showId);
+          try (final ResultSet res3 = stmt4.executeQuery()) {
+            while (res3.next()) {
+              curSea = res3.getInt("currSeason");
+              maxEpisode = res3.getInt("maxEp") + 1;
+            }
+
+            // Executing the INSERT into Seasons
+            stmt3.setInt(1, showId);
+            stmt3.setInt(2, vidId);
+            stmt3.setInt(3, curSea);
+            stmt3.setInt(4, maxEpisode);
+            stmt3.executeUpdate();
+          }
+          ResultCache.invalidate("Video");
+          ResultCache.invalidate("Seasons");
+          final TagIndex tags = TagIndex.sharedIfLoaded();
+          if (tags != null) {
+            tags.addVideo(vidId);
+          }
+          final SearchIndex search = SearchIndex.sharedIfLoaded();
+          if (search != null) {
+            search.addVideo(vidId, title, desc);
+          }
+          final TrendingShows trending = TrendingShows.sharedIfLoaded();
+          if (trending != null) {
+            trending.addVideo(vidId, showId);
+          }
+          final ViewerAnalytics analytics = ViewerAnalytics.sharedIfLoaded();
+          if (analytics != null) {
+            analytics.addVideo(vidId, showId, appId);
+          }
+          final Entitlements entitlements = Entitlements.sharedIfLoaded();
+          if (entitlements != null) {
+            entitlements.addVideo(vidId, appId, sub);
+          }
+
+          out.printf("Success! Episodes in the Current Season: %n");
+          // Displaying the Results
+          return listEpisodes(connection, out, showId, Integer.MAX_VALUE, PAGE_SIZE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Lists a page of a show's episodes, newest first
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param showId     show
+   * @param beforeId   last SeasonID of the previous page, Integer.MAX_VALUE for the first
+   *                   page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer listEpisodes(Connection connection, PrintStream out, int showId, int beforeId,
+      int limit) throws SQLException {
+    if (Coalescer.shares()) {
+      return Coalescer.flight(out, o -> listEpisodes(connection, o, showId, beforeId, limit),
+          "ListEpisodes", showId, beforeId, limit);
+    }
+    final String display = "SELECT s.SeasonID as seasonId, sh.Title as showName,"
+        + " v.Title as vidName, s.SeasonNum as seasonNum, s.EpisodeNum as epNum"
+        + " FROM Seasons s JOIN Shows sh ON s.ShowID=sh.ShowID"
+        + " JOIN Video v ON v.VideoID=s.VideoID"
+        + " WHERE s.ShowID=? AND s.SeasonID < ?"
+        + " ORDER BY s.SeasonID DESC LIMIT ?";
+    return page(connection, display, limit, res4 -> {
+      out.printf("SHOW: %s, VIDEO: %s, SEASON: %d, EPISODE: %d %n",
+          res4.getString("showName"), res4.getString("vidName"),
+          res4.getInt("seasonNum"), res4.getInt("epNum"));
+      return res4.getInt("seasonId");
+    }, showId, beforeId);
+  }
+
+  /**
+   * QUERY 6- Produce a Ranked List of the Top 10 Most Watched Shows (each with its
+   * corresponding app)
+   *
+   * @param connection database connection
+   * @param out        output
+   * @throws SQLException SQL gone bad
+   */
+  static void mostWatchedShowsByApp(Connection connection, PrintStream out) throws SQLException {
+    mostWatchedShowsByApp(connection, out, null);
+  }
+
+  /**
+   * QUERY 6- Top 10 most watched shows, counting only watches in a time window
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param since      start of the window, or null for all history
+   * @throws SQLException SQL gone bad
+   */
+  static void mostWatchedShowsByApp(Connection connection, PrintStream out, LocalDateTime since)
+      throws SQLException {
+    if (Coalescer.shares()) {
+      Coalescer.flight(out, o -> {
+        mostWatchedShowsByApp(connection, o, since);
+        return null;
+      }, YatvApp.QueryTypes.MostWatchedShowsByApp, since);
+      return;
+    }
+    final String sql =
+        "SELECT q1.countWatch AS watchCount, q1.ShowName AS showName, a.Name AS appName"
+            + " FROM App a"
+            + " JOIN (SELECT SUM(uw.Watches) AS countWatch, sh.Title AS showName,"
+            + " v.AppID AS AppID"
+            + " FROM " + WatchHistory.WATCH_COUNTS + " uw JOIN Video v ON v.VideoID = uw.VideoID"
+            + " JOIN Seasons se ON se.VideoID = v.VideoID"
+            + " JOIN Shows sh ON sh.ShowID = se.ShowID"
+            + " GROUP BY sh.ShowID) q1 ON a.AppID = q1.AppID"
+            + " ORDER BY q1.countWatch DESC LIMIT 10";
+
+    // Executing the Query
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> WatchHistory.bindWindow(stmt, 1, since),
+        YatvApp.QueryTypes.MostWatchedShowsByApp, since);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("WATCH COUNT: %s SHOW: %s APP: %s %n",
+          rows.getString(r, "watchCount"),
+          rows.getString(r, "showName"),
+          rows.getString(r, "appName"));
+    }
+  }
+
+  /**
+   * QUERY 21- Top 10 Trending Shows: most watched over a recent window ending now, from the
+   * in-memory {@link TrendingShows} rings
+   *
+   * @param connection database connection, to load the rings on first use
+   * @param out        output
+   * @param window     window length, up to {@link TrendingShows#BUCKET} times
+   *                   {@link TrendingShows#BUCKETS}
+   * @param halfLife   half-life for decayed scores, or null to count each watch once
+   * @throws SQLException SQL gone bad
+   */
+  static void trendingShows(Connection connection, PrintStream out, Duration window,
+      Duration halfLife) throws SQLException {
+    TrendingShows.shared(connection).print(out, 10, window, halfLife);
+  }
+
+  /**
+   * QUERY 22- Check whether a User may Play a Video on a Platform, from the in-memory
+   * {@link Entitlements} index
+   *
+   * @param connection database connection, to load the index on first use
+   * @param out        output
+   * @param userId     viewer
+   * @param videoId    video
+   * @param platformId platform played on
+   * @return whether the video may be played
+   * @throws SQLException SQL gone bad
+   */
+  static boolean canWatch(Connection connection, PrintStream out, int userId, int videoId,
+      int platformId) throws SQLException {
+    final Entitlements.Access access =
+        Entitlements.shared(connection).check(userId, videoId, platformId);
+    out.printf("USER ID: %d, VIDEO ID: %d, PLATFORM ID: %d, ACCESS: %s%n", userId, videoId,
+        platformId, access);
+    return access.allowed;
+  }
+
+  /**
+   * QUERY 7- Find All Free Videos on a Particular Platform
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param platformId platform
+   * @throws SQLException SQL gone bad
+   */
+  static void findFreeVideosByPlatform(Connection connection, PrintStream out, String platformId)
+      throws SQLException {
+    final String sql = " SELECT p.Name as PlatformName, v.Title AS VideoTitle"
+        + " FROM AppPlatform ap JOIN Platform p ON p.PlatformID = ap.PlatformID "
+        + " JOIN App a ON a.AppID = ap.AppID "
+        + " JOIN Video v ON v.AppID = a.AppID "
+        + " WHERE v.SubNeeded = 0 AND p.PlatformID = ?";
+
+    // Executing the query, with the param set to PlatformID
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> stmt.setString(1, platformId),
+        YatvApp.QueryTypes.FindFreeVideosByPlatform, platformId);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("PLATFORM: %s, VIDEO NAME: %s %n",
+          rows.getString(r, "PlatformName"),
+          rows.getString(r, "VideoTitle"));
+    }
+  }
+
+  /**
+   * QUERY 8- Find All Long Videos Released This Year That Are Not Part of Any Show. Long
+   * Videos are Videos with a duration of over 1000
+   *
+   * @param connection database connection
+   * @param out        output
+   * @throws SQLException SQL gone bad
+   */
+  static void findLongVideosNoShow(Connection connection, PrintStream out) throws SQLException {
+    final String sql =
+        "SELECT v.VideoID AS videoID, v.Title AS videoTitle, v.Duration AS duration"
+            + " FROM Video v"
+            + " WHERE (v.VideoID NOT IN (SELECT s.VideoID FROM Seasons s))"
+            + " AND (v.ReleaseDate LIKE '%2020%') "
+            + " AND (v.Duration > 1000)";
+
+    // Executing the Query
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql, stmt -> {
+    }, YatvApp.QueryTypes.FindLongVideosNoShow);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("VIDEO ID: %s, TITLE: %s, DURATION: %d %n",
+          rows.getString(r, "videoID"),
+          rows.getString(r, "videoTitle"),
+          rows.getInt(r, "duration"));
+    }
+  }
+
+  /**
+   * QUERY 9- Produce a Ranked List of Revenue Generated by Apps in a Country
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param country    country
+   * @throws SQLException SQL gone bad
+   */
+  static void appRevenueByCountry(Connection connection, PrintStream out, String country)
+      throws SQLException {
+    if (Coalescer.shares()) {
+      Coalescer.flight(out, o -> {
+        appRevenueByCountry(connection, o, country);
+        return null;
+      }, YatvApp.QueryTypes.AppRevenueByCountry, country);
+      return;
+    }
+    final String sql =
+        "SELECT u.Country AS Country, SUM(s.Cost) AS Revenue, a.Name AS AppName"
+            + " FROM Subscription s JOIN User u ON s.UserID = u.UserID"
+            + " JOIN App a ON a.AppID = s.AppID"
+            + " WHERE u.Country = ?"
+            + " GROUP BY a.AppID"
+            + " ORDER BY Revenue DESC";
+
+    // Executing the Query, with the param set to Country
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> stmt.setString(1, country), YatvApp.QueryTypes.AppRevenueByCountry, country);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("COUNTRY: %s, APP: %s, REVENUE: %s %n",
+          rows.getString(r, "Country"),
+          rows.getString(r, "AppName"),
+          rows.getString(r, "Revenue"));
+    }
+  }
+
+  /**
+   * QUERY 10- Produce a Ranked List of Watch Count from the Top 3 Video Tags
+   *
+   * @param connection database connection
+   * @param out        output
+   * @throws SQLException SQL gone bad
+   */
+  static void topThreeWatchedTags(Connection connection, PrintStream out) throws SQLException {
+    topThreeWatchedTags(connection, out, null);
+  }
+
+  /**
+   * QUERY 10- Top 3 video tags by watch count, counting only watches in a time window
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param since      start of the window, or null for all history
+   * @throws SQLException SQL gone bad
+   */
+  static void topThreeWatchedTags(Connection connection, PrintStream out, LocalDateTime since)
+      throws SQLException {
+    if (since == null && Boolean.getBoolean("yatv.tags.index")) {
+      TagIndex.shared(connection).printTop(out, 3);
+      return;
+    }
+    final String sql = "SELECT (SUM(uvm.Watches)) AS viewCount,"
+        + " t.Tag AS tagName FROM Tag t"
+        + " INNER JOIN Video v ON v.VideoID = t.VideoID"
+        + " JOIN " + WatchHistory.WATCH_COUNTS + " uvm ON v.VideoID = uvm.VideoID"
+        + " GROUP BY tagName"
+        + " ORDER by viewCount DESC LIMIT 3";
+
+    // Executing the Query
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> WatchHistory.bindWindow(stmt, 1, since),
+        YatvApp.QueryTypes.TopThreeWatchedTags, since);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("VIEW COUNT: %s, TAG NAME: %s %n",
+          rows.getString(r, "viewCount"),
+          rows.getString(r, "tagName"));
+    }
+  }
+
+  /**
+   * QUERY 17- Browse Videos by Tags, from the in-memory {@link TagIndex}
+   *
+   * @param connection database connection, to load the index on first use and read titles
+   * @param out        output
+   * @param query      tags combined with AND, OR, NOT and parentheses, e.g.
+   *                   {@code Drama AND NOT (Kids OR Animation)}
+   * @param afterId    last VideoID of the previous page, 0 for the first page
+   * @param limit      rows per page
+   * @return key for the next page, or null if this was the last
+   * @throws SQLException SQL gone bad
+   */
+  static Integer browseByTags(Connection connection, PrintStream out, String query,
+      int afterId, int limit) throws SQLException {
+    final TagIndex index = TagIndex.shared(connection);
+    final CompressedBitmap matches = index.query(query);
+    final int size = pageSize(limit);
+    final int[] ids = new int[size + 1];
+    final int[] n = {0};
+    matches.forEachFrom(afterId + 1, v -> {
+      ids[n[0]++] = v;
+      return n[0] <= size;
+    });
+    if (afterId == 0) {
+      out.printf("%d videos, %d watches %n", matches.cardinality(), index.watches(matches));
+    }
+    final int shown = Math.min(n[0], size);
+    if (shown == 0) {
+      return null;
+    }
+
+    final String in = String.join(",", Collections.nCopies(shown, "?"));
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT v.VideoID, v.Title, v.Duration FROM Video v WHERE v.VideoID IN (" + in + ")"
+            + " ORDER BY v.VideoID")) {
+      for (int i = 0; i < shown; i++) {
+        stmt.setInt(i + 1, ids[i]);
+      }
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          out.printf("VIDEO ID: %d, TITLE: %s, DURATION: %d %n", res.getInt(1),
+              res.getString(2), res.getInt(3));
+        }
+      }
+    }
+    return n[0] > size ? ids[size - 1] : null;
+  }
+
+  /**
+   * QUERY 18- Search Videos and Shows by Title and Description, from the in-process
+   * {@link SearchIndex}
+   *
+   * @param connection database connection, to build the index on first use
+   * @param out        output
+   * @param query      words; each also matches longer words it starts
+   * @param limit      results wanted
+   * @throws SQLException SQL gone bad
+   */
+  static void search(Connection connection, PrintStream out, String query, int limit)
+      throws SQLException {
+    SearchIndex.shared(connection).print(out, query, pageSize(limit));
+  }
+
+  /**
+   * QUERY 19- Record that a User Watched a Video, and pass it to the in-memory indexes that
+   * follow watches (see {@link WatchEvents}). UserVideoWatched has no foreign keys, so the
+   * insert itself checks that both exist; nothing is recorded or published otherwise.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param userId     viewer
+   * @param videoId    video watched
+   * @throws SQLException SQL gone bad
+   */
+  static void recordWatch(Connection connection, PrintStream out, int userId, int videoId)
+      throws SQLException {
+    final LocalDateTime at = LocalDateTime.now().withNano(0);
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "INSERT INTO UserVideoWatched (UserID, VideoID, WatchedAt)"
+            + " SELECT u.UserID, v.VideoID, ? FROM User u, Video v"
+            + " WHERE u.UserID = ? AND v.VideoID = ?")) {
+      stmt.setTimestamp(1, Timestamp.valueOf(at));
+      stmt.setInt(2, userId);
+      stmt.setInt(3, videoId);
+      if (stmt.executeUpdate() == 0) {
+        out.printf("No such user or video, nothing recorded %n");
+        return;
+      }
+    }
+    WatchEvents.publish(userId, videoId, at);
+    out.printf("Success! Watch of VideoID %d by UserID %d recorded at %s%n", videoId, userId,
+        at);
+  }
+
+  /**
+   * QUERY 20- Approximate Viewers of a Show and its App, and the Most Watched Videos, from
+   * the {@link ViewerAnalytics} sketches
+   *
+   * @param connection database connection, to build the sketches on first use
+   * @param out        output
+   * @param showId     show
+   * @throws SQLException SQL gone bad
+   */
+  static void viewerStats(Connection connection, PrintStream out, int showId)
+      throws SQLException {
+    final ViewerAnalytics analytics = ViewerAnalytics.shared(connection);
+    out.printf("Unique viewers of ShowID %d: %s%n", showId, analytics.showViewers(showId));
+    try (final PreparedStatement stmt = connection.prepareStatement(
+        "SELECT DISTINCT AppID FROM Video WHERE ShowID = ?")) {
+      stmt.setInt(1, showId);
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          out.printf("Unique viewers of AppID %d: %s%n", res.getInt(1),
+              analytics.appViewers(res.getInt(1)));
+        }
+      }
+    }
+    final LocalDate today = LocalDate.now();
+    out.printf("Unique viewers in the last 30 days: %s%n",
+        analytics.viewers(null, today.minusDays(29), today));
+    out.printf("Most watched videos: %n");
+    analytics.topVideos(3).forEach((videoId, watches) ->
+        out.printf("VIDEO ID: %d, WATCHES: %s%n", videoId, watches));
+  }
+
+  /**
+   * REPORT QUERY 1 (QUERY 11)- Find the Customer with the Highest Revenue for a certain
+   * Country.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param country    country
+   * @throws SQLException SQL gone bad
+   */
+  static void highestCustomer(Connection connection, PrintStream out, String country)
+      throws SQLException {
+    if (Coalescer.shares()) {
+      Coalescer.flight(out, o -> {
+        highestCustomer(connection, o, country);
+        return null;
+      }, YatvApp.QueryTypes.HighestCustomer, country);
+      return;
+    }
+    final String sql = "SELECT q1.ID AS UserID, q1.FirstName AS firstName,"
+        + " q1.LastName AS lastName, MAX(q1.Revenue) as Revenue"
+        + " FROM (SELECT u.UserID AS ID, u.FirstName as FirstName, u.LastName as LastName,"
+        + " ROUND(SUM(s.Cost), 2) as Revenue, u.Country as Country"
+        + " FROM User u JOIN Subscription s ON u.UserID =s.UserID"
+        + " GROUP BY u.UserID) q1"
+        + " WHERE q1.Country = ? ";
+
+    // Executing the Query, with the param set to Country
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> stmt.setString(1, country), YatvApp.QueryTypes.HighestCustomer, country);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("UserID: %d %nFirstName: %s %nLastName: %s %nRevenue: %s%n",
+          rows.getInt(r, "UserID"), rows.getString(r, "firstName"),
+          rows.getString(r, "lastName"), rows.getString(r, "Revenue"));
+    }
+  }
+
+  /**
+   * REPORT QUERY 2 (QUERY 12)- Find the App with the Lowest Revenue for a certain Country.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param country    country
+   * @throws SQLException SQL gone bad
+   */
+  static void lowestApp(Connection connection, PrintStream out, String country)
+      throws SQLException {
+    if (Coalescer.shares()) {
+      Coalescer.flight(out, o -> {
+        lowestApp(connection, o, country);
+        return null;
+      }, YatvApp.QueryTypes.LowestApp, country);
+      return;
+    }
+    final String sql =
+        "SELECT q1.Revenue as Revenue, q1.AppID as AppID, q1.AppName as AppName, q1.Country as Country "
+            + " FROM (SELECT ROUND(SUM(s.Cost), 2) as Revenue, a.AppID as AppID, a.Name as AppName, u.Country as Country "
+            + " FROM Subscription s JOIN App a ON a.AppID = s.AppID"
+            + " JOIN User u ON s.UserID = u.UserID "
+            + " GROUP BY s.AppID) q1 "
+            + " WHERE q1.Country = ? "
+            + " ORDER BY Revenue LIMIT 1";
+
+    // Executing the Query, with the param set to Country
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> stmt.setString(1, country), YatvApp.QueryTypes.LowestApp, country);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("App ID: %s %nApp Name: %s %nRevenue: %s ",
+          rows.getInt(r, "AppID"), rows.getString(r, "AppName"),
+          rows.getString(r, "Revenue"));
+    }
+  }
+
+  /**
+   * REPORT QUERY 3 (QUERY 13)- Find the Top 3 Most Watched Videos for the Most Profitable
+   * App in a certain Country
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param country    country
+   * @throws SQLException SQL gone bad
+   */
+  static void mostProfitableVideos(Connection connection, PrintStream out, String country)
+      throws SQLException {
+    mostProfitableVideos(connection, out, country, null);
+  }
+
+  /**
+   * REPORT QUERY 3 (QUERY 13)- Top 3 most watched videos of the most profitable app in a
+   * country, counting only watches in a time window
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param country    country
+   * @param since      start of the window, or null for all history
+   * @throws SQLException SQL gone bad
+   */
+  static void mostProfitableVideos(Connection connection, PrintStream out, String country,
+      LocalDateTime since) throws SQLException {
+    if (Coalescer.shares()) {
+      Coalescer.flight(out, o -> {
+        mostProfitableVideos(connection, o, country, since);
+        return null;
+      }, YatvApp.QueryTypes.MostProfitableVideos, country, since);
+      return;
+    }
+    final String sql =
+        "SELECT SUM(uw.Watches) as WatchCount, v.Title as VideoName, a.Name as AppName"
+            + " FROM (SELECT SUM(s.Cost) as Revenue, s.AppID as AppID"
+            + " FROM Subscription s JOIN User u ON u.UserID = s.UserID "
+            + " WHERE u.Country = ?"
+            + " GROUP BY s.AppID "
+            + " ORDER BY Revenue DESC LIMIT 1) q1"
+            + " JOIN Video v ON v.AppID = q1.AppID"
+            + " JOIN App a ON a.AppID = q1.AppID"
+            + " JOIN " + WatchHistory.WATCH_COUNTS + " uw ON v.VideoID = uw.VideoID"
+            + " GROUP BY uw.VideoID "
+            + " ORDER BY WatchCount DESC, VideoName LIMIT 3";
+
+    // Executing the Query, with the first param set to Country
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql, stmt -> {
+      stmt.setString(1, country);
+      WatchHistory.bindWindow(stmt, 2, since);
+    }, YatvApp.QueryTypes.MostProfitableVideos, country, since);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("APP: %s, VIDEO: %s, WATCH COUNT: %d %n",
+          rows.getString(r, "AppName"), rows.getString(r, "VideoName"),
+          rows.getInt(r, "WatchCount"));
+    }
+  }
+
+  /**
+   * REPORT QUERY 4 (QUERY 14)- Finding the Top 3 Most Watched Episodes for a certain Show.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param showId     show
+   * @throws SQLException SQL gone bad
+   */
+  static void mostWatchedEpisodes(Connection connection, PrintStream out, int showId)
+      throws SQLException {
+    mostWatchedEpisodes(connection, out, showId, null);
+  }
+
+  /**
+   * One of a show's most watched episodes
+   */
+  private static final class EpisodeCount {
+
+    final String show;
+    final String episode;
+    final int watches;
+
+    EpisodeCount(String show, String episode, int watches) {
+      this.show = show;
+      this.episode = episode;
+      this.watches = watches;
+    }
+  }
+
+  /**
+   * Batches QUERY 14 lookups arriving together into one scan of the watch counts, per window
+   */
+  private static final Coalescer.Loader<List<EpisodeCount>> TOP_EPISODES =
+      new Coalescer.Loader<>(YatvApp.QueryTypes.MostWatchedEpisodes.name(),
+          YatvQueries::topEpisodes);
+
+  /**
+   * Top 3 most watched episodes of each of several shows
+   *
+   * @param connection database connection
+   * @param since      start of the window (a LocalDateTime), or null for all history
+   * @param showIds    shows
+   * @return top episodes by ShowID; shows without watches are left out
+   * @throws SQLException SQL gone bad
+   */
+  private static Map<Integer, List<EpisodeCount>> topEpisodes(Connection connection,
+      Object since, int[] showIds) throws SQLException {
+    final String sql = "SELECT q1.ShowID AS ShowID, q1.showName AS showName,"
+        + " v.Title AS videoName, q1.watchCount AS watchCount"
+        + " FROM ("
+        + " SELECT sh.ShowID AS ShowID, sh.Title AS showName, s.VideoID AS VideoID,"
+        + " SUM(uw.Watches) AS watchCount"
+        + " FROM " + WatchHistory.WATCH_COUNTS + " uw JOIN Seasons s ON s.VideoID=uw.VideoID"
+        + " JOIN Shows sh ON sh.ShowID = s.ShowID"
+        + " WHERE sh.ShowID IN (" + String.join(", ", Collections.nCopies(showIds.length, "?"))
+        + ")"
+        + " GROUP BY sh.ShowID, sh.Title, s.VideoID) q1"
+        + " JOIN Video v ON v.VideoID = q1.VideoID"
+        // Ties break on VideoID, as in the single show query, so both paths pick the same 3
+        + " ORDER BY q1.ShowID, watchCount DESC, q1.VideoID";
+    final Map<Integer, List<EpisodeCount>> top = new HashMap<>();
+    try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+      int index = WatchHistory.bindWindow(stmt, 1, (LocalDateTime) since);
+      for (int showId : showIds) {
+        stmt.setInt(index++, showId);
+      }
+      try (final ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          final List<EpisodeCount> episodes = top.computeIfAbsent(res.getInt("ShowID"),
+              id -> new ArrayList<>(3));
+          if (episodes.size() < 3) {
+            episodes.add(new EpisodeCount(res.getString("showName"),
+                res.getString("videoName"), res.getInt("watchCount")));
+          }
+        }
+      }
+    }
+    return top;
+  }
+
+  /**
+   * REPORT QUERY 4 (QUERY 14)- Top 3 most watched episodes of a show, counting only watches
+   * in a time window
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param showId     show
+   * @param since      start of the window, or null for all history
+   * @throws SQLException SQL gone bad
+   */
+  static void mostWatchedEpisodes(Connection connection, PrintStream out, int showId,
+      LocalDateTime since) throws SQLException {
+    if (Coalescer.shares()) {
+      final List<EpisodeCount> top = TOP_EPISODES.load(connection, since, showId);
+      if (top != null) {
+        for (EpisodeCount e : top) {
+          out.printf("SHOW: %s, EPISODE: %s, VIEW COUNT: %d %n", e.show, e.episode, e.watches);
+        }
+      }
+      return;
+    }
+    final String sql = "SELECT q1.showName as showName, v.Title as videoName,"
+        + " q1.watchCount as watchCount"
+        + " FROM ("
+        + " SELECT sh.ShowID as ShowID, sh.Title AS showName, s.VideoID as VideoID,"
+        + " SUM(uw.Watches) as watchCount"
+        + " FROM " + WatchHistory.WATCH_COUNTS + " uw JOIN Seasons s ON s.VideoID=uw.VideoID "
+        + " JOIN Shows sh ON sh.ShowID = s.ShowID"
+        + " GROUP BY uw.VideoID) q1 "
+        + " JOIN Shows sh on sh.ShowID = q1.ShowID"
+        + " JOIN Video v ON v.VideoID = q1.VideoID"
+        + " WHERE sh.ShowID = ? "
+        + " ORDER BY watchCount DESC, q1.VideoID LIMIT 3 ";
+
+    // Executing the Query, with the last param set to ShowID
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql, stmt -> {
+      stmt.setInt(WatchHistory.bindWindow(stmt, 1, since), showId);
+    }, YatvApp.QueryTypes.MostWatchedEpisodes, showId, since);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("SHOW: %s, EPISODE: %s, VIEW COUNT: %d %n",
+          rows.getString(r, "showName"), rows.getString(r, "videoName"),
+          rows.getInt(r, "watchCount"));
+    }
+  }
+
+  /**
+   * REPORT QUERY 5 (QUERY 15)- Produce a Ranked List of Revenue by App for Mobile Platforms
+   * for a certain Country.
+   *
+   * @param connection database connection
+   * @param out        output
+   * @param country    country
+   * @throws SQLException SQL gone bad
+   */
+  static void mobileAppsRevenueRanked(Connection connection, PrintStream out, String country)
+      throws SQLException {
+    if (Coalescer.shares()) {
+      Coalescer.flight(out, o -> {
+        mobileAppsRevenueRanked(connection, o, country);
+        return null;
+      }, YatvApp.QueryTypes.MobileAppsRevenueRanked, country);
+      return;
+    }
+    final String sql =
+        "SELECT a.Name as AppName,  a.AppID as AppID, ROUND(SUM(S.Cost), 0) as Revenue"
+            + " FROM Platform p JOIN AppPlatform ap ON p.PlatformID = ap.PlatformID JOIN App a ON a.AppID = ap.AppID "
+            + " JOIN Subscription s ON s.AppID = a.AppID JOIN User u ON s.UserID = u.UserID"
+            + " WHERE u.Country = ? AND p.Mobile=1"
+            + " GROUP BY ap.AppID"
+            + " ORDER BY Revenue DESC, AppName ";
+
+    // Executing the Query, with the param set to Country
+    final ResultCache.Rows rows = ResultCache.rows(connection, sql,
+        stmt -> stmt.setString(1, country), YatvApp.QueryTypes.MobileAppsRevenueRanked, country);
+    for (int r = 0; r < rows.size(); r++) {
+      out.printf("APP: %s, REVENUE: %d %n",
+          rows.getString(r, "AppName"), rows.getInt(r, "Revenue"));
+    }
+  }
+}
@@ -1,16 +1,15 @@
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.SQLException;
 
 
 class main {
   public static void main(String args[]) {
     try {
-      Class.forName("com.mysql.cj.jdbc.Driver");
-      Connection conn = null;
-      conn = DriverManager.getConnection("jdbc:mysql://localhost/Project?useUnicode=true&useJDBCCompliantTimezoneShift=true&useLegacyDatetimeCode=false&serverTimezone=EST","root", "");
-      System.out.print("Database is connected !");
+      DbConfig config = DbConfig.load();
+      ConnectionPool pool = config.openPool(1);
+      Connection conn = pool.getConnection();
+      System.out.print("Database is connected ! (" + config + ")");
       conn.close();
+      pool.close();
     }
     catch(Exception e) {
       System.out.print("Do not connect to DB - Error:"+e);
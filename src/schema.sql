@@ -0,0 +1,146 @@
+-- YaTV schema. Written for MySQL; also runs on an embedded database in MySQL
+-- compatibility mode. Every statement is idempotent so it can run on each start.
+
+CREATE TABLE IF NOT EXISTS User (
+  UserID INT NOT NULL AUTO_INCREMENT,
+  FirstName VARCHAR(64) NOT NULL,
+  LastName VARCHAR(64) NOT NULL,
+  Country VARCHAR(64) NOT NULL,
+  Email VARCHAR(255) NOT NULL,
+  Password VARCHAR(60) NOT NULL,
+  PRIMARY KEY (UserID),
+  UNIQUE INDEX UserEmail (Email),
+  INDEX UserCountry (Country)
+);
+
+CREATE TABLE IF NOT EXISTS App (
+  AppID INT NOT NULL AUTO_INCREMENT,
+  Name VARCHAR(128) NOT NULL,
+  MonthlyCost DECIMAL(8, 2) NOT NULL,
+  PRIMARY KEY (AppID)
+);
+
+CREATE TABLE IF NOT EXISTS Platform (
+  PlatformID INT NOT NULL AUTO_INCREMENT,
+  Name VARCHAR(64) NOT NULL,
+  Mobile BOOLEAN NOT NULL,
+  PRIMARY KEY (PlatformID)
+);
+
+CREATE TABLE IF NOT EXISTS AppPlatform (
+  AppID INT NOT NULL,
+  PlatformID INT NOT NULL,
+  VersionNum FLOAT NOT NULL,
+  PRIMARY KEY (AppID, PlatformID),
+  INDEX AppPlatformPlatform (PlatformID)
+);
+
+CREATE TABLE IF NOT EXISTS Shows (
+  ShowID INT NOT NULL AUTO_INCREMENT,
+  Title VARCHAR(255) NOT NULL,
+  PRIMARY KEY (ShowID)
+);
+
+CREATE TABLE IF NOT EXISTS Video (
+  VideoID INT NOT NULL AUTO_INCREMENT,
+  Title VARCHAR(255) NOT NULL,
+  Description TEXT,
+  Duration INT NOT NULL,
+  AppID INT NOT NULL,
+  SubNeeded BOOLEAN NOT NULL,
+  ReleaseDate DATE,
+  ShowID INT,
+  PRIMARY KEY (VideoID),
+  INDEX VideoApp (AppID),
+  INDEX VideoTitle (Title)
+);
+
+CREATE TABLE IF NOT EXISTS Seasons (
+  SeasonID INT NOT NULL AUTO_INCREMENT,
+  ShowID INT NOT NULL,
+  VideoID INT NOT NULL,
+  SeasonNum INT NOT NULL,
+  EpisodeNum INT NOT NULL,
+  PRIMARY KEY (SeasonID),
+  INDEX SeasonsShow (ShowID),
+  INDEX SeasonsVideo (VideoID)
+);
+
+CREATE TABLE IF NOT EXISTS Tag (
+  TagID INT NOT NULL AUTO_INCREMENT,
+  VideoID INT NOT NULL,
+  Tag VARCHAR(64) NOT NULL,
+  PRIMARY KEY (TagID),
+  INDEX TagVideo (VideoID)
+);
+
+CREATE TABLE IF NOT EXISTS Subscription (
+  SubscriptionID INT NOT NULL AUTO_INCREMENT,
+  UserID INT NOT NULL,
+  Cost DECIMAL(10, 2) NOT NULL,
+  ExpDate DATE NOT NULL,
+  AppID INT NOT NULL,
+  AutoRenew BOOLEAN NOT NULL DEFAULT FALSE,
+  PRIMARY KEY (SubscriptionID),
+  INDEX SubscriptionUser (UserID),
+  INDEX SubscriptionApp (AppID),
+  INDEX SubscriptionExpDate (ExpDate)
+);
+
+-- Lapsed subscriptions moved out of Subscription by SubscriptionSweeper
+CREATE TABLE IF NOT EXISTS SubscriptionArchive (
+  SubscriptionID INT NOT NULL,
+  UserID INT NOT NULL,
+  Cost DECIMAL(10, 2) NOT NULL,
+  ExpDate DATE NOT NULL,
+  AppID INT NOT NULL,
+  ArchivedOn DATE NOT NULL,
+  PRIMARY KEY (SubscriptionID),
+  INDEX SubscriptionArchiveUser (UserID)
+);
+
+CREATE TABLE IF NOT EXISTS MyListShow (
+  UserID INT NOT NULL,
+  ShowID INT NOT NULL,
+  PRIMARY KEY (UserID, ShowID)
+);
+
+-- Live watch history. WatchHistory partitions it by month on MySQL and compacts old months
+-- into VideoWatchDaily.
+CREATE TABLE IF NOT EXISTS UserVideoWatched (
+  WatchID BIGINT NOT NULL AUTO_INCREMENT,
+  UserID INT NOT NULL,
+  VideoID INT NOT NULL,
+  WatchedAt DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (WatchID),
+  INDEX WatchedUser (UserID),
+  INDEX WatchedVideo (VideoID),
+  INDEX WatchedAt (WatchedAt)
+);
+
+-- Watches per video per day, for the months compacted out of UserVideoWatched
+CREATE TABLE IF NOT EXISTS VideoWatchDaily (
+  VideoID INT NOT NULL,
+  WatchDate DATE NOT NULL,
+  Watches INT NOT NULL,
+  PRIMARY KEY (VideoID, WatchDate),
+  INDEX VideoWatchDailyDate (WatchDate)
+);
+
+-- One row per compacted month: watches before CompactedBefore are in VideoWatchDaily
+CREATE TABLE IF NOT EXISTS WatchCompaction (
+  CompactedBefore DATE NOT NULL,
+  PRIMARY KEY (CompactedBefore)
+);
+
+-- Row changes to the catalog and Subscription, appended by the triggers ChangeLog installs
+-- and tailed by every process holding in-memory copies of those tables
+CREATE TABLE IF NOT EXISTS ChangeLog (
+  Seq BIGINT NOT NULL AUTO_INCREMENT,
+  TableName VARCHAR(64) NOT NULL,
+  Key1 INT NOT NULL,
+  Key2 INT,
+  Op CHAR(1) NOT NULL,
+  ChangedAt DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (Seq)
+);